@@ -0,0 +1,242 @@
+package com.splout.db.common;
+
+/*
+ * #%L
+ * Splout SQL commons
+ * %%
+ * Copyright (C) 2012 - 2014 Datasalt Systems S.L.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonProcessingException;
+import org.codehaus.jackson.map.JsonSerializer;
+import org.codehaus.jackson.map.SerializerProvider;
+import org.codehaus.jackson.map.annotate.JsonSerialize;
+
+/**
+ * A query result kept as typed column vectors, as decoded from the columnar binary format of the DNodes. Rows are
+ * never materialized unless asked for ({@link #mapify()}, {@link #toQueryResult()}): when serialized to JSON, values
+ * are written straight from the vectors into the generator as an array of row objects, the same JSON that serializing
+ * {@link QueryResult#mapify()} would produce.
+ */
+@JsonSerialize(using = ColumnarQueryResult.Serializer.class)
+public class ColumnarQueryResult {
+
+  /**
+   * Writes the rows of a {@link ColumnarQueryResult} straight from its vectors.
+   */
+  public static class Serializer extends JsonSerializer<ColumnarQueryResult> {
+
+    @Override
+    public void serialize(ColumnarQueryResult value, JsonGenerator jgen, SerializerProvider provider)
+        throws IOException, JsonProcessingException {
+      value.serialize(jgen);
+    }
+  }
+
+  /**
+   * A column of a {@link ColumnarQueryResult}. Vectors are dense (one position per row); positions of null values are
+   * set in the null bitmap. Only one of the vectors is used depending on the type of the column: longs for
+   * {@link #INTEGER}, doubles for {@link #FLOAT} and values for {@link #TEXT}, {@link #BLOB} and {@link #MIXED}
+   * (columns holding values of more than one type, as SQLite columns can).
+   */
+  public static class Column {
+
+    public final static byte NULL = 0;
+    public final static byte INTEGER = 1;
+    public final static byte FLOAT = 2;
+    public final static byte TEXT = 3;
+    public final static byte BLOB = 4;
+    public final static byte MIXED = 5;
+
+    private final byte type;
+    private final BitSet nulls;
+    private final long[] longs;
+    private final double[] doubles;
+    private final Object[] values;
+
+    public Column(byte type, BitSet nulls, long[] longs, double[] doubles, Object[] values) {
+      this.type = type;
+      this.nulls = nulls;
+      this.longs = longs;
+      this.doubles = doubles;
+      this.values = values;
+    }
+
+    public byte getType() {
+      return type;
+    }
+
+    public boolean isNull(int row) {
+      return type == NULL || (nulls != null && nulls.get(row));
+    }
+
+    /**
+     * Boxed value of a row, with the same types SQLite would have returned: Integer or Long, Double, String, byte[].
+     */
+    public Object getValue(int row) {
+      if (isNull(row)) {
+        return null;
+      }
+      switch (type) {
+      case INTEGER:
+        return boxInteger(longs[row]);
+      case FLOAT:
+        return doubles[row];
+      default:
+        return values[row];
+      }
+    }
+
+    /**
+     * Value of a row of an {@link #INTEGER} column, without boxing it.
+     */
+    public long getLong(int row) {
+      return longs[row];
+    }
+
+    /**
+     * Value of a row of a {@link #FLOAT} column, without boxing it.
+     */
+    public double getDouble(int row) {
+      return doubles[row];
+    }
+
+    void write(int row, JsonGenerator jgen) throws IOException {
+      if (isNull(row)) {
+        jgen.writeNull();
+        return;
+      }
+      switch (type) {
+      case INTEGER:
+        jgen.writeNumber(longs[row]);
+        break;
+      case FLOAT:
+        jgen.writeNumber(doubles[row]);
+        break;
+      case TEXT:
+        jgen.writeString((String) values[row]);
+        break;
+      case BLOB:
+        jgen.writeBinary((byte[]) values[row]);
+        break;
+      default:
+        writeObject(values[row], jgen);
+      }
+    }
+  }
+
+  /**
+   * Integers that fit in an int are returned as Integer, like SQLite does.
+   */
+  public static Object boxInteger(long value) {
+    if (value == (int) value) {
+      return (int) value;
+    }
+    return value;
+  }
+
+  private static void writeObject(Object value, JsonGenerator jgen) throws IOException {
+    if (value instanceof Integer) {
+      jgen.writeNumber((Integer) value);
+    } else if (value instanceof Long) {
+      jgen.writeNumber((Long) value);
+    } else if (value instanceof Double) {
+      jgen.writeNumber((Double) value);
+    } else if (value instanceof byte[]) {
+      jgen.writeBinary((byte[]) value);
+    } else {
+      jgen.writeString(value.toString());
+    }
+  }
+
+  private final String[] columnNames;
+  private final int nRows;
+  private final Column[] columns;
+
+  public ColumnarQueryResult(String[] columnNames, int nRows, Column[] columns) {
+    this.columnNames = columnNames;
+    this.nRows = nRows;
+    this.columns = columns;
+  }
+
+  public String[] getColumnNames() {
+    return columnNames;
+  }
+
+  public Column getColumn(int column) {
+    return columns[column];
+  }
+
+  /**
+   * Number of rows.
+   */
+  public int size() {
+    return nRows;
+  }
+
+  public Object getValue(int row, int column) {
+    return columns[column].getValue(row);
+  }
+
+  /**
+   * Same as {@link QueryResult#mapify()}: one Map per row. Only needed by callers that want to navigate the result as
+   * Java objects, JSON serialization doesn't use it.
+   */
+  public List<Map<String, Object>> mapify() {
+    List<Map<String, Object>> res = new ArrayList<Map<String, Object>>(nRows);
+    for (int i = 0; i < nRows; i++) {
+      Map<String, Object> map = new HashMap<String, Object>();
+      for (int j = 0; j < columnNames.length; j++) {
+        map.put(columnNames[j], columns[j].getValue(i));
+      }
+      res.add(map);
+    }
+    return res;
+  }
+
+  public QueryResult toQueryResult() {
+    List<Object[]> results = new ArrayList<Object[]>(nRows);
+    for (int i = 0; i < nRows; i++) {
+      Object[] row = new Object[columnNames.length];
+      for (int j = 0; j < columnNames.length; j++) {
+        row[j] = columns[j].getValue(i);
+      }
+      results.add(row);
+    }
+    return new QueryResult(columnNames, results);
+  }
+
+  private void serialize(JsonGenerator jgen) throws IOException {
+    jgen.writeStartArray();
+    for (int i = 0; i < nRows; i++) {
+      jgen.writeStartObject();
+      for (int j = 0; j < columnNames.length; j++) {
+        jgen.writeFieldName(columnNames[j]);
+        columns[j].write(i, jgen);
+      }
+      jgen.writeEndObject();
+    }
+    jgen.writeEndArray();
+  }
+}
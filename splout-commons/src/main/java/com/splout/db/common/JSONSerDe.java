@@ -20,13 +20,16 @@ package com.splout.db.common;
  * #L%
  */
 
+import org.codehaus.jackson.JsonEncoding;
 import org.codehaus.jackson.JsonGenerationException;
+import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.JsonParseException;
 import org.codehaus.jackson.map.JsonMappingException;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.type.TypeReference;
 
 import java.io.IOException;
+import java.io.OutputStream;
 
 /**
  * Helper class for serializing / deserializing from / to JSON using Jackson
@@ -55,6 +58,25 @@ public class JSONSerDe {
     }
   }
 
+  /**
+   * Serializes the object as UTF-8 JSON straight to the stream with Jackson's streaming generator, without building
+   * the whole JSON in memory. The stream is flushed but not closed.
+   */
+  public static void ser(Object obj, OutputStream out) throws JSONSerDeException {
+    try {
+      JsonGenerator generator = mapper.getJsonFactory().createJsonGenerator(out, JsonEncoding.UTF8);
+      generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+      mapper.writeValue(generator, obj);
+      generator.close();
+    } catch (JsonGenerationException e) {
+      throw new JSONSerDeException(e);
+    } catch (JsonMappingException e) {
+      throw new JSONSerDeException(e);
+    } catch (IOException e) {
+      throw new JSONSerDeException(e);
+    }
+  }
+
   @SuppressWarnings("unchecked")
   public static <T> T deSer(String str, TypeReference<T> ref) throws JSONSerDeException {
     try {
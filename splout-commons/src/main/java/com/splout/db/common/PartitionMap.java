@@ -33,6 +33,10 @@ import java.util.List;
  * <p/>
  * A partition map is composed by several {@link PartitionEntry}. The partition map implements the logic of finding a
  * partition number given a key of type <T> in {@link #findPartition(String)}.
+ * <p/>
+ * Lookups are backed by a lazily built index of the partition boundaries, so they take O(log n) instead of a linear
+ * scan over all the entries. The index is rebuilt automatically when the entry list is replaced or changes its size.
+ * Maps whose ranges are not sorted and disjoint fall back to the linear scan.
  */
 @SuppressWarnings("serial")
 @JsonIgnoreProperties(ignoreUnknown = true) // Backwards compatibility in JSON (new fields don't make things break)
@@ -51,6 +55,9 @@ public class PartitionMap implements Serializable {
 
   private List<PartitionEntry> partitionEntries;
 
+  // Lazily built boundary index, see {@link #getIndex()}
+  private transient volatile BoundaryIndex index;
+
   public PartitionMap() {
   }
 
@@ -82,16 +89,27 @@ public class PartitionMap implements Serializable {
    * of the key type (that's why we use null for representing opened ranges).
    */
   public List<Integer> findPartitions(String minKey, String maxKey) {
+    BoundaryIndex index = getIndex();
     List<Integer> partitions = new ArrayList<Integer>();
     int minPartitionIndex = 0, maxPartitionIndex = partitionEntries.size() - 1;
-    if (minKey != null) {
-      minPartitionIndex = findPartition(minKey);
-    }
-    if (maxKey != null) {
-      maxPartitionIndex = findPartition(maxKey);
+    if (index.sorted) {
+      // Positions in the entry list, not shard ids: they only coincide if no entry has been removed
+      if (minKey != null) {
+        minPartitionIndex = index.position(minKey);
+      }
+      if (maxKey != null) {
+        maxPartitionIndex = index.position(maxKey);
+      }
+    } else {
+      if (minKey != null) {
+        minPartitionIndex = linearFindPartition(minKey);
+      }
+      if (maxKey != null) {
+        maxPartitionIndex = linearFindPartition(maxKey);
+      }
     }
     for (int i = minPartitionIndex; i <= maxPartitionIndex; i++) {
-      partitions.add(partitionEntries.get(i).getShard());
+      partitions.add(index.sorted ? index.shards[i] : partitionEntries.get(i).getShard());
     }
     return partitions;
   }
@@ -104,6 +122,19 @@ public class PartitionMap implements Serializable {
     if (keyObj == null) {
       throw new IllegalArgumentException("Key obj can't be null for findPartition()");
     }
+    BoundaryIndex index = getIndex();
+    if (!index.sorted) {
+      return linearFindPartition(keyObj);
+    }
+    int pos = index.position(keyObj);
+    return pos == NO_PARTITION ? NO_PARTITION : index.shards[pos];
+  }
+
+  /**
+   * The original lookup: returns the shard of the first entry matching (min, max]. Used for maps whose ranges are not
+   * sorted and disjoint, where the binary search wouldn't be equivalent.
+   */
+  int linearFindPartition(String keyObj) {
     for (PartitionEntry entry : partitionEntries) {
       // We assume (-Infinity, Infinity) matching since nulls represent Infinity for any type <T>
       boolean minMatches = true;
@@ -125,8 +156,84 @@ public class PartitionMap implements Serializable {
     return NO_PARTITION;
   }
 
+  /**
+   * Returns the boundary index for the current entry list, rebuilding it if the list has been replaced or has changed
+   * its size (e.g. an entry removed by the QNode when its last replica leaves). Concurrent callers may build it twice,
+   * which is harmless as the result is the same.
+   */
+  private BoundaryIndex getIndex() {
+    BoundaryIndex index = this.index;
+    if (index == null || index.entries != partitionEntries || index.shards.length != partitionEntries.size()) {
+      index = new BoundaryIndex(partitionEntries);
+      this.index = index;
+    }
+    return index;
+  }
+
+  /**
+   * Sorted snapshot of the partition boundaries. A map is "sorted" when its maxs are strictly increasing (only the
+   * last one may be null = +Infinity) and every min but the first one is not null and not lower than the previous max.
+   * In that case the ranges are disjoint and the only candidate for a key is the first entry whose max is >= key.
+   */
+  private static class BoundaryIndex {
+
+    final List<PartitionEntry> entries;
+    final String[] mins;
+    final String[] maxs;
+    final int[] shards;
+    final boolean sorted;
+
+    BoundaryIndex(List<PartitionEntry> entries) {
+      this.entries = entries;
+      int n = entries.size();
+      mins = new String[n];
+      maxs = new String[n];
+      shards = new int[n];
+      boolean sorted = true;
+      for (int i = 0; i < n; i++) {
+        PartitionEntry entry = entries.get(i);
+        mins[i] = entry.getMin();
+        maxs[i] = entry.getMax();
+        shards[i] = entry.getShard() == null ? NO_PARTITION : entry.getShard();
+        if (i > 0) {
+          String prevMax = maxs[i - 1];
+          if (prevMax == null || mins[i] == null || mins[i].compareTo(prevMax) < 0) {
+            sorted = false;
+          } else if (maxs[i] != null && maxs[i].compareTo(prevMax) <= 0) {
+            sorted = false;
+          }
+        }
+      }
+      this.sorted = sorted;
+    }
+
+    /**
+     * Position in the entry list of the partition the key belongs to, or {@link #NO_PARTITION}.
+     */
+    int position(String key) {
+      int lo = 0, hi = maxs.length;
+      // Lower bound: first position whose max is >= key (null max being +Infinity)
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (maxs[mid] != null && maxs[mid].compareTo(key) < 0) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      if (lo == maxs.length) {
+        return NO_PARTITION;
+      }
+      if (mins[lo] != null && mins[lo].compareTo(key) >= 0) {
+        return NO_PARTITION;
+      }
+      return lo;
+    }
+  }
+
   public void setPartitionEntries(List<PartitionEntry> partitionEntries) {
     this.partitionEntries = partitionEntries;
+    this.index = null;
   }
 
   public List<PartitionEntry> getPartitionEntries() {
@@ -120,8 +120,8 @@ public class TimeoutThread extends Thread {
   }
 
   /**
-   * A Thread provides its thread-local connection to be monitored when a query starts. The SQL query is provided just
-   * for logging purposes.
+   * A Thread provides its connection to be monitored when a query starts. The SQL query is provided just for logging
+   * purposes.
    */
   public void startQuery(SQLiteConnection connection, String query) {
     synchronized (connection) {
@@ -140,9 +140,9 @@ public class TimeoutThread extends Thread {
   }
 
   /**
-   * The same Thread that provided this connection in startQuery() removes it from the monitoring list. So it is
-   * important to understand that this class makes the assumption that each SQLite Thread will use only one connection
-   * (Thread-local). {@link SQLite4JavaManager} behaves like this.
+   * The same Thread that provided this connection in startQuery() marks it as not active. So it is important to
+   * understand that this class makes the assumption that each connection is used by one query at a time, which is
+   * what the connection pool of {@link com.splout.db.engine.SQLite4JavaClient} does.
    */
   public void endQuery(SQLiteConnection connection) {
     synchronized (connection) {
@@ -156,6 +156,16 @@ public class TimeoutThread extends Thread {
     }
   }
 
+  /**
+   * Stops monitoring a connection that is being closed.
+   */
+  public void forgetConnection(SQLiteConnection connection) {
+    synchronized (connection) {
+      connections.remove(connection);
+      currentQueries.remove(connection);
+    }
+  }
+
   // --- package-access getters for unit testing --- //
 
   ConcurrentHashMap<SQLiteConnection, QueryAndTime> getCurrentQueries() {
@@ -0,0 +1,195 @@
+package com.splout.db.engine;
+
+/*
+ * #%L
+ * Splout SQL commons
+ * %%
+ * Copyright (C) 2012 - 2014 Datasalt Systems S.L.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import com.esotericsoftware.kryo.io.Input;
+import com.splout.db.common.ColumnarQueryResult;
+import com.splout.db.common.ColumnarQueryResult.Column;
+import com.splout.db.common.QueryResult;
+import com.splout.db.engine.ResultSerializer.SerializationException;
+
+/**
+ * Reads results written by {@link BinaryResultEncoder}. Values are returned with the same types that
+ * {@link com.almworks.sqlite4java.SQLiteStatement#columnValue(int)} would have returned, so results are
+ * indistinguishable from the ones of {@link SQLite4JavaClient#query(String, int)}.
+ */
+public class BinaryResultDecoder {
+
+  /**
+   * Whether the buffer holds a result written by {@link BinaryResultEncoder} (as opposed to a Kryo-serialized
+   * {@link QueryResult} coming from an older DNode or another engine).
+   */
+  public static boolean isBinaryResult(ByteBuffer serialized) {
+    return serialized.remaining() >= 2 && serialized.get(serialized.position()) == BinaryResultEncoder.MAGIC;
+  }
+
+  /**
+   * Whether the buffer holds a columnar result ({@link BinaryResultEncoder#VERSION_COLUMNAR}), which can be read
+   * without building rows with {@link #decodeColumnar(ByteBuffer)}.
+   */
+  public static boolean isColumnarResult(ByteBuffer serialized) {
+    return isBinaryResult(serialized)
+        && serialized.get(serialized.position() + 1) == BinaryResultEncoder.VERSION_COLUMNAR;
+  }
+
+  public static QueryResult decode(ByteBuffer serialized) throws SerializationException {
+    if (isColumnarResult(serialized)) {
+      return decodeColumnar(serialized).toQueryResult();
+    }
+    Input input = new Input(serialized.array(), serialized.position(), serialized.remaining());
+    input.readByte(); // magic
+    byte version = input.readByte();
+    if (version != BinaryResultEncoder.VERSION_ROWS) {
+      throw new SerializationException("Unknown binary result version: " + version);
+    }
+    String[] columnNames = readColumnNames(input);
+    int nColumns = columnNames.length;
+    List<Object[]> results = new ArrayList<Object[]>();
+    while (input.readByte() == BinaryResultEncoder.ROW) {
+      Object[] row = new Object[nColumns];
+      for (int i = 0; i < nColumns; i++) {
+        row[i] = readValue(input);
+      }
+      results.add(row);
+    }
+    return new QueryResult(columnNames, results);
+  }
+
+  /**
+   * Reads a columnar result into typed column vectors. Only values of {@link Column#MIXED} columns are boxed, and
+   * dictionary-encoded text columns share one String instance per distinct value.
+   */
+  public static ColumnarQueryResult decodeColumnar(ByteBuffer serialized) throws SerializationException {
+    Input input = new Input(serialized.array(), serialized.position(), serialized.remaining());
+    input.readByte(); // magic
+    byte version = input.readByte();
+    if (version != BinaryResultEncoder.VERSION_COLUMNAR) {
+      throw new SerializationException("Not a columnar binary result, version: " + version);
+    }
+    String[] columnNames = readColumnNames(input);
+    int nRows = input.readVarInt(true);
+    Column[] columns = new Column[columnNames.length];
+    for (int i = 0; i < columns.length; i++) {
+      columns[i] = readColumn(input, nRows);
+    }
+    return new ColumnarQueryResult(columnNames, nRows, columns);
+  }
+
+  private static String[] readColumnNames(Input input) {
+    String[] columnNames = new String[input.readVarInt(true)];
+    for (int i = 0; i < columnNames.length; i++) {
+      columnNames[i] = input.readString();
+    }
+    return columnNames;
+  }
+
+  private static Column readColumn(Input input, int nRows) throws SerializationException {
+    byte type = input.readByte();
+    if (type == BinaryResultEncoder.TYPE_NULL) {
+      return new Column(Column.NULL, null, null, null, null);
+    }
+    BitSet nulls = null;
+    if (input.readBoolean()) {
+      byte[] bitmap = input.readBytes((nRows + 7) / 8);
+      nulls = new BitSet(nRows);
+      for (int row = 0; row < nRows; row++) {
+        if ((bitmap[row >>> 3] & (1 << (row & 7))) != 0) {
+          nulls.set(row);
+        }
+      }
+    }
+    String[] dictionary = null;
+    if (type == BinaryResultEncoder.TYPE_TEXT_DICTIONARY) {
+      dictionary = new String[input.readVarInt(true)];
+      for (int i = 0; i < dictionary.length; i++) {
+        dictionary[i] = input.readString();
+      }
+    }
+    long[] longs = null;
+    double[] doubles = null;
+    Object[] values = null;
+    switch (type) {
+    case BinaryResultEncoder.TYPE_INTEGER:
+      longs = new long[nRows];
+      break;
+    case BinaryResultEncoder.TYPE_FLOAT:
+      doubles = new double[nRows];
+      break;
+    case BinaryResultEncoder.TYPE_TEXT:
+    case BinaryResultEncoder.TYPE_TEXT_DICTIONARY:
+    case BinaryResultEncoder.TYPE_BLOB:
+    case BinaryResultEncoder.TYPE_MIXED:
+      values = new Object[nRows];
+      break;
+    default:
+      throw new SerializationException("Unknown column type in binary result: " + type);
+    }
+    for (int row = 0; row < nRows; row++) {
+      if (nulls != null && nulls.get(row)) {
+        continue;
+      }
+      switch (type) {
+      case BinaryResultEncoder.TYPE_INTEGER:
+        longs[row] = input.readVarLong(false);
+        break;
+      case BinaryResultEncoder.TYPE_FLOAT:
+        doubles[row] = input.readDouble();
+        break;
+      case BinaryResultEncoder.TYPE_TEXT:
+        values[row] = input.readString();
+        break;
+      case BinaryResultEncoder.TYPE_TEXT_DICTIONARY:
+        values[row] = dictionary[input.readVarInt(true)];
+        break;
+      case BinaryResultEncoder.TYPE_BLOB:
+        values[row] = input.readBytes(input.readVarInt(true));
+        break;
+      default:
+        values[row] = readValue(input);
+      }
+    }
+    byte columnType = type == BinaryResultEncoder.TYPE_TEXT_DICTIONARY ? Column.TEXT : type;
+    return new Column(columnType, nulls, longs, doubles, values);
+  }
+
+  private static Object readValue(Input input) throws SerializationException {
+    byte type = input.readByte();
+    switch (type) {
+    case BinaryResultEncoder.TYPE_NULL:
+      return null;
+    case BinaryResultEncoder.TYPE_INTEGER:
+      return ColumnarQueryResult.boxInteger(input.readVarLong(false));
+    case BinaryResultEncoder.TYPE_FLOAT:
+      return input.readDouble();
+    case BinaryResultEncoder.TYPE_TEXT:
+      return input.readString();
+    case BinaryResultEncoder.TYPE_BLOB:
+      return input.readBytes(input.readVarInt(true));
+    default:
+      throw new SerializationException("Unknown column type in binary result: " + type);
+    }
+  }
+}
@@ -0,0 +1,416 @@
+package com.splout.db.engine;
+
+/*
+ * #%L
+ * Splout SQL commons
+ * %%
+ * Copyright (C) 2012 - 2014 Datasalt Systems S.L.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.almworks.sqlite4java.SQLiteConstants;
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteStatement;
+import com.esotericsoftware.kryo.io.Output;
+import com.splout.db.common.ColumnarQueryResult;
+import com.splout.db.common.ColumnarQueryResult.Column;
+import com.splout.db.common.QueryResult;
+
+/**
+ * Encodes a query result straight from a {@link SQLiteStatement} into a per-thread reusable buffer, avoiding the
+ * intermediate {@link QueryResult} (one boxed Object[] per row) and the Kryo serialization on top of it. Use
+ * {@link BinaryResultDecoder} to read the result back.
+ * <p/>
+ * Both formats start with a magic byte and a version byte, followed by the number of columns and the column names
+ * (only known once the first row is read, 0 columns for empty results).
+ * <ul>
+ * <li>Version 1 ({@link #VERSION_ROWS}), row-oriented: for every row a {@link #ROW} marker followed by a type tag and a
+ * value for each column, and finally an {@link #END} marker. Rows are written as they are read.</li>
+ * <li>Version 2 ({@link #VERSION_COLUMNAR}), columnar: the number of rows and then, for each column, its type, an
+ * optional null bitmap and the non-null values as a typed vector. Text columns with many repeated values are
+ * dictionary-encoded. Columns with values of different types are written as {@link Column#MIXED}, with a type tag per
+ * value. Rows are buffered in typed vectors until {@link #finish()}.</li>
+ * </ul>
+ * An encoder must be used and {@link #finish()}ed by a single thread, one result at a time.
+ */
+public class BinaryResultEncoder {
+
+  // Kryo-serialized results always start with 0 or 1, so this is enough to tell both formats apart
+  public final static byte MAGIC = 'S';
+  public final static byte VERSION_ROWS = 1;
+  public final static byte VERSION_COLUMNAR = 2;
+
+  final static byte ROW = 1;
+  final static byte END = 0;
+
+  // Value types, shared with the column types of ColumnarQueryResult
+  final static byte TYPE_NULL = Column.NULL;
+  final static byte TYPE_INTEGER = Column.INTEGER;
+  final static byte TYPE_FLOAT = Column.FLOAT;
+  final static byte TYPE_TEXT = Column.TEXT;
+  final static byte TYPE_BLOB = Column.BLOB;
+  final static byte TYPE_MIXED = Column.MIXED;
+  // Wire-only column type: dictionary-encoded text
+  final static byte TYPE_TEXT_DICTIONARY = 6;
+
+  // Buffers that grew bigger than this because of a big result are not kept for the next query
+  public final static int MAX_POOLED_BUFFER_SIZE = 1024 * 1024;
+  private final static int INITIAL_BUFFER_SIZE = 4096;
+
+  private final static ThreadLocal<Output> localOutput = new ThreadLocal<Output>() {
+
+    protected Output initialValue() {
+      return new Output(INITIAL_BUFFER_SIZE, -1);
+    };
+  };
+
+  private final Output output;
+  private final byte version;
+  private int nColumns = -1;
+  private int nRows = 0;
+  private ColumnVector[] vectors;
+
+  /**
+   * Creates a columnar ({@link #VERSION_COLUMNAR}) encoder.
+   */
+  public BinaryResultEncoder() {
+    this(VERSION_COLUMNAR);
+  }
+
+  public BinaryResultEncoder(byte version) {
+    if (version != VERSION_ROWS && version != VERSION_COLUMNAR) {
+      throw new IllegalArgumentException("Unknown binary result version: " + version);
+    }
+    this.version = version;
+    output = localOutput.get();
+    output.clear();
+    output.writeByte(MAGIC);
+    output.writeByte(version);
+  }
+
+  /**
+   * Encodes the current row of the statement. The statement must have a row (see {@link SQLiteStatement#hasRow()}).
+   */
+  public void row(SQLiteStatement st) throws SQLiteException {
+    if (nColumns == -1) {
+      nColumns = st.columnCount();
+      output.writeVarInt(nColumns, true);
+      for (int i = 0; i < nColumns; i++) {
+        output.writeString(st.getColumnName(i));
+      }
+      if (version == VERSION_COLUMNAR) {
+        vectors = new ColumnVector[nColumns];
+        for (int i = 0; i < nColumns; i++) {
+          vectors[i] = new ColumnVector();
+        }
+      }
+    }
+    if (version == VERSION_COLUMNAR) {
+      for (int i = 0; i < nColumns; i++) {
+        vectors[i].add(nRows, st, i);
+      }
+    } else {
+      output.writeByte(ROW);
+      for (int i = 0; i < nColumns; i++) {
+        writeValue(st, i);
+      }
+    }
+    nRows++;
+  }
+
+  private void writeValue(SQLiteStatement st, int i) throws SQLiteException {
+    switch (st.columnType(i)) {
+    case SQLiteConstants.SQLITE_INTEGER:
+      output.writeByte(TYPE_INTEGER);
+      output.writeVarLong(st.columnLong(i), false);
+      break;
+    case SQLiteConstants.SQLITE_FLOAT:
+      output.writeByte(TYPE_FLOAT);
+      output.writeDouble(st.columnDouble(i));
+      break;
+    case SQLiteConstants.SQLITE_TEXT:
+      output.writeByte(TYPE_TEXT);
+      output.writeString(st.columnString(i));
+      break;
+    case SQLiteConstants.SQLITE_BLOB:
+      byte[] blob = st.columnBlob(i);
+      if (blob == null) {
+        // sqlite4java returns null for empty blobs
+        output.writeByte(TYPE_NULL);
+      } else {
+        output.writeByte(TYPE_BLOB);
+        output.writeVarInt(blob.length, true);
+        output.writeBytes(blob);
+      }
+      break;
+    default:
+      output.writeByte(TYPE_NULL);
+    }
+  }
+
+  /**
+   * Writes a boxed value of a {@link Column#MIXED} column with its type tag.
+   */
+  private void writeValue(Object value) {
+    if (value instanceof Long || value instanceof Integer) {
+      output.writeByte(TYPE_INTEGER);
+      output.writeVarLong(((Number) value).longValue(), false);
+    } else if (value instanceof Double) {
+      output.writeByte(TYPE_FLOAT);
+      output.writeDouble((Double) value);
+    } else if (value instanceof byte[]) {
+      output.writeByte(TYPE_BLOB);
+      output.writeVarInt(((byte[]) value).length, true);
+      output.writeBytes((byte[]) value);
+    } else {
+      output.writeByte(TYPE_TEXT);
+      output.writeString((String) value);
+    }
+  }
+
+  /**
+   * Number of rows encoded so far.
+   */
+  public int getRows() {
+    return nRows;
+  }
+
+  /**
+   * Ends the result and returns it. The returned buffer is an exact-size copy, so the pooled buffer can be reused by
+   * the next query of this thread while the result is still being sent.
+   */
+  public ByteBuffer finish() {
+    if (nColumns == -1) {
+      nColumns = 0;
+      output.writeVarInt(0, true);
+    }
+    if (version == VERSION_COLUMNAR) {
+      output.writeVarInt(nRows, true);
+      for (int i = 0; i < nColumns; i++) {
+        writeColumn(vectors[i]);
+      }
+      vectors = null;
+    } else {
+      output.writeByte(END);
+    }
+    byte[] result = Arrays.copyOf(output.getBuffer(), output.position());
+    if (output.getBuffer().length > MAX_POOLED_BUFFER_SIZE) {
+      localOutput.remove();
+    }
+    return ByteBuffer.wrap(result);
+  }
+
+  private void writeColumn(ColumnVector vector) {
+    byte type = vector.type;
+    Map<String, Integer> dictionary = null;
+    if (type == TYPE_TEXT) {
+      dictionary = vector.dictionary(nRows);
+      if (dictionary != null) {
+        type = TYPE_TEXT_DICTIONARY;
+      }
+    }
+    output.writeByte(type);
+    if (type == TYPE_NULL) {
+      return;
+    }
+    boolean hasNulls = !vector.nulls.isEmpty();
+    output.writeBoolean(hasNulls);
+    if (hasNulls) {
+      writeBitmap(vector.nulls);
+    }
+    if (dictionary != null) {
+      String[] words = new String[dictionary.size()];
+      for (Map.Entry<String, Integer> entry : dictionary.entrySet()) {
+        words[entry.getValue()] = entry.getKey();
+      }
+      output.writeVarInt(words.length, true);
+      for (String word : words) {
+        output.writeString(word);
+      }
+    }
+    for (int row = 0; row < nRows; row++) {
+      if (hasNulls && vector.nulls.get(row)) {
+        continue;
+      }
+      switch (type) {
+      case TYPE_INTEGER:
+        output.writeVarLong(vector.longs[row], false);
+        break;
+      case TYPE_FLOAT:
+        output.writeDouble(vector.doubles[row]);
+        break;
+      case TYPE_TEXT:
+        output.writeString((String) vector.values[row]);
+        break;
+      case TYPE_TEXT_DICTIONARY:
+        output.writeVarInt(dictionary.get(vector.values[row]), true);
+        break;
+      case TYPE_BLOB:
+        output.writeVarInt(((byte[]) vector.values[row]).length, true);
+        output.writeBytes((byte[]) vector.values[row]);
+        break;
+      default:
+        writeValue(vector.values[row]);
+      }
+    }
+  }
+
+  private void writeBitmap(BitSet bits) {
+    byte[] bitmap = new byte[(nRows + 7) / 8];
+    for (int row = bits.nextSetBit(0); row >= 0; row = bits.nextSetBit(row + 1)) {
+      bitmap[row >>> 3] |= 1 << (row & 7);
+    }
+    output.writeBytes(bitmap);
+  }
+
+  /**
+   * Values of one column while a columnar result is being built. The column stays {@link #TYPE_NULL} until the first
+   * non-null value; if a value of another type comes later, the column becomes {@link #TYPE_MIXED} and its values
+   * are boxed.
+   */
+  private static class ColumnVector {
+
+    byte type = TYPE_NULL;
+    BitSet nulls = new BitSet();
+    long[] longs;
+    double[] doubles;
+    Object[] values;
+
+    void add(int row, SQLiteStatement st, int i) throws SQLiteException {
+      switch (st.columnType(i)) {
+      case SQLiteConstants.SQLITE_INTEGER:
+        long longValue = st.columnLong(i);
+        if (ofType(TYPE_INTEGER, row)) {
+          longs = ensureCapacity(longs, row);
+          longs[row] = longValue;
+        } else {
+          values[row] = ColumnarQueryResult.boxInteger(longValue);
+        }
+        break;
+      case SQLiteConstants.SQLITE_FLOAT:
+        double doubleValue = st.columnDouble(i);
+        if (ofType(TYPE_FLOAT, row)) {
+          doubles = ensureCapacity(doubles, row);
+          doubles[row] = doubleValue;
+        } else {
+          values[row] = doubleValue;
+        }
+        break;
+      case SQLiteConstants.SQLITE_TEXT:
+        String text = st.columnString(i);
+        ofType(TYPE_TEXT, row);
+        values[row] = text;
+        break;
+      case SQLiteConstants.SQLITE_BLOB:
+        byte[] blob = st.columnBlob(i);
+        if (blob == null) {
+          // sqlite4java returns null for empty blobs
+          nulls.set(row);
+        } else {
+          ofType(TYPE_BLOB, row);
+          values[row] = blob;
+        }
+        break;
+      default:
+        nulls.set(row);
+      }
+    }
+
+    /**
+     * Makes room for a value of the given type at the given row. Returns true if it goes to a primitive vector, false
+     * if it must be set in the values array.
+     */
+    boolean ofType(byte valueType, int row) {
+      if (type == TYPE_NULL) {
+        type = valueType;
+      } else if (type != valueType && type != TYPE_MIXED) {
+        toMixed(row);
+      }
+      if (type == TYPE_INTEGER || type == TYPE_FLOAT) {
+        return true;
+      }
+      values = ensureCapacity(values, row);
+      return false;
+    }
+
+    void toMixed(int rows) {
+      Object[] mixed = values == null ? new Object[Math.max(16, rows + 1)] : values;
+      for (int row = 0; row < rows; row++) {
+        if (nulls.get(row)) {
+          continue;
+        }
+        if (type == TYPE_INTEGER) {
+          mixed[row] = ColumnarQueryResult.boxInteger(longs[row]);
+        } else if (type == TYPE_FLOAT) {
+          mixed[row] = doubles[row];
+        }
+      }
+      values = mixed;
+      longs = null;
+      doubles = null;
+      type = TYPE_MIXED;
+    }
+
+    /**
+     * Returns a dictionary (value -> code, codes in order of appearance) if the column has many repeated values, or
+     * null if it is better to write the values as they are.
+     */
+    Map<String, Integer> dictionary(int nRows) {
+      int nonNull = nRows - nulls.cardinality();
+      int maxWords = nonNull / 2;
+      Map<String, Integer> dictionary = new HashMap<String, Integer>();
+      for (int row = 0; row < nRows; row++) {
+        if (nulls.get(row)) {
+          continue;
+        }
+        String value = (String) values[row];
+        if (!dictionary.containsKey(value)) {
+          if (dictionary.size() == maxWords) {
+            return null;
+          }
+          dictionary.put(value, dictionary.size());
+        }
+      }
+      return dictionary;
+    }
+
+    static long[] ensureCapacity(long[] array, int row) {
+      if (array == null) {
+        return new long[Math.max(16, row + 1)];
+      }
+      return array.length > row ? array : Arrays.copyOf(array, Math.max(array.length * 2, row + 1));
+    }
+
+    static double[] ensureCapacity(double[] array, int row) {
+      if (array == null) {
+        return new double[Math.max(16, row + 1)];
+      }
+      return array.length > row ? array : Arrays.copyOf(array, Math.max(array.length * 2, row + 1));
+    }
+
+    static Object[] ensureCapacity(Object[] array, int row) {
+      if (array == null) {
+        return new Object[Math.max(16, row + 1)];
+      }
+      return array.length > row ? array : Arrays.copyOf(array, Math.max(array.length * 2, row + 1));
+    }
+  }
+}
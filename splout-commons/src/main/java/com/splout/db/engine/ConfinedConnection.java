@@ -0,0 +1,168 @@
+package com.splout.db.engine;
+
+/*
+ * #%L
+ * Splout SQL commons
+ * %%
+ * Copyright (C) 2012 - 2014 Datasalt Systems S.L.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.almworks.sqlite4java.SQLiteConnection;
+import com.almworks.sqlite4java.SQLiteException;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A {@link SQLiteConnection} confined to its own thread. SQLiteConnections can only be used and closed by the thread
+ * that opened them, so the work is handed to that thread instead, which allows any thread to use the connection and to
+ * close it right away.
+ */
+class ConfinedConnection {
+
+  private final static Log log = LogFactory.getLog(ConfinedConnection.class);
+
+  /**
+   * Work to be done with the connection and its prepared statements, in the connection's thread.
+   */
+  interface Task<T> {
+
+    T run(SQLiteConnection conn, StatementCache statements) throws SQLiteException;
+  }
+
+  private final ExecutorService thread;
+  private volatile SQLiteConnection conn;
+  private StatementCache statements;
+  // When it was last given back to the pool, for evicting the least recently used connections
+  private volatile long lastUsed;
+
+  ConfinedConnection(String name) {
+    this.thread = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat(name.replace("%", "%%"))
+        .setDaemon(true).build());
+  }
+
+  /**
+   * Opens the connection as told by the profile and executes the init statements on it.
+   */
+  void open(final File dbFile, final SQLiteReadProfile profile, final List<String> initStatements,
+      final int statementCacheSize) throws SQLiteException {
+    run(new Task<Void>() {
+      @Override
+      public Void run(SQLiteConnection ignored, StatementCache ignoredToo) throws SQLiteException {
+        log.info(Thread.currentThread().getName() + " opens a new connection to " + dbFile);
+        SQLiteConnection newConn = new SQLiteConnection(dbFile);
+        try {
+          profile.open(newConn);
+          newConn.setExtensionLoadingEnabled(true); // TODO Make optional
+          // User provided initStatements
+          if (initStatements != null) {
+            for (String initStatement : initStatements) {
+              newConn.exec(initStatement);
+            }
+          }
+        } catch (SQLiteException e) {
+          newConn.dispose();
+          throw e;
+        }
+        conn = newConn;
+        statements = new StatementCache(newConn, statementCacheSize);
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Runs the task in the connection's thread and waits for it. If the calling thread is interrupted the running query
+   * is interrupted too.
+   */
+  <T> T run(final Task<T> task) throws SQLiteException {
+    Future<T> future = thread.submit(new Callable<T>() {
+      @Override
+      public T call() throws Exception {
+        return task.run(conn, statements);
+      }
+    });
+    boolean interrupted = false;
+    try {
+      for (;;) {
+        try {
+          return future.get();
+        } catch (InterruptedException e) {
+          if (!interrupted && conn != null) {
+            // Make SQLite give up so that the connection is soon free for others
+            conn.interrupt();
+          }
+          interrupted = true;
+        }
+      }
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof SQLiteException) {
+        throw (SQLiteException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new RuntimeException(cause);
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Closes the connection and stops its thread once it finishes what it is doing.
+   */
+  void dispose() {
+    thread.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (conn != null) {
+          log.info("-- Closing connection to: " + conn.getDatabaseFile());
+          statements.clear();
+          conn.dispose();
+        }
+      }
+    });
+    thread.shutdown();
+  }
+
+  SQLiteConnection getConnection() {
+    return conn;
+  }
+
+  StatementCache getStatements() {
+    return statements;
+  }
+
+  long getLastUsed() {
+    return lastUsed;
+  }
+
+  void setLastUsed(long lastUsed) {
+    this.lastUsed = lastUsed;
+  }
+}
@@ -123,6 +123,11 @@ public interface EngineManager {
    */
   public static class TooManyResultsException extends ShouldNotRetryInReplicaException {
 
+    /**
+     * How the error messages of the engines start when the limit is reached, so that it can be told apart remotely.
+     */
+    public final static String MESSAGE = "Hard limit on number of results reached";
+
     public TooManyResultsException(String message) {
       super(message);
     }
@@ -156,6 +161,15 @@ public interface EngineManager {
    */
   public QueryResult query(String query, int maxResults) throws EngineException;
 
+  /**
+   * Like {@link #query(String, int)} for a parameterized query: the params are bound, in order, to the placeholders
+   * ("?") of the query. Engines should reuse the prepared query when it is executed again with other params.
+   *
+   * Be carefully to properly throw a {@link com.splout.db.engine.EngineManager.ShouldRetryInReplicaException}
+   * or {@link com.splout.db.engine.EngineManager.ShouldNotRetryInReplicaException}
+   */
+  public QueryResult query(String query, Object[] params, int maxResults) throws EngineException;
+
   /**
    * For supporting reading big datasets from the engine through a streaming API
    *
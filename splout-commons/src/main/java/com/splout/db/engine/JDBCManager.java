@@ -40,8 +40,19 @@ public class JDBCManager {
   private final static Log log = LogFactory.getLog(JDBCManager.class);
   BoneCP connectionPool = null;
 
+  public final static int DEFAULT_STATEMENT_CACHE_SIZE = 32;
+
   public JDBCManager(String driver, String connectionUri, int nConnectionsPool, String userName, String password) throws SQLException,
       ClassNotFoundException {
+    this(driver, connectionUri, nConnectionsPool, userName, password, DEFAULT_STATEMENT_CACHE_SIZE);
+  }
+
+  /**
+   * @param statementCacheSize The maximum number of prepared statements kept by each connection of the pool for
+   *                           parameterized queries, 0 to disable it.
+   */
+  public JDBCManager(String driver, String connectionUri, int nConnectionsPool, String userName, String password,
+                     int statementCacheSize) throws SQLException, ClassNotFoundException {
 
     Class.forName(driver);
 
@@ -53,6 +64,8 @@ public class JDBCManager {
     config.setPassword(password);
     config.setPartitionCount(1);
     config.setDefaultAutoCommit(false);
+    // Bounded per-connection cache of prepared statements, used by parameterized queries
+    config.setStatementsCacheSize(statementCacheSize);
 
     connectionPool = new BoneCP(config); // setup the connection pool
   }
@@ -92,6 +105,50 @@ public class JDBCManager {
     }
   }
 
+  /**
+   * Parameterized query: binds the params to the placeholders of a {@link PreparedStatement}, which is cached by the
+   * pool.
+   */
+  public QueryResult query(String query, Object[] params, int maxResults) throws EngineException {
+    long start = System.currentTimeMillis();
+    Connection connection = null;
+    ResultSet rs = null;
+    PreparedStatement stmt = null;
+    try {
+      connection = connectionPool.getConnection(); // fetch a connection
+      stmt = connection.prepareStatement(query);
+      if (params != null) {
+        for (int i = 0; i < params.length; i++) {
+          stmt.setObject(i + 1, params[i]);
+        }
+      }
+      QueryResult result = null;
+      if (stmt.execute()) {
+        rs = stmt.getResultSet();
+        result = convertResultSetToQueryResult(rs, maxResults);
+      } else {
+        result = QueryResult.emptyQueryResult();
+      }
+      long end = System.currentTimeMillis();
+      log.info(Thread.currentThread().getName() + ": Query [" + query + "] handled in [" + (end - start) + "] ms.");
+      return result;
+    } catch (SQLException e) {
+      throw convertException(e);
+    } finally {
+      try {
+        if (rs != null) {
+          rs.close();
+        }
+        if (stmt != null) {
+          stmt.close();
+        }
+        connection.close();
+      } catch (SQLException e) {
+        throw convertException(e);
+      }
+    }
+  }
+
   public static QueryResult convertResultSetToQueryResult(ResultSet rs, int maxResults) throws SQLException {
     ResultSetMetaData md = rs.getMetaData();
     int columns = md.getColumnCount();
@@ -110,7 +167,7 @@ public class JDBCManager {
     }
 
     if (list.size() == maxResults) {
-      throw new SQLException("Hard limit on number of results reached (" + maxResults + "), please use a LIMIT for this query.");
+      throw new SQLException(EngineManager.TooManyResultsException.MESSAGE + " (" + maxResults + "), please use a LIMIT for this query.");
     }
 
     return new QueryResult(columnNames, list);
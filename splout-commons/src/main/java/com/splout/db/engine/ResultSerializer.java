@@ -75,7 +75,13 @@ public class ResultSerializer {
         clzz);
   }
 
+  /**
+   * Reads a {@link QueryResult} either written by {@link BinaryResultEncoder} or serialized with Kryo.
+   */
   public static QueryResult deserialize(ByteBuffer serialized) throws SerializationException {
+    if (BinaryResultDecoder.isBinaryResult(serialized)) {
+      return BinaryResultDecoder.decode(serialized);
+    }
     return ResultSerializer.localKryo.get().readObject(new Input(serialized.array(), serialized.position(), serialized.remaining()),
         QueryResult.class);
   }
@@ -21,7 +21,9 @@ package com.splout.db.engine;
  */
 
 import com.almworks.sqlite4java.SQLiteConnection;
+import com.almworks.sqlite4java.SQLiteConstants;
 import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteInterruptedException;
 import com.almworks.sqlite4java.SQLiteStatement;
 import com.splout.db.common.QueryResult;
 import com.splout.db.common.TimeoutThread;
@@ -31,16 +33,30 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.io.File;
+import java.nio.ByteBuffer;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
-
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client for one SQLite file. Queries are executed by a bounded pool of connections to the file: each connection is
+ * confined to its own thread ({@link ConfinedConnection}) because sqlite4java connections can't be shared by threads.
+ * So the number of open connections doesn't depend on the number of threads querying the file, and they can be closed
+ * right away by {@link #close()}. Connections are opened on demand, up to {@link #setMaxConnections(int)} for this file
+ * and within the {@link SQLiteConnectionBudget} shared with other clients, if any.
+ * <p/>
+ * A stream holds its connection until its reader has consumed all the rows, which may take long with slow readers. So
+ * streams can take all but one of the connections of the file, leaving one for queries.
+ */
 public class SQLite4JavaClient {
 
   private final static Log log = LogFactory.getLog(SQLite4JavaClient.class);
 
   private File dbFile;
   private List<String> initStatements;
+  private SQLiteReadProfile readProfile = SQLiteReadProfile.LEGACY;
 
   // Error codes for our own SQLite exception.
   // They must not colide with
@@ -48,224 +64,460 @@ public class SQLite4JavaClient {
   public static int ERROR_CODE_ERROR_CREATING_CONNECTION = -12000;
   public static int ERROR_CODE_MAXIMUM_RESULTS_REACHED = -12001;
 
-  // If present, will monitor long-running queries and kill them if needed
-  private TimeoutThread timeoutThread = null;
-
-  public static class ThreadAndConnection {
+  public final static int DEFAULT_STATEMENT_CACHE_SIZE = 32;
+  // Maximum number of prepared statements kept per connection
+  private int statementCacheSize = DEFAULT_STATEMENT_CACHE_SIZE;
 
-    String threadName;
-    SQLiteConnection conn;
-  }
-
-  // Will save all opened connections from different Threads so we can close
-  // them all afterwards
-  private CopyOnWriteArrayList<ThreadAndConnection> allOpenedConnections = new CopyOnWriteArrayList<ThreadAndConnection>();
-  // Expired connections go to this central/static trash so each thread can
-  // check if it has something to close...
-  // As SQLiteConnections can only be used and closed by the SAME THREAD that
-  // created them, this is the only feasible solution I came up with.
-  public static ConcurrentHashMap<String, Set<SQLiteConnection>> CLEAN_UP_AFTER_YOURSELF = new ConcurrentHashMap<String, Set<SQLiteConnection>>();
+  public final static int DEFAULT_MAX_CONNECTIONS = 4;
+  // Maximum number of connections open to this file
+  private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+  // How long to wait for a connection before checking again if one can be opened
+  private final static long CONNECTION_WAIT_MILLIS = 100;
 
-  ThreadLocal<SQLiteConnection> db = new ThreadLocal<SQLiteConnection>() {
+  // If present, will monitor long-running queries and kill them if needed
+  private TimeoutThread timeoutThread = null;
 
-    protected SQLiteConnection initialValue() {
-      log.info(Thread.currentThread().getName() + " requests a new connection to " + dbFile);
-      SQLiteConnection conn = new SQLiteConnection(dbFile);
-      try {
-        conn.open(true);
-        conn.setExtensionLoadingEnabled(true); // TODO Make optional
-        // Executing some defaults
-        conn.exec("PRAGMA cache_size=20");
-        // User provided initStatements
-        if (initStatements != null) {
-          for (String initStatement : initStatements) {
-            conn.exec(initStatement);
-          }
-        }
-      } catch (SQLiteException e) {
-        if (conn != null && conn.isOpen()) {
-          conn.dispose();
-        }
-        e.printStackTrace();
-        return null;
-      }
-      log.info("New SQLite connection open with " + dbFile);
-      ThreadAndConnection tConn = new ThreadAndConnection();
-      tConn.threadName = Thread.currentThread().getName();
-      tConn.conn = conn;
-      if (CLEAN_UP_AFTER_YOURSELF.get(tConn.threadName) == null) {
-        // Initialize the connection trash so we can always check it without NPE
-        // risks
-        CLEAN_UP_AFTER_YOURSELF.put(tConn.threadName, new HashSet<SQLiteConnection>());
-      }
-      allOpenedConnections.add(tConn);
-      return conn;
-    }
-  };
+  // Unbounded unless a budget shared with other clients is set
+  private SQLiteConnectionBudget budget = new SQLiteConnectionBudget(Integer.MAX_VALUE);
+  // All the open connections and, first, the most recently used idle ones
+  private final List<ConfinedConnection> connections = new CopyOnWriteArrayList<ConfinedConnection>();
+  private final LinkedBlockingDeque<ConfinedConnection> idleConnections = new LinkedBlockingDeque<ConfinedConnection>();
+  // Connections open or being opened, guarded by this
+  private int nConnections = 0;
+  // Streams holding or waiting for a connection, guarded by this
+  private int nStreams = 0;
+  private final AtomicInteger connectionIds = new AtomicInteger(0);
+  private volatile boolean closed = false;
 
   public SQLite4JavaClient(String dbFile, List<String> initStatements) {
     this.dbFile = new File(dbFile);
     this.initStatements = initStatements;
+    budget.register(this);
   }
 
   /**
    * Optionally sets a {@link TimeoutThread} that will take care of cancelling
-   * long-running queries. If present, each SQLiteConnectiona associated with
-   * each thread will be monitored by this thread to see if there is some query
+   * long-running queries. If present, each SQLiteConnection of this client
+   * will be monitored by this thread to see if there is some query
    * that needs to be interrupted.
    */
   public void setTimeoutThread(TimeoutThread timeoutThread) {
     this.timeoutThread = timeoutThread;
   }
 
-  public QueryResult exec(String query) throws SQLiteException {
-    db.get().exec(query);
-    List<Object[]> resultList = new ArrayList<Object[]>();
-    String[] columnNames = new String[] { "status" };
-    resultList.add(new Object[] { "OK" });
-    return new QueryResult(columnNames, resultList);
+  /**
+   * Sets the maximum number of prepared statements that are kept for reuse in each connection. Only affects
+   * connections opened afterwards. 0 disables statement caching.
+   */
+  public void setStatementCacheSize(int statementCacheSize) {
+    this.statementCacheSize = statementCacheSize;
   }
 
-  public void stream(StreamingIterator iterator) throws SQLiteException {
-    SQLiteStatement st = null;
-    SQLiteConnection conn = db.get();
-
-    if (conn == null) {
-      throw new SQLiteException(ERROR_CODE_ERROR_CREATING_CONNECTION, "Impossible to create SQLite connection to "
-          + dbFile);
-    }
+  /**
+   * Sets the maximum number of connections to the file that can be open at the same time, which is the maximum number
+   * of concurrent queries to it.
+   */
+  public void setMaxConnections(int maxConnections) {
+    this.maxConnections = maxConnections;
+  }
 
-    if (timeoutThread != null) {
-      timeoutThread.startQuery(conn, iterator.getQuery());
-    }
+  /**
+   * Sets how connections are opened and tuned for reading. Only affects connections opened afterwards.
+   */
+  public void setReadProfile(SQLiteReadProfile readProfile) {
+    this.readProfile = readProfile;
+  }
 
-    st = conn.prepare(iterator.getQuery(), false);
+  /**
+   * Shares a cap on open connections with other clients. Must be set before querying.
+   */
+  public void setConnectionBudget(SQLiteConnectionBudget budget) {
+    this.budget.unregister(this);
+    this.budget = budget;
+    budget.register(this);
+  }
 
-    String[] columnNames = null;
-    Object[] objectToRead = new Object[st.columnCount()];
+  public QueryResult exec(final String query) throws SQLiteException {
+    return execute(new ConfinedConnection.Task<QueryResult>() {
+      @Override
+      public QueryResult run(SQLiteConnection conn, StatementCache statements) throws SQLiteException {
+        conn.exec(query);
+        List<Object[]> resultList = new ArrayList<Object[]>();
+        String[] columnNames = new String[] { "status" };
+        resultList.add(new Object[] { "OK" });
+        return new QueryResult(columnNames, resultList);
+      }
+    });
+  }
 
+  /**
+   * The rows are read, and collected by the iterator, in the thread of the connection.
+   */
+  public void stream(final StreamingIterator iterator) throws SQLiteException {
+    acquireStreamSlot();
     try {
-      while (true) {
-        st.step();
-        if (!st.hasRow()) {
-          break;
+      streamInConnection(iterator);
+    } finally {
+      releaseStreamSlot();
+    }
+  }
+
+  private void streamInConnection(final StreamingIterator iterator) throws SQLiteException {
+    execute(new ConfinedConnection.Task<Void>() {
+      @Override
+      public Void run(SQLiteConnection conn, StatementCache statements) throws SQLiteException {
+        SQLiteStatement st = null;
+
+        if (timeoutThread != null) {
+          timeoutThread.startQuery(conn, iterator.getQuery());
         }
-        if (columnNames == null) {
-          columnNames = new String[st.columnCount()];
-          for (int i = 0; i < st.columnCount(); i++) {
-            columnNames[i] = st.getColumnName(i);
+
+        st = conn.prepare(iterator.getQuery(), false);
+
+        String[] columnNames = null;
+        Object[] objectToRead = new Object[st.columnCount()];
+
+        try {
+          while (true) {
+            st.step();
+            if (!st.hasRow()) {
+              break;
+            }
+            if (columnNames == null) {
+              columnNames = new String[st.columnCount()];
+              for (int i = 0; i < st.columnCount(); i++) {
+                columnNames[i] = st.getColumnName(i);
+              }
+              iterator.columns(columnNames);
+            }
+            for (int i = 0; i < st.columnCount(); i++) {
+              objectToRead[i] = st.columnValue(i);
+            }
+            try {
+              iterator.collect(objectToRead);
+            } catch (StreamingTerminationException e) {
+              break;
+            }
           }
-          iterator.columns(columnNames);
-        }
-        for (int i = 0; i < st.columnCount(); i++) {
-          objectToRead[i] = st.columnValue(i);
+
+          iterator.endStreaming();
+        } finally {
+          if (timeoutThread != null) {
+            timeoutThread.endQuery(conn);
+          }
+          st.dispose();
         }
+        return null;
+      }
+    });
+  }
+
+  public QueryResult query(String query, int maxResults) throws SQLiteException {
+    return query(query, null, maxResults);
+  }
+
+  /**
+   * Executes the query binding the given params to its placeholders ("?"), in order. The statement is reused from the
+   * per-connection {@link StatementCache} if it has already been prepared in this connection.
+   */
+  public QueryResult query(final String query, final Object[] params, final int maxResults) throws SQLiteException {
+    return execute(new ConfinedConnection.Task<QueryResult>() {
+      @Override
+      public QueryResult run(SQLiteConnection conn, StatementCache cache) throws SQLiteException {
+        SQLiteStatement st = null;
+
         try {
-          iterator.collect(objectToRead);
-        } catch (StreamingTerminationException e) {
-          break;
+          if (timeoutThread != null) {
+            timeoutThread.startQuery(conn, query);
+          }
+          st = cache.prepare(query);
+          bind(st, params);
+
+          List<Object[]> resultList = new ArrayList<Object[]>();
+          String[] columnNames = new String[0];
+
+          do {
+            st.step();
+            if (st.hasRow()) {
+              if (columnNames.length == 0) {
+                columnNames = new String[st.columnCount()];
+                for (int i = 0; i < st.columnCount(); i++) {
+                  columnNames[i] = st.getColumnName(i);
+                }
+              }
+              // true if there is data (SQLITE_ROW) was returned, false if statement
+              // has been completed (SQLITE_DONE)
+              Object[] objectToRead = new Object[st.columnCount()];
+              for (int i = 0; i < st.columnCount(); i++) {
+                objectToRead[i] = st.columnValue(i);
+              }
+              resultList.add(objectToRead);
+            } else {
+              break;
+            }
+          } while (resultList.size() <= maxResults + 1);
+          if (resultList.size() > maxResults) {
+            throw new SQLiteException(ERROR_CODE_MAXIMUM_RESULTS_REACHED, EngineManager.TooManyResultsException.MESSAGE
+                + " [" + maxResults + "], please use a LIMIT for this query.");
+          }
+          return new QueryResult(columnNames, resultList);
+        } finally {
+          if (timeoutThread != null) {
+            timeoutThread.endQuery(conn);
+          }
+          if (st != null) {
+            cache.release(query, st);
+          }
         }
       }
+    });
+  }
 
-      iterator.endStreaming();
-    } finally {
-      if (timeoutThread != null) {
-        timeoutThread.endQuery(conn);
+  /**
+   * Binds the params to the statement: numbers as integers or reals, byte[] as blobs, null as NULL and anything else
+   * as text.
+   */
+  static void bind(SQLiteStatement st, Object[] params) throws SQLiteException {
+    int nParams = (params == null) ? 0 : params.length;
+    if (st.getBindParameterCount() != nParams) {
+      // SQLITE_ERROR so that it is not retried in other replicas
+      throw new SQLiteException(SQLiteConstants.SQLITE_ERROR, "Query has [" + st.getBindParameterCount()
+          + "] parameters but [" + nParams + "] values were provided");
+    }
+    for (int i = 0; i < nParams; i++) {
+      Object param = params[i];
+      if (param == null) {
+        st.bindNull(i + 1);
+      } else if (param instanceof Double || param instanceof Float) {
+        st.bind(i + 1, ((Number) param).doubleValue());
+      } else if (param instanceof Number) {
+        st.bind(i + 1, ((Number) param).longValue());
+      } else if (param instanceof Boolean) {
+        st.bind(i + 1, ((Boolean) param) ? 1 : 0);
+      } else if (param instanceof byte[]) {
+        st.bind(i + 1, (byte[]) param);
+      } else {
+        st.bind(i + 1, param.toString());
       }
-      st.dispose();
     }
   }
 
-  public QueryResult query(String query, int maxResults) throws SQLiteException {
-    String t = Thread.currentThread().getName();
-    Set<SQLiteConnection> pendingClose = CLEAN_UP_AFTER_YOURSELF.get(t);
-    // Because SQLiteConnection can only be closed by owner Thread, here we need
-    // to check if we
-    // have some pending connections to close...
-    if (pendingClose != null && pendingClose.size() > 0) {
-      synchronized (pendingClose) {
-        Iterator<SQLiteConnection> it = pendingClose.iterator();
-        while (it.hasNext()) {
-          SQLiteConnection conn = it.next();
-          log.info("-- Closed a connection pending diposal: " + conn.getDatabaseFile());
-          conn.dispose();
-          it.remove();
+  /**
+   * Like {@link #query(String, int)} but encodes the rows straight from the statement with a
+   * {@link BinaryResultEncoder}, without materializing a {@link QueryResult}. Uses the columnar format.
+   */
+  public ByteBuffer queryBinary(String query, int maxResults) throws SQLiteException {
+    return queryBinary(query, maxResults, BinaryResultEncoder.VERSION_COLUMNAR);
+  }
+
+  /**
+   * Like {@link #queryBinary(String, int)}, for a given version of the format of {@link BinaryResultEncoder}.
+   */
+  public ByteBuffer queryBinary(String query, int maxResults, byte version) throws SQLiteException {
+    return queryBinary(query, null, maxResults, version);
+  }
+
+  /**
+   * Like {@link #queryBinary(String, int, byte)}, binding the params as in {@link #query(String, Object[], int)}.
+   */
+  public ByteBuffer queryBinary(final String query, final Object[] params, final int maxResults, final byte version)
+      throws SQLiteException {
+    return execute(new ConfinedConnection.Task<ByteBuffer>() {
+      @Override
+      public ByteBuffer run(SQLiteConnection conn, StatementCache cache) throws SQLiteException {
+        SQLiteStatement st = null;
+
+        try {
+          if (timeoutThread != null) {
+            timeoutThread.startQuery(conn, query);
+          }
+          st = cache.prepare(query);
+          bind(st, params);
+
+          BinaryResultEncoder encoder = new BinaryResultEncoder(version);
+          while (st.step()) {
+            if (encoder.getRows() == maxResults) {
+              throw new SQLiteException(ERROR_CODE_MAXIMUM_RESULTS_REACHED, EngineManager.TooManyResultsException.MESSAGE
+                  + " [" + maxResults + "], please use a LIMIT for this query.");
+            }
+            encoder.row(st);
+          }
+          return encoder.finish();
+        } finally {
+          if (timeoutThread != null) {
+            timeoutThread.endQuery(conn);
+          }
+          if (st != null) {
+            cache.release(query, st);
+          }
         }
       }
+    });
+  }
+
+  /**
+   * Waits until there are less streams than connections minus one (at least one stream is allowed).
+   */
+  private synchronized void acquireStreamSlot() throws SQLiteException {
+    while (nStreams >= Math.max(1, maxConnections - 1)) {
+      if (closed) {
+        throw new SQLiteException(ERROR_CODE_ERROR_CREATING_CONNECTION, "Client for " + dbFile + " is closed");
+      }
+      try {
+        wait(CONNECTION_WAIT_MILLIS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SQLiteInterruptedException(SQLiteConstants.SQLITE_INTERRUPT, "Interrupted while waiting to stream from "
+            + dbFile);
+      }
     }
+    nStreams++;
+  }
 
-    SQLiteStatement st = null;
-    SQLiteConnection conn = null;
+  private synchronized void releaseStreamSlot() {
+    nStreams--;
+    notifyAll();
+  }
 
+  private <T> T execute(ConfinedConnection.Task<T> task) throws SQLiteException {
+    ConfinedConnection conn = borrowConnection();
     try {
+      return conn.run(task);
+    } finally {
+      returnConnection(conn);
+    }
+  }
 
-      conn = db.get();
-
-      if (conn == null) {
-        throw new SQLiteException(ERROR_CODE_ERROR_CREATING_CONNECTION, "Impossible to create SQLite connection to "
-            + dbFile);
+  /**
+   * Takes the most recently used idle connection, opens a new one if there is none and the limits allow it, or waits
+   * for one.
+   */
+  private ConfinedConnection borrowConnection() throws SQLiteException {
+    for (;;) {
+      ConfinedConnection conn = idleConnections.pollFirst();
+      if (conn != null) {
+        return conn;
       }
-
-      if (timeoutThread != null) {
-        timeoutThread.startQuery(conn, query);
+      if (closed) {
+        throw new SQLiteException(ERROR_CODE_ERROR_CREATING_CONNECTION, "Client for " + dbFile + " is closed");
       }
-      // We don't want to cache the statements here so we use "false"
-      // Don't use the method without boolean because it will use cached =
-      // true!!!
-      st = conn.prepare(query, false);
-
-      List<Object[]> resultList = new ArrayList<Object[]>();
-      String[] columnNames = new String[0];
-
-      do {
-        st.step();
-        if (st.hasRow()) {
-          if (columnNames.length == 0) {
-            columnNames = new String[st.columnCount()];
-            for (int i = 0; i < st.columnCount(); i++) {
-              columnNames[i] = st.getColumnName(i);
-            }
-          }
-          // true if there is data (SQLITE_ROW) was returned, false if statement
-          // has been completed (SQLITE_DONE)
-          Object[] objectToRead = new Object[st.columnCount()];
-          for (int i = 0; i < st.columnCount(); i++) {
-            objectToRead[i] = st.columnValue(i);
-          }
-          resultList.add(objectToRead);
+      if (reserveConnection()) {
+        return openConnection();
+      }
+      try {
+        if (connections.isEmpty()) {
+          // All the connections of the budget are busy with other files
+          budget.await(CONNECTION_WAIT_MILLIS);
         } else {
-          break;
+          conn = idleConnections.pollFirst(CONNECTION_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+          if (conn != null) {
+            return conn;
+          }
         }
-      } while (resultList.size() <= maxResults + 1);
-      if (resultList.size() > maxResults) {
-        throw new SQLiteException(ERROR_CODE_MAXIMUM_RESULTS_REACHED, "Hard limit on number of results reached ["
-            + maxResults + "], please use a LIMIT for this query.");
-      }
-      return new QueryResult(columnNames, resultList);
-    } finally {
-      if (timeoutThread != null) {
-        timeoutThread.endQuery(conn);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SQLiteInterruptedException(SQLiteConstants.SQLITE_INTERRUPT, "Interrupted while waiting for a connection to "
+            + dbFile);
       }
-      if (st != null) {
-        st.dispose();
+    }
+  }
+
+  private boolean reserveConnection() {
+    synchronized (this) {
+      if (nConnections >= maxConnections) {
+        return false;
       }
+      nConnections++;
+    }
+    if (budget.reserve()) {
+      return true;
+    }
+    synchronized (this) {
+      nConnections--;
+    }
+    return false;
+  }
+
+  private ConfinedConnection openConnection() throws SQLiteException {
+    ConfinedConnection conn = new ConfinedConnection("sqlite-" + dbFile.getAbsoluteFile().getParentFile().getName()
+        + "-" + connectionIds.incrementAndGet());
+    try {
+      conn.open(dbFile, readProfile, initStatements, statementCacheSize);
+    } catch (SQLiteException e) {
+      log.error("Impossible to open SQLite connection to " + dbFile, e);
+      disposeConnection(conn, true);
+      throw new SQLiteException(ERROR_CODE_ERROR_CREATING_CONNECTION, "Impossible to create SQLite connection to "
+          + dbFile + ": " + e.getMessage());
+    } catch (RuntimeException e) {
+      disposeConnection(conn, true);
+      throw e;
+    }
+    connections.add(conn);
+    log.info("New SQLite connection open with " + dbFile + " (" + connections.size() + " open)");
+    return conn;
+  }
+
+  private void returnConnection(ConfinedConnection conn) {
+    conn.setLastUsed(System.currentTimeMillis());
+    idleConnections.offerFirst(conn);
+    // Closed in the meantime: nobody else will close it
+    if (closed && idleConnections.remove(conn)) {
+      disposeConnection(conn, true);
     }
+    budget.connectionIdle();
+  }
+
+  /**
+   * When the least recently used idle connection of this client was last used, -1 if there is no idle connection.
+   */
+  long getOldestIdleTime() {
+    ConfinedConnection conn = idleConnections.peekLast();
+    return conn == null ? -1 : conn.getLastUsed();
   }
 
+  /**
+   * Closes the least recently used idle connection, keeping its room in the budget for the caller. Returns false if
+   * there was no idle connection.
+   */
+  boolean evictIdleConnection() {
+    ConfinedConnection conn = idleConnections.pollLast();
+    if (conn == null) {
+      return false;
+    }
+    disposeConnection(conn, false);
+    return true;
+  }
+
+  private void disposeConnection(ConfinedConnection conn, boolean releaseBudget) {
+    connections.remove(conn);
+    synchronized (this) {
+      nConnections--;
+    }
+    if (timeoutThread != null && conn.getConnection() != null) {
+      timeoutThread.forgetConnection(conn.getConnection());
+    }
+    conn.dispose();
+    if (releaseBudget) {
+      budget.release();
+    }
+  }
+
+  /**
+   * For unit-testing
+   */
+  List<ConfinedConnection> getConnections() {
+    return connections;
+  }
+
+  /**
+   * Closes all connections: idle ones right away and busy ones as soon as they finish their query.
+   */
   public void close() {
-    String thisThread = Thread.currentThread().getName();
-    for (ThreadAndConnection tConn : allOpenedConnections) {
-      if (thisThread.equals(tConn.threadName)) {
-        log.info("-- Closing my own connection to: " + tConn.conn.getDatabaseFile());
-        tConn.conn.dispose();
-      } else { // needs to be closed at some point by the owner
-        Set<SQLiteConnection> set = CLEAN_UP_AFTER_YOURSELF.get(tConn.threadName);
-        synchronized (set) { // just in case the owner of the set is iterating
-          // over it
-          CLEAN_UP_AFTER_YOURSELF.get(tConn.threadName).add(tConn.conn);
-        }
-      }
+    closed = true;
+    budget.unregister(this);
+    ConfinedConnection conn;
+    while ((conn = idleConnections.pollFirst()) != null) {
+      disposeConnection(conn, true);
     }
-    // timeoutThread.interrupt();
   }
 }
@@ -28,6 +28,7 @@ import com.splout.db.common.TimeoutThread;
 import org.apache.commons.configuration.Configuration;
 
 import java.io.File;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 /**
@@ -49,6 +50,34 @@ public class SQLite4JavaManager implements EngineManager {
     client.setTimeoutThread(t);
   }
 
+  /**
+   * See {@link SQLite4JavaClient#setMaxConnections(int)}.
+   */
+  public void setMaxConnections(int maxConnections) {
+    client.setMaxConnections(maxConnections);
+  }
+
+  /**
+   * See {@link SQLite4JavaClient#setConnectionBudget(SQLiteConnectionBudget)}.
+   */
+  public void setConnectionBudget(SQLiteConnectionBudget budget) {
+    client.setConnectionBudget(budget);
+  }
+
+  /**
+   * See {@link SQLite4JavaClient#setStatementCacheSize(int)}.
+   */
+  public void setStatementCacheSize(int statementCacheSize) {
+    client.setStatementCacheSize(statementCacheSize);
+  }
+
+  /**
+   * See {@link SQLite4JavaClient#setReadProfile(SQLiteReadProfile)}.
+   */
+  public void setReadProfile(SQLiteReadProfile readProfile) {
+    client.setReadProfile(readProfile);
+  }
+
   @Override
   public void init(File dbFile, Configuration config, List<String> initStatements) throws EngineException {
     this.client = new SQLite4JavaClient(dbFile + "", initStatements);
@@ -72,6 +101,38 @@ public class SQLite4JavaManager implements EngineManager {
     }
   }
 
+  @Override
+  public QueryResult query(String query, Object[] params, int maxResults) throws EngineException {
+    try {
+      return client.query(query, params, maxResults);
+    } catch (SQLiteException e) {
+      throw convertException(e);
+    }
+  }
+
+  /**
+   * Same as {@link #query(String, int)} but returns the result already serialized with a {@link BinaryResultEncoder},
+   * skipping the intermediate {@link QueryResult}. Can be read with {@link ResultSerializer#deserialize(ByteBuffer)}.
+   */
+  public ByteBuffer queryBinary(String query, int maxResults) throws EngineException {
+    try {
+      return client.queryBinary(query, maxResults);
+    } catch (SQLiteException e) {
+      throw convertException(e);
+    }
+  }
+
+  /**
+   * Parameterized version of {@link #queryBinary(String, int)}, see {@link #query(String, Object[], int)}.
+   */
+  public ByteBuffer queryBinary(String query, Object[] params, int maxResults) throws EngineException {
+    try {
+      return client.queryBinary(query, params, maxResults, BinaryResultEncoder.VERSION_COLUMNAR);
+    } catch (SQLiteException e) {
+      throw convertException(e);
+    }
+  }
+
   /**
    * For unit-testing
    */
@@ -0,0 +1,112 @@
+package com.splout.db.engine;
+
+/*
+ * #%L
+ * Splout SQL commons
+ * %%
+ * Copyright (C) 2012 - 2014 Datasalt Systems S.L.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * Caps the number of SQLite connections open at the same time by all the {@link SQLite4JavaClient}s that share it
+ * (typically, all the partitions served by a DNode). Each connection holds its own file handles, page cache and
+ * prepared statements, so this also bounds the memory used by SQLite.
+ * <p/>
+ * When the cap is reached, a new connection can only be opened by closing the least recently used idle connection of
+ * any client.
+ */
+public class SQLiteConnectionBudget {
+
+  private final int maxConnections;
+  private int openConnections = 0;
+  private final CopyOnWriteArraySet<SQLite4JavaClient> clients = new CopyOnWriteArraySet<SQLite4JavaClient>();
+
+  public SQLiteConnectionBudget(int maxConnections) {
+    this.maxConnections = maxConnections;
+  }
+
+  void register(SQLite4JavaClient client) {
+    clients.add(client);
+  }
+
+  void unregister(SQLite4JavaClient client) {
+    clients.remove(client);
+  }
+
+  /**
+   * Reserves room for a new connection, evicting the least recently used idle connection if the cap has been reached.
+   * Returns false if all the open connections are busy. Rooms are given back with {@link #release()}.
+   */
+  boolean reserve() {
+    synchronized (this) {
+      if (openConnections < maxConnections) {
+        openConnections++;
+        return true;
+      }
+    }
+    for (;;) {
+      SQLite4JavaClient leastRecentlyUsed = null;
+      long oldest = Long.MAX_VALUE;
+      for (SQLite4JavaClient client : clients) {
+        long idleSince = client.getOldestIdleTime();
+        if (idleSince >= 0 && idleSince < oldest) {
+          oldest = idleSince;
+          leastRecentlyUsed = client;
+        }
+      }
+      if (leastRecentlyUsed == null) {
+        return false;
+      }
+      // The room of the evicted connection is handed over to the caller
+      if (leastRecentlyUsed.evictIdleConnection()) {
+        return true;
+      }
+      // Someone took that connection in the meantime, look again
+    }
+  }
+
+  /**
+   * Called when a connection that was reserved with {@link #reserve()} is closed.
+   */
+  synchronized void release() {
+    openConnections--;
+    notifyAll();
+  }
+
+  /**
+   * Called when a connection becomes idle, so that it can be evicted by those waiting for room.
+   */
+  synchronized void connectionIdle() {
+    notifyAll();
+  }
+
+  /**
+   * Waits until some connection is closed or becomes idle, or the timeout expires.
+   */
+  synchronized void await(long millis) throws InterruptedException {
+    wait(millis);
+  }
+
+  public synchronized int getOpenConnections() {
+    return openConnections;
+  }
+
+  public int getMaxConnections() {
+    return maxConnections;
+  }
+}
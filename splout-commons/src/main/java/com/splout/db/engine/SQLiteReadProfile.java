@@ -0,0 +1,113 @@
+package com.splout.db.engine;
+
+/*
+ * #%L
+ * Splout SQL commons
+ * %%
+ * Copyright (C) 2012 - 2014 Datasalt Systems S.L.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.almworks.sqlite4java.SQLiteConnection;
+import com.almworks.sqlite4java.SQLiteException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * How the connections to a partition that is only going to be read are opened and tuned: read-only mode, size of the
+ * page cache and memory-mapped I/O. Applied to each new connection before the user provided init statements, so that
+ * these can still override it.
+ * <p/>
+ * Pragmas not known by the SQLite version bundled with sqlite4java (mmap_size needs 3.7.17, query_only 3.8.0) are
+ * ignored by SQLite itself, so they will take effect as soon as the library is upgraded.
+ */
+public class SQLiteReadProfile {
+
+  /**
+   * What connections used before having read profiles: 20 pages of cache, read-write.
+   */
+  public final static SQLiteReadProfile LEGACY = new SQLiteReadProfile(false, 20, 0);
+
+  private final boolean queryOnly;
+  private final int cacheSize;
+  private final long mmapSize;
+
+  /**
+   * @param queryOnly Whether connections are opened in read-only mode.
+   * @param cacheSize Page cache of each connection, as in "PRAGMA cache_size": pages if positive, KiB if negative.
+   * @param mmapSize  Bytes of the file that are memory-mapped, 0 for not using memory-mapped I/O.
+   */
+  public SQLiteReadProfile(boolean queryOnly, int cacheSize, long mmapSize) {
+    this.queryOnly = queryOnly;
+    this.cacheSize = cacheSize;
+    this.mmapSize = mmapSize;
+  }
+
+  /**
+   * Shares a page cache memory budget among a maximum number of open connections.
+   *
+   * @param pageCacheMB    The memory for page caches of all connections, in MB.
+   * @param maxConnections The maximum number of connections open at the same time.
+   */
+  public static int cacheSizeFromBudget(int pageCacheMB, int maxConnections) {
+    long kb = (pageCacheMB * 1024l) / Math.max(1, maxConnections);
+    // Negative means KiB instead of pages, so that it does not depend on the page size of each file
+    return (int) -Math.max(1, Math.min(Integer.MAX_VALUE, kb));
+  }
+
+  /**
+   * Opens the connection according to this profile.
+   */
+  void open(SQLiteConnection conn) throws SQLiteException {
+    if (queryOnly) {
+      conn.openReadonly();
+    } else {
+      conn.open(true);
+    }
+    for (String pragma : getPragmas()) {
+      conn.exec(pragma);
+    }
+  }
+
+  List<String> getPragmas() {
+    List<String> pragmas = new ArrayList<String>();
+    pragmas.add("PRAGMA cache_size=" + cacheSize);
+    if (mmapSize > 0) {
+      pragmas.add("PRAGMA mmap_size=" + mmapSize);
+    }
+    if (queryOnly) {
+      pragmas.add("PRAGMA query_only=1");
+    }
+    return pragmas;
+  }
+
+  public boolean isQueryOnly() {
+    return queryOnly;
+  }
+
+  public int getCacheSize() {
+    return cacheSize;
+  }
+
+  public long getMmapSize() {
+    return mmapSize;
+  }
+
+  @Override
+  public String toString() {
+    return "SQLiteReadProfile [queryOnly=" + queryOnly + ", cacheSize=" + cacheSize + ", mmapSize=" + mmapSize + "]";
+  }
+}
@@ -0,0 +1,109 @@
+package com.splout.db.engine;
+
+/*
+ * #%L
+ * Splout SQL commons
+ * %%
+ * Copyright (C) 2012 - 2014 Datasalt Systems S.L.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.almworks.sqlite4java.SQLiteConnection;
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteStatement;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU of prepared {@link SQLiteStatement}s of one {@link SQLiteConnection}, keyed by their SQL. Saves parsing
+ * and planning queries that are executed again and again, which is the common case when they are parameterized.
+ * <p/>
+ * We don't use the statement cache of sqlite4java (prepare(sql, true)) because it is unbounded. Like the connection
+ * itself, instances must only be used by the thread that owns the connection.
+ */
+class StatementCache {
+
+  private final SQLiteConnection conn;
+  private final int maxSize;
+  private final LinkedHashMap<String, SQLiteStatement> statements;
+
+  @SuppressWarnings("serial")
+  StatementCache(SQLiteConnection conn, final int maxSize) {
+    this.conn = conn;
+    this.maxSize = maxSize;
+    this.statements = new LinkedHashMap<String, SQLiteStatement>(16, 0.75f, true) {
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, SQLiteStatement> eldest) {
+        if (size() > maxSize) {
+          eldest.getValue().dispose();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Returns a statement ready to be bound and stepped, either a cached one or a newly prepared one. It must be given
+   * back through {@link #release(String, SQLiteStatement)} once used.
+   */
+  SQLiteStatement prepare(String sql) throws SQLiteException {
+    // Statements in use are taken out of the cache
+    SQLiteStatement st = statements.remove(sql);
+    if (st != null && !st.isDisposed()) {
+      return st;
+    }
+    return conn.prepare(sql, false);
+  }
+
+  /**
+   * Resets the statement and keeps it for later use, possibly evicting the least recently used one.
+   */
+  void release(String sql, SQLiteStatement st) {
+    if (st.isDisposed()) {
+      return;
+    }
+    if (maxSize <= 0) {
+      st.dispose();
+      return;
+    }
+    try {
+      st.reset(true);
+    } catch (SQLiteException e) {
+      st.dispose();
+      return;
+    }
+    SQLiteStatement previous = statements.put(sql, st);
+    if (previous != null && previous != st) {
+      previous.dispose();
+    }
+  }
+
+  int size() {
+    return statements.size();
+  }
+
+  /**
+   * Disposes all cached statements.
+   */
+  void clear() {
+    for (SQLiteStatement st : statements.values()) {
+      st.dispose();
+    }
+    statements.clear();
+  }
+}
@@ -0,0 +1,71 @@
+package com.splout.db.qnode.beans;
+
+/*
+ * #%L
+ * Splout SQL commons
+ * %%
+ * Copyright (C) 2012 - 2014 Datasalt Systems S.L.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.List;
+
+import com.splout.db.common.BaseBean;
+
+/**
+ * One of the lookups of a batch query: a query to the partition of a key. The params (may be null) are bound, in
+ * order, to the placeholders ("?") of the SQL. Lookups with the same SQL that hit the same partition are sent to the
+ * DNode as a single query, so SQL that only changes in its params is better for batches.
+ */
+public class KeyLookup extends BaseBean {
+
+  String key;
+  String sql;
+  List<Object> params;
+
+  public KeyLookup() {
+  }
+
+  public KeyLookup(String key, String sql, List<Object> params) {
+    this.key = key;
+    this.sql = sql;
+    this.params = params;
+  }
+
+  // ----------------- //
+  public String getKey() {
+    return key;
+  }
+
+  public void setKey(String key) {
+    this.key = key;
+  }
+
+  public String getSql() {
+    return sql;
+  }
+
+  public void setSql(String sql) {
+    this.sql = sql;
+  }
+
+  public List<Object> getParams() {
+    return params;
+  }
+
+  public void setParams(List<Object> params) {
+    this.params = params;
+  }
+}
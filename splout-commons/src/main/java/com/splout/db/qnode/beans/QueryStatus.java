@@ -21,16 +21,23 @@ package com.splout.db.qnode.beans;
  */
 
 import com.splout.db.common.BaseBean;
+import com.splout.db.common.ColumnarQueryResult;
+import org.codehaus.jackson.annotate.JsonIgnore;
+import org.codehaus.jackson.annotate.JsonProperty;
 
 import java.util.ArrayList;
 
 /**
  * JSON bean that is returned by the QNode as response to a query. It contains useful information such as the time it took, the shard it hit, etc.
+ * <p/>
+ * The result may be held as a {@link ColumnarQueryResult}, in which case it is serialized to JSON straight from its column
+ * vectors and only turned into a list of Maps if {@link #getResult()} is called.
  */
 @SuppressWarnings("rawtypes")
 public class QueryStatus extends BaseBean {
 
   protected ArrayList result;
+  protected ColumnarQueryResult columnarResult;
   protected Integer shard;
   protected Long millis;
   protected String error;
@@ -43,12 +50,37 @@ public class QueryStatus extends BaseBean {
     this.error = error;
   }
 
+  @JsonIgnore
   public ArrayList getResult() {
+    if (result == null && columnarResult != null) {
+      result = new ArrayList(columnarResult.mapify());
+    }
     return result;
   }
 
+  @JsonProperty("result")
   public void setResult(ArrayList result) {
     this.result = result;
+    this.columnarResult = null;
+  }
+
+  /**
+   * What is serialized as "result": the columnar result if there is one, so that no Maps need to be built for it.
+   */
+  @JsonProperty("result")
+  public Object getSerializableResult() {
+    return columnarResult != null ? columnarResult : result;
+  }
+
+  @JsonIgnore
+  public ColumnarQueryResult getColumnarResult() {
+    return columnarResult;
+  }
+
+  @JsonIgnore
+  public void setColumnarResult(ColumnarQueryResult columnarResult) {
+    this.columnarResult = columnarResult;
+    this.result = null;
   }
 
   public Integer getShard() {
@@ -25,6 +25,7 @@ import org.junit.Test;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -190,4 +191,58 @@ public class TestPartitionMap {
     PartitionMap map2 = JSONSerDe.deSer(json, PartitionMap.PARTITION_MAP_REF);
     assertEquals(map2.getPartitionEntries().toString(), map.getPartitionEntries().toString());
   }
+
+  @Test
+  public void testIndexedLookupMatchesLinearScan() {
+    Random random = new Random(42);
+    for (int nPartitions = 1; nPartitions < 40; nPartitions++) {
+      List<PartitionEntry> entries = new ArrayList<PartitionEntry>();
+      int bound = 0;
+      for (int i = 0; i < nPartitions; i++) {
+        PartitionEntry entry = new PartitionEntry();
+        entry.setMin(i == 0 ? null : String.format("%05d", bound));
+        // Leave gaps between some ranges
+        if (random.nextBoolean() && i > 0) {
+          bound += random.nextInt(5);
+          entry.setMin(String.format("%05d", bound));
+        }
+        bound += 1 + random.nextInt(50);
+        entry.setMax(i == nPartitions - 1 ? null : String.format("%05d", bound));
+        entry.setShard(i);
+        entries.add(entry);
+      }
+      PartitionMap map = new PartitionMap(entries);
+      for (int key = 0; key < bound + 10; key++) {
+        String strKey = String.format("%05d", key);
+        assertEquals(map.linearFindPartition(strKey), map.findPartition(strKey));
+      }
+      assertEquals(map.linearFindPartition(""), map.findPartition(""));
+    }
+  }
+
+  @Test
+  public void testIndexFollowsEntryRemoval() {
+    PartitionMap map = testPartitionMap();
+    assertEquals(2, map.findPartition("g"));
+    PartitionEntry toRemove = new PartitionEntry();
+    toRemove.setShard(2);
+    map.getPartitionEntries().remove(toRemove);
+    assertEquals(PartitionMap.NO_PARTITION, map.findPartition("g"));
+    assertEquals(3, map.findPartition("n"));
+    List<Integer> partitions = map.findPartitions("d", "n");
+    assertEquals(2, partitions.size());
+    assertTrue(partitions.contains(1));
+    assertTrue(partitions.contains(3));
+  }
+
+  @Test
+  public void testUnsortedMapFallsBackToLinearScan() {
+    PartitionMap map = testPartitionMap();
+    // Swap two entries: ranges are not sorted anymore
+    PartitionEntry first = map.getPartitionEntries().remove(0);
+    map.getPartitionEntries().add(first);
+    assertEquals(0, map.findPartition("b"));
+    assertEquals(4, map.findPartition("y"));
+    assertEquals(2, map.findPartition("g"));
+  }
 }
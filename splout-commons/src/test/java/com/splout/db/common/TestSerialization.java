@@ -22,6 +22,7 @@ package com.splout.db.common;
 
 import static org.junit.Assert.assertEquals;
 
+import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
@@ -30,6 +31,7 @@ import org.junit.Test;
 
 import com.splout.db.engine.ResultSerializer;
 import com.splout.db.engine.ResultSerializer.SerializationException;
+import com.splout.db.qnode.beans.QueryStatus;
 
 public class TestSerialization {
 
@@ -50,4 +52,22 @@ public class TestSerialization {
     assertEquals("foo", read.getColumnNames()[0]);
     assertEquals("int_prop", read.getColumnNames()[1]);
   }
+
+  @Test
+  public void testStreamingJSON() throws Exception {
+    String[] columnNames = new String[] { "foo", "int_prop" };
+    List<Object[]> results = new ArrayList<Object[]>();
+    results.add(new Object[] { "b\u00e4r", 0 });
+    results.add(new Object[] { null, 10000000000l });
+
+    QueryStatus status = new QueryStatus();
+    status.setResult(new ArrayList(new QueryResult(columnNames, results).mapify()));
+    status.setShard(3);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    JSONSerDe.ser(status, out);
+    // The stream is not closed, more can be appended (e.g. JSONP callbacks)
+    out.write(')');
+    assertEquals(JSONSerDe.ser(status) + ")", new String(out.toByteArray(), "UTF-8"));
+  }
 }
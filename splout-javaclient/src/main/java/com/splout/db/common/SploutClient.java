@@ -212,11 +212,45 @@ public class SploutClient {
    */
   public QueryStatus queryPost(String tablespace, String key, String query, String partition)
       throws IOException {
+    return queryPost(tablespace, key, query, null, partition);
+  }
+
+  /*
+   * Parameterized query: the sqlParams are bound, in order, to the placeholders ("?") of the query. Cheaper than
+   * building a different SQL for each value, as DNodes reuse the statement they prepared for previous queries.
+   */
+  public QueryStatus queryPost(String tablespace, String key, String query, List<Object> sqlParams, String partition)
+      throws IOException {
 
     Map<String, Object> params = new HashMap<String, Object>();
     params.put("sql", query);
     params.put("key", new String[]{key});
     params.put("partition", partition);
+    if (sqlParams != null) {
+      params.put("params", sqlParams);
+    }
+
+    try {
+      HttpContent content = new StringHttpContent(JSONSerDe.ser(params));
+      HttpRequest request = requestFactory.buildPostRequest(new GenericUrl(
+          qNodes[(int) (Math.random() * qNodes.length)] + "/api/query/" + tablespace), content);
+      HttpResponse resp = request.execute();
+      return JSONSerDe.deSer(asString(resp.getContent()), QueryStatus.class);
+    } catch (JSONSerDeException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /*
+   * Queries all the partitions and returns the first limit rows of the union of their results sorted by orderBy (e.g.
+   * "score DESC, name", may be null). Each partition only returns its first limit rows, which are merged by the QNode.
+   */
+  public QueryStatus sortedQuery(String tablespace, String query, String orderBy, int limit) throws IOException {
+
+    Map<String, Object> params = new HashMap<String, Object>();
+    params.put("sql", query);
+    params.put("orderBy", orderBy);
+    params.put("limit", limit);
 
     try {
       HttpContent content = new StringHttpContent(JSONSerDe.ser(params));
@@ -229,6 +263,47 @@ public class SploutClient {
     }
   }
 
+  /*
+   * Queries all the partitions with a GROUP BY query and returns one row per group, merging the partial aggregates of
+   * each partition as told by aggregates (e.g. "total:SUM, n:COUNT, avg_price:AVG(n)").
+   */
+  public QueryStatus aggregatedQuery(String tablespace, String query, String aggregates) throws IOException {
+
+    Map<String, Object> params = new HashMap<String, Object>();
+    params.put("sql", query);
+    params.put("aggregates", aggregates);
+
+    try {
+      HttpContent content = new StringHttpContent(JSONSerDe.ser(params));
+      HttpRequest request = requestFactory.buildPostRequest(new GenericUrl(
+          qNodes[(int) (Math.random() * qNodes.length)] + "/api/query/" + tablespace), content);
+      HttpResponse resp = request.execute();
+      return JSONSerDe.deSer(asString(resp.getContent()), QueryStatus.class);
+    } catch (JSONSerDeException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /*
+   * Sends many lookups in a single request, each one to the partition of its own key. Returns one result per lookup,
+   * in the same order.
+   */
+  public List<QueryStatus> batchQuery(String tablespace, List<KeyLookup> lookups) throws IOException {
+
+    Map<String, Object> params = new HashMap<String, Object>();
+    params.put("lookups", lookups);
+
+    try {
+      HttpContent content = new StringHttpContent(JSONSerDe.ser(params));
+      HttpRequest request = requestFactory.buildPostRequest(new GenericUrl(
+          qNodes[(int) (Math.random() * qNodes.length)] + "/api/query/" + tablespace), content);
+      HttpResponse resp = request.execute();
+      return Arrays.asList(JSONSerDe.deSer(asString(resp.getContent()), QueryStatus[].class));
+    } catch (JSONSerDeException e) {
+      throw new IOException(e);
+    }
+  }
+
   public StatusMessage cancelDeploy(long version) throws IOException {
     HttpRequest request = requestFactory.buildGetRequest(new GenericUrl(
         qNodes[(int) (Math.random() * qNodes.length)] + "/api/canceldeployment?version=" + version));
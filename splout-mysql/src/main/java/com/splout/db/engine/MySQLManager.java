@@ -35,6 +35,12 @@ import java.util.List;
 
 public class MySQLManager implements EngineManager {
 
+  /**
+   * The maximum number of prepared statements kept by each connection, read from the configuration given to
+   * {@link #init(File, Configuration, List)}. The same property as for SQLite partitions (DNodeProperties).
+   */
+  public final static String STATEMENT_CACHE_SIZE = "dnode.statement.cache.size";
+
   private EmbeddedMySQL mySQL;
   private JDBCManager jdbcManager;
 
@@ -44,7 +50,7 @@ public class MySQLManager implements EngineManager {
 
   // Only to be used from unit testing
   MySQLManager(EmbeddedMySQL mySQL) throws SQLException, ClassNotFoundException {
-    initializeMySQL(mySQL.getConfig());
+    initializeMySQL(mySQL.getConfig(), JDBCManager.DEFAULT_STATEMENT_CACHE_SIZE);
   }
 
   @Override
@@ -68,9 +74,15 @@ public class MySQLManager implements EngineManager {
 		return jdbcManager.query(query, maxResults);
 	}
 
-	private void initializeMySQL(EmbeddedMySQLConfig mysqlConfig) throws SQLException, ClassNotFoundException {
+	@Override
+	public QueryResult query(String query, Object[] params, int maxResults) throws EngineException {
+		return jdbcManager.query(query, params, maxResults);
+	}
+
+	private void initializeMySQL(EmbeddedMySQLConfig mysqlConfig, int statementCacheSize) throws SQLException,
+	    ClassNotFoundException {
 		this.jdbcManager = new JDBCManager(EmbeddedMySQL.DRIVER, mysqlConfig.getLocalJDBCConnection(MySQLOutputFormat.GENERATED_DB_NAME), 1,
-		    mysqlConfig.getUser(), mysqlConfig.getPass());
+		    mysqlConfig.getUser(), mysqlConfig.getPass(), statementCacheSize);
 	}
 	
 	@Override
@@ -95,7 +107,8 @@ public class MySQLManager implements EngineManager {
 
 			mySQL.start(false);
 
-			initializeMySQL(mysqlConfig);
+			initializeMySQL(mysqlConfig, (config == null) ? JDBCManager.DEFAULT_STATEMENT_CACHE_SIZE : config.getInt(
+			    STATEMENT_CACHE_SIZE, JDBCManager.DEFAULT_STATEMENT_CACHE_SIZE));
 		} catch(IOException e) {
 			throw new EngineException(e);
 		} catch(InterruptedException e) {
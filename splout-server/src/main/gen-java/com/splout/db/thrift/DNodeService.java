@@ -41,6 +41,8 @@ public class DNodeService {
 
     public ByteBuffer binarySqlQuery(String tablespace, long version, int partition, String query) throws DNodeException, org.apache.thrift.TException;
 
+    public ByteBuffer binarySqlQueryWithParams(String tablespace, long version, int partition, String query, String params) throws DNodeException, org.apache.thrift.TException;
+
     public String sqlQuery(String tablespace, long version, int partition, String query) throws DNodeException, org.apache.thrift.TException;
 
     public String deleteOldVersions(List<TablespaceVersion> versions) throws DNodeException, org.apache.thrift.TException;
@@ -61,6 +63,8 @@ public class DNodeService {
 
     public void binarySqlQuery(String tablespace, long version, int partition, String query, org.apache.thrift.async.AsyncMethodCallback resultHandler) throws org.apache.thrift.TException;
 
+    public void binarySqlQueryWithParams(String tablespace, long version, int partition, String query, String params, org.apache.thrift.async.AsyncMethodCallback resultHandler) throws org.apache.thrift.TException;
+
     public void sqlQuery(String tablespace, long version, int partition, String query, org.apache.thrift.async.AsyncMethodCallback resultHandler) throws org.apache.thrift.TException;
 
     public void deleteOldVersions(List<TablespaceVersion> versions, org.apache.thrift.async.AsyncMethodCallback resultHandler) throws org.apache.thrift.TException;
@@ -126,6 +130,36 @@ public class DNodeService {
       throw new org.apache.thrift.TApplicationException(org.apache.thrift.TApplicationException.MISSING_RESULT, "binarySqlQuery failed: unknown result");
     }
 
+    public ByteBuffer binarySqlQueryWithParams(String tablespace, long version, int partition, String query, String params) throws DNodeException, org.apache.thrift.TException
+    {
+      send_binarySqlQueryWithParams(tablespace, version, partition, query, params);
+      return recv_binarySqlQueryWithParams();
+    }
+
+    public void send_binarySqlQueryWithParams(String tablespace, long version, int partition, String query, String params) throws org.apache.thrift.TException
+    {
+      binarySqlQueryWithParams_args args = new binarySqlQueryWithParams_args();
+      args.setTablespace(tablespace);
+      args.setVersion(version);
+      args.setPartition(partition);
+      args.setQuery(query);
+      args.setParams(params);
+      sendBase("binarySqlQueryWithParams", args);
+    }
+
+    public ByteBuffer recv_binarySqlQueryWithParams() throws DNodeException, org.apache.thrift.TException
+    {
+      binarySqlQueryWithParams_result result = new binarySqlQueryWithParams_result();
+      receiveBase(result, "binarySqlQueryWithParams");
+      if (result.isSetSuccess()) {
+        return result.success;
+      }
+      if (result.excep != null) {
+        throw result.excep;
+      }
+      throw new org.apache.thrift.TApplicationException(org.apache.thrift.TApplicationException.MISSING_RESULT, "binarySqlQueryWithParams failed: unknown result");
+    }
+
     public String sqlQuery(String tablespace, long version, int partition, String query) throws DNodeException, org.apache.thrift.TException
     {
       send_sqlQuery(tablespace, version, partition, query);
@@ -371,6 +405,50 @@ public class DNodeService {
       }
     }
 
+    public void binarySqlQueryWithParams(String tablespace, long version, int partition, String query, String params, org.apache.thrift.async.AsyncMethodCallback resultHandler) throws org.apache.thrift.TException {
+      checkReady();
+      binarySqlQueryWithParams_call method_call = new binarySqlQueryWithParams_call(tablespace, version, partition, query, params, resultHandler, this, ___protocolFactory, ___transport);
+      this.___currentMethod = method_call;
+      ___manager.call(method_call);
+    }
+
+    public static class binarySqlQueryWithParams_call extends org.apache.thrift.async.TAsyncMethodCall {
+      private String tablespace;
+      private long version;
+      private int partition;
+      private String query;
+      private String params;
+      public binarySqlQueryWithParams_call(String tablespace, long version, int partition, String query, String params, org.apache.thrift.async.AsyncMethodCallback resultHandler, org.apache.thrift.async.TAsyncClient client, org.apache.thrift.protocol.TProtocolFactory protocolFactory, org.apache.thrift.transport.TNonblockingTransport transport) throws org.apache.thrift.TException {
+        super(client, protocolFactory, transport, resultHandler, false);
+        this.tablespace = tablespace;
+        this.version = version;
+        this.partition = partition;
+        this.query = query;
+        this.params = params;
+      }
+
+      public void write_args(org.apache.thrift.protocol.TProtocol prot) throws org.apache.thrift.TException {
+        prot.writeMessageBegin(new org.apache.thrift.protocol.TMessage("binarySqlQueryWithParams", org.apache.thrift.protocol.TMessageType.CALL, 0));
+        binarySqlQueryWithParams_args args = new binarySqlQueryWithParams_args();
+        args.setTablespace(tablespace);
+        args.setVersion(version);
+        args.setPartition(partition);
+        args.setQuery(query);
+        args.setParams(params);
+        args.write(prot);
+        prot.writeMessageEnd();
+      }
+
+      public ByteBuffer getResult() throws DNodeException, org.apache.thrift.TException {
+        if (getState() != org.apache.thrift.async.TAsyncMethodCall.State.RESPONSE_READ) {
+          throw new IllegalStateException("Method call not finished!");
+        }
+        org.apache.thrift.transport.TMemoryInputTransport memoryTransport = new org.apache.thrift.transport.TMemoryInputTransport(getFrameBuffer().array());
+        org.apache.thrift.protocol.TProtocol prot = client.getProtocolFactory().getProtocol(memoryTransport);
+        return (new Client(prot)).recv_binarySqlQueryWithParams();
+      }
+    }
+
     public void sqlQuery(String tablespace, long version, int partition, String query, org.apache.thrift.async.AsyncMethodCallback resultHandler) throws org.apache.thrift.TException {
       checkReady();
       sqlQuery_call method_call = new sqlQuery_call(tablespace, version, partition, query, resultHandler, this, ___protocolFactory, ___transport);
@@ -621,6 +699,7 @@ public class DNodeService {
 
     private static <I extends Iface> Map<String,  org.apache.thrift.ProcessFunction<I, ? extends  org.apache.thrift.TBase>> getProcessMap(Map<String,  org.apache.thrift.ProcessFunction<I, ? extends  org.apache.thrift.TBase>> processMap) {
       processMap.put("binarySqlQuery", new binarySqlQuery());
+      processMap.put("binarySqlQueryWithParams", new binarySqlQueryWithParams());
       processMap.put("sqlQuery", new sqlQuery());
       processMap.put("deleteOldVersions", new deleteOldVersions());
       processMap.put("deploy", new deploy());
@@ -655,6 +734,30 @@ public class DNodeService {
       }
     }
 
+    public static class binarySqlQueryWithParams<I extends Iface> extends org.apache.thrift.ProcessFunction<I, binarySqlQueryWithParams_args> {
+      public binarySqlQueryWithParams() {
+        super("binarySqlQueryWithParams");
+      }
+
+      public binarySqlQueryWithParams_args getEmptyArgsInstance() {
+        return new binarySqlQueryWithParams_args();
+      }
+
+      protected boolean isOneway() {
+        return false;
+      }
+
+      public binarySqlQueryWithParams_result getResult(I iface, binarySqlQueryWithParams_args args) throws org.apache.thrift.TException {
+        binarySqlQueryWithParams_result result = new binarySqlQueryWithParams_result();
+        try {
+          result.success = iface.binarySqlQueryWithParams(args.tablespace, args.version, args.partition, args.query, args.params);
+        } catch (DNodeException excep) {
+          result.excep = excep;
+        }
+        return result;
+      }
+    }
+
     public static class sqlQuery<I extends Iface> extends org.apache.thrift.ProcessFunction<I, sqlQuery_args> {
       public sqlQuery() {
         super("sqlQuery");
@@ -837,6 +940,7 @@ public class DNodeService {
 
     private static <I extends AsyncIface> Map<String,  org.apache.thrift.AsyncProcessFunction<I, ? extends  org.apache.thrift.TBase,?>> getProcessMap(Map<String,  org.apache.thrift.AsyncProcessFunction<I, ? extends  org.apache.thrift.TBase, ?>> processMap) {
       processMap.put("binarySqlQuery", new binarySqlQuery());
+      processMap.put("binarySqlQueryWithParams", new binarySqlQueryWithParams());
       processMap.put("sqlQuery", new sqlQuery());
       processMap.put("deleteOldVersions", new deleteOldVersions());
       processMap.put("deploy", new deploy());
@@ -904,6 +1008,63 @@ public class DNodeService {
       }
     }
 
+    public static class binarySqlQueryWithParams<I extends AsyncIface> extends org.apache.thrift.AsyncProcessFunction<I, binarySqlQueryWithParams_args, ByteBuffer> {
+      public binarySqlQueryWithParams() {
+        super("binarySqlQueryWithParams");
+      }
+
+      public binarySqlQueryWithParams_args getEmptyArgsInstance() {
+        return new binarySqlQueryWithParams_args();
+      }
+
+      public AsyncMethodCallback<ByteBuffer> getResultHandler(final AsyncFrameBuffer fb, final int seqid) {
+        final org.apache.thrift.AsyncProcessFunction fcall = this;
+        return new AsyncMethodCallback<ByteBuffer>() { 
+          public void onComplete(ByteBuffer o) {
+            binarySqlQueryWithParams_result result = new binarySqlQueryWithParams_result();
+            result.success = o;
+            try {
+              fcall.sendResponse(fb,result, org.apache.thrift.protocol.TMessageType.REPLY,seqid);
+              return;
+            } catch (Exception e) {
+              LOGGER.error("Exception writing to internal frame buffer", e);
+            }
+            fb.close();
+          }
+          public void onError(Exception e) {
+            byte msgType = org.apache.thrift.protocol.TMessageType.REPLY;
+            org.apache.thrift.TBase msg;
+            binarySqlQueryWithParams_result result = new binarySqlQueryWithParams_result();
+            if (e instanceof DNodeException) {
+                        result.excep = (DNodeException) e;
+                        result.setExcepIsSet(true);
+                        msg = result;
+            }
+             else 
+            {
+              msgType = org.apache.thrift.protocol.TMessageType.EXCEPTION;
+              msg = (org.apache.thrift.TBase)new org.apache.thrift.TApplicationException(org.apache.thrift.TApplicationException.INTERNAL_ERROR, e.getMessage());
+            }
+            try {
+              fcall.sendResponse(fb,msg,msgType,seqid);
+              return;
+            } catch (Exception ex) {
+              LOGGER.error("Exception writing to internal frame buffer", ex);
+            }
+            fb.close();
+          }
+        };
+      }
+
+      protected boolean isOneway() {
+        return false;
+      }
+
+      public void start(I iface, binarySqlQueryWithParams_args args, org.apache.thrift.async.AsyncMethodCallback<ByteBuffer> resultHandler) throws TException {
+        iface.binarySqlQueryWithParams(args.tablespace, args.version, args.partition, args.query, args.params,resultHandler);
+      }
+    }
+
     public static class sqlQuery<I extends AsyncIface> extends org.apache.thrift.AsyncProcessFunction<I, sqlQuery_args, String> {
       public sqlQuery() {
         super("sqlQuery");
@@ -2451,6 +2612,1257 @@ public class DNodeService {
 
   }
 
+  public static class binarySqlQueryWithParams_args implements org.apache.thrift.TBase<binarySqlQueryWithParams_args, binarySqlQueryWithParams_args._Fields>, java.io.Serializable, Cloneable, Comparable<binarySqlQueryWithParams_args>   {
+    private static final org.apache.thrift.protocol.TStruct STRUCT_DESC = new org.apache.thrift.protocol.TStruct("binarySqlQueryWithParams_args");
+
+    private static final org.apache.thrift.protocol.TField TABLESPACE_FIELD_DESC = new org.apache.thrift.protocol.TField("tablespace", org.apache.thrift.protocol.TType.STRING, (short)1);
+    private static final org.apache.thrift.protocol.TField VERSION_FIELD_DESC = new org.apache.thrift.protocol.TField("version", org.apache.thrift.protocol.TType.I64, (short)2);
+    private static final org.apache.thrift.protocol.TField PARTITION_FIELD_DESC = new org.apache.thrift.protocol.TField("partition", org.apache.thrift.protocol.TType.I32, (short)3);
+    private static final org.apache.thrift.protocol.TField QUERY_FIELD_DESC = new org.apache.thrift.protocol.TField("query", org.apache.thrift.protocol.TType.STRING, (short)4);
+    private static final org.apache.thrift.protocol.TField PARAMS_FIELD_DESC = new org.apache.thrift.protocol.TField("params", org.apache.thrift.protocol.TType.STRING, (short)5);
+
+    private static final Map<Class<? extends IScheme>, SchemeFactory> schemes = new HashMap<Class<? extends IScheme>, SchemeFactory>();
+    static {
+      schemes.put(StandardScheme.class, new binarySqlQueryWithParams_argsStandardSchemeFactory());
+      schemes.put(TupleScheme.class, new binarySqlQueryWithParams_argsTupleSchemeFactory());
+    }
+
+    public String tablespace; // required
+    public long version; // required
+    public int partition; // required
+    public String query; // required
+    public String params; // required
+
+    /** The set of fields this struct contains, along with convenience methods for finding and manipulating them. */
+    public enum _Fields implements org.apache.thrift.TFieldIdEnum {
+      TABLESPACE((short)1, "tablespace"),
+      VERSION((short)2, "version"),
+      PARTITION((short)3, "partition"),
+      QUERY((short)4, "query"),
+      PARAMS((short)5, "params");
+
+      private static final Map<String, _Fields> byName = new HashMap<String, _Fields>();
+
+      static {
+        for (_Fields field : EnumSet.allOf(_Fields.class)) {
+          byName.put(field.getFieldName(), field);
+        }
+      }
+
+      /**
+       * Find the _Fields constant that matches fieldId, or null if its not found.
+       */
+      public static _Fields findByThriftId(int fieldId) {
+        switch(fieldId) {
+          case 1: // TABLESPACE
+            return TABLESPACE;
+          case 2: // VERSION
+            return VERSION;
+          case 3: // PARTITION
+            return PARTITION;
+          case 4: // QUERY
+            return QUERY;
+          case 5: // PARAMS
+            return PARAMS;
+          default:
+            return null;
+        }
+      }
+
+      /**
+       * Find the _Fields constant that matches fieldId, throwing an exception
+       * if it is not found.
+       */
+      public static _Fields findByThriftIdOrThrow(int fieldId) {
+        _Fields fields = findByThriftId(fieldId);
+        if (fields == null) throw new IllegalArgumentException("Field " + fieldId + " doesn't exist!");
+        return fields;
+      }
+
+      /**
+       * Find the _Fields constant that matches name, or null if its not found.
+       */
+      public static _Fields findByName(String name) {
+        return byName.get(name);
+      }
+
+      private final short _thriftId;
+      private final String _fieldName;
+
+      _Fields(short thriftId, String fieldName) {
+        _thriftId = thriftId;
+        _fieldName = fieldName;
+      }
+
+      public short getThriftFieldId() {
+        return _thriftId;
+      }
+
+      public String getFieldName() {
+        return _fieldName;
+      }
+    }
+
+    // isset id assignments
+    private static final int __VERSION_ISSET_ID = 0;
+    private static final int __PARTITION_ISSET_ID = 1;
+    private byte __isset_bitfield = 0;
+    public static final Map<_Fields, org.apache.thrift.meta_data.FieldMetaData> metaDataMap;
+    static {
+      Map<_Fields, org.apache.thrift.meta_data.FieldMetaData> tmpMap = new EnumMap<_Fields, org.apache.thrift.meta_data.FieldMetaData>(_Fields.class);
+      tmpMap.put(_Fields.TABLESPACE, new org.apache.thrift.meta_data.FieldMetaData("tablespace", org.apache.thrift.TFieldRequirementType.DEFAULT, 
+          new org.apache.thrift.meta_data.FieldValueMetaData(org.apache.thrift.protocol.TType.STRING)));
+      tmpMap.put(_Fields.VERSION, new org.apache.thrift.meta_data.FieldMetaData("version", org.apache.thrift.TFieldRequirementType.DEFAULT, 
+          new org.apache.thrift.meta_data.FieldValueMetaData(org.apache.thrift.protocol.TType.I64)));
+      tmpMap.put(_Fields.PARTITION, new org.apache.thrift.meta_data.FieldMetaData("partition", org.apache.thrift.TFieldRequirementType.DEFAULT, 
+          new org.apache.thrift.meta_data.FieldValueMetaData(org.apache.thrift.protocol.TType.I32)));
+      tmpMap.put(_Fields.QUERY, new org.apache.thrift.meta_data.FieldMetaData("query", org.apache.thrift.TFieldRequirementType.DEFAULT, 
+          new org.apache.thrift.meta_data.FieldValueMetaData(org.apache.thrift.protocol.TType.STRING)));
+      tmpMap.put(_Fields.PARAMS, new org.apache.thrift.meta_data.FieldMetaData("params", org.apache.thrift.TFieldRequirementType.DEFAULT, 
+          new org.apache.thrift.meta_data.FieldValueMetaData(org.apache.thrift.protocol.TType.STRING)));
+      metaDataMap = Collections.unmodifiableMap(tmpMap);
+      org.apache.thrift.meta_data.FieldMetaData.addStructMetaDataMap(binarySqlQueryWithParams_args.class, metaDataMap);
+    }
+
+    public binarySqlQueryWithParams_args() {
+    }
+
+    public binarySqlQueryWithParams_args(
+      String tablespace,
+      long version,
+      int partition,
+      String query,
+      String params)
+    {
+      this();
+      this.tablespace = tablespace;
+      this.version = version;
+      setVersionIsSet(true);
+      this.partition = partition;
+      setPartitionIsSet(true);
+      this.query = query;
+      this.params = params;
+    }
+
+    /**
+     * Performs a deep copy on <i>other</i>.
+     */
+    public binarySqlQueryWithParams_args(binarySqlQueryWithParams_args other) {
+      __isset_bitfield = other.__isset_bitfield;
+      if (other.isSetTablespace()) {
+        this.tablespace = other.tablespace;
+      }
+      this.version = other.version;
+      this.partition = other.partition;
+      if (other.isSetQuery()) {
+        this.query = other.query;
+      }
+      if (other.isSetParams()) {
+        this.params = other.params;
+      }
+    }
+
+    public binarySqlQueryWithParams_args deepCopy() {
+      return new binarySqlQueryWithParams_args(this);
+    }
+
+    @Override
+    public void clear() {
+      this.tablespace = null;
+      setVersionIsSet(false);
+      this.version = 0;
+      setPartitionIsSet(false);
+      this.partition = 0;
+      this.query = null;
+      this.params = null;
+    }
+
+    public String getTablespace() {
+      return this.tablespace;
+    }
+
+    public binarySqlQueryWithParams_args setTablespace(String tablespace) {
+      this.tablespace = tablespace;
+      return this;
+    }
+
+    public void unsetTablespace() {
+      this.tablespace = null;
+    }
+
+    /** Returns true if field tablespace is set (has been assigned a value) and false otherwise */
+    public boolean isSetTablespace() {
+      return this.tablespace != null;
+    }
+
+    public void setTablespaceIsSet(boolean value) {
+      if (!value) {
+        this.tablespace = null;
+      }
+    }
+
+    public long getVersion() {
+      return this.version;
+    }
+
+    public binarySqlQueryWithParams_args setVersion(long version) {
+      this.version = version;
+      setVersionIsSet(true);
+      return this;
+    }
+
+    public void unsetVersion() {
+      __isset_bitfield = EncodingUtils.clearBit(__isset_bitfield, __VERSION_ISSET_ID);
+    }
+
+    /** Returns true if field version is set (has been assigned a value) and false otherwise */
+    public boolean isSetVersion() {
+      return EncodingUtils.testBit(__isset_bitfield, __VERSION_ISSET_ID);
+    }
+
+    public void setVersionIsSet(boolean value) {
+      __isset_bitfield = EncodingUtils.setBit(__isset_bitfield, __VERSION_ISSET_ID, value);
+    }
+
+    public int getPartition() {
+      return this.partition;
+    }
+
+    public binarySqlQueryWithParams_args setPartition(int partition) {
+      this.partition = partition;
+      setPartitionIsSet(true);
+      return this;
+    }
+
+    public void unsetPartition() {
+      __isset_bitfield = EncodingUtils.clearBit(__isset_bitfield, __PARTITION_ISSET_ID);
+    }
+
+    /** Returns true if field partition is set (has been assigned a value) and false otherwise */
+    public boolean isSetPartition() {
+      return EncodingUtils.testBit(__isset_bitfield, __PARTITION_ISSET_ID);
+    }
+
+    public void setPartitionIsSet(boolean value) {
+      __isset_bitfield = EncodingUtils.setBit(__isset_bitfield, __PARTITION_ISSET_ID, value);
+    }
+
+    public String getQuery() {
+      return this.query;
+    }
+
+    public binarySqlQueryWithParams_args setQuery(String query) {
+      this.query = query;
+      return this;
+    }
+
+    public void unsetQuery() {
+      this.query = null;
+    }
+
+    /** Returns true if field query is set (has been assigned a value) and false otherwise */
+    public boolean isSetQuery() {
+      return this.query != null;
+    }
+
+    public void setQueryIsSet(boolean value) {
+      if (!value) {
+        this.query = null;
+      }
+    }
+
+    public String getParams() {
+      return this.params;
+    }
+
+    public binarySqlQueryWithParams_args setParams(String params) {
+      this.params = params;
+      return this;
+    }
+
+    public void unsetParams() {
+      this.params = null;
+    }
+
+    /** Returns true if field params is set (has been assigned a value) and false otherwise */
+    public boolean isSetParams() {
+      return this.params != null;
+    }
+
+    public void setParamsIsSet(boolean value) {
+      if (!value) {
+        this.params = null;
+      }
+    }
+
+    public void setFieldValue(_Fields field, Object value) {
+      switch (field) {
+      case TABLESPACE:
+        if (value == null) {
+          unsetTablespace();
+        } else {
+          setTablespace((String)value);
+        }
+        break;
+
+      case VERSION:
+        if (value == null) {
+          unsetVersion();
+        } else {
+          setVersion((Long)value);
+        }
+        break;
+
+      case PARTITION:
+        if (value == null) {
+          unsetPartition();
+        } else {
+          setPartition((Integer)value);
+        }
+        break;
+
+      case QUERY:
+        if (value == null) {
+          unsetQuery();
+        } else {
+          setQuery((String)value);
+        }
+        break;
+
+      case PARAMS:
+        if (value == null) {
+          unsetParams();
+        } else {
+          setParams((String)value);
+        }
+        break;
+
+      }
+    }
+
+    public Object getFieldValue(_Fields field) {
+      switch (field) {
+      case TABLESPACE:
+        return getTablespace();
+
+      case VERSION:
+        return Long.valueOf(getVersion());
+
+      case PARTITION:
+        return Integer.valueOf(getPartition());
+
+      case QUERY:
+        return getQuery();
+
+      case PARAMS:
+        return getParams();
+
+      }
+      throw new IllegalStateException();
+    }
+
+    /** Returns true if field corresponding to fieldID is set (has been assigned a value) and false otherwise */
+    public boolean isSet(_Fields field) {
+      if (field == null) {
+        throw new IllegalArgumentException();
+      }
+
+      switch (field) {
+      case TABLESPACE:
+        return isSetTablespace();
+      case VERSION:
+        return isSetVersion();
+      case PARTITION:
+        return isSetPartition();
+      case QUERY:
+        return isSetQuery();
+      case PARAMS:
+        return isSetParams();
+      }
+      throw new IllegalStateException();
+    }
+
+    @Override
+    public boolean equals(Object that) {
+      if (that == null)
+        return false;
+      if (that instanceof binarySqlQueryWithParams_args)
+        return this.equals((binarySqlQueryWithParams_args)that);
+      return false;
+    }
+
+    public boolean equals(binarySqlQueryWithParams_args that) {
+      if (that == null)
+        return false;
+
+      boolean this_present_tablespace = true && this.isSetTablespace();
+      boolean that_present_tablespace = true && that.isSetTablespace();
+      if (this_present_tablespace || that_present_tablespace) {
+        if (!(this_present_tablespace && that_present_tablespace))
+          return false;
+        if (!this.tablespace.equals(that.tablespace))
+          return false;
+      }
+
+      boolean this_present_version = true;
+      boolean that_present_version = true;
+      if (this_present_version || that_present_version) {
+        if (!(this_present_version && that_present_version))
+          return false;
+        if (this.version != that.version)
+          return false;
+      }
+
+      boolean this_present_partition = true;
+      boolean that_present_partition = true;
+      if (this_present_partition || that_present_partition) {
+        if (!(this_present_partition && that_present_partition))
+          return false;
+        if (this.partition != that.partition)
+          return false;
+      }
+
+      boolean this_present_query = true && this.isSetQuery();
+      boolean that_present_query = true && that.isSetQuery();
+      if (this_present_query || that_present_query) {
+        if (!(this_present_query && that_present_query))
+          return false;
+        if (!this.query.equals(that.query))
+          return false;
+      }
+
+      boolean this_present_params = true && this.isSetParams();
+      boolean that_present_params = true && that.isSetParams();
+      if (this_present_params || that_present_params) {
+        if (!(this_present_params && that_present_params))
+          return false;
+        if (!this.params.equals(that.params))
+          return false;
+      }
+
+      return true;
+    }
+
+    @Override
+    public int hashCode() {
+      List<Object> list = new ArrayList<Object>();
+
+      boolean present_tablespace = true && (isSetTablespace());
+      list.add(present_tablespace);
+      if (present_tablespace)
+        list.add(tablespace);
+
+      boolean present_version = true;
+      list.add(present_version);
+      if (present_version)
+        list.add(version);
+
+      boolean present_partition = true;
+      list.add(present_partition);
+      if (present_partition)
+        list.add(partition);
+
+      boolean present_query = true && (isSetQuery());
+      list.add(present_query);
+      if (present_query)
+        list.add(query);
+
+      boolean present_params = true && (isSetParams());
+      list.add(present_params);
+      if (present_params)
+        list.add(params);
+
+      return list.hashCode();
+    }
+
+    @Override
+    public int compareTo(binarySqlQueryWithParams_args other) {
+      if (!getClass().equals(other.getClass())) {
+        return getClass().getName().compareTo(other.getClass().getName());
+      }
+
+      int lastComparison = 0;
+
+      lastComparison = Boolean.valueOf(isSetTablespace()).compareTo(other.isSetTablespace());
+      if (lastComparison != 0) {
+        return lastComparison;
+      }
+      if (isSetTablespace()) {
+        lastComparison = org.apache.thrift.TBaseHelper.compareTo(this.tablespace, other.tablespace);
+        if (lastComparison != 0) {
+          return lastComparison;
+        }
+      }
+      lastComparison = Boolean.valueOf(isSetVersion()).compareTo(other.isSetVersion());
+      if (lastComparison != 0) {
+        return lastComparison;
+      }
+      if (isSetVersion()) {
+        lastComparison = org.apache.thrift.TBaseHelper.compareTo(this.version, other.version);
+        if (lastComparison != 0) {
+          return lastComparison;
+        }
+      }
+      lastComparison = Boolean.valueOf(isSetPartition()).compareTo(other.isSetPartition());
+      if (lastComparison != 0) {
+        return lastComparison;
+      }
+      if (isSetPartition()) {
+        lastComparison = org.apache.thrift.TBaseHelper.compareTo(this.partition, other.partition);
+        if (lastComparison != 0) {
+          return lastComparison;
+        }
+      }
+      lastComparison = Boolean.valueOf(isSetQuery()).compareTo(other.isSetQuery());
+      if (lastComparison != 0) {
+        return lastComparison;
+      }
+      if (isSetQuery()) {
+        lastComparison = org.apache.thrift.TBaseHelper.compareTo(this.query, other.query);
+        if (lastComparison != 0) {
+          return lastComparison;
+        }
+      }
+      lastComparison = Boolean.valueOf(isSetParams()).compareTo(other.isSetParams());
+      if (lastComparison != 0) {
+        return lastComparison;
+      }
+      if (isSetParams()) {
+        lastComparison = org.apache.thrift.TBaseHelper.compareTo(this.params, other.params);
+        if (lastComparison != 0) {
+          return lastComparison;
+        }
+      }
+      return 0;
+    }
+
+    public _Fields fieldForId(int fieldId) {
+      return _Fields.findByThriftId(fieldId);
+    }
+
+    public void read(org.apache.thrift.protocol.TProtocol iprot) throws org.apache.thrift.TException {
+      schemes.get(iprot.getScheme()).getScheme().read(iprot, this);
+    }
+
+    public void write(org.apache.thrift.protocol.TProtocol oprot) throws org.apache.thrift.TException {
+      schemes.get(oprot.getScheme()).getScheme().write(oprot, this);
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder("binarySqlQueryWithParams_args(");
+      boolean first = true;
+
+      sb.append("tablespace:");
+      if (this.tablespace == null) {
+        sb.append("null");
+      } else {
+        sb.append(this.tablespace);
+      }
+      first = false;
+      if (!first) sb.append(", ");
+      sb.append("version:");
+      sb.append(this.version);
+      first = false;
+      if (!first) sb.append(", ");
+      sb.append("partition:");
+      sb.append(this.partition);
+      first = false;
+      if (!first) sb.append(", ");
+      sb.append("query:");
+      if (this.query == null) {
+        sb.append("null");
+      } else {
+        sb.append(this.query);
+      }
+      first = false;
+      if (!first) sb.append(", ");
+      sb.append("params:");
+      if (this.params == null) {
+        sb.append("null");
+      } else {
+        sb.append(this.params);
+      }
+      first = false;
+      sb.append(")");
+      return sb.toString();
+    }
+
+    public void validate() throws org.apache.thrift.TException {
+      // check for required fields
+      // check for sub-struct validity
+    }
+
+    private void writeObject(java.io.ObjectOutputStream out) throws java.io.IOException {
+      try {
+        write(new org.apache.thrift.protocol.TCompactProtocol(new org.apache.thrift.transport.TIOStreamTransport(out)));
+      } catch (org.apache.thrift.TException te) {
+        throw new java.io.IOException(te);
+      }
+    }
+
+    private void readObject(java.io.ObjectInputStream in) throws java.io.IOException, ClassNotFoundException {
+      try {
+        // it doesn't seem like you should have to do this, but java serialization is wacky, and doesn't call the default constructor.
+        __isset_bitfield = 0;
+        read(new org.apache.thrift.protocol.TCompactProtocol(new org.apache.thrift.transport.TIOStreamTransport(in)));
+      } catch (org.apache.thrift.TException te) {
+        throw new java.io.IOException(te);
+      }
+    }
+
+    private static class binarySqlQueryWithParams_argsStandardSchemeFactory implements SchemeFactory {
+      public binarySqlQueryWithParams_argsStandardScheme getScheme() {
+        return new binarySqlQueryWithParams_argsStandardScheme();
+      }
+    }
+
+    private static class binarySqlQueryWithParams_argsStandardScheme extends StandardScheme<binarySqlQueryWithParams_args> {
+
+      public void read(org.apache.thrift.protocol.TProtocol iprot, binarySqlQueryWithParams_args struct) throws org.apache.thrift.TException {
+        org.apache.thrift.protocol.TField schemeField;
+        iprot.readStructBegin();
+        while (true)
+        {
+          schemeField = iprot.readFieldBegin();
+          if (schemeField.type == org.apache.thrift.protocol.TType.STOP) { 
+            break;
+          }
+          switch (schemeField.id) {
+            case 1: // TABLESPACE
+              if (schemeField.type == org.apache.thrift.protocol.TType.STRING) {
+                struct.tablespace = iprot.readString();
+                struct.setTablespaceIsSet(true);
+              } else { 
+                org.apache.thrift.protocol.TProtocolUtil.skip(iprot, schemeField.type);
+              }
+              break;
+            case 2: // VERSION
+              if (schemeField.type == org.apache.thrift.protocol.TType.I64) {
+                struct.version = iprot.readI64();
+                struct.setVersionIsSet(true);
+              } else { 
+                org.apache.thrift.protocol.TProtocolUtil.skip(iprot, schemeField.type);
+              }
+              break;
+            case 3: // PARTITION
+              if (schemeField.type == org.apache.thrift.protocol.TType.I32) {
+                struct.partition = iprot.readI32();
+                struct.setPartitionIsSet(true);
+              } else { 
+                org.apache.thrift.protocol.TProtocolUtil.skip(iprot, schemeField.type);
+              }
+              break;
+            case 4: // QUERY
+              if (schemeField.type == org.apache.thrift.protocol.TType.STRING) {
+                struct.query = iprot.readString();
+                struct.setQueryIsSet(true);
+              } else { 
+                org.apache.thrift.protocol.TProtocolUtil.skip(iprot, schemeField.type);
+              }
+              break;
+            case 5: // PARAMS
+              if (schemeField.type == org.apache.thrift.protocol.TType.STRING) {
+                struct.params = iprot.readString();
+                struct.setParamsIsSet(true);
+              } else { 
+                org.apache.thrift.protocol.TProtocolUtil.skip(iprot, schemeField.type);
+              }
+              break;
+            default:
+              org.apache.thrift.protocol.TProtocolUtil.skip(iprot, schemeField.type);
+          }
+          iprot.readFieldEnd();
+        }
+        iprot.readStructEnd();
+
+        // check for required fields of primitive type, which can't be checked in the validate method
+        struct.validate();
+      }
+
+      public void write(org.apache.thrift.protocol.TProtocol oprot, binarySqlQueryWithParams_args struct) throws org.apache.thrift.TException {
+        struct.validate();
+
+        oprot.writeStructBegin(STRUCT_DESC);
+        if (struct.tablespace != null) {
+          oprot.writeFieldBegin(TABLESPACE_FIELD_DESC);
+          oprot.writeString(struct.tablespace);
+          oprot.writeFieldEnd();
+        }
+        oprot.writeFieldBegin(VERSION_FIELD_DESC);
+        oprot.writeI64(struct.version);
+        oprot.writeFieldEnd();
+        oprot.writeFieldBegin(PARTITION_FIELD_DESC);
+        oprot.writeI32(struct.partition);
+        oprot.writeFieldEnd();
+        if (struct.query != null) {
+          oprot.writeFieldBegin(QUERY_FIELD_DESC);
+          oprot.writeString(struct.query);
+          oprot.writeFieldEnd();
+        }
+        if (struct.params != null) {
+          oprot.writeFieldBegin(PARAMS_FIELD_DESC);
+          oprot.writeString(struct.params);
+          oprot.writeFieldEnd();
+        }
+        oprot.writeFieldStop();
+        oprot.writeStructEnd();
+      }
+
+    }
+
+    private static class binarySqlQueryWithParams_argsTupleSchemeFactory implements SchemeFactory {
+      public binarySqlQueryWithParams_argsTupleScheme getScheme() {
+        return new binarySqlQueryWithParams_argsTupleScheme();
+      }
+    }
+
+    private static class binarySqlQueryWithParams_argsTupleScheme extends TupleScheme<binarySqlQueryWithParams_args> {
+
+      @Override
+      public void write(org.apache.thrift.protocol.TProtocol prot, binarySqlQueryWithParams_args struct) throws org.apache.thrift.TException {
+        TTupleProtocol oprot = (TTupleProtocol) prot;
+        BitSet optionals = new BitSet();
+        if (struct.isSetTablespace()) {
+          optionals.set(0);
+        }
+        if (struct.isSetVersion()) {
+          optionals.set(1);
+        }
+        if (struct.isSetPartition()) {
+          optionals.set(2);
+        }
+        if (struct.isSetQuery()) {
+          optionals.set(3);
+        }
+        if (struct.isSetParams()) {
+          optionals.set(4);
+        }
+        oprot.writeBitSet(optionals, 5);
+        if (struct.isSetTablespace()) {
+          oprot.writeString(struct.tablespace);
+        }
+        if (struct.isSetVersion()) {
+          oprot.writeI64(struct.version);
+        }
+        if (struct.isSetPartition()) {
+          oprot.writeI32(struct.partition);
+        }
+        if (struct.isSetQuery()) {
+          oprot.writeString(struct.query);
+        }
+        if (struct.isSetParams()) {
+          oprot.writeString(struct.params);
+        }
+      }
+
+      @Override
+      public void read(org.apache.thrift.protocol.TProtocol prot, binarySqlQueryWithParams_args struct) throws org.apache.thrift.TException {
+        TTupleProtocol iprot = (TTupleProtocol) prot;
+        BitSet incoming = iprot.readBitSet(5);
+        if (incoming.get(0)) {
+          struct.tablespace = iprot.readString();
+          struct.setTablespaceIsSet(true);
+        }
+        if (incoming.get(1)) {
+          struct.version = iprot.readI64();
+          struct.setVersionIsSet(true);
+        }
+        if (incoming.get(2)) {
+          struct.partition = iprot.readI32();
+          struct.setPartitionIsSet(true);
+        }
+        if (incoming.get(3)) {
+          struct.query = iprot.readString();
+          struct.setQueryIsSet(true);
+        }
+        if (incoming.get(4)) {
+          struct.params = iprot.readString();
+          struct.setParamsIsSet(true);
+        }
+      }
+    }
+
+  }
+
+  public static class binarySqlQueryWithParams_result implements org.apache.thrift.TBase<binarySqlQueryWithParams_result, binarySqlQueryWithParams_result._Fields>, java.io.Serializable, Cloneable, Comparable<binarySqlQueryWithParams_result>   {
+    private static final org.apache.thrift.protocol.TStruct STRUCT_DESC = new org.apache.thrift.protocol.TStruct("binarySqlQueryWithParams_result");
+
+    private static final org.apache.thrift.protocol.TField SUCCESS_FIELD_DESC = new org.apache.thrift.protocol.TField("success", org.apache.thrift.protocol.TType.STRING, (short)0);
+    private static final org.apache.thrift.protocol.TField EXCEP_FIELD_DESC = new org.apache.thrift.protocol.TField("excep", org.apache.thrift.protocol.TType.STRUCT, (short)1);
+
+    private static final Map<Class<? extends IScheme>, SchemeFactory> schemes = new HashMap<Class<? extends IScheme>, SchemeFactory>();
+    static {
+      schemes.put(StandardScheme.class, new binarySqlQueryWithParams_resultStandardSchemeFactory());
+      schemes.put(TupleScheme.class, new binarySqlQueryWithParams_resultTupleSchemeFactory());
+    }
+
+    public ByteBuffer success; // required
+    public DNodeException excep; // required
+
+    /** The set of fields this struct contains, along with convenience methods for finding and manipulating them. */
+    public enum _Fields implements org.apache.thrift.TFieldIdEnum {
+      SUCCESS((short)0, "success"),
+      EXCEP((short)1, "excep");
+
+      private static final Map<String, _Fields> byName = new HashMap<String, _Fields>();
+
+      static {
+        for (_Fields field : EnumSet.allOf(_Fields.class)) {
+          byName.put(field.getFieldName(), field);
+        }
+      }
+
+      /**
+       * Find the _Fields constant that matches fieldId, or null if its not found.
+       */
+      public static _Fields findByThriftId(int fieldId) {
+        switch(fieldId) {
+          case 0: // SUCCESS
+            return SUCCESS;
+          case 1: // EXCEP
+            return EXCEP;
+          default:
+            return null;
+        }
+      }
+
+      /**
+       * Find the _Fields constant that matches fieldId, throwing an exception
+       * if it is not found.
+       */
+      public static _Fields findByThriftIdOrThrow(int fieldId) {
+        _Fields fields = findByThriftId(fieldId);
+        if (fields == null) throw new IllegalArgumentException("Field " + fieldId + " doesn't exist!");
+        return fields;
+      }
+
+      /**
+       * Find the _Fields constant that matches name, or null if its not found.
+       */
+      public static _Fields findByName(String name) {
+        return byName.get(name);
+      }
+
+      private final short _thriftId;
+      private final String _fieldName;
+
+      _Fields(short thriftId, String fieldName) {
+        _thriftId = thriftId;
+        _fieldName = fieldName;
+      }
+
+      public short getThriftFieldId() {
+        return _thriftId;
+      }
+
+      public String getFieldName() {
+        return _fieldName;
+      }
+    }
+
+    // isset id assignments
+    public static final Map<_Fields, org.apache.thrift.meta_data.FieldMetaData> metaDataMap;
+    static {
+      Map<_Fields, org.apache.thrift.meta_data.FieldMetaData> tmpMap = new EnumMap<_Fields, org.apache.thrift.meta_data.FieldMetaData>(_Fields.class);
+      tmpMap.put(_Fields.SUCCESS, new org.apache.thrift.meta_data.FieldMetaData("success", org.apache.thrift.TFieldRequirementType.DEFAULT, 
+          new org.apache.thrift.meta_data.FieldValueMetaData(org.apache.thrift.protocol.TType.STRING          , true)));
+      tmpMap.put(_Fields.EXCEP, new org.apache.thrift.meta_data.FieldMetaData("excep", org.apache.thrift.TFieldRequirementType.DEFAULT, 
+          new org.apache.thrift.meta_data.FieldValueMetaData(org.apache.thrift.protocol.TType.STRUCT)));
+      metaDataMap = Collections.unmodifiableMap(tmpMap);
+      org.apache.thrift.meta_data.FieldMetaData.addStructMetaDataMap(binarySqlQueryWithParams_result.class, metaDataMap);
+    }
+
+    public binarySqlQueryWithParams_result() {
+    }
+
+    public binarySqlQueryWithParams_result(
+      ByteBuffer success,
+      DNodeException excep)
+    {
+      this();
+      this.success = org.apache.thrift.TBaseHelper.copyBinary(success);
+      this.excep = excep;
+    }
+
+    /**
+     * Performs a deep copy on <i>other</i>.
+     */
+    public binarySqlQueryWithParams_result(binarySqlQueryWithParams_result other) {
+      if (other.isSetSuccess()) {
+        this.success = org.apache.thrift.TBaseHelper.copyBinary(other.success);
+      }
+      if (other.isSetExcep()) {
+        this.excep = new DNodeException(other.excep);
+      }
+    }
+
+    public binarySqlQueryWithParams_result deepCopy() {
+      return new binarySqlQueryWithParams_result(this);
+    }
+
+    @Override
+    public void clear() {
+      this.success = null;
+      this.excep = null;
+    }
+
+    public byte[] getSuccess() {
+      setSuccess(org.apache.thrift.TBaseHelper.rightSize(success));
+      return success == null ? null : success.array();
+    }
+
+    public ByteBuffer bufferForSuccess() {
+      return org.apache.thrift.TBaseHelper.copyBinary(success);
+    }
+
+    public binarySqlQueryWithParams_result setSuccess(byte[] success) {
+      this.success = success == null ? (ByteBuffer)null : ByteBuffer.wrap(Arrays.copyOf(success, success.length));
+      return this;
+    }
+
+    public binarySqlQueryWithParams_result setSuccess(ByteBuffer success) {
+      this.success = org.apache.thrift.TBaseHelper.copyBinary(success);
+      return this;
+    }
+
+    public void unsetSuccess() {
+      this.success = null;
+    }
+
+    /** Returns true if field success is set (has been assigned a value) and false otherwise */
+    public boolean isSetSuccess() {
+      return this.success != null;
+    }
+
+    public void setSuccessIsSet(boolean value) {
+      if (!value) {
+        this.success = null;
+      }
+    }
+
+    public DNodeException getExcep() {
+      return this.excep;
+    }
+
+    public binarySqlQueryWithParams_result setExcep(DNodeException excep) {
+      this.excep = excep;
+      return this;
+    }
+
+    public void unsetExcep() {
+      this.excep = null;
+    }
+
+    /** Returns true if field excep is set (has been assigned a value) and false otherwise */
+    public boolean isSetExcep() {
+      return this.excep != null;
+    }
+
+    public void setExcepIsSet(boolean value) {
+      if (!value) {
+        this.excep = null;
+      }
+    }
+
+    public void setFieldValue(_Fields field, Object value) {
+      switch (field) {
+      case SUCCESS:
+        if (value == null) {
+          unsetSuccess();
+        } else {
+          setSuccess((ByteBuffer)value);
+        }
+        break;
+
+      case EXCEP:
+        if (value == null) {
+          unsetExcep();
+        } else {
+          setExcep((DNodeException)value);
+        }
+        break;
+
+      }
+    }
+
+    public Object getFieldValue(_Fields field) {
+      switch (field) {
+      case SUCCESS:
+        return getSuccess();
+
+      case EXCEP:
+        return getExcep();
+
+      }
+      throw new IllegalStateException();
+    }
+
+    /** Returns true if field corresponding to fieldID is set (has been assigned a value) and false otherwise */
+    public boolean isSet(_Fields field) {
+      if (field == null) {
+        throw new IllegalArgumentException();
+      }
+
+      switch (field) {
+      case SUCCESS:
+        return isSetSuccess();
+      case EXCEP:
+        return isSetExcep();
+      }
+      throw new IllegalStateException();
+    }
+
+    @Override
+    public boolean equals(Object that) {
+      if (that == null)
+        return false;
+      if (that instanceof binarySqlQueryWithParams_result)
+        return this.equals((binarySqlQueryWithParams_result)that);
+      return false;
+    }
+
+    public boolean equals(binarySqlQueryWithParams_result that) {
+      if (that == null)
+        return false;
+
+      boolean this_present_success = true && this.isSetSuccess();
+      boolean that_present_success = true && that.isSetSuccess();
+      if (this_present_success || that_present_success) {
+        if (!(this_present_success && that_present_success))
+          return false;
+        if (!this.success.equals(that.success))
+          return false;
+      }
+
+      boolean this_present_excep = true && this.isSetExcep();
+      boolean that_present_excep = true && that.isSetExcep();
+      if (this_present_excep || that_present_excep) {
+        if (!(this_present_excep && that_present_excep))
+          return false;
+        if (!this.excep.equals(that.excep))
+          return false;
+      }
+
+      return true;
+    }
+
+    @Override
+    public int hashCode() {
+      List<Object> list = new ArrayList<Object>();
+
+      boolean present_success = true && (isSetSuccess());
+      list.add(present_success);
+      if (present_success)
+        list.add(success);
+
+      boolean present_excep = true && (isSetExcep());
+      list.add(present_excep);
+      if (present_excep)
+        list.add(excep);
+
+      return list.hashCode();
+    }
+
+    @Override
+    public int compareTo(binarySqlQueryWithParams_result other) {
+      if (!getClass().equals(other.getClass())) {
+        return getClass().getName().compareTo(other.getClass().getName());
+      }
+
+      int lastComparison = 0;
+
+      lastComparison = Boolean.valueOf(isSetSuccess()).compareTo(other.isSetSuccess());
+      if (lastComparison != 0) {
+        return lastComparison;
+      }
+      if (isSetSuccess()) {
+        lastComparison = org.apache.thrift.TBaseHelper.compareTo(this.success, other.success);
+        if (lastComparison != 0) {
+          return lastComparison;
+        }
+      }
+      lastComparison = Boolean.valueOf(isSetExcep()).compareTo(other.isSetExcep());
+      if (lastComparison != 0) {
+        return lastComparison;
+      }
+      if (isSetExcep()) {
+        lastComparison = org.apache.thrift.TBaseHelper.compareTo(this.excep, other.excep);
+        if (lastComparison != 0) {
+          return lastComparison;
+        }
+      }
+      return 0;
+    }
+
+    public _Fields fieldForId(int fieldId) {
+      return _Fields.findByThriftId(fieldId);
+    }
+
+    public void read(org.apache.thrift.protocol.TProtocol iprot) throws org.apache.thrift.TException {
+      schemes.get(iprot.getScheme()).getScheme().read(iprot, this);
+    }
+
+    public void write(org.apache.thrift.protocol.TProtocol oprot) throws org.apache.thrift.TException {
+      schemes.get(oprot.getScheme()).getScheme().write(oprot, this);
+      }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder("binarySqlQueryWithParams_result(");
+      boolean first = true;
+
+      sb.append("success:");
+      if (this.success == null) {
+        sb.append("null");
+      } else {
+        org.apache.thrift.TBaseHelper.toString(this.success, sb);
+      }
+      first = false;
+      if (!first) sb.append(", ");
+      sb.append("excep:");
+      if (this.excep == null) {
+        sb.append("null");
+      } else {
+        sb.append(this.excep);
+      }
+      first = false;
+      sb.append(")");
+      return sb.toString();
+    }
+
+    public void validate() throws org.apache.thrift.TException {
+      // check for required fields
+      // check for sub-struct validity
+    }
+
+    private void writeObject(java.io.ObjectOutputStream out) throws java.io.IOException {
+      try {
+        write(new org.apache.thrift.protocol.TCompactProtocol(new org.apache.thrift.transport.TIOStreamTransport(out)));
+      } catch (org.apache.thrift.TException te) {
+        throw new java.io.IOException(te);
+      }
+    }
+
+    private void readObject(java.io.ObjectInputStream in) throws java.io.IOException, ClassNotFoundException {
+      try {
+        read(new org.apache.thrift.protocol.TCompactProtocol(new org.apache.thrift.transport.TIOStreamTransport(in)));
+      } catch (org.apache.thrift.TException te) {
+        throw new java.io.IOException(te);
+      }
+    }
+
+    private static class binarySqlQueryWithParams_resultStandardSchemeFactory implements SchemeFactory {
+      public binarySqlQueryWithParams_resultStandardScheme getScheme() {
+        return new binarySqlQueryWithParams_resultStandardScheme();
+      }
+    }
+
+    private static class binarySqlQueryWithParams_resultStandardScheme extends StandardScheme<binarySqlQueryWithParams_result> {
+
+      public void read(org.apache.thrift.protocol.TProtocol iprot, binarySqlQueryWithParams_result struct) throws org.apache.thrift.TException {
+        org.apache.thrift.protocol.TField schemeField;
+        iprot.readStructBegin();
+        while (true)
+        {
+          schemeField = iprot.readFieldBegin();
+          if (schemeField.type == org.apache.thrift.protocol.TType.STOP) { 
+            break;
+          }
+          switch (schemeField.id) {
+            case 0: // SUCCESS
+              if (schemeField.type == org.apache.thrift.protocol.TType.STRING) {
+                struct.success = iprot.readBinary();
+                struct.setSuccessIsSet(true);
+              } else { 
+                org.apache.thrift.protocol.TProtocolUtil.skip(iprot, schemeField.type);
+              }
+              break;
+            case 1: // EXCEP
+              if (schemeField.type == org.apache.thrift.protocol.TType.STRUCT) {
+                struct.excep = new DNodeException();
+                struct.excep.read(iprot);
+                struct.setExcepIsSet(true);
+              } else { 
+                org.apache.thrift.protocol.TProtocolUtil.skip(iprot, schemeField.type);
+              }
+              break;
+            default:
+              org.apache.thrift.protocol.TProtocolUtil.skip(iprot, schemeField.type);
+          }
+          iprot.readFieldEnd();
+        }
+        iprot.readStructEnd();
+
+        // check for required fields of primitive type, which can't be checked in the validate method
+        struct.validate();
+      }
+
+      public void write(org.apache.thrift.protocol.TProtocol oprot, binarySqlQueryWithParams_result struct) throws org.apache.thrift.TException {
+        struct.validate();
+
+        oprot.writeStructBegin(STRUCT_DESC);
+        if (struct.success != null) {
+          oprot.writeFieldBegin(SUCCESS_FIELD_DESC);
+          oprot.writeBinary(struct.success);
+          oprot.writeFieldEnd();
+        }
+        if (struct.excep != null) {
+          oprot.writeFieldBegin(EXCEP_FIELD_DESC);
+          struct.excep.write(oprot);
+          oprot.writeFieldEnd();
+        }
+        oprot.writeFieldStop();
+        oprot.writeStructEnd();
+      }
+
+    }
+
+    private static class binarySqlQueryWithParams_resultTupleSchemeFactory implements SchemeFactory {
+      public binarySqlQueryWithParams_resultTupleScheme getScheme() {
+        return new binarySqlQueryWithParams_resultTupleScheme();
+      }
+    }
+
+    private static class binarySqlQueryWithParams_resultTupleScheme extends TupleScheme<binarySqlQueryWithParams_result> {
+
+      @Override
+      public void write(org.apache.thrift.protocol.TProtocol prot, binarySqlQueryWithParams_result struct) throws org.apache.thrift.TException {
+        TTupleProtocol oprot = (TTupleProtocol) prot;
+        BitSet optionals = new BitSet();
+        if (struct.isSetSuccess()) {
+          optionals.set(0);
+        }
+        if (struct.isSetExcep()) {
+          optionals.set(1);
+        }
+        oprot.writeBitSet(optionals, 2);
+        if (struct.isSetSuccess()) {
+          oprot.writeBinary(struct.success);
+        }
+        if (struct.isSetExcep()) {
+          struct.excep.write(oprot);
+        }
+      }
+
+      @Override
+      public void read(org.apache.thrift.protocol.TProtocol prot, binarySqlQueryWithParams_result struct) throws org.apache.thrift.TException {
+        TTupleProtocol iprot = (TTupleProtocol) prot;
+        BitSet incoming = iprot.readBitSet(2);
+        if (incoming.get(0)) {
+          struct.success = iprot.readBinary();
+          struct.setSuccessIsSet(true);
+        }
+        if (incoming.get(1)) {
+          struct.excep = new DNodeException();
+          struct.excep.read(iprot);
+          struct.setExcepIsSet(true);
+        }
+      }
+    }
+
+  }
+
   public static class sqlQuery_args implements org.apache.thrift.TBase<sqlQuery_args, sqlQuery_args._Fields>, java.io.Serializable, Cloneable, Comparable<sqlQuery_args>   {
     private static final org.apache.thrift.protocol.TStruct STRUCT_DESC = new org.apache.thrift.protocol.TStruct("sqlQuery_args");
 
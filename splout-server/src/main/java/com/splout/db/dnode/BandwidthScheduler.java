@@ -0,0 +1,145 @@
+package com.splout.db.dnode;
+
+/*
+ * #%L
+ * Splout SQL Server
+ * %%
+ * Copyright (C) 2012 Datasalt Systems S.L.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.splout.db.common.SploutConfiguration;
+import com.yammer.metrics.stats.UniformSample;
+
+/**
+ * Token bucket shared by all the transfers of a DNode (the {@link Fetcher} and the {@link HttpFileExchanger}), so that
+ * together they don't exceed {@link FetcherProperties#BYTES_PER_SEC_THROTTLE}, no matter how many of them run in
+ * parallel. Tokens are refilled at the current rate, up to one second of it.
+ * <p/>
+ * If {@link FetcherProperties#THROTTLE_LATENCY_THRESHOLD} is set, the rate adapts to the queries served by the DNode
+ * (see {@link #queryServed(long)}): every second, it is halved if their 99th percentile is over the threshold, and
+ * raised by a tenth of the configured rate, up to it, otherwise. This way transfers give way to queries when they hurt
+ * them.
+ */
+public class BandwidthScheduler {
+
+  private final static Log log = LogFactory.getLog(BandwidthScheduler.class);
+
+  private final double maxBytesPerSec;
+  private final double minBytesPerSec;
+  private final long latencyThreshold;
+  private volatile double bytesPerSec;
+
+  private double tokens = 0;
+  private long lastRefill = System.nanoTime();
+
+  // Latencies of the queries served since the last adjustment
+  private final UniformSample latencies = new UniformSample(1028);
+  private ScheduledExecutorService adjuster;
+
+  public BandwidthScheduler(SploutConfiguration config) {
+    this(config.getInt(FetcherProperties.BYTES_PER_SEC_THROTTLE), config.getLong(
+        FetcherProperties.THROTTLE_MIN_BYTES_PER_SEC, 1024 * 1024), config.getLong(
+        FetcherProperties.THROTTLE_LATENCY_THRESHOLD, -1));
+  }
+
+  /**
+   * @param maxBytesPerSec   The rate, no throttling if < 1.
+   * @param minBytesPerSec   The lowest the rate can be lowered to when adapting to queries.
+   * @param latencyThreshold Millis for the 99th percentile of the queries above which the rate is lowered, no
+   *                         adaptation if <= 0.
+   */
+  public BandwidthScheduler(double maxBytesPerSec, double minBytesPerSec, long latencyThreshold) {
+    this.maxBytesPerSec = maxBytesPerSec;
+    this.minBytesPerSec = Math.min(minBytesPerSec, maxBytesPerSec);
+    this.latencyThreshold = latencyThreshold;
+    this.bytesPerSec = maxBytesPerSec;
+    if (maxBytesPerSec >= 1 && latencyThreshold > 0) {
+      adjuster = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+          .setNameFormat("bandwidth-scheduler").setDaemon(true).build());
+      adjuster.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          adjust();
+        }
+      }, 1, 1, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Waits until the given bytes can be transferred.
+   */
+  public void acquire(int bytes) throws InterruptedException {
+    if (maxBytesPerSec < 1) { // no throttle at all
+      return;
+    }
+    long waitNanos;
+    synchronized (this) {
+      long now = System.nanoTime();
+      double rate = bytesPerSec;
+      tokens = Math.min(rate, tokens + (now - lastRefill) * rate / 1e9);
+      lastRefill = now;
+      // Tokens may be owed: those who come next wait for them to be paid first
+      tokens -= bytes;
+      waitNanos = (tokens < 0) ? (long) (-tokens * 1e9 / rate) : 0;
+    }
+    if (waitNanos > 0) {
+      TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+  }
+
+  /**
+   * To be called for each query served by the DNode, with the millis it took.
+   */
+  public void queryServed(long millis) {
+    if (adjuster != null) {
+      latencies.update(millis);
+    }
+  }
+
+  void adjust() {
+    double p99 = latencies.getSnapshot().get99thPercentile();
+    latencies.clear();
+    double rate = bytesPerSec;
+    if (p99 > latencyThreshold) {
+      rate = Math.max(minBytesPerSec, rate / 2);
+    } else {
+      rate = Math.min(maxBytesPerSec, rate + maxBytesPerSec / 10);
+    }
+    if (rate != bytesPerSec) {
+      log.info("Queries 99th percentile: " + p99 + " ms. Transfers throttled at: " + (long) rate + " bytes per sec.");
+      bytesPerSec = rate;
+    }
+  }
+
+  public double getBytesPerSec() {
+    return bytesPerSec;
+  }
+
+  public void close() {
+    if (adjuster != null) {
+      adjuster.shutdownNow();
+    }
+  }
+}
@@ -32,12 +32,24 @@ import org.apache.commons.logging.LogFactory;
 /**
  * An EHCache event listener that calls a finalization method in the value of the Cache which is a {@link EngineManager}
  * . We use an expiring cache in {@link DNode} for closing SQL connection pools that have not been used for some time.
- * We want to close the pool when the item expires and that's what this class does.
+ * We want to close the pool when the item expires and that's what this class does. Cached query results of the
+ * partition, if any, are dropped too.
  */
 public class CacheListener implements CacheEventListener, Cloneable {
 
   private final static Log log = LogFactory.getLog(CacheListener.class);
 
+  // Cached results of the managers, null if there is no result cache
+  private final DNodeResultCache resultCache;
+
+  public CacheListener() {
+    this(null);
+  }
+
+  public CacheListener(DNodeResultCache resultCache) {
+    this.resultCache = resultCache;
+  }
+
   /*
    * Here is where we close the connection pool
    */
@@ -45,6 +57,9 @@ public class CacheListener implements CacheEventListener, Cloneable {
     log.info("Close manager: " + paramElement);
     EngineManager manager = (EngineManager) paramElement.getObjectValue();
     manager.close();
+    if (resultCache != null) {
+      resultCache.invalidate((String) paramElement.getObjectKey());
+    }
   }
 
   @Override
@@ -180,6 +180,12 @@ public class DNode implements DNodeService.Iface {
   public ByteBuffer binarySqlQuery(String tablespace, long version, int partition, String query) throws DNodeException, TException {
     return handler.binarySqlQuery(tablespace, version, partition, query);
   }
+
+  @Override
+  public ByteBuffer binarySqlQueryWithParams(String tablespace, long version, int partition, String query, String params)
+      throws DNodeException, TException {
+    return handler.binarySqlQueryWithParams(tablespace, version, partition, query, params);
+  }
   
   public void stop() throws Exception {
     if (streamer != null) {
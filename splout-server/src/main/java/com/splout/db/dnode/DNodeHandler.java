@@ -37,6 +37,7 @@ import com.splout.db.dnode.beans.DNodeSystemStatus;
 import com.splout.db.engine.EngineManager;
 import com.splout.db.engine.ManagerFactory;
 import com.splout.db.engine.ResultSerializer;
+import com.splout.db.engine.SQLite4JavaManager;
 import com.splout.db.hazelcast.*;
 import com.splout.db.hazelcast.HazelcastConfigBuilder.HazelcastConfigBuilderException;
 import com.splout.db.qnode.ReplicaBalancer;
@@ -77,15 +78,27 @@ public class DNodeHandler implements IDNodeHandler {
   private DistributedRegistry dnodesRegistry;
   private CoordinationStructures coord;
   private HttpFileExchanger httpExchanger;
+  // Throttles the transfers of the DNode: deploys and replica balancing
+  private BandwidthScheduler bandwidth;
 
   // The {@link Fetcher} is the responsible for downloading new deployment data.
   Cache dbCache;
+  // Serialized binarySqlQuery responses per partition, null if disabled
+  DNodeResultCache resultCache;
+  // Managers being loaded into dbCache, so that concurrent requests for the same partition wait for a single load
+  private final ConcurrentMap<String, FutureTask<Element>> managersBeingLoaded = new ConcurrentHashMap<String, FutureTask<Element>>();
 
   protected ExecutorService deployExecutor;
   protected Object deployLock = new Object();
 
   // This flag is needed for unit testing.
   protected AtomicInteger deployInProgress = new AtomicInteger(0);
+  // Whether partitions are fetched from the source only once per deploy, see DNodeProperties.DEPLOY_SWARM
+  private boolean swarm;
+  // How often a replica checks whether the partition it waits for is ready, in swarm deploys
+  private final static long SWARM_POLL_MILLIS = 1000;
+  // Picks which DNode to get a partition from, in swarm deploys
+  private final Random swarmRandom = new Random();
   // Indicates that the last deploy failed because of timeout. This info can
   // then be answered via a status() request.
   AtomicBoolean lastDeployTimedout = new AtomicBoolean(false);
@@ -335,6 +348,7 @@ public class DNodeHandler implements IDNodeHandler {
     int maxCachePools = config.getInt(DNodeProperties.EH_CACHE_N_ELEMENTS);
     absoluteSlowQueryLimit = config.getLong(DNodeProperties.SLOW_QUERY_ABSOLUTE_LIMIT);
     deployParallelism = config.getInt(DNodeProperties.DEPLOY_PARALLELISM);
+    swarm = config.getBoolean(DNodeProperties.DEPLOY_SWARM, false);
     factory = new ManagerFactory();
     factory.init(config);
     // We create a Cache for holding SQL connection pools to different
@@ -342,17 +356,23 @@ public class DNodeHandler implements IDNodeHandler {
     // http://stackoverflow.com/questions/2583429/how-to-differentiate-between-time-to-live-and-time-to-idle-in-ehcache
     dbCache = new Cache("dbCache", maxCachePools, false, false, Integer.MAX_VALUE, evictionSeconds);
     dbCache.initialise();
+    // All the transfers of the DNode share its bandwidth
+    bandwidth = new BandwidthScheduler(config);
     if (fetcher == null) {
       // The Fetcher in charge of downloading new deployments
-      this.fetcher = new Fetcher(config);
+      this.fetcher = new Fetcher(config, bandwidth);
+    }
+    long resultCacheBytes = config.getLong(DNodeProperties.RESULT_CACHE_MB, 0) * 1024 * 1024;
+    if (resultCacheBytes > 0) {
+      resultCache = new DNodeResultCache(resultCacheBytes);
     }
     // When a tablespace version is expired, the connection pool is closed by an
-    // expiration handler
-    dbCache.getCacheEventNotificationService().registerListener(new CacheListener());
+    // expiration handler, which also drops its cached results
+    dbCache.getCacheEventNotificationService().registerListener(new CacheListener(resultCache));
     // The executor that will execute deployments asynchronously
     deployExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("deploy-%d").build());
     // A thread that will listen to file exchanges through HTTP
-    httpExchanger = new HttpFileExchanger(config, new FileReceiverCallback());
+    httpExchanger = new HttpFileExchanger(config, new FileReceiverCallback(), bandwidth);
     httpExchanger.init();
     httpExchanger.start();
     // Connect with the cluster.
@@ -403,11 +423,14 @@ public class DNodeHandler implements IDNodeHandler {
             // remove references to engine in ECache
             // so that space in disk is immediately available
             String dbKey = version.getTablespace() + "_" + version.getVersion() + "_" + partition.getName();
-            synchronized (dbCache) {
-              if (dbCache.get(dbKey) != null) {
-                dbCache.remove(dbKey);
-                log.info("-- Removing references from ECache: " + dbKey);
-              }
+            // Don't let an ongoing load put the manager back after removing it
+            waitForManagerLoad(dbKey);
+            if (dbCache.get(dbKey) != null) {
+              dbCache.remove(dbKey);
+              log.info("-- Removing references from ECache: " + dbKey);
+            }
+            if (resultCache != null) {
+              resultCache.invalidate(dbKey);
             }
           }
         }
@@ -428,7 +451,7 @@ public class DNodeHandler implements IDNodeHandler {
       throws DNodeException {
     try {
       // Create new EHCache item value with a {@link EngineManager}
-      EngineManager manager = factory.getManagerIn(dbFolder, partitionMetadata);
+      EngineManager manager = factory.getManagerIn(tablespace, dbFolder, partitionMetadata);
       String dbKey = tablespace + "_" + version + "_" + partition;
       Element dbPoolInCache = new Element(dbKey, manager);
       dbCache.put(dbPoolInCache);
@@ -440,14 +463,24 @@ public class DNodeHandler implements IDNodeHandler {
     }
   }
 
-  public EngineManager getManager(String tablespace, long version, int partition) throws DNodeException, IOException {
+  /**
+   * Returns the manager of a partition, loading it into the dbCache if needed. Lookups don't take any lock. Loads are
+   * single-flight per partition: concurrent requests for the same partition wait for the one loading it, and requests
+   * for other partitions are not blocked by it.
+   */
+  public EngineManager getManager(final String tablespace, final long version, final int partition) throws DNodeException,
+      IOException {
     // Look for the EHCache database pool cache
     String dbKey = tablespace + "_" + version + "_" + partition;
 
-    Element dbPoolInCache = null;
-    synchronized (dbCache) {
-      dbPoolInCache = dbCache.get(dbKey);
-      if (dbPoolInCache == null) {
+    Element dbPoolInCache = dbCache.get(dbKey);
+    if (dbPoolInCache != null) {
+      return ((EngineManager) dbPoolInCache.getObjectValue());
+    }
+
+    FutureTask<Element> load = new FutureTask<Element>(new Callable<Element>() {
+      @Override
+      public Element call() throws Exception {
         File dbFolder = getLocalStorageFolder(tablespace, partition, version);
         if (!dbFolder.exists()) {
           log.warn("Asked for " + dbFolder + " but it doesn't exist!");
@@ -458,35 +491,119 @@ public class DNodeHandler implements IDNodeHandler {
         ThriftReader reader = new ThriftReader(metadata);
         PartitionMetadata partitionMetadata = (PartitionMetadata) reader.read(new PartitionMetadata());
         reader.close();
-        dbPoolInCache = loadManagerInEHCache(tablespace, version, partition, dbFolder, partitionMetadata);
+        return loadManagerInEHCache(tablespace, version, partition, dbFolder, partitionMetadata);
       }
+    });
+    FutureTask<Element> ongoingLoad = managersBeingLoaded.putIfAbsent(dbKey, load);
+    if (ongoingLoad == null) {
+      try {
+        // Someone may have finished loading it between our lookup and putIfAbsent()
+        dbPoolInCache = dbCache.get(dbKey);
+        if (dbPoolInCache != null) {
+          return ((EngineManager) dbPoolInCache.getObjectValue());
+        }
+        load.run();
+      } finally {
+        managersBeingLoaded.remove(dbKey, load);
+      }
+      ongoingLoad = load;
+    }
+    try {
+      dbPoolInCache = ongoingLoad.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new DNodeException(EXCEPTION_UNEXPECTED, "Interrupted while waiting for the manager of " + dbKey);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof DNodeException) {
+        throw (DNodeException) cause;
+      } else if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
     }
-
     return ((EngineManager) dbPoolInCache.getObjectValue());
   }
 
+  /**
+   * Waits until the manager of the given partition is not being loaded anymore.
+   */
+  private void waitForManagerLoad(String dbKey) {
+    FutureTask<Element> ongoingLoad = managersBeingLoaded.get(dbKey);
+    if (ongoingLoad != null) {
+      try {
+        ongoingLoad.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+        // The load failed: nothing to remove
+      }
+    }
+  }
+
   /**
    * Called by both binary and JSON version RPC methods.
    */
-  private Object sqlQueryHelperMethod(String tablespace, long version, int partition, boolean binary, String query) throws DNodeException {
+  private Object sqlQueryHelperMethod(String tablespace, long version, int partition, boolean binary, String query,
+      String params) throws DNodeException {
     String msg = "query served tablespace[" + tablespace + "]" + " version[" + version + "] partition[" + partition + "] sql[" + query
-        + "]";
+        + "]" + (params != null ? " params[" + params + "]" : "");
     String status = "ERROR";
     String errMsg = "";
 
     performanceTool.startQuery();
     try {
+      Object[] paramValues = null;
+      if (params != null) {
+        try {
+          paramValues = JSONSerDe.deSer(params, ArrayList.class).toArray();
+        } catch (JSONSerDeException e) {
+          throw new DNodeException(EXCEPTION_ORDINARY, "Query params must be a JSON array: " + e.getMessage());
+        }
+      }
       try {
 
+        // The same query with other params is another result
+        String cacheKey = (params != null) ? query + "\u0000" + params : query;
+
+        String dbKey = tablespace + "_" + version + "_" + partition;
+        if (binary && resultCache != null) {
+          ByteBuffer cached = resultCache.get(dbKey, cacheKey);
+          // The lookup in dbCache keeps the manager of a hot partition (and so its cached results) from idle-expiring.
+          // Results of partitions without a manager anymore are stale: deleted, or about to be invalidated.
+          if (cached != null && dbCache.get(dbKey) != null) {
+            status = "OK";
+            return cached;
+          }
+        }
+
         EngineManager manager = getManager(tablespace, version, partition);
 
         Object result = null;
 
         // Query the {@link SQLite4JavaManager} and return
         if (binary) {
-          result = ResultSerializer.serialize(manager.query(query, maxResultsPerQuery));
+          ByteBuffer binaryResult;
+          if (manager instanceof SQLite4JavaManager) {
+            // Encode rows straight from SQLite, without an intermediate QueryResult
+            binaryResult = ((SQLite4JavaManager) manager).queryBinary(query, paramValues, maxResultsPerQuery);
+          } else {
+            binaryResult = ResultSerializer.serialize(manager.query(query, paramValues, maxResultsPerQuery));
+          }
+          if (resultCache != null) {
+            resultCache.put(dbKey, cacheKey, binaryResult);
+            // The manager may have been removed (and the partition's results invalidated) while querying it: the
+            // result must not outlive it. If it is removed after this check, its removal invalidates the result.
+            Element current = dbCache.get(dbKey);
+            if (current == null || current.getObjectValue() != manager) {
+              resultCache.invalidate(dbKey);
+            }
+          }
+          result = binaryResult;
         } else {
-          result = manager.query(query, maxResultsPerQuery).jsonize();
+          result = manager.query(query, paramValues, maxResultsPerQuery).jsonize();
         }
 
         status = "OK";
@@ -503,6 +620,7 @@ public class DNodeHandler implements IDNodeHandler {
       throw e;
     } finally {
       long time = performanceTool.endQuery();
+      bandwidth.queryServed(time);
       msg += " time[" + time + "] status[" + status + "]";
       if ("ERROR".equals(status)) {
         msg += " errorMessage[" + errMsg + "]";
@@ -523,7 +641,7 @@ public class DNodeHandler implements IDNodeHandler {
    */
   @Override
   public String sqlQuery(String tablespace, long version, int partition, String query) throws DNodeException {
-    return (String) sqlQueryHelperMethod(tablespace, version, partition, false, query);
+    return (String) sqlQueryHelperMethod(tablespace, version, partition, false, query, null);
   }
 
   /**
@@ -532,7 +650,17 @@ public class DNodeHandler implements IDNodeHandler {
    */
   @Override
   public ByteBuffer binarySqlQuery(String tablespace, long version, int partition, String query) throws DNodeException {
-    return (ByteBuffer) sqlQueryHelperMethod(tablespace, version, partition, true, query);
+    return (ByteBuffer) sqlQueryHelperMethod(tablespace, version, partition, true, query, null);
+  }
+
+  /**
+   * Thrift RPC method -> Like {@link #binarySqlQuery(String, long, int, String)} for a parameterized query. The params
+   * are a JSON array with the values to bind to the placeholders of the query, in order.
+   */
+  @Override
+  public ByteBuffer binarySqlQueryWithParams(String tablespace, long version, int partition, String query, String params)
+      throws DNodeException {
+    return (ByteBuffer) sqlQueryHelperMethod(tablespace, version, partition, true, query, params);
   }
 
   private void markDeployAsAborted(long version, String errorMessage) {
@@ -724,6 +852,7 @@ public class DNodeHandler implements IDNodeHandler {
     deployExecutor.shutdownNow();
     factory.close();
     httpExchanger.close();
+    bandwidth.close();
     hz.getLifecycleService().shutdown();
   }
 
@@ -990,39 +1119,124 @@ public class DNodeHandler implements IDNodeHandler {
       DNodeException, InterruptedException {
 
     log.info("Running deployAction[" + action + "] for version[" + version + "].");
-    // 1- Call the fetcher for fetching
-    File fetchedContent = fetcher.fetch(action.getDataURI(), reporter);
-    // If we reach this point then the fetch has been OK
-    // 2- Create the local folder were to move the fetched data
-    File dbFolder = getLocalStorageFolder(action.getTablespace(), action.getPartition(), version);
-    if (dbFolder.exists()) { // If the new folder where we want to deploy
-      // already exists means it is
-      // somehow
-      // stalled from a previous failed deploy - it is ok to delete it
-      FileUtils.deleteDirectory(dbFolder);
-    }
-    // 3- Perform a "mv" for finally making the data available
-    FileUtils.moveDirectory(fetchedContent, dbFolder);
-
-    // 4- Check if interrupted. In this case, we remove the folder before returning
-    if (Thread.interrupted()) {
-      try {
+    boolean deployed = false;
+    try {
+      // 1- Call the fetcher for fetching
+      File fetchedContent = swarm ? swarmFetch(reporter, action, version) : fetcher.fetch(action.getDataURI(), reporter);
+      // If we reach this point then the fetch has been OK
+      // 2- Create the local folder were to move the fetched data
+      File dbFolder = getLocalStorageFolder(action.getTablespace(), action.getPartition(), version);
+      if (dbFolder.exists()) { // If the new folder where we want to deploy
+        // already exists means it is
+        // somehow
+        // stalled from a previous failed deploy - it is ok to delete it
         FileUtils.deleteDirectory(dbFolder);
-      } catch (IOException e) {
-        log.warn("Not possible to remove " + dbFolder + " when trying to cancel de deployment.");
       }
-      throw new InterruptedException();
-    }
+      // 3- Perform a "mv" for finally making the data available
+      FileUtils.moveDirectory(fetchedContent, dbFolder);
 
-    // 5- Store metadata about the partition
-    writePartitionMetadata(action, version);
+      // 4- Check if interrupted. In this case, we remove the folder before returning
+      if (Thread.interrupted()) {
+        try {
+          FileUtils.deleteDirectory(dbFolder);
+        } catch (IOException e) {
+          log.warn("Not possible to remove " + dbFolder + " when trying to cancel de deployment.");
+        }
+        throw new InterruptedException();
+      }
+
+      // 5- Store metadata about the partition
+      writePartitionMetadata(action, version);
+
+      // 6- Preemptively load the Manager in case initialization is slow
+      // Managers might warm up for a while (e.g. loading data into memory)
+      loadManagerInEHCache(action.getTablespace(), action.getVersion(), action.getPartition(), dbFolder, action.getMetadata());
+      deployed = true;
 
-    // 6- Preemptively load the Manager in case initialization is slow
-    // Managers might warm up for a while (e.g. loading data into memory)
-    loadManagerInEHCache(action.getTablespace(), action.getVersion(), action.getPartition(), dbFolder, action.getMetadata());
+      if (swarm) {
+        // 7- Let the replicas that are still waiting get it from here too
+        coord.getDeploySwarmHolders(version).put(
+            CoordinationStructures.swarmKey(action.getTablespace(), action.getPartition()), httpExchanger.address());
+      }
+    } finally {
+      if (swarm && !deployed) {
+        // Hand the partition over to the replicas that wait for it
+        coord.getDeploySwarmPanel(version).remove(
+            CoordinationStructures.swarmKey(action.getTablespace(), action.getPartition()), httpExchanger.address());
+      }
+    }
     log.info("Finished deployAction[" + action + "] for version[" + version + "].");
   }
 
+  /**
+   * Fetches a partition in a swarm deploy. Replicas get it from any DNode that has it deployed already, picked at random
+   * so that they spread over all of them. While there is none, the first DNode to claim the partition fetches it from
+   * the deploy source and the rest wait for it. Falls back to the source if that DNode leaves the cluster or no DNode
+   * that has the partition can send it.
+   */
+  private File swarmFetch(Fetcher.Reporter reporter, DeployAction action, long version) throws IOException,
+      URISyntaxException, InterruptedException {
+    IMap<String, String> seeds = coord.getDeploySwarmPanel(version);
+    MultiMap<String, String> holders = coord.getDeploySwarmHolders(version);
+    String key = CoordinationStructures.swarmKey(action.getTablespace(), action.getPartition());
+    String me = httpExchanger.address();
+    File dest = new File(config.getString(FetcherProperties.TEMP_DIR), "swarm-" + UUID.randomUUID());
+    Set<String> failed = new HashSet<String>();
+    for (; ; ) {
+      List<String> candidates = new ArrayList<String>();
+      for (String holder : holders.get(key)) {
+        if (!holder.equals(me) && !failed.contains(holder) && isHttpExchangerAlive(holder)) {
+          candidates.add(holder);
+        }
+      }
+      if (!candidates.isEmpty()) {
+        String holder = candidates.get(swarmRandom.nextInt(candidates.size()));
+        boolean fetched = false;
+        try {
+          fetched = httpExchanger.fetchPartition(holder, action.getTablespace(), action.getPartition(), version, dest,
+              reporter);
+        } catch (IOException e) {
+          log.warn("Could not get [" + key + "] version[" + version + "] from " + holder + ".", e);
+        } finally {
+          if (!fetched) {
+            FileUtils.deleteQuietly(dest);
+          }
+        }
+        if (fetched) {
+          log.info("Got [" + key + "] version[" + version + "] from " + holder);
+          return dest;
+        }
+        failed.add(holder);
+        continue;
+      }
+      if (!failed.isEmpty()) {
+        log.warn("No DNode could send [" + key + "] version[" + version + "]. Fetching it from source.");
+        break;
+      }
+      String seed = seeds.putIfAbsent(key, me);
+      if (seed == null || seed.equals(me)) {
+        log.info("Fetching [" + key + "] version[" + version + "] from source for all its replicas.");
+        break;
+      }
+      if (!isHttpExchangerAlive(seed)) {
+        // Left without having deployed it: somebody else has to claim it
+        seeds.remove(key, seed);
+        continue;
+      }
+      Thread.sleep(SWARM_POLL_MILLIS);
+    }
+    return fetcher.fetch(action.getDataURI(), reporter);
+  }
+
+  private boolean isHttpExchangerAlive(String address) {
+    for (DNodeInfo dnode : coord.getDNodes().values()) {
+      if (address.equals(dnode.getHttpExchangerAddress())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   private void writePartitionMetadata(DeployAction action, long version) throws IOException {
     File metadataFile = getLocalMetadataFile(action.getTablespace(), action.getPartition(), version);
     if (!metadataFile.getParentFile().exists()) {
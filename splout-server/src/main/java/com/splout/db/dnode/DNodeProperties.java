@@ -60,6 +60,11 @@ public class DNodeProperties {
    * The amount of parallel downloads that are allowed per each deployment
    */
   public final static String DEPLOY_PARALLELISM = "dnode.deploy.parallelism";
+  /**
+   * Whether replicas of a partition get it from the DNodes that have already deployed it instead of from the deploy
+   * source, so that the source is read about once per partition. Must be the same for all DNodes.
+   */
+  public final static String DEPLOY_SWARM = "dnode.deploy.swarm";
   /**
    * A hard limit on the number of results per each SQL query that this DNode may send back to QNodes.
    */
@@ -91,4 +96,53 @@ public class DNodeProperties {
    * Enable to avoid opening a port for TCP streaming
    */
   public final static String STREAMING_API_DISABLE = "dnode.disable.streaming.api";
-}
\ No newline at end of file
+  /**
+   * The maximum number of streams that the TCP streaming API serves at the same time. Further requests wait in a
+   * queue.
+   */
+  public final static String STREAMING_THREADS = "dnode.streaming.threads";
+  /**
+   * The maximum number of streaming requests waiting to be served. Connections beyond this are told that the DNode is
+   * busy and closed right away.
+   */
+  public final static String STREAMING_QUEUE_SIZE = "dnode.streaming.queue.size";
+  /**
+   * The size in KB of each of the buffers where rows are batched before being written to the socket.
+   */
+  public final static String STREAMING_BUFFER_KB = "dnode.streaming.buffer.kb";
+  /**
+   * The size in MB of the off-heap cache of binary query responses of this DNode, shared by all partitions. 0 disables
+   * it.
+   */
+  public final static String RESULT_CACHE_MB = "dnode.result.cache.mb";
+  /**
+   * The maximum number of prepared statements kept for reuse by each connection to a partition, for SQLite and MySQL
+   * partitions alike. 0 disables it.
+   */
+  public final static String STATEMENT_CACHE_SIZE = "dnode.statement.cache.size";
+  /**
+   * The maximum number of SQLite connections open to each partition, which is the maximum number of queries that can
+   * be executed in parallel on it. Streams can take all of them but one, which is left for queries.
+   */
+  public final static String CONNECTIONS_PER_PARTITION = "dnode.connections.per.partition";
+  /**
+   * The maximum number of SQLite connections open in the DNode, for all partitions. Each connection has its own page
+   * cache, so this bounds the memory used by SQLite too.
+   */
+  public final static String MAX_CONNECTIONS = "dnode.max.connections";
+  /**
+   * The memory in MB for the SQLite page caches of this DNode, shared by all connections: each one gets this divided by
+   * {@link #MAX_CONNECTIONS}. Can be overridden per tablespace by appending ".&lt;tablespace&gt;" to the property name.
+   */
+  public final static String SQLITE_PAGE_CACHE_MB = "dnode.sqlite.page.cache.mb";
+  /**
+   * The number of MB of each partition file that SQLite reads through memory-mapped I/O instead of read() calls. 0
+   * disables it. Can be overridden per tablespace by appending ".&lt;tablespace&gt;" to the property name.
+   */
+  public final static String SQLITE_MMAP_MB = "dnode.sqlite.mmap.mb";
+  /**
+   * Whether partitions are opened read-only (they are never modified once deployed). Can be overridden per tablespace
+   * by appending ".&lt;tablespace&gt;" to the property name.
+   */
+  public final static String SQLITE_QUERY_ONLY = "dnode.sqlite.query.only";
+}
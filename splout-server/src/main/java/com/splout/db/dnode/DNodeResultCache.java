@@ -0,0 +1,137 @@
+package com.splout.db.dnode;
+
+/*
+ * #%L
+ * Splout SQL Server
+ * %%
+ * Copyright (C) 2012 Datasalt Systems S.L.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.nio.ByteBuffer;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+
+/**
+ * A cache of serialized binarySqlQuery responses, keyed by the partition (the same key used for the managers in the
+ * DNode's dbCache: tablespace_version_partition) and the SQL. The serialized results are kept off-heap in direct
+ * buffers, bounded by a global byte budget for all the partitions, and least recently used entries are evicted
+ * first. The entries of a partition must be dropped with {@link #invalidate(String)} when its manager is closed or its
+ * files deleted.
+ */
+public class DNodeResultCache {
+
+  static class Key {
+
+    final String dbKey;
+    final String sql;
+
+    Key(String dbKey, String sql) {
+      this.dbKey = dbKey;
+      this.sql = sql;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * dbKey.hashCode() + sql.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) obj;
+      return dbKey.equals(key.dbKey) && sql.equals(key.sql);
+    }
+  }
+
+  private final Cache<Key, ByteBuffer> cache;
+  private final long maxEntryBytes;
+
+  public DNodeResultCache(long maxBytes) {
+    // A single result can't take more than 1/16th of the budget
+    this.maxEntryBytes = maxBytes / 16;
+    this.cache = CacheBuilder.newBuilder().maximumWeight(maxBytes).weigher(new Weigher<Key, ByteBuffer>() {
+      @Override
+      public int weigh(Key key, ByteBuffer value) {
+        return value.capacity() + key.sql.length() * 2;
+      }
+    }).recordStats().build();
+
+    Metrics.newGauge(DNodeResultCache.class, "result-cache-hit-ratio", new Gauge<Double>() {
+      @Override
+      public Double value() {
+        return cache.stats().hitRate();
+      }
+    });
+    Metrics.newGauge(DNodeResultCache.class, "result-cache-evictions", new Gauge<Long>() {
+      @Override
+      public Long value() {
+        return cache.stats().evictionCount();
+      }
+    });
+    Metrics.newGauge(DNodeResultCache.class, "result-cache-entries", new Gauge<Long>() {
+      @Override
+      public Long value() {
+        return cache.size();
+      }
+    });
+  }
+
+  /**
+   * Returns a heap copy of the cached response (Thrift can only write heap buffers), or null if not cached.
+   */
+  public ByteBuffer get(String dbKey, String sql) {
+    ByteBuffer cached = cache.getIfPresent(new Key(dbKey, sql));
+    if (cached == null) {
+      return null;
+    }
+    byte[] result = new byte[cached.capacity()];
+    // duplicate() so that concurrent readers don't share the position
+    cached.duplicate().get(result);
+    return ByteBuffer.wrap(result);
+  }
+
+  public void put(String dbKey, String sql, ByteBuffer result) {
+    if (result.remaining() > maxEntryBytes) {
+      return;
+    }
+    ByteBuffer offHeap = ByteBuffer.allocateDirect(result.remaining());
+    offHeap.put(result.duplicate());
+    offHeap.flip();
+    cache.put(new Key(dbKey, sql), offHeap);
+  }
+
+  /**
+   * Drops all the cached responses of a partition.
+   */
+  public void invalidate(String dbKey) {
+    for (Key key : cache.asMap().keySet()) {
+      if (key.dbKey.equals(dbKey)) {
+        cache.invalidate(key);
+      }
+    }
+  }
+
+  public long size() {
+    return cache.size();
+  }
+}
@@ -0,0 +1,136 @@
+package com.splout.db.dnode;
+
+/*
+ * #%L
+ * Splout SQL Server
+ * %%
+ * Copyright (C) 2012 Datasalt Systems S.L.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent record of the chunks of a fetch that are already in the local files, so that a fetch that didn't finish
+ * (e.g. because the DNode died) can be resumed. It is a text file to which a line is appended, and synced, as each
+ * chunk is written, with the checksum of the bytes read from the source. It starts with one line per source file
+ * (path, length and modification time): if the sources changed, the manifest is discarded.
+ */
+class FetchManifest {
+
+  private final File file;
+  private final Map<String, Long> chunks = new HashMap<String, Long>();
+  private FileOutputStream out;
+  private Writer writer;
+
+  FetchManifest(File file) {
+    this.file = file;
+  }
+
+  /**
+   * Opens the manifest for the given sources, keeping the chunks it has if they are for the same sources. Returns
+   * whether it was kept: if not, the local files of the previous fetch have to be discarded too.
+   */
+  boolean open(List<String> sources) throws IOException {
+    boolean kept = false;
+    if (file.exists()) {
+      List<String> previousSources = new ArrayList<String>();
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          String[] fields = line.split("\t");
+          if (fields[0].equals("source")) {
+            previousSources.add(line.substring("source\t".length()));
+          } else if (fields[0].equals("chunk") && fields.length == 5) {
+            try {
+              chunks.put(key(Integer.parseInt(fields[1]), Long.parseLong(fields[2]), Long.parseLong(fields[3])),
+                  Long.parseLong(fields[4]));
+            } catch (NumberFormatException e) {
+              // The last line may be incomplete if the DNode died while writing it
+            }
+          }
+        }
+      } finally {
+        reader.close();
+      }
+      kept = previousSources.equals(sources);
+    }
+    if (!kept) {
+      chunks.clear();
+    }
+    out = new FileOutputStream(file, kept);
+    writer = new OutputStreamWriter(out, "UTF-8");
+    if (!kept) {
+      for (String source : sources) {
+        writer.write("source\t" + source + "\n");
+      }
+      sync();
+    }
+    return kept;
+  }
+
+  private static String key(int source, long from, long to) {
+    return source + ":" + from + ":" + to;
+  }
+
+  /**
+   * The checksum of the given chunk of the given source, or null if the chunk was not fetched.
+   */
+  synchronized Long getChecksum(int source, long from, long to) {
+    return chunks.get(key(source, from, to));
+  }
+
+  /**
+   * Records a chunk whose bytes are already safe in the local file.
+   */
+  synchronized void chunkDone(int source, long from, long to, long checksum) throws IOException {
+    chunks.put(key(source, from, to), checksum);
+    writer.write("chunk\t" + source + "\t" + from + "\t" + to + "\t" + checksum + "\n");
+    sync();
+  }
+
+  private void sync() throws IOException {
+    writer.flush();
+    out.getFD().sync();
+  }
+
+  synchronized void close() throws IOException {
+    if (writer != null) {
+      writer.close();
+      writer = null;
+    }
+  }
+
+  /**
+   * Closes and removes the manifest, once the fetch is done or abandoned.
+   */
+  void delete() throws IOException {
+    close();
+    file.delete();
+  }
+}
@@ -21,6 +21,8 @@ package com.splout.db.dnode;
  * #L%
  */
 
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.splout.db.common.SploutConfiguration;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.logging.Log;
@@ -38,9 +40,22 @@ import org.jets3t.service.security.AWSCredentials;
 import java.io.*;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
 
 /**
  * This Fetcher is used by {@link DNodeHandler} to fetch data to deploy. It handles: file, HDFS and S3 URIs. For the S3
@@ -58,33 +73,70 @@ public class Fetcher {
   private String accessKey;
   private String secretKey;
   private int downloadBufferSize;
-  private int bytesPerSecThrottle;
+  // Shared with the other transfers of the DNode
+  private BandwidthScheduler bandwidth;
   private long bytesToReportProgress;
+  private int hdfsStreams;
+  private long hdfsRangeSize;
+  private boolean resumable;
+
+  // Names of the folders and manifests of resumable fetches
+  private final static String RESUMABLE_PREFIX = "resumable-";
+  private final static String MANIFEST_SUFFIX = ".manifest";
 
   private Configuration hadoopConf;
 
   public final static int SIZE_UNKNOWN = -1;
 
   public Fetcher(SploutConfiguration config) {
+    this(config, new BandwidthScheduler(config));
+  }
+
+  public Fetcher(SploutConfiguration config, BandwidthScheduler bandwidth) {
+    this.bandwidth = bandwidth;
     tempDir = new File(config.getString(FetcherProperties.TEMP_DIR));
     accessKey = config.getString(FetcherProperties.S3_ACCESS_KEY, null);
     secretKey = config.getString(FetcherProperties.S3_SECRET_KEY, null);
     downloadBufferSize = config.getInt(FetcherProperties.DOWNLOAD_BUFFER);
-    bytesPerSecThrottle = config.getInt(FetcherProperties.BYTES_PER_SEC_THROTTLE);
     bytesToReportProgress = config.getLong(FetcherProperties.BYTES_TO_REPORT_PROGRESS);
+    hdfsStreams = config.getInt(FetcherProperties.HDFS_STREAMS, 4);
+    hdfsRangeSize = config.getLong(FetcherProperties.HDFS_RANGE_SIZE, 64 * 1024 * 1024);
+    resumable = config.getBoolean(FetcherProperties.RESUMABLE, false);
     String fsName = config.getString(FetcherProperties.HADOOP_FS_NAME);
     hadoopConf = new Configuration();
     if (fsName != null) {
       hadoopConf.set("fs.default.name", fsName);
     }
     log.info("Created " + Fetcher.class + " with tempDir = " + tempDir);
-    if (bytesPerSecThrottle > 0) {
-      log.info("Throttling at: " + bytesPerSecThrottle + " bytes per sec.");
+    if (resumable) {
+      removeExpiredFetches(config.getLong(FetcherProperties.RESUMABLE_EXPIRY_HOURS, 168) * 60 * 60 * 1000);
+    }
+    if (bandwidth.getBytesPerSec() >= 1) {
+      log.info("Throttling at: " + (long) bandwidth.getBytesPerSec() + " bytes per sec.");
     } else {
       log.warn("No throttling. Fetched data will be transferred at full speed. This may affect query servicing.");
     }
   }
 
+  /**
+   * Removes what is left of resumable fetches that were not tried again for the given time.
+   */
+  private void removeExpiredFetches(long expiryMillis) {
+    File[] manifests = tempDir.listFiles();
+    if (manifests == null) {
+      return;
+    }
+    for (File manifest : manifests) {
+      String name = manifest.getName();
+      if (name.startsWith(RESUMABLE_PREFIX) && name.endsWith(MANIFEST_SUFFIX)
+          && System.currentTimeMillis() - manifest.lastModified() > expiryMillis) {
+        log.info("Removing expired resumable fetch " + manifest);
+        cleanDirNoExceptions(new File(tempDir, name.substring(0, name.length() - MANIFEST_SUFFIX.length())));
+        manifest.delete();
+      }
+    }
+  }
+
   private AWSCredentials getCredentials() {
     AWSCredentials credentials = new AWSCredentials(accessKey, secretKey);
     return credentials;
@@ -92,63 +144,204 @@ public class Fetcher {
 
   /*
    * Fetch a file that is in a Hadoop file system. Return a local File.
+   * The files that match the path are split in ranges of hdfsRangeSize bytes, which are fetched in parallel with
+   * positional reads, by hdfsStreams threads, and written at their offset in the local file. Progress is reported by
+   * the calling thread.
+   * If resumable, the fetch goes to a folder that only depends on the path, and the ranges that are fetched are
+   * recorded in a {@link FetchManifest}. A fetch of the same path that finds them (e.g. after the DNode died) only
+   * fetches the ranges that are missing or whose local bytes don't match the checksum of the source bytes.
    * Interruptible.
    */
-  private File hdfsFetch(Path fromPath, Reporter reporter) throws IOException, InterruptedException {
-    UUID uniqueId = UUID.randomUUID();
-    File toFile = new File(tempDir, uniqueId.toString() + "/" + fromPath.getName());
+  File hdfsFetch(Path fromPath, Reporter reporter) throws IOException, InterruptedException {
+    String fetchId = resumable ? RESUMABLE_PREFIX + Hashing.md5().hashBytes(fromPath.toString().getBytes("UTF-8"))
+        : UUID.randomUUID().toString();
+    File toFile = new File(tempDir, fetchId + "/" + fromPath.getName());
     File toDir = new File(toFile.getParent());
-    if (toDir.exists()) {
+
+    final FileSystem fS = fromPath.getFileSystem(hadoopConf);
+    FileStatus[] fStatuses = fS.globStatus(fromPath);
+    if (fStatuses == null) {
+      fStatuses = new FileStatus[0];
+    }
+
+    FetchManifest fetchManifest = null;
+    if (resumable) {
+      List<String> sources = new ArrayList<String>();
+      for (FileStatus fStatus : fStatuses) {
+        sources.add(fStatus.getPath() + "\t" + fStatus.getLen() + "\t" + fStatus.getModificationTime());
+      }
+      tempDir.mkdirs();
+      fetchManifest = new FetchManifest(new File(tempDir, fetchId + MANIFEST_SUFFIX));
+      if (fetchManifest.open(sources)) {
+        log.info("Resuming fetch of " + fromPath + " in " + toDir);
+      } else if (toDir.exists()) {
+        FileUtils.deleteDirectory(toDir);
+      }
+    } else if (toDir.exists()) {
       FileUtils.deleteDirectory(toDir);
     }
     toDir.mkdirs();
-    Path toPath = new Path(toFile.getCanonicalPath());
+    final FetchManifest manifest = fetchManifest;
 
-    FileSystem fS = fromPath.getFileSystem(hadoopConf);
-    FileSystem tofS = FileSystem.getLocal(hadoopConf);
-
-    Throttler throttler = new Throttler((double) bytesPerSecThrottle);
+    final AtomicLong bytesSoFar = new AtomicLong(0);
+    List<RandomAccessFile> toFiles = new ArrayList<RandomAccessFile>();
+    List<Callable<Void>> ranges = new ArrayList<Callable<Void>>();
+    ExecutorService executor = null;
+    boolean done = false;
+    // Whether what was fetched can be used by a later fetch
+    boolean keep = false;
     try {
-      for (FileStatus fStatus : fS.globStatus(fromPath)) {
-        log.info("Copying " + fStatus.getPath() + " to " + toPath);
-        long bytesSoFar = 0;
-
-        FSDataInputStream iS = fS.open(fStatus.getPath());
-        FSDataOutputStream oS = tofS.create(toPath);
-
-        byte[] buffer = new byte[downloadBufferSize];
+      for (int i = 0; i < fStatuses.length; i++) {
+        final int source = i;
+        final FileStatus fStatus = fStatuses[i];
+        // A single file keeps the name of the fetched path, as it always did
+        File file = (fStatuses.length == 1) ? toFile : new File(toDir, fStatus.getPath().getName());
+        log.info("Copying " + fStatus.getPath() + " to " + file);
+        RandomAccessFile toRaf = new RandomAccessFile(file, "rw");
+        toFiles.add(toRaf);
+        toRaf.setLength(fStatus.getLen());
+        final FileChannel channel = toRaf.getChannel();
+        long rangeSize = Math.max(1, hdfsRangeSize);
+        for (long offset = 0; offset < fStatus.getLen() || offset == 0; offset += rangeSize) {
+          final long from = offset;
+          final long to = Math.min(fStatus.getLen(), offset + rangeSize);
+          ranges.add(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+              Long checksum = (manifest != null) ? manifest.getChecksum(source, from, to) : null;
+              if (checksum != null && checksum == localChecksum(channel, from, to)) {
+                // Fetched before
+                bytesSoFar.addAndGet(to - from);
+                return null;
+              }
+              checksum = fetchRange(fS, fStatus.getPath(), from, to, channel, bytesSoFar);
+              if (manifest != null) {
+                // The bytes have to be on disk before the manifest says they are
+                channel.force(false);
+                manifest.chunkDone(source, from, to, checksum);
+              }
+              return null;
+            }
+          });
+        }
+      }
 
-        int nRead;
-        while ((nRead = iS.read(buffer, 0, buffer.length)) != -1) {
-          // Needed to being able to be interrupted at any moment.
-          if (Thread.interrupted()) {
-            iS.close();
-            oS.close();
-            cleanDirNoExceptions(toDir);
-            throw new InterruptedException();
-          }
-          bytesSoFar += nRead;
-          oS.write(buffer, 0, nRead);
-          throttler.incrementAndThrottle(nRead);
-          if (bytesSoFar >= bytesToReportProgress) {
-            reporter.progress(bytesSoFar);
-            bytesSoFar = 0l;
+      executor = Executors.newFixedThreadPool(Math.max(1, Math.min(hdfsStreams, ranges.size())),
+          new ThreadFactoryBuilder().setNameFormat("fetcher-" + fetchId + "-%d").setDaemon(true).build());
+      CompletionService<Void> completion = new ExecutorCompletionService<Void>(executor);
+      for (Callable<Void> range : ranges) {
+        completion.submit(range);
+      }
+      long reported = 0;
+      for (int pending = ranges.size(); pending > 0; ) {
+        // Needed to being able to be interrupted at any moment.
+        if (Thread.interrupted()) {
+          throw new InterruptedException();
+        }
+        Future<Void> finished = completion.poll(100, TimeUnit.MILLISECONDS);
+        if (finished != null) {
+          pending--;
+          try {
+            finished.get();
+          } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof InterruptedException || cause instanceof ClosedByInterruptException) {
+              throw new InterruptedIOException();
+            }
+            // Unlike when cancelled, another try can use what was fetched
+            keep = resumable;
+            if (cause instanceof IOException) {
+              throw (IOException) cause;
+            }
+            throw new IOException(cause);
           }
         }
+        long fetched = bytesSoFar.get();
+        if (reporter != null && fetched - reported >= bytesToReportProgress) {
+          reporter.progress(fetched - reported);
+          reported = fetched;
+        }
+      }
 
-        if (reporter != null) {
-          reporter.progress(bytesSoFar);
+      if (reporter != null) {
+        reporter.progress(bytesSoFar.get() - reported);
+      }
+      done = true;
+      return toDir;
+    } finally {
+      if (executor != null) {
+        executor.shutdownNow();
+        // Don't leave the directory until nobody writes to it
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      }
+      for (RandomAccessFile toRaf : toFiles) {
+        toRaf.close();
+      }
+      if (manifest != null) {
+        if (keep) {
+          manifest.close();
+        } else {
+          manifest.delete();
         }
+      }
+      if (!done && !keep) {
+        cleanDirNoExceptions(toDir);
+      }
+    }
+  }
 
-        oS.close();
-        iS.close();
+  /**
+   * CRC32 of the bytes [from, to) of a local file.
+   */
+  private long localChecksum(FileChannel channel, long from, long to) throws IOException {
+    CRC32 crc = new CRC32();
+    ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(1, Math.min(downloadBufferSize, to - from)));
+    long position = from;
+    while (position < to) {
+      buffer.clear();
+      buffer.limit((int) Math.min(buffer.capacity(), to - position));
+      int nRead = channel.read(buffer, position);
+      if (nRead == -1) {
+        break;
       }
+      crc.update(buffer.array(), 0, nRead);
+      position += nRead;
+    }
+    return crc.getValue();
+  }
 
-      return toDir;
-    } catch (ClosedByInterruptException e) {
-      // This can be thrown by the method read.
-      cleanDirNoExceptions(toDir);
-      throw new InterruptedIOException();
+  /**
+   * Copies the bytes [from, to) of the HDFS file to the same position of the local file. Returns the CRC32 of the
+   * bytes read.
+   */
+  private long fetchRange(FileSystem fS, Path path, long from, long to, FileChannel channel, AtomicLong bytesSoFar) throws IOException, InterruptedException {
+    FSDataInputStream iS = fS.open(path);
+    CRC32 crc = new CRC32();
+    try {
+      byte[] buffer = new byte[(int) Math.max(1, Math.min(downloadBufferSize, to - from))];
+      long position = from;
+      while (position < to) {
+        // Needed to being able to be interrupted at any moment.
+        if (Thread.interrupted()) {
+          throw new InterruptedException();
+        }
+        int nRead = iS.read(position, buffer, 0, (int) Math.min(buffer.length, to - position));
+        if (nRead == -1) {
+          throw new EOFException(path + " is shorter than expected: " + position + " < " + to);
+        }
+        crc.update(buffer, 0, nRead);
+        ByteBuffer toWrite = ByteBuffer.wrap(buffer, 0, nRead);
+        long writeAt = position;
+        while (toWrite.hasRemaining()) {
+          writeAt += channel.write(toWrite, writeAt);
+        }
+        position += nRead;
+        bytesSoFar.addAndGet(nRead);
+        bandwidth.acquire(nRead);
+      }
+      return crc.getValue();
+    } finally {
+      iS.close();
     }
   }
 
@@ -175,7 +368,10 @@ public class Fetcher {
 
   /**
    * Implements basic throttling capabilities.
+   *
+   * @deprecated Only throttles a single copy. Fetches are throttled by the {@link BandwidthScheduler} of the DNode.
    */
+  @Deprecated
   public static class Throttler {
 
     double bytesPerSec;
@@ -225,8 +421,6 @@ public class Fetcher {
     }
     destFolder.mkdirs();
 
-    Throttler throttler = new Throttler((double) bytesPerSecThrottle);
-
     boolean done = false;
     try {
       s3Service = new RestS3Service(getCredentials());
@@ -269,7 +463,7 @@ public class Fetcher {
 
           bytesSoFar += nRead;
           writer.write(buffer, 0, nRead);
-          throttler.incrementAndThrottle(nRead);
+          bandwidth.acquire(nRead);
           if (bytesSoFar >= bytesToReportProgress) {
             reporter.progress(bytesSoFar);
             bytesSoFar = 0l;
@@ -325,8 +519,6 @@ public class Fetcher {
     FileChannel source = null;
     FileChannel destination = null;
 
-    Throttler throttler = new Throttler((double) bytesPerSecThrottle);
-
     FileInputStream iS = null;
     FileOutputStream oS = null;
 
@@ -352,7 +544,7 @@ public class Fetcher {
         transferred = (int) destination.transferFrom(source, bytesSoFar, downloadBufferSize);
         bytesSoFar += transferred;
         reportingBytesSoFar += transferred;
-        throttler.incrementAndThrottle(transferred);
+        bandwidth.acquire(transferred);
         if (reportingBytesSoFar >= bytesToReportProgress) {
           reporter.progress(reportingBytesSoFar);
           reportingBytesSoFar = 0l;
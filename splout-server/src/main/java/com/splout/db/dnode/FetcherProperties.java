@@ -47,7 +47,8 @@ public class FetcherProperties {
    */
   public final static String HADOOP_FS_NAME = "fetcher.hadoop.fs.name";
   /**
-   * The number of bytes per sec to limit downloading for not impacting database servicing
+   * The number of bytes per sec to limit downloading for not impacting database servicing. It is the limit for all the
+   * transfers of a DNode together (see {@link com.splout.db.dnode.BandwidthScheduler}).
    */
   public final static String BYTES_PER_SEC_THROTTLE = "fetcher.bytes.per.sec.throttle";
   /**
@@ -57,4 +58,31 @@ public class FetcherProperties {
    * Leave default value in case of doubt.
    */
   public final static String BYTES_TO_REPORT_PROGRESS = "fetcher.bytes.to.report.progress";
+  /**
+   * The number of parallel streams used to fetch from HDFS. Files are split in ranges that are fetched in parallel,
+   * and so are the files of a glob.
+   */
+  public final static String HDFS_STREAMS = "fetcher.hdfs.streams";
+  /**
+   * The size in bytes of the ranges in which files fetched from HDFS are split
+   */
+  public final static String HDFS_RANGE_SIZE = "fetcher.hdfs.range.size";
+  /**
+   * Whether fetches from HDFS can be resumed: if a fetch doesn't finish (e.g. because the DNode died), fetching the
+   * same path again only fetches the ranges that were not fetched, see {@link com.splout.db.dnode.FetchManifest}.
+   */
+  public final static String RESUMABLE = "fetcher.resumable";
+  /**
+   * Hours after which what is left of a resumable fetch that was not tried again is removed
+   */
+  public final static String RESUMABLE_EXPIRY_HOURS = "fetcher.resumable.expiry.hours";
+  /**
+   * If > 0, the 99th percentile of the query times in millis above which the DNode lowers the throttling rate, see
+   * {@link com.splout.db.dnode.BandwidthScheduler}. Only if {@link #BYTES_PER_SEC_THROTTLE} is set.
+   */
+  public final static String THROTTLE_LATENCY_THRESHOLD = "fetcher.throttle.latency.threshold";
+  /**
+   * The lowest bytes per sec the throttling rate can be lowered to because of slow queries
+   */
+  public final static String THROTTLE_MIN_BYTES_PER_SEC = "fetcher.throttle.min.bytes.per.sec";
 }
@@ -39,25 +39,32 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.zip.CRC32;
 import java.util.zip.Checksum;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 /**
- * A simple class that allows for fast (GZip), chunked transport of binary files between nodes through HTTP. This class
- * is both a server and a client: use its Runnable method for creating a server that can receive files or use the
+ * A simple class that allows for fast (compressed), chunked transport of binary files between nodes through HTTP. This
+ * class is both a server and a client: use its Runnable method for creating a server that can receive files or use the
  * {@link #send(File, String)} method for sending a file to another peer.
  * <p/>
- * For safety, every transfer checks whether the checksum (CRC32) matches the expected one or not.
+ * The compression codec and the checksum are told to the receiving peer with the "codec" and "checksum" headers, see
+ * {@link TransferCodecs}. Peers that don't send them use gzip and CRC32.
+ * <p/>
+ * For safety, every transfer checks whether the checksum matches the expected one or not.
  * <p/>
  * This class should have the same semantics as {@link Fetcher} so it should save files to the same temp folder, etc. It
  * can be configured by {@link SploutConfiguration}.
+ * <p/>
+ * GET requests are answered with a whole partition deployed in this node, so that peers deploying the same partition
+ * can get it from here instead of from the deploy source (see
+ * {@link #fetchPartition(String, String, int, long, File, Fetcher.Reporter)}).
  */
 public class HttpFileExchanger extends Thread implements HttpHandler {
 
   private final static Log log = LogFactory.getLog(HttpFileExchanger.class);
 
+  // For asking a peer which codec and checksum to send it files with. Peers older than that never answer.
+  private final static int NEGOTIATION_TIMEOUT = 5000;
+
   private File tempDir;
   private SploutConfiguration config;
 
@@ -76,9 +83,28 @@ public class HttpFileExchanger extends Thread implements HttpHandler {
   private Map<String, Object> currentTransfers = new HashMap<String, Object>();
   private Object currentTransfersMonitor = new Object();
 
+  // Throttles transfers together with the other ones of the DNode
+  private BandwidthScheduler bandwidth;
+  private boolean ownBandwidth = false;
+  // Compression codecs and checksums known by this peer
+  private TransferCodecs codecs;
+
   public HttpFileExchanger(SploutConfiguration config, ReceiveFileCallback callback) {
+    this(config, callback, null);
+  }
+
+  /**
+   * @param bandwidth Shared with the other transfers of the DNode, or null for throttling by its own.
+   */
+  public HttpFileExchanger(SploutConfiguration config, ReceiveFileCallback callback, BandwidthScheduler bandwidth) {
     this.config = config;
     this.callback = callback;
+    if (bandwidth == null) {
+      bandwidth = new BandwidthScheduler(config);
+      ownBandwidth = true;
+    }
+    this.bandwidth = bandwidth;
+    this.codecs = new TransferCodecs(config);
   }
 
   public interface ReceiveFileCallback {
@@ -151,10 +177,20 @@ public class HttpFileExchanger extends Thread implements HttpHandler {
       clientExecutors.shutdown();
       log.warn("HTTP File exchanger STOPPED.");
     }
+    if (ownBandwidth) {
+      bandwidth.close();
+    }
   }
 
   @Override
   public void handle(HttpExchange exchange) throws IOException {
+    if ("GET".equals(exchange.getRequestMethod())) {
+      servePartition(exchange);
+      return;
+    } else if ("OPTIONS".equals(exchange.getRequestMethod())) {
+      answerNegotiation(exchange);
+      return;
+    }
     DataInputStream iS = null;
     FileOutputStream writer = null;
     File dest = null;
@@ -162,13 +198,27 @@ public class HttpFileExchanger extends Thread implements HttpHandler {
     String tablespace = null;
     Integer partition = null;
     Long version = null;
+    int responseCode = HttpURLConnection.HTTP_INTERNAL_ERROR;
 
     try {
-      iS = new DataInputStream(new GZIPInputStream(exchange.getRequestBody()));
       String fileName = exchange.getRequestHeaders().getFirst("filename");
       tablespace = exchange.getRequestHeaders().getFirst("tablespace");
       partition = Integer.valueOf(exchange.getRequestHeaders().getFirst("partition"));
       version = Long.valueOf(exchange.getRequestHeaders().getFirst("version"));
+      String codecName = exchange.getRequestHeaders().getFirst("codec");
+      TransferCodec codec = codecs.get(codecName);
+      if (codec == null) {
+        responseCode = HttpURLConnection.HTTP_UNSUPPORTED_TYPE;
+        throw new IOException("Unknown codec: " + codecName);
+      }
+      Checksum checkSum;
+      try {
+        checkSum = TransferCodecs.newChecksum(exchange.getRequestHeaders().getFirst("checksum"));
+      } catch (IOException e) {
+        responseCode = HttpURLConnection.HTTP_UNSUPPORTED_TYPE;
+        throw e;
+      }
+      iS = new DataInputStream(codec.decompress(exchange.getRequestBody()));
 
       dest = new File(new File(tempDir, DNodeHandler.getLocalStoragePartitionRelativePath(tablespace,
           partition, version)), fileName);
@@ -192,8 +242,6 @@ public class HttpFileExchanger extends Thread implements HttpHandler {
       writer = new FileOutputStream(dest);
       byte[] buffer = new byte[config.getInt(FetcherProperties.DOWNLOAD_BUFFER)];
 
-      Checksum checkSum = new CRC32();
-
       // 1- Read file size
       long fileSize = iS.readLong();
       log.debug("Going to read file [" + fileName + "] of size: " + fileSize);
@@ -204,6 +252,11 @@ public class HttpFileExchanger extends Thread implements HttpHandler {
         long missingBytes = fileSize - readSoFar;
         int bytesToRead = (int) Math.min(missingBytes, buffer.length);
         int read = iS.read(buffer, 0, bytesToRead);
+        if (read < 0) {
+          throw new EOFException("Premature EOF receiving file [" + fileName + "]: got " + readSoFar + " of "
+              + fileSize + " bytes");
+        }
+        bandwidth.acquire(read);
         checkSum.update(buffer, 0, read);
         writer.write(buffer, 0, read);
         readSoFar += read;
@@ -216,11 +269,13 @@ public class HttpFileExchanger extends Thread implements HttpHandler {
         log.info("File [" + dest.getAbsolutePath() + "] received -> Checksum -- " + checkSum.getValue()
             + " matches expected CRC [OK]");
         callback.onFileReceived(tablespace, partition, version, dest);
+        responseCode = HttpURLConnection.HTTP_OK;
       } else {
         log.error("File received [" + dest.getAbsolutePath() + "] -> Checksum -- " + checkSum.getValue()
             + " doesn't match expected CRC: " + expectedCrc);
         callback.onBadCRC(tablespace, partition, version, dest);
         dest.delete();
+        responseCode = HttpURLConnection.HTTP_BAD_REQUEST;
       }
     } catch (Throwable t) {
       log.error(t);
@@ -238,57 +293,108 @@ public class HttpFileExchanger extends Thread implements HttpHandler {
       if (dest != null) {
         currentTransfers.remove(dest.toString());
       }
+      respond(exchange, responseCode);
     }
   }
 
+  private static void respond(HttpExchange exchange, int responseCode) {
+    try {
+      // The server closes the connection after answering: senders must not keep it alive for streaming a POST on it
+      exchange.getResponseHeaders().set("Connection", "close");
+      exchange.sendResponseHeaders(responseCode, -1);
+    } catch (IOException e) {
+      log.warn("Couldn't answer " + responseCode + " to " + exchange.getRemoteAddress(), e);
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /**
+   * Tells a peer that is about to send a file which codec and checksum to use: the first codec it accepts that is known
+   * here, and its checksum if available here.
+   */
+  private void answerNegotiation(HttpExchange exchange) {
+    TransferCodec codec = codecs.negotiate(exchange.getRequestHeaders().getFirst("accept-codec"));
+    String checksum = codecs.negotiateChecksum(exchange.getRequestHeaders().getFirst("checksum"));
+    exchange.getResponseHeaders().set("codec", codec.getName());
+    exchange.getResponseHeaders().set("checksum", checksum);
+    respond(exchange, HttpURLConnection.HTTP_OK);
+  }
+
+  /**
+   * The codec and checksum a peer agreed to receive a file with.
+   */
+  private static class Agreement {
+
+    final TransferCodec codec;
+    final String checksum;
+    // Peers that don't negotiate don't answer the files they receive either
+    final boolean answered;
+
+    Agreement(TransferCodec codec, String checksum, boolean answered) {
+      this.codec = codec;
+      this.checksum = checksum;
+      this.answered = answered;
+    }
+  }
+
+  /**
+   * Asks the peer which codec and checksum to send it files with. Peers that don't answer (older ones) are sent gzip and
+   * crc32, which all of them understand.
+   */
+  private Agreement negotiate(String url) {
+    try {
+      HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+      connection.setRequestMethod("OPTIONS");
+      connection.setConnectTimeout(NEGOTIATION_TIMEOUT);
+      connection.setReadTimeout(NEGOTIATION_TIMEOUT);
+      connection.setRequestProperty("accept-codec", codecs.getAcceptedCodecs());
+      connection.setRequestProperty("checksum", codecs.getChecksum());
+      try {
+        if (connection.getResponseCode() == HttpURLConnection.HTTP_OK) {
+          TransferCodec codec = codecs.get(connection.getHeaderField("codec"));
+          String checksum = connection.getHeaderField("checksum");
+          if (codec != null && checksum != null) {
+            TransferCodecs.newChecksum(checksum);
+            if (!checksum.equals(codecs.getChecksum())) {
+              log.warn("Peer " + url + " doesn't support checksum " + codecs.getChecksum() + ", using " + checksum
+                  + " instead.");
+            }
+            return new Agreement(codec, checksum, true);
+          }
+        }
+      } finally {
+        connection.disconnect();
+      }
+      log.warn("Peer " + url + " didn't agree on a codec, sending gzip and crc32");
+    } catch (IOException e) {
+      log.warn("Couldn't negotiate a codec with peer " + url + ", sending gzip and crc32", e);
+    }
+    return new Agreement(TransferCodecs.GZIP, TransferCodecs.CRC32, false);
+  }
+
   public void send(final String tablespace, final int partition, final long version,
                    final File binaryFile, final String url, boolean blockUntilComplete) {
     Future<?> future = clientExecutors.submit(new Runnable() {
       @Override
       public void run() {
-        DataOutputStream writer = null;
-        InputStream input = null;
         try {
-          HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
-          connection.setChunkedStreamingMode(config.getInt(FetcherProperties.DOWNLOAD_BUFFER));
-          connection.setDoOutput(true);
-          connection.setRequestProperty("filename", binaryFile.getName());
-          connection.setRequestProperty("tablespace", tablespace);
-          connection.setRequestProperty("partition", partition + "");
-          connection.setRequestProperty("version", version + "");
-
-          Checksum checkSum = new CRC32();
-
-          writer = new DataOutputStream(new GZIPOutputStream(connection.getOutputStream()));
-          // 1 - write file size
-          writer.writeLong(binaryFile.length());
-          writer.flush();
-          // 2 - write file content
-          input = new FileInputStream(binaryFile);
-          byte[] buffer = new byte[config.getInt(FetcherProperties.DOWNLOAD_BUFFER)];
-          long wrote = 0;
-          for (int length = 0; (length = input.read(buffer)) > 0; ) {
-            writer.write(buffer, 0, length);
-            checkSum.update(buffer, 0, length);
-            wrote += length;
+          Agreement agreement = negotiate(url);
+          int responseCode = post(tablespace, partition, version, binaryFile, url, agreement);
+          if (responseCode == HttpURLConnection.HTTP_UNSUPPORTED_TYPE) {
+            // The peer changed its codecs after agreeing: use what every peer understands
+            log.warn("Peer " + url + " refused codec " + agreement.codec.getName() + " and checksum "
+                + agreement.checksum + ", sending " + binaryFile + " again with gzip and crc32");
+            responseCode = post(tablespace, partition, version, binaryFile, url, new Agreement(TransferCodecs.GZIP,
+                TransferCodecs.CRC32, true));
           }
-          // 3 - add the CRC so that we can verify the download
-          writer.writeLong(checkSum.getValue());
-          writer.flush();
-          log.info("Sent file " + binaryFile + " to " + url + " with #bytes: " + wrote
-              + " and checksum: " + checkSum.getValue());
-        } catch (IOException e) {
-          log.error(e);
-        } finally {
-          try {
-            if (input != null) {
-              input.close();
-            }
-            if (writer != null) {
-              writer.close();
-            }
-          } catch (IOException ignore) {
+          if (agreement.answered && responseCode != HttpURLConnection.HTTP_OK) {
+            log.error("Peer " + url + " answered " + responseCode + " to file " + binaryFile);
           }
+        } catch (IOException e) {
+          log.error("Error sending file " + binaryFile + " to " + url, e);
+        } catch (InterruptedException e) {
+          log.warn("Interrupted while sending file " + binaryFile + " to " + url);
         }
       }
     });
@@ -303,6 +409,197 @@ public class HttpFileExchanger extends Thread implements HttpHandler {
     }
   }
 
+  /**
+   * Sends a file with the agreed codec and checksum: its size, its contents and its checksum. Returns the response code
+   * of the peer, or -1 if it is a peer that doesn't answer.
+   */
+  private int post(String tablespace, int partition, long version, File binaryFile, String url, Agreement agreement)
+      throws IOException, InterruptedException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    connection.setChunkedStreamingMode(config.getInt(FetcherProperties.DOWNLOAD_BUFFER));
+    connection.setDoOutput(true);
+    connection.setRequestProperty("filename", binaryFile.getName());
+    connection.setRequestProperty("tablespace", tablespace);
+    connection.setRequestProperty("partition", partition + "");
+    connection.setRequestProperty("version", version + "");
+    connection.setRequestProperty("codec", agreement.codec.getName());
+    connection.setRequestProperty("checksum", agreement.checksum);
+
+    Checksum checkSum = TransferCodecs.newChecksum(agreement.checksum);
+    int level = agreement.codec.equals(codecs.getCodec()) ? codecs.getLevel() : -1;
+    DataOutputStream writer = new DataOutputStream(agreement.codec.compress(connection.getOutputStream(), level));
+    InputStream input = new FileInputStream(binaryFile);
+    long wrote = 0;
+    try {
+      // 1 - write file size
+      writer.writeLong(binaryFile.length());
+      writer.flush();
+      // 2 - write file content
+      byte[] buffer = new byte[config.getInt(FetcherProperties.DOWNLOAD_BUFFER)];
+      for (int length = 0; (length = input.read(buffer)) > 0; ) {
+        bandwidth.acquire(length);
+        writer.write(buffer, 0, length);
+        checkSum.update(buffer, 0, length);
+        wrote += length;
+      }
+      // 3 - add the CRC so that we can verify the download
+      writer.writeLong(checkSum.getValue());
+      writer.flush();
+    } finally {
+      input.close();
+      writer.close();
+    }
+    log.info("Sent file " + binaryFile + " to " + url + " with #bytes: " + wrote + ", codec: "
+        + agreement.codec.getName() + " and checksum: " + checkSum.getValue());
+    if (!agreement.answered) {
+      return -1;
+    }
+    try {
+      return connection.getResponseCode();
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  /**
+   * Sends all the files of a deployed partition: for each one a flag, its name, its size, its contents and its checksum.
+   * Answers 404 if the partition is not completely deployed here (yet).
+   */
+  private void servePartition(HttpExchange exchange) throws IOException {
+    try {
+      String tablespace = exchange.getRequestHeaders().getFirst("tablespace");
+      int partition = Integer.valueOf(exchange.getRequestHeaders().getFirst("partition"));
+      long version = Long.valueOf(exchange.getRequestHeaders().getFirst("version"));
+
+      // The metadata is written once the partition is in place
+      File[] files = DNodeHandler.getLocalStorageFolder(config, tablespace, partition, version).listFiles();
+      if (files == null || !DNodeHandler.getLocalMetadataFile(config, tablespace, partition, version).exists()) {
+        exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_FOUND, -1);
+        return;
+      }
+      // Use what the peer accepts, preferably the same as us
+      TransferCodec codec = codecs.negotiate(exchange.getRequestHeaders().getFirst("accept-codec"));
+      String checksum = codecs.negotiateChecksum(exchange.getRequestHeaders().getFirst("checksum"));
+      exchange.getResponseHeaders().set("codec", codec.getName());
+      exchange.getResponseHeaders().set("checksum", checksum);
+      exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, 0);
+      int level = codec.equals(codecs.getCodec()) ? codecs.getLevel() : -1;
+      DataOutputStream writer = new DataOutputStream(codec.compress(exchange.getResponseBody(), level));
+      try {
+        byte[] buffer = new byte[config.getInt(FetcherProperties.DOWNLOAD_BUFFER)];
+        for (File file : files) {
+          if (!file.isFile()) {
+            continue;
+          }
+          writer.writeBoolean(true);
+          writer.writeUTF(file.getName());
+          writer.writeLong(file.length());
+          Checksum checkSum = TransferCodecs.newChecksum(checksum);
+          InputStream input = new FileInputStream(file);
+          try {
+            for (int length = 0; (length = input.read(buffer)) > 0; ) {
+              bandwidth.acquire(length);
+              writer.write(buffer, 0, length);
+              checkSum.update(buffer, 0, length);
+            }
+          } finally {
+            input.close();
+          }
+          writer.writeLong(checkSum.getValue());
+        }
+        writer.writeBoolean(false);
+        log.info("Served partition (" + tablespace + ", " + partition + ", " + version + ") to "
+            + exchange.getRemoteAddress());
+      } catch (InterruptedException e) {
+        log.warn("Interrupted while serving partition (" + tablespace + ", " + partition + ", " + version + ")");
+      } finally {
+        writer.close();
+      }
+    } catch (Throwable t) {
+      log.error(t);
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /**
+   * Gets all the files of a partition from a peer that has it deployed, and saves them into the given folder. Returns
+   * false if the peer doesn't have the partition (yet).
+   *
+   * @param url The {@link #address()} of the peer.
+   */
+  public boolean fetchPartition(String url, String tablespace, int partition, long version, File dest,
+                                Fetcher.Reporter reporter) throws IOException, InterruptedException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    connection.setRequestProperty("tablespace", tablespace);
+    connection.setRequestProperty("partition", partition + "");
+    connection.setRequestProperty("version", version + "");
+    connection.setRequestProperty("accept-codec", codecs.getAcceptedCodecs());
+    connection.setRequestProperty("checksum", codecs.getChecksum());
+    int responseCode = connection.getResponseCode();
+    if (responseCode == HttpURLConnection.HTTP_NOT_FOUND) {
+      connection.disconnect();
+      return false;
+    } else if (responseCode != HttpURLConnection.HTTP_OK) {
+      connection.disconnect();
+      throw new IOException("Unexpected response code " + responseCode + " from " + url);
+    }
+    String codecName = connection.getHeaderField("codec");
+    TransferCodec codec = codecs.get(codecName);
+    if (codec == null) {
+      connection.disconnect();
+      throw new IOException("Unknown codec from " + url + ": " + codecName);
+    }
+    String checksum = connection.getHeaderField("checksum");
+    dest.mkdirs();
+    long bytesToReportProgress = config.getLong(FetcherProperties.BYTES_TO_REPORT_PROGRESS);
+    long reported = 0;
+    DataInputStream iS = new DataInputStream(codec.decompress(connection.getInputStream()));
+    try {
+      byte[] buffer = new byte[config.getInt(FetcherProperties.DOWNLOAD_BUFFER)];
+      while (iS.readBoolean()) {
+        String fileName = iS.readUTF();
+        if (!new File(fileName).getName().equals(fileName)) {
+          throw new IOException("Invalid file name received from " + url + ": " + fileName);
+        }
+        File file = new File(dest, fileName);
+        long fileSize = iS.readLong();
+        Checksum checkSum = TransferCodecs.newChecksum(checksum);
+        OutputStream writer = new FileOutputStream(file);
+        try {
+          for (long readSoFar = 0; readSoFar < fileSize; ) {
+            int read = iS.read(buffer, 0, (int) Math.min(fileSize - readSoFar, buffer.length));
+            if (read < 0) {
+              throw new EOFException("Partition file " + fileName + " from " + url + " ended before its size: " + fileSize);
+            }
+            bandwidth.acquire(read);
+            checkSum.update(buffer, 0, read);
+            writer.write(buffer, 0, read);
+            readSoFar += read;
+            reported += read;
+            if (reporter != null && reported >= bytesToReportProgress) {
+              reporter.progress(reported);
+              reported = 0;
+            }
+          }
+        } finally {
+          writer.close();
+        }
+        long expectedCrc = iS.readLong();
+        if (expectedCrc != checkSum.getValue()) {
+          throw new IOException("File [" + file + "] received from " + url + " -> Checksum -- " + checkSum.getValue()
+              + " doesn't match expected CRC: " + expectedCrc);
+        }
+      }
+    } finally {
+      iS.close();
+    }
+    if (reporter != null && reported > 0) {
+      reporter.progress(reported);
+    }
+    return true;
+  }
+
   public Map<String, Object> getCurrentTransfers() {
     return currentTransfers;
   }
@@ -43,4 +43,21 @@ public class HttpFileExchangerProperties {
    * Whether or not to use auto-increment for the HTTP port in case it is already busy
    */
   public final static String HTTP_PORT_AUTO_INCREMENT = "http.exchanger.port.auto.increment";
+  /*
+   * The compression codec used for sending files: none, gzip, deflate, snappy (when its native library loads) or the
+   * name of one of HTTP_CODEC_CLASSES
+   */
+  public final static String HTTP_CODEC = "http.exchanger.codec";
+  /*
+   * The compression level of HTTP_CODEC, -1 for its default one
+   */
+  public final static String HTTP_CODEC_LEVEL = "http.exchanger.codec.level";
+  /*
+   * Comma-separated list of extra TransferCodec implementations to make available
+   */
+  public final static String HTTP_CODEC_CLASSES = "http.exchanger.codec.classes";
+  /*
+   * The checksum used for verifying transfers: crc32 or crc32c (only in Java 9+)
+   */
+  public final static String HTTP_CHECKSUM = "http.exchanger.checksum";
 }
@@ -51,6 +51,12 @@ public interface IDNodeHandler {
    */
   public ByteBuffer binarySqlQuery(String tablespace, long version, int partition, String query) throws DNodeException;
 
+  /*
+   * Like binarySqlQuery(), binding the values of the JSON array params to the placeholders of the query
+   */
+  public ByteBuffer binarySqlQueryWithParams(String tablespace, long version, int partition, String query, String params)
+      throws DNodeException;
+
   /*
    * All string methods return JSON
    */
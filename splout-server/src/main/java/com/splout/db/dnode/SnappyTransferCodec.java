@@ -0,0 +1,66 @@
+package com.splout.db.dnode;
+
+/*
+ * #%L
+ * Splout SQL Server
+ * %%
+ * Copyright (C) 2012 Datasalt Systems S.L.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import org.xerial.snappy.Snappy;
+import org.xerial.snappy.SnappyInputStream;
+import org.xerial.snappy.SnappyOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Snappy compression (snappy-java): several times faster than gzip, for a lower ratio. A good choice when gzip can't
+ * keep up with the network but it is not fast enough for sending files uncompressed. It has no compression levels.
+ * <p/>
+ * It is built in {@link TransferCodecs} when the native library of snappy-java can be loaded in this platform.
+ */
+public class SnappyTransferCodec implements TransferCodec {
+
+  @Override
+  public String getName() {
+    return "snappy";
+  }
+
+  @Override
+  public OutputStream compress(OutputStream out, int level) throws IOException {
+    return new SnappyOutputStream(out);
+  }
+
+  @Override
+  public InputStream decompress(InputStream in) throws IOException {
+    return new SnappyInputStream(in);
+  }
+
+  /**
+   * Whether the native library can be loaded.
+   */
+  public static boolean isAvailable() {
+    try {
+      Snappy.compress(new byte[1]);
+      return true;
+    } catch (Throwable t) {
+      return false;
+    }
+  }
+}
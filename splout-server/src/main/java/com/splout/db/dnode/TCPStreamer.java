@@ -24,21 +24,34 @@ package com.splout.db.dnode;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.esotericsoftware.kryo.io.Output;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.splout.db.common.SploutConfiguration;
 import com.splout.db.engine.EngineManager;
 import com.splout.db.engine.EngineManager.EngineException;
@@ -49,24 +62,61 @@ import com.splout.db.thrift.DNodeException;
 
 /**
  * An interface for the DNode to send streaming data through TCP.
+ * <p/>
+ * A single selector thread accepts connections, reads requests and writes responses, all of them non-blocking. Queries
+ * are executed by a bounded pool of workers that batch the serialized rows into two reusable direct buffers per
+ * stream: one is being filled while the other one is being written. Streams wait for the socket to take the written
+ * buffer back before going on, so slow clients slow down their own query instead of piling up rows in memory.
+ * <p/>
+ * The protocol is: the client sends the tablespace (UTF), the version (long), the partition (int) and the query (UTF).
+ * The server replies with each row serialized with {@link ResultSerializer}, preceded by its length (int), and a -1
+ * length at the end. When too many streams are running or waiting already, the server replies with a single -2 length
+ * ({@link #BUSY}) and closes the connection, so that the client can tell it apart from a failure.
  */
 public class TCPStreamer {
 
   private final static Log log = LogFactory.getLog(TCPStreamer.class);
 
+  /**
+   * The length sent after the last row of a stream.
+   */
+  public final static int END_OF_STREAM = -1;
+  /**
+   * The length sent instead of any row when the stream is rejected because the server is saturated.
+   */
+  public final static int BUSY = -2;
+
+  // One buffer is filled while the other is written
+  private final static int BUFFERS_PER_STREAM = 2;
+  // Two UTF strings, a long and an int
+  private final static int MAX_REQUEST_SIZE = 2 * (2 + 65535) + 8 + 4;
+
   private DNodeHandler dNode;
   private int tcpPort;
 
   private TCPServer server;
+  private ThreadPoolExecutor workers;
+  private BufferPool buffers;
 
   public void start(SploutConfiguration config, DNodeHandler dNode) throws InterruptedException, IOException {
     this.dNode = dNode;
     this.tcpPort = config.getInt(DNodeProperties.STREAMING_PORT);
 
+    int threads = config.getInt(DNodeProperties.STREAMING_THREADS, 8);
+    workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+        config.getInt(DNodeProperties.STREAMING_QUEUE_SIZE, 32)), new ThreadFactoryBuilder()
+        .setNameFormat("tcp-streamer-" + tcpPort + "-%d").setDaemon(true).build());
+    buffers = new BufferPool(threads * BUFFERS_PER_STREAM, config.getInt(DNodeProperties.STREAMING_BUFFER_KB, 64) * 1024);
+
     server = new TCPServer();
-    server.bind();
-    
-    Thread t = new Thread() {
+    try {
+      server.bind();
+    } catch (IOException e) {
+      workers.shutdown();
+      throw e;
+    }
+
+    Thread t = new Thread("tcp-streamer-" + tcpPort) {
       @Override
       public void run() {
         server.serve();
@@ -81,16 +131,77 @@ public class TCPStreamer {
 
   public void stop() {
     server.stop();
+    workers.shutdownNow();
   }
 
   public int getTcpPort() {
     return tcpPort;
   }
 
+  /**
+   * Direct buffers are expensive to allocate, so they are reused among streams. Streams whose buffers are still being
+   * written when they finish may make the pool allocate more than its size, but only up to its size is kept.
+   */
+  static class BufferPool {
+
+    private final LinkedBlockingQueue<ByteBuffer> free;
+    private final int bufferSize;
+
+    BufferPool(int size, int bufferSize) {
+      this.free = new LinkedBlockingQueue<ByteBuffer>(size);
+      this.bufferSize = bufferSize;
+    }
+
+    ByteBuffer take() {
+      ByteBuffer buffer = free.poll();
+      if (buffer == null) {
+        buffer = ByteBuffer.allocateDirect(bufferSize);
+      }
+      return buffer;
+    }
+
+    void release(ByteBuffer buffer) {
+      buffer.clear();
+      free.offer(buffer);
+    }
+  }
+
+  /**
+   * A client connection. Buffers go round from the worker that fills them ({@link #written}) to the selector thread
+   * that writes them ({@link #pending}) and back.
+   */
+  static class StreamConnection {
+
+    final SocketChannel channel;
+    SelectionKey key;
+    ByteBuffer request = ByteBuffer.allocate(1024);
+
+    final ConcurrentLinkedQueue<ByteBuffer> pending = new ConcurrentLinkedQueue<ByteBuffer>();
+    final LinkedBlockingQueue<ByteBuffer> written = new LinkedBlockingQueue<ByteBuffer>();
+    // Set by the worker: close once everything is written
+    volatile boolean finished = false;
+    // Set by the worker: close right away
+    volatile boolean aborted = false;
+    // Set by the selector thread
+    volatile boolean closed = false;
+
+    StreamConnection(SocketChannel channel) {
+      this.channel = channel;
+    }
+
+    @Override
+    public String toString() {
+      return channel.socket().getRemoteSocketAddress() + "";
+    }
+  }
+
   class TCPServer {
 
-    protected ServerSocket serverSocket = null;
+    protected ServerSocketChannel serverChannel = null;
+    protected Selector selector = null;
     protected boolean isStopped = false;
+    // Connections whose interest ops need to be updated by the selector thread
+    private final ConcurrentLinkedQueue<StreamConnection> updates = new ConcurrentLinkedQueue<StreamConnection>();
 
     private synchronized boolean isStopped() {
       return this.isStopped;
@@ -98,119 +209,354 @@ public class TCPStreamer {
 
     public synchronized void stop() {
       this.isStopped = true;
-      try {
-        this.serverSocket.close();
-      } catch (IOException e) {
-        throw new RuntimeException("Error closing server", e);
-      }
+      this.selector.wakeup();
     }
 
     public boolean isServing() {
-      return !isStopped() && this.serverSocket != null && this.serverSocket.isBound();
+      return !isStopped() && this.serverChannel != null && this.serverChannel.socket().isBound();
     }
 
     public void bind() throws IOException {
+      selector = Selector.open();
       try {
-        this.serverSocket = new ServerSocket(tcpPort);
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().bind(new InetSocketAddress(tcpPort));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
       } catch (IOException e) {
+        if (serverChannel != null) {
+          serverChannel.close();
+        }
+        selector.close();
         throw e;
       }
     }
 
+    /**
+     * Called by the workers when the selector thread has something to do with the connection.
+     */
+    void update(StreamConnection conn) {
+      updates.add(conn);
+      selector.wakeup();
+    }
+
     public void serve() {
-      while (!isStopped()) {
+      try {
+        while (!isStopped()) {
+          selector.select();
+          StreamConnection updated;
+          while ((updated = updates.poll()) != null) {
+            if (updated.aborted) {
+              close(updated);
+            } else if (!updated.closed && !updated.pending.isEmpty()) {
+              updated.key.interestOps(SelectionKey.OP_WRITE);
+            } else if (updated.finished) {
+              close(updated);
+            }
+          }
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            if (!key.isValid()) {
+              continue;
+            }
+            if (key.isAcceptable()) {
+              accept();
+              continue;
+            }
+            StreamConnection conn = (StreamConnection) key.attachment();
+            try {
+              if (key.isReadable()) {
+                read(conn);
+              }
+              if (key.isValid() && key.isWritable()) {
+                write(conn);
+              }
+            } catch (IOException e) {
+              log.warn("Error in streaming connection " + conn + ", closing it", e);
+              close(conn);
+            }
+          }
+        }
+      } catch (IOException e) {
+        throw new RuntimeException("Error serving streaming connections", e);
+      } finally {
+        for (SelectionKey key : selector.keys()) {
+          if (key.attachment() != null) {
+            close((StreamConnection) key.attachment());
+          }
+        }
         try {
-          new Thread(new WorkerRunnable(this.serverSocket.accept(), dNode)).start();
+          serverChannel.close();
+          selector.close();
         } catch (IOException e) {
-          if (isStopped()) {
-            System.out.println("Server Stopped.");
-            return;
+          log.error("Error closing server", e);
+        }
+        log.info("Server Stopped.");
+      }
+    }
+
+    private void accept() throws IOException {
+      SocketChannel channel = serverChannel.accept();
+      if (channel == null) {
+        return;
+      }
+      channel.configureBlocking(false);
+      StreamConnection conn = new StreamConnection(channel);
+      conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+    }
+
+    private void read(StreamConnection conn) throws IOException {
+      if (conn.channel.read(conn.request) < 0) {
+        close(conn);
+        return;
+      }
+      StreamTask task = parseRequest(conn);
+      if (task == null) {
+        if (!conn.request.hasRemaining()) {
+          if (conn.request.capacity() >= MAX_REQUEST_SIZE) {
+            throw new IOException("Streaming request too big");
           }
-          throw new RuntimeException("Error accepting client connection", e);
+          ByteBuffer bigger = ByteBuffer.allocate(Math.min(MAX_REQUEST_SIZE, conn.request.capacity() * 2));
+          conn.request.flip();
+          bigger.put(conn.request);
+          conn.request = bigger;
         }
+        return;
+      }
+      conn.key.interestOps(0);
+      conn.request = null;
+      try {
+        workers.execute(task);
+      } catch (RejectedExecutionException e) {
+        log.warn("Too many streaming requests, rejecting " + conn);
+        rejectBusy(conn);
       }
     }
-  }
 
-  static class WorkerRunnable implements Runnable {
+    /**
+     * Tells the client that the server is busy before closing. The request has been read fully and nothing else has
+     * been written, so the four bytes always fit in the socket buffer.
+     */
+    private void rejectBusy(StreamConnection conn) {
+      ByteBuffer busy = ByteBuffer.allocate(4);
+      busy.putInt(BUSY);
+      busy.flip();
+      try {
+        conn.channel.write(busy);
+      } catch (IOException e) {
+        log.warn("Couldn't tell " + conn + " that the server is busy", e);
+      }
+      close(conn);
+    }
+
+    private void write(StreamConnection conn) throws IOException {
+      ByteBuffer buffer;
+      while ((buffer = conn.pending.peek()) != null) {
+        conn.channel.write(buffer);
+        if (buffer.hasRemaining()) {
+          // Socket is full, wait until it is writable again
+          return;
+        }
+        conn.pending.poll();
+        buffer.clear();
+        conn.written.add(buffer);
+      }
+      conn.key.interestOps(0);
+      if (conn.finished) {
+        close(conn);
+      }
+    }
 
-    protected final Socket clientSocket;
-    protected final DNodeHandler handler;
+    private void close(StreamConnection conn) {
+      if (conn.closed) {
+        return;
+      }
+      conn.closed = true;
+      conn.key.cancel();
+      try {
+        conn.channel.close();
+      } catch (IOException e) {
+        log.warn("Error closing streaming connection " + conn, e);
+      }
+      // Buffers that the worker has taken are released by it
+      ByteBuffer buffer;
+      while ((buffer = conn.pending.poll()) != null) {
+        buffers.release(buffer);
+      }
+      while ((buffer = conn.written.poll()) != null) {
+        buffers.release(buffer);
+      }
+    }
+  }
 
-    public WorkerRunnable(Socket clientSocket, DNodeHandler handler) {
-      this.clientSocket = clientSocket;
-      this.handler = handler;
+  /**
+   * Returns the task that serves the request, or null if it has not been fully received yet.
+   */
+  StreamTask parseRequest(StreamConnection conn) throws IOException {
+    DataInputStream dis = new DataInputStream(new ByteArrayInputStream(conn.request.array(), 0,
+        conn.request.position()));
+    try {
+      // Get tablespace
+      String tablespace = dis.readUTF();
+      // Get version number
+      long version = dis.readLong();
+      // Get partition number
+      int partition = dis.readInt();
+      // Get query
+      String query = dis.readUTF();
+      return new StreamTask(conn, tablespace, version, partition, query);
+    } catch (EOFException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Executes a streaming request in a worker, batching the rows into the buffers of the connection.
+   */
+  class StreamTask implements Runnable, StreamingIterator {
+
+    final StreamConnection conn;
+    final String tablespace;
+    final long version;
+    final int partition;
+    final String query;
+
+    // Reused for serializing every row
+    final Output output = new Output(1024, -1);
+    ByteBuffer current;
+
+    StreamTask(StreamConnection conn, String tablespace, long version, int partition, String query) {
+      this.conn = conn;
+      this.tablespace = tablespace;
+      this.version = version;
+      this.partition = partition;
+      this.query = query;
     }
 
     public void run() {
+      log.info("Got streaming request: " + tablespace + ", " + version + ", " + partition + ", " + query);
+      for (int i = 0; i < BUFFERS_PER_STREAM; i++) {
+        conn.written.add(buffers.take());
+      }
       try {
-        InputStream input = clientSocket.getInputStream();
-        OutputStream output = clientSocket.getOutputStream();
-
-        final DataInputStream dis = new DataInputStream(new BufferedInputStream(input));
-        // Get tablespace
-        String tablespace = dis.readUTF();
-        // Get version number
-        long version = dis.readLong();
-        // Get partition number
-        int partition = dis.readInt();
-        // Get query
-        final String query = dis.readUTF();
+        EngineManager manager = dNode.getManager(tablespace, version, partition);
+        manager.streamQuery(this);
+      } catch (IOException e) {
+        log.error("Error streaming " + query + " to " + conn, e);
+      } catch (EngineException e) {
+        log.error("Error streaming " + query + " to " + conn, e);
+      } catch (DNodeException e) {
+        log.error("Error streaming " + query + " to " + conn, e);
+      } finally {
+        if (current != null) {
+          buffers.release(current);
+          current = null;
+        }
+        if (!conn.finished) {
+          conn.aborted = true;
+          server.update(conn);
+        }
+        if (conn.closed) {
+          // The connection may have been closed before this task started
+          ByteBuffer buffer;
+          while ((buffer = conn.written.poll()) != null) {
+            buffers.release(buffer);
+          }
+        }
+      }
+    }
 
-        log.info("Got streaming request: " + tablespace + ", " + version + ", " + partition + ", " + query);
-        EngineManager manager = handler.getManager(tablespace, version, partition);
+    @Override
+    public String getQuery() {
+      return query;
+    }
 
-        final DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(output));
+    @Override
+    public void columns(String[] columns) {
+    }
 
-        manager.streamQuery(new StreamingIterator() {
+    @Override
+    public void collect(Object[] result) throws StreamingTerminationException {
+      try {
+        output.clear();
+        ResultSerializer.localKryo.get().writeObject(output, result);
+        writeInt(output.position());
+        write(output.getBuffer(), output.position());
+      } catch (IOException e) {
+        throw new StreamingTerminationException("Streaming connection lost", e);
+      } catch (RuntimeException e) {
+        throw new StreamingTerminationException("Error serializing row", e);
+      }
+    }
 
-          @Override
-          public String getQuery() {
-            return query;
-          }
+    @Override
+    public void endStreaming() {
+      try {
+        writeInt(END_OF_STREAM);
+        send();
+        conn.finished = true;
+        server.update(conn);
+        log.info("Finished stream");
+      } catch (IOException e) {
+        log.warn("Streaming connection " + conn + " lost before the end of the stream");
+      }
+    }
 
-          @Override
-          public void columns(String[] columns) {
-          }
+    private void writeInt(int value) throws IOException {
+      if (current == null || current.remaining() < 4) {
+        flush();
+      }
+      current.putInt(value);
+    }
 
-          @Override
-          public void collect(Object[] result) throws StreamingTerminationException {
-            byte[] bytes;
-            try {
-              bytes = ResultSerializer.serializeToByteArray(result);
-              dos.writeInt(bytes.length);
-              dos.write(bytes);
-            } catch (SerializationException e) {
-              throw new StreamingTerminationException("", e);
-            } catch (IOException e) {
-              log.error(e);
-              e.printStackTrace();
-              throw new StreamingTerminationException("", e);
-            }
-          }
+    private void write(byte[] bytes, int length) throws IOException {
+      int offset = 0;
+      while (offset < length) {
+        if (current == null || !current.hasRemaining()) {
+          flush();
+        }
+        int n = Math.min(length - offset, current.remaining());
+        current.put(bytes, offset, n);
+        offset += n;
+      }
+    }
 
-          @Override
-          public void endStreaming() {
-            try {
-              dos.writeInt(-1);
-              dos.flush();
-              log.info("Finished stream");
-            } catch (IOException e) {
-              log.error(e);
-              e.printStackTrace();
-            }
+    /**
+     * Hands the current buffer (if any) to the selector thread and waits for an empty one, which is the backpressure
+     * from the socket.
+     */
+    private void flush() throws IOException {
+      send();
+      try {
+        while (current == null) {
+          if (conn.closed) {
+            throw new IOException("Streaming connection closed");
           }
-        });
+          current = conn.written.poll(100, TimeUnit.MILLISECONDS);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while streaming");
+      }
+    }
 
-        input.close();
-        output.close();
-        clientSocket.close();
-      } catch (IOException e) {
-        e.printStackTrace();
-      } catch (EngineException e) {
-        e.printStackTrace();
-      } catch (DNodeException e1) {
-        e1.printStackTrace();
+    private void send() throws IOException {
+      if (current == null) {
+        return;
+      }
+      ByteBuffer buffer = current;
+      current = null;
+      buffer.flip();
+      conn.pending.add(buffer);
+      if (conn.closed && conn.pending.remove(buffer)) {
+        // The selector thread didn't see it
+        buffers.release(buffer);
+      }
+      server.update(conn);
+      if (conn.closed) {
+        throw new IOException("Streaming connection closed");
       }
     }
   }
@@ -0,0 +1,46 @@
+package com.splout.db.dnode;
+
+/*
+ * #%L
+ * Splout SQL Server
+ * %%
+ * Copyright (C) 2012 Datasalt Systems S.L.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A way of compressing the files exchanged by the {@link HttpFileExchanger}. Peers agree on it through HTTP headers by
+ * its name, see {@link TransferCodecs}. Implementations need a public no-args constructor for being plugged in by
+ * {@link HttpFileExchangerProperties#HTTP_CODEC_CLASSES}.
+ */
+public interface TransferCodec {
+
+  /**
+   * The name peers know this codec by.
+   */
+  public String getName();
+
+  /**
+   * @param level The compression level, -1 for the codec's default.
+   */
+  public OutputStream compress(OutputStream out, int level) throws IOException;
+
+  public InputStream decompress(InputStream in) throws IOException;
+}
@@ -0,0 +1,289 @@
+package com.splout.db.dnode;
+
+/*
+ * #%L
+ * Splout SQL Server
+ * %%
+ * Copyright (C) 2012 Datasalt Systems S.L.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import com.splout.db.common.SploutConfiguration;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The {@link TransferCodec}s and checksums known by a {@link HttpFileExchanger}, and the ones it prefers:
+ * {@link HttpFileExchangerProperties#HTTP_CODEC} and {@link HttpFileExchangerProperties#HTTP_CHECKSUM}.
+ * <p/>
+ * Built-in codecs are "none", "gzip" (what peers without codec negotiation use), "deflate" and, if its native library
+ * loads, "snappy" ({@link SnappyTransferCodec}). "none" is the one to use when the network is faster than compressing:
+ * nothing but the checksum is computed on the way. Others (e.g. LZ4 or zstd bindings) can be plugged in with
+ * {@link HttpFileExchangerProperties#HTTP_CODEC_CLASSES}.
+ * <p/>
+ * Checksums are "crc32" and, if the JVM has it (Java 9+), "crc32c". Both are computed by the CPU's own instructions by
+ * modern JVMs.
+ */
+public class TransferCodecs {
+
+  private final static Log log = LogFactory.getLog(TransferCodecs.class);
+
+  public final static String CRC32 = "crc32";
+  public final static String CRC32C = "crc32c";
+  private final static String CRC32C_CLASS = "java.util.zip.CRC32C";
+
+  public final static TransferCodec NONE = new TransferCodec() {
+
+    @Override
+    public String getName() {
+      return "none";
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out, int level) {
+      return out;
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) {
+      return in;
+    }
+  };
+
+  public final static TransferCodec GZIP = new TransferCodec() {
+
+    @Override
+    public String getName() {
+      return "gzip";
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out, final int level) throws IOException {
+      return new GZIPOutputStream(out) {
+        {
+          def.setLevel(level);
+        }
+      };
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) throws IOException {
+      return new GZIPInputStream(in);
+    }
+  };
+
+  /**
+   * Raw deflate: the same compression as gzip without its header and its own CRC32 of the data.
+   */
+  public final static TransferCodec DEFLATE = new TransferCodec() {
+
+    @Override
+    public String getName() {
+      return "deflate";
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out, int level) {
+      final Deflater deflater = new Deflater(level, true);
+      return new DeflaterOutputStream(out, deflater) {
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            deflater.end();
+          }
+        }
+      };
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) {
+      final Inflater inflater = new Inflater(true);
+      return new InflaterInputStream(in, inflater) {
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            inflater.end();
+          }
+        }
+      };
+    }
+  };
+
+  private final Map<String, TransferCodec> codecs = new LinkedHashMap<String, TransferCodec>();
+  private final TransferCodec codec;
+  private final int level;
+  private final String checksum;
+
+  public TransferCodecs(SploutConfiguration config) {
+    register(NONE);
+    register(GZIP);
+    register(DEFLATE);
+    if (SnappyTransferCodec.isAvailable()) {
+      register(new SnappyTransferCodec());
+    } else {
+      log.warn("Snappy native library not available in this platform, snappy codec disabled.");
+    }
+    for (String className : config.getStringArray(HttpFileExchangerProperties.HTTP_CODEC_CLASSES)) {
+      if (className.trim().isEmpty()) {
+        continue;
+      }
+      try {
+        register(Class.forName(className.trim()).asSubclass(TransferCodec.class).newInstance());
+      } catch (Exception e) {
+        throw new IllegalArgumentException("Invalid " + HttpFileExchangerProperties.HTTP_CODEC_CLASSES + ": "
+            + className, e);
+      }
+    }
+    String codecName = config.getString(HttpFileExchangerProperties.HTTP_CODEC, GZIP.getName());
+    codec = codecs.get(codecName);
+    if (codec == null) {
+      throw new IllegalArgumentException("Unknown " + HttpFileExchangerProperties.HTTP_CODEC + ": " + codecName
+          + ", known ones are: " + codecs.keySet());
+    }
+    level = config.getInt(HttpFileExchangerProperties.HTTP_CODEC_LEVEL, -1);
+    String checksumName = config.getString(HttpFileExchangerProperties.HTTP_CHECKSUM, CRC32);
+    if (!isChecksumAvailable(checksumName)) {
+      log.warn("Checksum " + checksumName + " not available in this JVM, using " + CRC32 + " instead.");
+      checksumName = CRC32;
+    }
+    checksum = checksumName;
+  }
+
+  private void register(TransferCodec codec) {
+    codecs.put(codec.getName(), codec);
+  }
+
+  /**
+   * The preferred codec.
+   */
+  public TransferCodec getCodec() {
+    return codec;
+  }
+
+  /**
+   * The compression level to use with the preferred codec.
+   */
+  public int getLevel() {
+    return level;
+  }
+
+  /**
+   * The codec with the given name, or null if unknown. No name means a peer not negotiating codecs: gzip.
+   */
+  public TransferCodec get(String name) {
+    return (name == null) ? GZIP : codecs.get(name);
+  }
+
+  /**
+   * The codec to use with a peer that accepts the given codecs, in its order of preference. Gzip if there is none in
+   * common.
+   */
+  public TransferCodec negotiate(String acceptedCodecs) {
+    if (acceptedCodecs != null) {
+      for (String name : acceptedCodecs.split(",")) {
+        TransferCodec accepted = codecs.get(name.trim());
+        if (accepted != null) {
+          return accepted;
+        }
+      }
+    }
+    return GZIP;
+  }
+
+  /**
+   * The value to use for telling a peer which codecs are accepted: the preferred one first, then the rest.
+   */
+  public String getAcceptedCodecs() {
+    StringBuilder accepted = new StringBuilder(codec.getName());
+    for (String name : codecs.keySet()) {
+      if (!name.equals(codec.getName())) {
+        accepted.append(",").append(name);
+      }
+    }
+    return accepted.toString();
+  }
+
+  /**
+   * The preferred checksum.
+   */
+  public String getChecksum() {
+    return checksum;
+  }
+
+  /**
+   * The checksum to use with a peer that prefers the given one, crc32 if it is not available here. No checksum means a
+   * peer not negotiating checksums: crc32 too.
+   */
+  public String negotiateChecksum(String peerChecksum) {
+    if (peerChecksum == null) {
+      return CRC32;
+    }
+    if (!isChecksumAvailable(peerChecksum)) {
+      log.warn("Peer asked for checksum " + peerChecksum + ", not available in this JVM, using " + CRC32
+          + " instead.");
+      return CRC32;
+    }
+    return peerChecksum;
+  }
+
+  /**
+   * A new instance of the given checksum. No name means a peer not negotiating checksums: crc32.
+   */
+  public static Checksum newChecksum(String name) throws IOException {
+    if (name == null || CRC32.equals(name)) {
+      return new CRC32();
+    } else if (CRC32C.equals(name)) {
+      try {
+        return (Checksum) Class.forName(CRC32C_CLASS).newInstance();
+      } catch (Exception e) {
+        throw new IOException("Checksum " + name + " not available in this JVM", e);
+      }
+    }
+    throw new IOException("Unknown checksum: " + name);
+  }
+
+  private static boolean isChecksumAvailable(String name) {
+    if (CRC32.equals(name)) {
+      return true;
+    } else if (CRC32C.equals(name)) {
+      try {
+        Class.forName(CRC32C_CLASS);
+        return true;
+      } catch (ClassNotFoundException e) {
+        return false;
+      }
+    }
+    return false;
+  }
+}
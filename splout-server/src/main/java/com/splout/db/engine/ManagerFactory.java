@@ -38,9 +38,12 @@ public class ManagerFactory {
   // private final static Log log = LogFactory.getLog(ManagerFactory.class);
   private SploutConfiguration config;
   private TimeoutThread timeoutThread;
+  // Shared by the SQLite partitions
+  private SQLiteConnectionBudget connectionBudget;
 
   public void init(SploutConfiguration config) {
     this.config = config;
+    connectionBudget = new SQLiteConnectionBudget(config.getInt(DNodeProperties.MAX_CONNECTIONS, 64));
     timeoutThread = new TimeoutThread(config.getLong(DNodeProperties.MAX_QUERY_TIME));
     timeoutThread.start();
   }
@@ -49,7 +52,26 @@ public class ManagerFactory {
     timeoutThread.interrupt();
   }
 
-  public EngineManager getManagerIn(File dbFolder, PartitionMetadata partitionMetadata) throws Exception {
+  public SQLiteConnectionBudget getConnectionBudget() {
+    return connectionBudget;
+  }
+
+  /**
+   * The {@link SQLiteReadProfile} for the partitions of a tablespace, from the DNode-wide properties and their
+   * overrides for the tablespace, if any.
+   */
+  public SQLiteReadProfile getReadProfile(String tablespace) {
+    int pageCacheMB = config.getInt(DNodeProperties.SQLITE_PAGE_CACHE_MB + "." + tablespace,
+        config.getInt(DNodeProperties.SQLITE_PAGE_CACHE_MB, 128));
+    long mmapMB = config.getLong(DNodeProperties.SQLITE_MMAP_MB + "." + tablespace,
+        config.getLong(DNodeProperties.SQLITE_MMAP_MB, 0));
+    boolean queryOnly = config.getBoolean(DNodeProperties.SQLITE_QUERY_ONLY + "." + tablespace,
+        config.getBoolean(DNodeProperties.SQLITE_QUERY_ONLY, true));
+    return new SQLiteReadProfile(queryOnly, SQLiteReadProfile.cacheSizeFromBudget(pageCacheMB,
+        connectionBudget.getMaxConnections()), mmapMB * 1024 * 1024);
+  }
+
+  public EngineManager getManagerIn(String tablespace, File dbFolder, PartitionMetadata partitionMetadata) throws Exception {
     EngineManager manager = null;
 
     SploutEngine engine = SploutEngine.getDefault();
@@ -78,6 +100,12 @@ public class ManagerFactory {
 
     if (manager instanceof SQLite4JavaManager) {
       ((SQLite4JavaManager) manager).setTimeoutThread(timeoutThread);
+      ((SQLite4JavaManager) manager).setStatementCacheSize(config.getInt(DNodeProperties.STATEMENT_CACHE_SIZE,
+          SQLite4JavaClient.DEFAULT_STATEMENT_CACHE_SIZE));
+      ((SQLite4JavaManager) manager).setMaxConnections(config.getInt(DNodeProperties.CONNECTIONS_PER_PARTITION,
+          SQLite4JavaClient.DEFAULT_MAX_CONNECTIONS));
+      ((SQLite4JavaManager) manager).setConnectionBudget(connectionBudget);
+      ((SQLite4JavaManager) manager).setReadProfile(getReadProfile(tablespace));
     }
 
     return manager;
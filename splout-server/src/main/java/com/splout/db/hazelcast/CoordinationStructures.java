@@ -69,6 +69,14 @@ public class CoordinationStructures {
   // is used
   // as a postfix.
   public static final String GLOBAL_DEPLOY_SPEED_PANEL = "com.splout.db.deployments.speedPanel-";
+  // A panel where DNodes claim the partitions they fetch from the deploy source when deploying in swarm mode. This is a
+  // prefix, and the version is used as a postfix. Key is tablespace and partition, value is the HTTP address of the
+  // DNode.
+  public static final String GLOBAL_DEPLOY_SWARM_PANEL = "com.splout.db.deployments.swarmPanel-";
+  // A multi map where DNodes register the partitions they have finished deploying in swarm mode, so that the replicas
+  // can get them from any of them. This is a prefix, and the version is used as a postfix. Key is tablespace and
+  // partition, values are the HTTP addresses of the DNodes.
+  public static final String GLOBAL_DEPLOY_SWARM_HOLDERS = "com.splout.db.deployments.swarmHolders-";
   // Version generator. Generates unique version id across the cluster
   public static final String VERSION_GENERATOR = "com.splout.db.versionGenerator";
   // Key for #getDNodeReplicaBalanceActionsSet()
@@ -193,6 +201,27 @@ public class CoordinationStructures {
         dateFormat.format(new Date()) + " - " + message);
   }
 
+  /**
+   * Returns a map used in swarm deploys (see {@link com.splout.db.dnode.DNodeProperties#DEPLOY_SWARM}): the first DNode
+   * that puts a partition (key, see {@link #swarmKey(String, int)}) here fetches it from the deploy source (value, its
+   * HTTP file exchanger address), and its replicas wait for it to be deployed somewhere.
+   */
+  public IMap<String, String> getDeploySwarmPanel(long version) {
+    return hz.getMap(GLOBAL_DEPLOY_SWARM_PANEL + version);
+  }
+
+  /**
+   * Returns the DNodes that have a partition (key, see {@link #swarmKey(String, int)}) deployed in a swarm deploy
+   * (values, their HTTP file exchanger addresses). Replicas can get the partition from any of them.
+   */
+  public MultiMap<String, String> getDeploySwarmHolders(long version) {
+    return hz.getMultiMap(GLOBAL_DEPLOY_SWARM_HOLDERS + version);
+  }
+
+  public static String swarmKey(String tablespace, int partition) {
+    return tablespace + "_" + partition;
+  }
+
   /**
    * A Panel to put state information about deployments: ongoing / finished / failed, etc.
    */
@@ -0,0 +1,326 @@
+package com.splout.db.qnode;
+
+/*
+ * #%L
+ * Splout SQL Server
+ * %%
+ * Copyright (C) 2012 Datasalt Systems S.L.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.async.AsyncMethodCallback;
+import org.apache.thrift.async.TAsyncClientManager;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.transport.TNonblockingSocket;
+import org.apache.thrift.transport.TTransportException;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.splout.db.thrift.DNodeService;
+
+/**
+ * Non-blocking Thrift clients to the DNodes. All connections are driven by a single selector thread (a
+ * {@link TAsyncClientManager}), so that the number of requests in flight is not bound to the number of threads waiting
+ * for them. Each connection carries one call at a time: when all the connections to a DNode are busy and no more can
+ * be opened ({@link QNodeProperties#DNODE_ASYNC_MAX_CONNECTIONS}), calls wait in a queue instead of holding a thread.
+ * <p/>
+ * Futures are completed in the selector thread, so listeners that do heavy work must run in their own executor.
+ */
+public class AsyncDNodeClientPool {
+
+  /**
+   * A call to a DNode.
+   */
+  public static interface Call<T> {
+
+    /**
+     * Starts the call with the given client. The callback must be passed to the client.
+     */
+    @SuppressWarnings("rawtypes")
+    public void start(DNodeService.AsyncClient client, AsyncMethodCallback callback) throws TException;
+
+    /**
+     * Returns the result of the call (e.g. binarySqlQuery_call.getResult()) once completed.
+     */
+    public T result(Object completedCall) throws Exception;
+  }
+
+  private final TAsyncClientManager manager;
+  private final TProtocolFactory protocolFactory = new TBinaryProtocol.Factory();
+  private final int maxConnections;
+  private final long timeout;
+  private final ConcurrentMap<String, Connections> dnodes = new ConcurrentHashMap<String, Connections>();
+  private volatile boolean closed = false;
+
+  /**
+   * @param maxConnections The maximum number of connections to each DNode.
+   * @param timeout        Millis after which a call fails if the DNode hasn't answered, 0 for none.
+   */
+  public AsyncDNodeClientPool(int maxConnections, long timeout) throws IOException {
+    this.manager = new TAsyncClientManager();
+    this.maxConnections = maxConnections;
+    this.timeout = timeout;
+  }
+
+  /**
+   * The connections to one DNode and the calls waiting for one of them.
+   */
+  private class Connections {
+
+    final String host;
+    final int port;
+    final Queue<PooledClient> idle = new LinkedList<PooledClient>();
+    final Queue<Pending<?>> waiting = new LinkedList<Pending<?>>();
+    int open = 0;
+    boolean closed = false;
+
+    Connections(String dnode) {
+      int separator = dnode.lastIndexOf(":");
+      this.host = dnode.substring(0, separator);
+      this.port = Integer.parseInt(dnode.substring(separator + 1));
+    }
+
+    /**
+     * An idle connection, a new one if there is room, or null.
+     */
+    synchronized PooledClient take() throws IOException {
+      PooledClient client = idle.poll();
+      if (client == null && open < maxConnections) {
+        client = new PooledClient(protocolFactory, manager, new TNonblockingSocket(host, port));
+        if (timeout > 0) {
+          client.setTimeout(timeout);
+        }
+        open++;
+      }
+      return client;
+    }
+
+    /**
+     * Gives back a connection that can be reused. Returns the call that should use it next, if any.
+     */
+    synchronized Pending<?> release(PooledClient client) {
+      if (closed) {
+        client.close();
+        return null;
+      }
+      Pending<?> next = waiting.poll();
+      if (next == null) {
+        idle.add(client);
+      }
+      return next;
+    }
+
+    /**
+     * Forgets a connection that failed. Returns a call that was waiting and can now open a new one, if any.
+     */
+    synchronized Pending<?> discard() {
+      open--;
+      return waiting.poll();
+    }
+
+    synchronized boolean enqueueIfBusy(Pending<?> pending) {
+      if (closed) {
+        pending.future.setException(new TTransportException("Connections to " + host + ":" + port + " closed"));
+        return true;
+      }
+      if (idle.isEmpty() && open >= maxConnections) {
+        waiting.add(pending);
+        return true;
+      }
+      return false;
+    }
+
+    synchronized void close() {
+      // Connections in use are closed when given back
+      closed = true;
+      for (PooledClient client : idle) {
+        client.close();
+      }
+      idle.clear();
+      for (Pending<?> pending : waiting) {
+        pending.future.setException(new TTransportException("Connections to " + host + ":" + port + " closed"));
+      }
+      waiting.clear();
+    }
+  }
+
+  /**
+   * A call and the future of its result.
+   */
+  private class Pending<T> implements AsyncMethodCallback<Object> {
+
+    final Connections connections;
+    final Call<T> call;
+    final SettableFuture<T> future = SettableFuture.create();
+    PooledClient client;
+
+    Pending(Connections connections, Call<T> call) {
+      this.connections = connections;
+      this.call = call;
+    }
+
+    void start(PooledClient client) {
+      this.client = client;
+      if (future.isCancelled()) {
+        // Nobody wants it anymore
+        next(connections.release(client), client);
+        return;
+      }
+      try {
+        call.start(client, this);
+      } catch (Exception e) {
+        onError(e);
+      }
+    }
+
+    @Override
+    public void onComplete(Object completedCall) {
+      PooledClient used = client;
+      try {
+        future.set(call.result(completedCall));
+      } catch (Exception e) {
+        future.setException(e);
+      } finally {
+        next(connections.release(used), used);
+      }
+    }
+
+    @Override
+    public void onError(Exception e) {
+      if (client != null) {
+        client.close();
+      }
+      // Errors of the connection itself (refused, unresolved, timed out...), as the blocking clients report them
+      future.setException(e instanceof TException ? e : new TTransportException(e));
+      next(connections.discard(), null);
+    }
+  }
+
+  private void next(Pending<?> pending, PooledClient client) {
+    if (pending == null) {
+      return;
+    }
+    if (client != null) {
+      pending.start(client);
+    } else {
+      dispatch(pending);
+    }
+  }
+
+  private void dispatch(Pending<?> pending) {
+    if (closed) {
+      pending.future.setException(new TTransportException("Client pool closed"));
+      return;
+    }
+    PooledClient client;
+    try {
+      client = pending.connections.take();
+    } catch (IOException e) {
+      pending.future.setException(new TTransportException(e));
+      return;
+    }
+    if (client != null) {
+      pending.start(client);
+    } else if (!pending.connections.enqueueIfBusy(pending)) {
+      // A connection was freed meanwhile
+      dispatch(pending);
+    }
+  }
+
+  /**
+   * Sends the call to the DNode as soon as there is a connection for it. Cancelling the future before that happens
+   * skips the call.
+   */
+  public <T> ListenableFuture<T> call(String dnode, Call<T> call) {
+    Connections connections = dnodes.get(dnode);
+    if (connections == null) {
+      Connections newConnections = new Connections(dnode);
+      connections = dnodes.putIfAbsent(dnode, newConnections);
+      if (connections == null) {
+        connections = newConnections;
+      }
+    }
+    Pending<T> pending = new Pending<T>(connections, call);
+    dispatch(pending);
+    return pending.future;
+  }
+
+  /**
+   * Closes the idle connections to a DNode, e.g. because it left the cluster. Those in use are closed when they fail.
+   */
+  public void discard(String dnode) {
+    Connections connections = dnodes.remove(dnode);
+    if (connections != null) {
+      connections.close();
+    }
+  }
+
+  /**
+   * Number of connections open to a DNode, busy or not.
+   */
+  public int getOpenConnections(String dnode) {
+    Connections connections = dnodes.get(dnode);
+    if (connections == null) {
+      return 0;
+    }
+    synchronized (connections) {
+      return connections.open;
+    }
+  }
+
+  /**
+   * Number of calls to a DNode that are in flight or waiting for a connection, as seen by the replica selectors.
+   */
+  public int getOutstandingCalls(String dnode) {
+    Connections connections = dnodes.get(dnode);
+    if (connections == null) {
+      return 0;
+    }
+    synchronized (connections) {
+      return connections.open - connections.idle.size() + connections.waiting.size();
+    }
+  }
+
+  public void close() {
+    closed = true;
+    for (String dnode : dnodes.keySet()) {
+      discard(dnode);
+    }
+    manager.stop();
+  }
+
+  /**
+   * An async client whose connection can be closed.
+   */
+  private static class PooledClient extends DNodeService.AsyncClient {
+
+    PooledClient(TProtocolFactory protocolFactory, TAsyncClientManager manager, TNonblockingSocket transport) {
+      super(protocolFactory, manager, transport);
+    }
+
+    void close() {
+      ___transport.close();
+    }
+  }
+}
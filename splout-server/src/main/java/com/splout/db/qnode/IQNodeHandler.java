@@ -44,8 +44,38 @@ public interface IQNodeHandler {
 
   public QueryStatus query(String tablespace, String key, String sql, String partition) throws Exception;
 
+  /**
+   * Parameterized query: the params are bound, in order, to the placeholders ("?") of the sql.
+   */
+  public QueryStatus query(String tablespace, String key, String sql, List<Object> params, String partition)
+      throws Exception;
+
+  /**
+   * Streaming query: the rows are given to the sink as they arrive from the DNodes of the partition of the key, of the
+   * given partition or, if both are null, of all the partitions.
+   */
+  public void stream(String tablespace, String key, String sql, String partition, Streamer.RowSink sink)
+      throws Exception;
+
   public ArrayList<QueryStatus> multiQuery(String tablespace, List<String> keyMins, List<String> keyMaxs, String sql) throws Exception;
 
+  /**
+   * Multi-query whose partition results are merged as a single result sorted by orderBy and limited to limit rows.
+   */
+  public QueryStatus sortedMultiQuery(String tablespace, List<String> keyMins, List<String> keyMaxs, String sql,
+      String orderBy, int limit) throws Exception;
+
+  /**
+   * Multi-query whose partition results are merged by group into a single result, as told by the aggregates spec.
+   */
+  public QueryStatus aggregatedMultiQuery(String tablespace, List<String> keyMins, List<String> keyMaxs, String sql,
+      String aggregates) throws Exception;
+
+  /**
+   * Batch of lookups, each one to the partition of its own key. Returns one result per lookup, in the same order.
+   */
+  public ArrayList<QueryStatus> batchQuery(String tablespace, List<KeyLookup> lookups) throws Exception;
+
   public DeployInfo deploy(List<DeployRequest> deployReq) throws Exception;
 
   public StatusMessage rollback(List<SwitchVersionRequest> rollbackRequest) throws Exception;
@@ -0,0 +1,487 @@
+package com.splout.db.qnode;
+
+/*
+ * #%L
+ * Splout SQL Server
+ * %%
+ * Copyright (C) 2012 Datasalt Systems S.L.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.splout.db.common.ColumnarQueryResult;
+import com.splout.db.common.ColumnarQueryResult.Column;
+import com.splout.db.qnode.Querier.QuerierException;
+import com.splout.db.qnode.beans.QueryStatus;
+
+/**
+ * Merges the results of a GROUP BY query executed in several partitions as if it had been executed in a single one.
+ * Each partition returns partial aggregates for its own groups, and these are combined by group with a hash
+ * aggregation, so that only one row per group is returned.
+ * <p/>
+ * Which columns of the result are aggregates, and how they are merged, is told by a spec like
+ * "total:SUM, n:COUNT, avg_price:AVG(n)" ({@link #parse(String)}). The rest of the columns are the group key. Averages
+ * can't be merged by themselves, so AVG needs the column with the COUNT of the same values it averages, used as the
+ * weight of each partial average.
+ * <p/>
+ * Partial results that come as {@link ColumnarQueryResult}s are aggregated straight from their column vectors, so that
+ * integer and floating point aggregates are not boxed.
+ */
+public class PartialAggregation {
+
+  public static enum Function {
+    COUNT, SUM, MIN, MAX, AVG
+  }
+
+  /**
+   * A column of the result to be merged with a function.
+   */
+  public static class Aggregate {
+
+    private final String column;
+    private final Function function;
+    private final String countColumn;
+
+    public Aggregate(String column, Function function, String countColumn) {
+      this.column = column;
+      this.function = function;
+      this.countColumn = countColumn;
+    }
+
+    public String getColumn() {
+      return column;
+    }
+
+    public Function getFunction() {
+      return function;
+    }
+
+    /**
+     * The column with the count of values averaged, only for {@link Function#AVG}.
+     */
+    public String getCountColumn() {
+      return countColumn;
+    }
+
+    @Override
+    public String toString() {
+      return column + ":" + function + (countColumn != null ? "(" + countColumn + ")" : "");
+    }
+  }
+
+  /**
+   * Parses a spec like "total:SUM, n:COUNT, avg_price:AVG(n)": column names of the result, each one followed by the
+   * function that merges it (COUNT, SUM, MIN, MAX or AVG with the column that has the count of averaged values).
+   */
+  public static List<Aggregate> parse(String spec) throws QuerierException {
+    List<Aggregate> aggregates = new ArrayList<Aggregate>();
+    if (spec == null || spec.trim().isEmpty()) {
+      throw new QuerierException("At least one aggregate must be given");
+    }
+    for (String aggregate : spec.split(",")) {
+      String[] parts = aggregate.trim().split("\\s*:\\s*");
+      if (parts.length != 2 || parts[0].isEmpty()) {
+        throw new QuerierException("Invalid aggregate [" + aggregate + "], must be column:FUNCTION");
+      }
+      String function = parts[1].toUpperCase();
+      String countColumn = null;
+      if (function.startsWith("AVG(") && function.endsWith(")")) {
+        // Case of the column must be kept
+        countColumn = parts[1].substring(4, parts[1].length() - 1).trim();
+        function = "AVG";
+        if (countColumn.isEmpty()) {
+          throw new QuerierException("Invalid aggregate [" + aggregate + "], AVG needs a count column: AVG(column)");
+        }
+      }
+      Function f;
+      try {
+        f = Function.valueOf(function);
+      } catch (IllegalArgumentException e) {
+        throw new QuerierException("Invalid aggregate [" + aggregate + "], function must be one of "
+            + Arrays.toString(Function.values()));
+      }
+      if (f == Function.AVG && countColumn == null) {
+        throw new QuerierException("Invalid aggregate [" + aggregate + "], AVG needs a count column: AVG(column)");
+      }
+      aggregates.add(new Aggregate(parts[0], f, countColumn));
+    }
+    return aggregates;
+  }
+
+  private final List<Aggregate> aggregates;
+  private String[] groupColumns;
+  private final LinkedHashMap<List<Object>, Accumulator[]> groups = new LinkedHashMap<List<Object>, Accumulator[]>();
+
+  public PartialAggregation(List<Aggregate> aggregates) {
+    this.aggregates = aggregates;
+  }
+
+  /**
+   * Adds the partial result of one partition.
+   */
+  @SuppressWarnings("rawtypes")
+  public void add(QueryStatus partial) throws QuerierException {
+    if (partial.getColumnarResult() != null) {
+      add(partial.getColumnarResult());
+    } else if (partial.getResult() != null) {
+      for (Object row : partial.getResult()) {
+        add((Map) row);
+      }
+    }
+  }
+
+  void add(ColumnarQueryResult partial) throws QuerierException {
+    if (partial.size() == 0) {
+      return;
+    }
+    List<String> columnNames = Arrays.asList(partial.getColumnNames());
+    checkColumns(columnNames);
+    int[] groupIdx = new int[groupColumns.length];
+    for (int i = 0; i < groupColumns.length; i++) {
+      groupIdx[i] = columnNames.indexOf(groupColumns[i]);
+    }
+    Column[] columns = new Column[aggregates.size()];
+    Column[] countColumns = new Column[aggregates.size()];
+    for (int i = 0; i < aggregates.size(); i++) {
+      columns[i] = partial.getColumn(columnNames.indexOf(aggregates.get(i).getColumn()));
+      if (aggregates.get(i).getCountColumn() != null) {
+        countColumns[i] = partial.getColumn(columnNames.indexOf(aggregates.get(i).getCountColumn()));
+      }
+    }
+    for (int row = 0; row < partial.size(); row++) {
+      List<Object> key = new ArrayList<Object>(groupIdx.length);
+      for (int idx : groupIdx) {
+        key.add(groupValue(partial.getValue(row, idx)));
+      }
+      Accumulator[] accumulators = accumulators(key);
+      for (int i = 0; i < columns.length; i++) {
+        Column column = columns[i];
+        if (column.isNull(row)) {
+          continue;
+        }
+        long count = 1;
+        if (countColumns[i] != null) {
+          if (countColumns[i].getType() == Column.INTEGER && !countColumns[i].isNull(row)) {
+            count = countColumns[i].getLong(row);
+          } else if (countColumns[i].getValue(row) instanceof Number) {
+            count = ((Number) countColumns[i].getValue(row)).longValue();
+          } else {
+            continue;
+          }
+        }
+        switch (column.getType()) {
+        case Column.INTEGER:
+          accumulators[i].addLong(column.getLong(row), count);
+          break;
+        case Column.FLOAT:
+          accumulators[i].addDouble(column.getDouble(row), count);
+          break;
+        default:
+          accumulators[i].add(column.getValue(row), count);
+        }
+      }
+    }
+  }
+
+  @SuppressWarnings("rawtypes")
+  void add(Map row) throws QuerierException {
+    if (groupColumns == null) {
+      checkColumns(row.keySet());
+    }
+    List<Object> key = new ArrayList<Object>(groupColumns.length);
+    for (String column : groupColumns) {
+      key.add(groupValue(row.get(column)));
+    }
+    Accumulator[] accumulators = accumulators(key);
+    for (int i = 0; i < aggregates.size(); i++) {
+      Aggregate aggregate = aggregates.get(i);
+      Object value = row.get(aggregate.getColumn());
+      if (value == null) {
+        continue;
+      }
+      long count = 1;
+      if (aggregate.getCountColumn() != null) {
+        Object countValue = row.get(aggregate.getCountColumn());
+        if (!(countValue instanceof Number)) {
+          continue;
+        }
+        count = ((Number) countValue).longValue();
+      }
+      accumulators[i].add(value, count);
+    }
+  }
+
+  /**
+   * Checks that the aggregates are in the result and, the first time, takes the rest of the columns as the group key.
+   */
+  @SuppressWarnings("rawtypes")
+  private void checkColumns(Collection columnNames) throws QuerierException {
+    List<String> group = new ArrayList<String>();
+    for (Object column : columnNames) {
+      group.add((String) column);
+    }
+    for (Aggregate aggregate : aggregates) {
+      if (!group.remove(aggregate.getColumn())) {
+        throw new QuerierException("Aggregate column [" + aggregate.getColumn() + "] is not in the result");
+      }
+      if (aggregate.getCountColumn() != null && !columnNames.contains(aggregate.getCountColumn())) {
+        throw new QuerierException("Count column [" + aggregate.getCountColumn() + "] of [" + aggregate
+            + "] is not in the result");
+      }
+    }
+    if (groupColumns == null) {
+      groupColumns = group.toArray(new String[group.size()]);
+    }
+  }
+
+  private Accumulator[] accumulators(List<Object> key) {
+    Accumulator[] accumulators = groups.get(key);
+    if (accumulators == null) {
+      accumulators = new Accumulator[aggregates.size()];
+      for (int i = 0; i < accumulators.length; i++) {
+        accumulators[i] = newAccumulator(aggregates.get(i).getFunction());
+      }
+      groups.put(key, accumulators);
+    }
+    return accumulators;
+  }
+
+  /**
+   * Normalizes a value of the group key so that equal values are equal keys no matter how they were boxed.
+   */
+  private static Object groupValue(Object value) {
+    if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+      return ((Number) value).longValue();
+    } else if (value instanceof byte[]) {
+      return ByteBuffer.wrap((byte[]) value);
+    }
+    return value;
+  }
+
+  /**
+   * One row per group, in the order the groups were first seen.
+   */
+  public ArrayList<Map<String, Object>> result() {
+    ArrayList<Map<String, Object>> result = new ArrayList<Map<String, Object>>(groups.size());
+    for (Map.Entry<List<Object>, Accumulator[]> group : groups.entrySet()) {
+      Map<String, Object> row = new LinkedHashMap<String, Object>();
+      for (int i = 0; i < groupColumns.length; i++) {
+        Object value = group.getKey().get(i);
+        if (value instanceof Long) {
+          value = ColumnarQueryResult.boxInteger((Long) value);
+        } else if (value instanceof ByteBuffer) {
+          value = ((ByteBuffer) value).array();
+        }
+        row.put(groupColumns[i], value);
+      }
+      for (int i = 0; i < aggregates.size(); i++) {
+        row.put(aggregates.get(i).getColumn(), group.getValue()[i].result());
+      }
+      result.add(row);
+    }
+    return result;
+  }
+
+  /**
+   * Number of groups so far.
+   */
+  public int size() {
+    return groups.size();
+  }
+
+  private static Accumulator newAccumulator(Function function) {
+    switch (function) {
+    case COUNT:
+      return new SumAccumulator(true);
+    case SUM:
+      return new SumAccumulator(false);
+    case MIN:
+      return new ExtremeAccumulator(false);
+    case MAX:
+      return new ExtremeAccumulator(true);
+    default:
+      return new AvgAccumulator();
+    }
+  }
+
+  /**
+   * Merges the partial aggregates of a group. Count is the weight of the value, only used by averages.
+   */
+  static abstract class Accumulator {
+
+    void addLong(long value, long count) {
+      add(ColumnarQueryResult.boxInteger(value), count);
+    }
+
+    void addDouble(double value, long count) {
+      add(value, count);
+    }
+
+    abstract void add(Object value, long count);
+
+    abstract Object result();
+  }
+
+  /**
+   * Adds integers as longs until a floating point value shows up or the sum overflows, then as doubles. Partial counts
+   * are merged by adding them too.
+   */
+  static class SumAccumulator extends Accumulator {
+
+    private final boolean count;
+    private boolean seen = false;
+    private boolean isDouble = false;
+    private long longSum = 0;
+    private double doubleSum = 0;
+
+    SumAccumulator(boolean count) {
+      this.count = count;
+    }
+
+    @Override
+    void addLong(long value, long weight) {
+      seen = true;
+      if (isDouble) {
+        doubleSum += value;
+        return;
+      }
+      long sum = longSum + value;
+      // Overflow iff both operands have the same sign and the sum has a different one
+      if (((longSum ^ sum) & (value ^ sum)) < 0) {
+        isDouble = true;
+        doubleSum = (double) longSum + value;
+      } else {
+        longSum = sum;
+      }
+    }
+
+    @Override
+    void addDouble(double value, long weight) {
+      if (!isDouble) {
+        isDouble = true;
+        doubleSum = longSum;
+      }
+      seen = true;
+      doubleSum += value;
+    }
+
+    @Override
+    void add(Object value, long weight) {
+      if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+        addLong(((Number) value).longValue(), weight);
+      } else if (value instanceof Number) {
+        addDouble(((Number) value).doubleValue(), weight);
+      }
+      // Like SQLite, we ignore what's not a number
+    }
+
+    @Override
+    Object result() {
+      if (!seen) {
+        // Like SQL: the SUM of nothing is NULL, the COUNT 0
+        return count ? 0 : null;
+      }
+      return isDouble ? (Object) doubleSum : ColumnarQueryResult.boxInteger(longSum);
+    }
+  }
+
+  /**
+   * Minimum or maximum, comparing values like SQLite does.
+   */
+  static class ExtremeAccumulator extends Accumulator {
+
+    private final boolean max;
+    private boolean seenLong = false;
+    private long longExtreme;
+    private Object extreme;
+
+    ExtremeAccumulator(boolean max) {
+      this.max = max;
+    }
+
+    @Override
+    void addLong(long value, long count) {
+      if (!seenLong || (max ? value > longExtreme : value < longExtreme)) {
+        longExtreme = value;
+      }
+      seenLong = true;
+    }
+
+    @Override
+    void add(Object value, long count) {
+      if (value instanceof Long || value instanceof Integer) {
+        addLong(((Number) value).longValue(), count);
+        return;
+      }
+      if (extreme == null || better(value, extreme)) {
+        extreme = value;
+      }
+    }
+
+    private boolean better(Object value, Object than) {
+      int cmp = SortedMerge.compareValues(value, than);
+      return max ? cmp > 0 : cmp < 0;
+    }
+
+    @Override
+    Object result() {
+      if (!seenLong) {
+        return extreme;
+      }
+      Object longValue = ColumnarQueryResult.boxInteger(longExtreme);
+      return extreme == null || better(longValue, extreme) ? longValue : extreme;
+    }
+  }
+
+  /**
+   * Average of partial averages weighted by their counts.
+   */
+  static class AvgAccumulator extends Accumulator {
+
+    private double weightedSum = 0;
+    private long weight = 0;
+
+    @Override
+    void addLong(long value, long count) {
+      addDouble(value, count);
+    }
+
+    @Override
+    void addDouble(double value, long count) {
+      weightedSum += value * count;
+      weight += count;
+    }
+
+    @Override
+    void add(Object value, long count) {
+      if (value instanceof Number) {
+        addDouble(((Number) value).doubleValue(), count);
+      }
+    }
+
+    @Override
+    Object result() {
+      return weight == 0 ? null : (Object) (weightedSum / weight);
+    }
+  }
+}
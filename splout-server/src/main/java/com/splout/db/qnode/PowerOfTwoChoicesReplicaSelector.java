@@ -0,0 +1,134 @@
+package com.splout.db.qnode;
+
+/*
+ * #%L
+ * Splout SQL Server
+ * %%
+ * Copyright (C) 2012 Datasalt Systems S.L.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ReplicaSelector} that picks two random replicas not tried yet and queries the one with the lowest cost, being
+ * the cost of a DNode its latency times the number of requests in flight to it (plus one). In flight requests are the
+ * clients taken from the DNode's pool ({@link QNodeHandlerContext#getOutstandingRequests(String)}), so that a DNode
+ * that stops answering for a while (e.g. a GC pause) is avoided as soon as requests pile up on it.
+ * <p/>
+ * Latency is an exponentially weighted moving average of the calls to each DNode. It also decays while a DNode is not
+ * used, so that a DNode that was once slow is tried again after a while. Calls that fail count as if they had taken
+ * {@link QNodeProperties#QNODE_DNODE_POOL_TAKE_TIMEOUT}.
+ */
+public class PowerOfTwoChoicesReplicaSelector implements ReplicaSelector {
+
+  private final QNodeHandlerContext context;
+  private final double decayNanos;
+  private final long failureNanos;
+  private final ConcurrentMap<String, Latency> latencies = new ConcurrentHashMap<String, Latency>();
+  private final ThreadLocal<Random> random = new ThreadLocal<Random>() {
+
+    protected Random initialValue() {
+      return new Random();
+    }
+  };
+
+  // Weight of each new latency in the moving average
+  private final static double ALPHA = 0.3;
+
+  /**
+   * Moving average of the latency of a DNode.
+   */
+  static class Latency {
+
+    private double ewma = -1;
+    private long lastUpdate = System.nanoTime();
+
+    synchronized void update(long nanos, double decayNanos, long now) {
+      if (ewma < 0) {
+        ewma = nanos;
+      } else {
+        ewma = get(decayNanos, now) * (1 - ALPHA) + nanos * ALPHA;
+      }
+      lastUpdate = now;
+    }
+
+    synchronized double get(double decayNanos, long now) {
+      return ewma * Math.exp(-Math.max(0, now - lastUpdate) / decayNanos);
+    }
+  }
+
+  public PowerOfTwoChoicesReplicaSelector(QNodeHandlerContext context) {
+    this.context = context;
+    this.decayNanos = TimeUnit.MILLISECONDS.toNanos(context.getConfig().getLong(QNodeProperties.REPLICA_SELECTOR_DECAY,
+        10000));
+    this.failureNanos = TimeUnit.MILLISECONDS.toNanos(context.getConfig().getLong(
+        QNodeProperties.QNODE_DNODE_POOL_TAKE_TIMEOUT, 2000));
+  }
+
+  @Override
+  public int select(int partitionId, List<String> replicas, BitSet tried) {
+    int candidates = replicas.size() - tried.cardinality();
+    if (candidates <= 1) {
+      return tried.nextClearBit(0);
+    }
+    Random rnd = random.get();
+    int first = nthNotTried(tried, rnd.nextInt(candidates));
+    // A different one among the rest
+    int second = rnd.nextInt(candidates - 1);
+    second = nthNotTried(tried, second >= countNotTriedBefore(tried, first) ? second + 1 : second);
+    return cost(replicas.get(second)) < cost(replicas.get(first)) ? second : first;
+  }
+
+  private static int nthNotTried(BitSet tried, int n) {
+    int index = tried.nextClearBit(0);
+    for (int i = 0; i < n; i++) {
+      index = tried.nextClearBit(index + 1);
+    }
+    return index;
+  }
+
+  private static int countNotTriedBefore(BitSet tried, int index) {
+    return index - tried.get(0, index).cardinality();
+  }
+
+  /**
+   * The cost of sending a new request to the DNode.
+   */
+  double cost(String dnode) {
+    Latency latency = latencies.get(dnode);
+    double ewma = latency == null ? 0 : latency.get(decayNanos, System.nanoTime());
+    return ewma * (context.getOutstandingRequests(dnode) + 1);
+  }
+
+  @Override
+  public void report(String dnode, long nanos, boolean answered) {
+    Latency latency = latencies.get(dnode);
+    if (latency == null) {
+      Latency newLatency = new Latency();
+      latency = latencies.putIfAbsent(dnode, newLatency);
+      if (latency == null) {
+        latency = newLatency;
+      }
+    }
+    latency.update(answered ? nanos : Math.max(nanos, failureNanos), decayNanos, System.nanoTime());
+  }
+}
@@ -25,6 +25,7 @@ import com.splout.db.common.SploutConfiguration;
 import com.splout.db.qnode.rest.AdminServlet;
 import com.splout.db.qnode.rest.DeployRollbackServlet;
 import com.splout.db.qnode.rest.QueryServlet;
+import com.splout.db.qnode.rest.StreamServlet;
 import com.splout.db.qnode.rest.RewriteRuleHandler;
 import org.mortbay.jetty.Connector;
 import org.mortbay.jetty.Handler;
@@ -73,6 +74,7 @@ public class QNode {
         DefaultServlet defaultServlet = new DefaultServlet();
 
         context.addServlet(new ServletHolder(new QueryServlet(handler)), "/api/query");
+        context.addServlet(new ServletHolder(new StreamServlet(handler)), "/api/stream");
         context.addServlet(new ServletHolder(new AdminServlet(handler)), "/api/admin");
         context.addServlet(new ServletHolder(new DeployRollbackServlet(handler)), "/api/deploy");
 
@@ -33,6 +33,7 @@ import com.splout.db.hazelcast.*;
 import com.splout.db.qnode.Deployer.UnexistingVersion;
 import com.splout.db.qnode.QNodeHandlerContext.TablespaceVersionInfoException;
 import com.splout.db.qnode.Querier.QuerierException;
+import com.splout.db.qnode.Streamer.StreamerException;
 import com.splout.db.qnode.beans.*;
 import com.splout.db.thrift.DNodeService;
 import com.yammer.metrics.Metrics;
@@ -86,6 +87,7 @@ public class QNodeHandler implements IQNodeHandler {
   private QNodeHandlerContext context;
   private Deployer deployer;
   private Querier querier;
+  private Streamer streamer;
   private SploutConfiguration config;
   private CoordinationStructures coord;
   private Thread warmingThread;
@@ -140,6 +142,9 @@ public class QNodeHandler implements IQNodeHandler {
       // Update TablespaceVersions
       try {
         context.discardThriftClientCacheFor(dNodeInfo.getAddress());
+        if (streamer != null) {
+          streamer.discard(dNodeInfo.getTcpAddress());
+        }
         context.getTablespaceState().updateTablespaceVersions(dNodeInfo, QNodeHandlerContext.DNodeEvent.LEAVE);
         context.maybeBalance();
       } catch (TablespaceVersionInfoException e) {
@@ -222,6 +227,7 @@ public class QNodeHandler implements IQNodeHandler {
       // TODO: make this operation atomical. ConcurrentHashMap.clear() is not.
       log.info("Versions table removed!. Clearing up all tablespace versions.");
       context.getCurrentVersionsMap().clear();
+      retainCachedVersions();
       return;
     }
 
@@ -263,6 +269,7 @@ public class QNodeHandler implements IQNodeHandler {
     // Now instantiate modules
     deployer = new Deployer(context);
     querier = new Querier(context);
+    streamer = new Streamer(context);
     log.info(Thread.currentThread() + " - Initializing QNode [DONE].");
     warmingThread = new Thread() {
       @Override
@@ -346,6 +353,15 @@ public class QNodeHandler implements IQNodeHandler {
     log.info("Tablespaces versions after merging loaded disk state with HZ: " + vFinalBeingServed);
   }
 
+  /**
+   * Drops the cached query results of the versions that are not being served anymore.
+   */
+  private void retainCachedVersions() {
+    if (querier != null && querier.getResultCache() != null) {
+      querier.getResultCache().retainVersions(context.getCurrentVersionsMap());
+    }
+  }
+
   private void updateLocalTablespace(Map<String, Long> tablespacesAndVersions) throws IOException {
     log.info("Update local in-memory tablespace versions to serve: " + tablespacesAndVersions);
     if (tablespacesAndVersions == null) {
@@ -354,6 +370,7 @@ public class QNodeHandler implements IQNodeHandler {
     // CAREFUL TODO: That is not atomic. Something should
     // be done to make that update atomic.
     context.getCurrentVersionsMap().putAll(tablespacesAndVersions);
+    retainCachedVersions();
     String persistenceFolder = config.getString(HazelcastProperties.HZ_PERSISTENCE_FOLDER);
     if (persistenceFolder != null && !persistenceFolder.equals("")) {
       TablespaceVersionStore vStore = new TablespaceVersionStore(persistenceFolder);
@@ -371,6 +388,16 @@ public class QNodeHandler implements IQNodeHandler {
    */
   public QueryStatus query(String tablespace, String key, String sql, String partition)
       throws JSONSerDeException, QuerierException, SerializationException {
+    return query(tablespace, key, sql, null, partition);
+  }
+
+  /**
+   * Like {@link #query(String, String, String, String)} for a parameterized query: the params are bound, in order, to
+   * the placeholders ("?") of the SQL. As the SQL doesn't change with the params, the DNodes reuse the prepared
+   * statements across queries.
+   */
+  public QueryStatus query(String tablespace, String key, String sql, List<Object> params, String partition)
+      throws JSONSerDeException, QuerierException, SerializationException {
     if (sql == null) {
       return new ErrorQueryStatus("Null sql provided, can't query.");
     }
@@ -390,15 +417,37 @@ public class QNodeHandler implements IQNodeHandler {
     /*
      * The queries are handled by the specialized module {@link Querier}
 		 */
-    QueryStatus result = querier.query(tablespace, key, sql, partition);
-    if (result.getResult() != null) {
+    QueryStatus result = querier.query(tablespace, key, sql, params, partition);
+    if (result.getColumnarResult() != null) {
+      // Don't build the rows just for metering
+      meterResultSize.update(result.getColumnarResult().size());
+    } else if (result.getResult() != null) {
       meterResultSize.update(result.getResult().size());
     }
     return result;
   }
 
   /**
-   * Multi-query: use {@link Querier} for as many shards as needed and return a list of {@link QueryStatus}
+   * Streaming query: use {@link Streamer} for streaming the rows of the partition of the key, of the given partition
+   * or, if both are null, of all the partitions. Results are not limited in size as they are never held in memory.
+   */
+  public void stream(String tablespace, String key, String sql, String partition, Streamer.RowSink sink)
+      throws StreamerException, IOException, InterruptedException {
+    if (sql == null || sql.length() < 1) {
+      throw new StreamerException("Null or empty sql provided, can't query.");
+    }
+    if (key != null && partition != null) {
+      throw new StreamerException(
+          "(partition, key) parameters are mutually exclusive. Please use one or other, not both at the same time.");
+    }
+    meterQueriesServed.inc();
+    meterRequestsPerSecond.mark();
+    streamer.stream(tablespace, key, partition, sql, sink);
+  }
+
+  /**
+   * Multi-query: use {@link Querier} for querying as many shards as needed in parallel and return a list of
+   * {@link QueryStatus}
    * <p/>
    * Returns a list of {@link QueryStatus}.
    * @throws SerializationException 
@@ -415,6 +464,87 @@ public class QNodeHandler implements IQNodeHandler {
           "Empty sql provided, can't query.")}));
     }
 
+    Set<Integer> impactedKeys;
+    try {
+      impactedKeys = impactedPartitions(tablespaceName, keyMins, keyMaxs, sql);
+    } catch (QuerierException e) {
+      return new ArrayList<QueryStatus>(Arrays.asList(new QueryStatus[]{new ErrorQueryStatus(e.getMessage())}));
+    }
+    ArrayList<QueryStatus> toReturn = querier.multiQuery(tablespaceName, sql, impactedKeys);
+    meterQueriesServed.inc();
+    meterRequestsPerSecond.mark();
+    return toReturn;
+  }
+
+  /**
+   * Sorted multi-query: use {@link Querier} for querying as many shards as needed in parallel, with the ORDER BY and
+   * the LIMIT pushed down to them, and merge their results into a single {@link QueryStatus} with the global top
+   * limit rows. See {@link SortedMerge}.
+   */
+  public QueryStatus sortedMultiQuery(String tablespaceName, List<String> keyMins, List<String> keyMaxs, String sql,
+      String orderBy, int limit) throws QuerierException {
+    if (sql == null || sql.length() < 1) {
+      return new ErrorQueryStatus("Null or empty sql provided, can't query.");
+    }
+    Set<Integer> impactedKeys;
+    try {
+      impactedKeys = impactedPartitions(tablespaceName, keyMins, keyMaxs, sql);
+    } catch (QuerierException e) {
+      return new ErrorQueryStatus(e.getMessage());
+    }
+    // Sorted so that ties are resolved in partition order
+    QueryStatus result = querier.sortedMultiQuery(tablespaceName, sql, new TreeSet<Integer>(impactedKeys), orderBy,
+        limit);
+    meterQueriesServed.inc();
+    meterRequestsPerSecond.mark();
+    if (result.getResult() != null) {
+      meterResultSize.update(result.getResult().size());
+    }
+    return result;
+  }
+
+  /**
+   * Aggregated multi-query: use {@link Querier} for querying as many shards as needed in parallel and merge the
+   * partial aggregates of each group they return into a single {@link QueryStatus}. See {@link PartialAggregation}.
+   */
+  public QueryStatus aggregatedMultiQuery(String tablespaceName, List<String> keyMins, List<String> keyMaxs,
+      String sql, String aggregates) throws QuerierException {
+    if (sql == null || sql.length() < 1) {
+      return new ErrorQueryStatus("Null or empty sql provided, can't query.");
+    }
+    Set<Integer> impactedKeys;
+    try {
+      impactedKeys = impactedPartitions(tablespaceName, keyMins, keyMaxs, sql);
+    } catch (QuerierException e) {
+      return new ErrorQueryStatus(e.getMessage());
+    }
+    QueryStatus result = querier.aggregatedMultiQuery(tablespaceName, sql, impactedKeys, aggregates);
+    meterQueriesServed.inc();
+    meterRequestsPerSecond.mark();
+    if (result.getResult() != null) {
+      meterResultSize.update(result.getResult().size());
+    }
+    return result;
+  }
+
+  /**
+   * Batch query: use {@link Querier} for sending each lookup to the partition of its key, combining those that go to
+   * the same partition with the same SQL into a single query. Returns one {@link QueryStatus} per lookup, in the same
+   * order.
+   */
+  public ArrayList<QueryStatus> batchQuery(String tablespaceName, List<KeyLookup> lookups) {
+    ArrayList<QueryStatus> toReturn = querier.batchQuery(tablespaceName, lookups);
+    meterQueriesServed.inc();
+    meterRequestsPerSecond.mark();
+    return toReturn;
+  }
+
+  /**
+   * The partitions of the version being served of the tablespace that contain the given key ranges, or all of them if
+   * there are no ranges.
+   */
+  private Set<Integer> impactedPartitions(String tablespaceName, List<String> keyMins, List<String> keyMaxs,
+      String sql) throws QuerierException {
     if (keyMins.size() != keyMaxs.size()) {
       // This has to be handled before! We are not going to be polite here
       throw new RuntimeException(
@@ -425,14 +555,12 @@ public class QNodeHandler implements IQNodeHandler {
     Set<Integer> impactedKeys = new HashSet<Integer>();
     Long version = context.getCurrentVersionsMap().get(tablespaceName);
     if (version == null) {
-      return new ArrayList<QueryStatus>(Arrays.asList(new QueryStatus[]{new ErrorQueryStatus(
-          "No available version for tablespace " + tablespaceName)}));
+      throw new QuerierException("No available version for tablespace " + tablespaceName);
     }
     Tablespace tablespace = context.getTablespaceVersionsMap().get(
         new TablespaceVersion(tablespaceName, version));
     if (tablespace == null) { // This can happen if, at startup, we only received the version and not the DNodeInfo
-      return new ArrayList<QueryStatus>(Arrays.asList(new QueryStatus[]{new ErrorQueryStatus(
-          "No available information for tablespace version " + tablespaceName + "," + version)}));
+      throw new QuerierException("No available information for tablespace version " + tablespaceName + "," + version);
     }
     if (keyMins.size() == 0) {
       impactedKeys.addAll(tablespace.getPartitionMap().findPartitions(null, null)); // all partitions are hit
@@ -440,13 +568,7 @@ public class QNodeHandler implements IQNodeHandler {
     for (int i = 0; i < keyMins.size(); i++) {
       impactedKeys.addAll(tablespace.getPartitionMap().findPartitions(keyMins.get(i), keyMaxs.get(i)));
     }
-    ArrayList<QueryStatus> toReturn = new ArrayList<QueryStatus>();
-    for (Integer shardKey : impactedKeys) {
-      toReturn.add(querier.query(tablespaceName, sql, shardKey));
-    }
-    meterQueriesServed.inc();
-    meterRequestsPerSecond.mark();
-    return toReturn;
+    return impactedKeys;
   }
 
   /**
@@ -675,6 +797,12 @@ public class QNodeHandler implements IQNodeHandler {
    */
   @Override
   public void close() throws Exception {
+    if (querier != null) {
+      querier.close();
+    }
+    if (streamer != null) {
+      streamer.close();
+    }
     if (context != null) {
       context.close();
     }
@@ -21,6 +21,7 @@ package com.splout.db.qnode;
  * #L%
  */
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.Date;
@@ -85,6 +86,8 @@ public class QNodeHandlerContext {
 
   private final int thriftClientPoolSize;
   private final long dnodePoolTimeoutMillis;
+  // The non-blocking clients to the DNodes, null if disabled
+  private AsyncDNodeClientPool asyncDNodeClients;
 
   public QNodeHandlerContext(SploutConfiguration config, CoordinationStructures coordinationStructures) {
     this.config = config;
@@ -92,6 +95,14 @@ public class QNodeHandlerContext {
     this.thriftClientPoolSize = config.getInt(QNodeProperties.DNODE_POOL_SIZE);
     this.dnodePoolTimeoutMillis = config.getLong(QNodeProperties.QNODE_DNODE_POOL_TAKE_TIMEOUT);
     this.replicaBalancer = new ReplicaBalancer(this);
+    if (config.getBoolean(QNodeProperties.DNODE_ASYNC_CLIENTS, false)) {
+      try {
+        this.asyncDNodeClients = new AsyncDNodeClientPool(config.getInt(QNodeProperties.DNODE_ASYNC_MAX_CONNECTIONS, 16),
+            config.getLong(QNodeProperties.MULTIQUERY_TIMEOUT));
+      } catch (IOException e) {
+        throw new RuntimeException("Can't open the selector for the async DNode clients", e);
+      }
+    }
     initMetrics();
   }
 
@@ -237,6 +248,9 @@ public class QNodeHandlerContext {
         dnodeQueue.take().getOutputProtocol().getTransport().close();
       }
       thriftClientCache.remove(dnode); // to indicate that the DNode is not present
+      if (asyncDNodeClients != null) {
+        asyncDNodeClients.discard(dnode);
+      }
     } finally {
       thriftClientCacheLock.unlock();
     }
@@ -283,6 +297,23 @@ public class QNodeHandlerContext {
     return client;
   }
 
+  /**
+   * The requests to this DNode that are in flight: the clients of its pool that are taken plus, if
+   * {@link QNodeProperties#DNODE_ASYNC_CLIENTS} is enabled, the non-blocking calls to it that are running or waiting
+   * for a connection.
+   */
+  public int getOutstandingRequests(String dnode) {
+    int outstanding = 0;
+    BlockingQueue<DNodeService.Client> dnodeQueue = thriftClientCache.get(dnode);
+    if (dnodeQueue != null) {
+      outstanding = Math.max(0, thriftClientPoolSize - dnodeQueue.size());
+    }
+    if (asyncDNodeClients != null) {
+      outstanding += asyncDNodeClients.getOutstandingCalls(dnode);
+    }
+    return outstanding;
+  }
+
   /**
    * Return a Thrift client to the pool. This method is a bit tricky since we may want to return a connection when a
    * DNode already disconnected. Also, if the QNode is closing, we don't want to leave opened sockets around. To do it
@@ -454,6 +485,9 @@ public class QNodeHandlerContext {
 
   public void close() {
     closing.set(true); // will indicate other parts of this code that things have to be closed!
+    if (asyncDNodeClients != null) {
+      asyncDNodeClients.close();
+    }
     for (Map.Entry<String, BlockingQueue<DNodeService.Client>> entry : thriftClientCache.entrySet()) {
       while (entry.getValue().size() > 0) {
         try {
@@ -506,6 +540,13 @@ public class QNodeHandlerContext {
     return config;
   }
 
+  /**
+   * The non-blocking clients to the DNodes, or null if {@link QNodeProperties#DNODE_ASYNC_CLIENTS} is disabled.
+   */
+  public AsyncDNodeClientPool getAsyncDNodeClients() {
+    return asyncDNodeClients;
+  }
+
   public ConcurrentMap<String, BlockingQueue<DNodeService.Client>> getThriftClientCache() {
     return thriftClientCache;
   }
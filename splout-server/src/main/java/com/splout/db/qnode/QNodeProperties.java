@@ -91,4 +91,77 @@ public class QNodeProperties {
    * empty because all connections are being used.
    */
   public static final String QNODE_DNODE_POOL_TAKE_TIMEOUT = "qnode.dnode.pool.take.timeout";
+  /**
+   * Whether queries are sent to the DNodes through non-blocking clients driven by a single selector thread
+   * ({@link AsyncDNodeClientPool}) instead of the pool of blocking clients. Requests waiting for a connection then
+   * wait in a queue instead of holding a thread, and multi-queries need no thread per partition.
+   */
+  public static final String DNODE_ASYNC_CLIENTS = "qnode.dnode.async.clients";
+  /**
+   * The maximum number of non-blocking connections from each QNode to each DNode.
+   */
+  public static final String DNODE_ASYNC_MAX_CONNECTIONS = "qnode.dnode.async.max.connections";
+  /**
+   * The number of threads used by each QNode for querying the partitions impacted by a multi-query in parallel.
+   */
+  public static final String MULTIQUERY_THREADS = "qnode.multiquery.threads";
+  /**
+   * The deadline in millis for a multi-query. Partitions that don't answer before it are returned as errors.
+   */
+  public static final String MULTIQUERY_TIMEOUT = "qnode.multiquery.timeout";
+  /**
+   * The {@link ReplicaSelector} that chooses which replica of a partition is queried: the name of a class with a
+   * public constructor that receives the {@link QNodeHandlerContext}.
+   */
+  public static final String REPLICA_SELECTOR = "qnode.replica.selector";
+  /**
+   * For {@link PowerOfTwoChoicesReplicaSelector}: in how many millis the latency learned for a DNode is mostly
+   * forgotten while the DNode is not queried.
+   */
+  public static final String REPLICA_SELECTOR_DECAY = "qnode.replica.selector.decay";
+  /**
+   * Whether identical queries (same tablespace version, partition, SQL and params) that arrive while one of them is
+   * being answered by a DNode wait for that answer instead of being sent too. Helps with traffic spikes on the same
+   * keys, whether their results are cached or not.
+   */
+  public static final String QUERY_COALESCING = "qnode.query.coalescing";
+  /**
+   * Whether queries to partitions with more than one replica are hedged: if the queried DNode doesn't answer within
+   * {@link #HEDGED_REQUESTS_PERCENTILE} of the recent latencies, the query is sent to another replica too and the first
+   * answer is returned. Trades some extra load for lower tail latency. Only applies to the blocking clients, not if
+   * {@link #DNODE_ASYNC_CLIENTS} is enabled.
+   */
+  public static final String HEDGED_REQUESTS = "qnode.hedged.requests";
+  /**
+   * The percentile (0-100) of the recent latencies of the DNodes after which a query is hedged.
+   */
+  public static final String HEDGED_REQUESTS_PERCENTILE = "qnode.hedged.requests.percentile";
+  /**
+   * The minimum time in millis a query waits before being hedged, so that fast queries are never duplicated.
+   */
+  public static final String HEDGED_REQUESTS_MIN_DELAY = "qnode.hedged.requests.min.delay";
+  /**
+   * The size in MB of the cache of query results of each QNode. 0 disables it. Results are cached per tablespace
+   * version, so they are never stale, but non-deterministic queries (e.g. using random()) will return the same result.
+   */
+  public static final String RESULT_CACHE_MB = "qnode.result.cache.mb";
+  /**
+   * The maximum number of rows that a stream ({@link Streamer}) buffers between the DNodes and the HTTP client. When
+   * full, the DNodes are not read until the client catches up.
+   */
+  public static final String STREAM_BUFFER_ROWS = "qnode.stream.buffer.rows";
+  /**
+   * The timeout in millis for connecting to the streaming port of a DNode.
+   */
+  public static final String STREAM_CONNECT_TIMEOUT = "qnode.stream.connect.timeout";
+  /**
+   * The maximum number of partitions that this QNode streams from the same DNode at the same time, across all streams.
+   * The rest wait for their turn. It should not exceed the threads plus the queue of the streaming API of the DNodes
+   * (dnode.streaming.threads and dnode.streaming.queue.size), or they will reply that they are busy.
+   */
+  public static final String STREAM_DNODE_PARALLELISM = "qnode.stream.dnode.parallelism";
+  /**
+   * The time in millis that a partition keeps being retried while all of its DNodes reply that they are busy.
+   */
+  public static final String STREAM_BUSY_TIMEOUT = "qnode.stream.busy.timeout";
 }
@@ -21,30 +21,60 @@ package com.splout.db.qnode;
  * #L%
  */
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.thrift.TException;
+import org.apache.thrift.async.AsyncMethodCallback;
 import org.apache.thrift.transport.TTransportException;
 
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.splout.db.common.JSONSerDe;
 import com.splout.db.common.JSONSerDe.JSONSerDeException;
 import com.splout.db.common.PartitionMap;
-import com.splout.db.common.QueryResult;
 import com.splout.db.common.ReplicationEntry;
 import com.splout.db.common.ReplicationMap;
 import com.splout.db.common.Tablespace;
 import com.splout.db.dnode.DNodeHandler;
+import com.splout.db.engine.BinaryResultDecoder;
+import com.splout.db.engine.EngineManager;
 import com.splout.db.engine.ResultSerializer;
 import com.splout.db.engine.ResultSerializer.SerializationException;
 import com.splout.db.hazelcast.TablespaceVersion;
 import com.splout.db.qnode.beans.ErrorQueryStatus;
+import com.splout.db.qnode.beans.KeyLookup;
 import com.splout.db.qnode.beans.QueryStatus;
 import com.splout.db.thrift.DNodeException;
 import com.splout.db.thrift.DNodeService;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.stats.ExponentiallyDecayingSample;
 
 /**
  * The Querier is a specialized module (
@@ -60,6 +90,40 @@ public class Querier extends QNodeHandlerModule {
   private final static Log log = LogFactory.getLog(Querier.class);
   private boolean useBinaryProtocol = true;
 
+  // Scatter-gather executor used by multiQuery() to hit all impacted partitions in parallel
+  private ExecutorService multiQueryExecutor;
+  // Per-request deadline for multiQuery(), in milliseconds
+  private long multiQueryTimeout;
+  // Results of previous queries, null if disabled
+  private QueryResultCache resultCache;
+  // Limits of a combined query of batchQuery(), below SQLite's (500 compound SELECTs and 999 variables)
+  private final static int BATCH_MAX_TERMS = 250;
+  private final static int BATCH_MAX_PARAMS = 900;
+  // Column that tells which lookup of a batch each row is for
+  private final static String BATCH_LOOKUP_COLUMN = "__splout_lookup";
+  // Chooses the replica of each partition to query
+  private ReplicaSelector replicaSelector;
+
+  // Hedged queries, see hedgedQuery()
+  private final static int MIN_HEDGE_SAMPLES = 20;
+  private boolean hedgeQueries;
+  private double hedgePercentile;
+  private long hedgeMinDelay;
+  private ExecutorService hedgeExecutor;
+  // Recent latencies of the queries answered by the DNodes, in micros
+  private final ExponentiallyDecayingSample latencies = new ExponentiallyDecayingSample(1028, 0.015);
+  private volatile long hedgeDelay = Long.MAX_VALUE;
+  private volatile long hedgeDelayUpdated = 0;
+  private final Meter hedgedRequests = Metrics.newMeter(Querier.class, "hedged-requests", "requests",
+      TimeUnit.SECONDS);
+  private final Counter hedgeWins = Metrics.newCounter(Querier.class, "hedge-wins");
+  // Queries sent to the DNodes and not answered yet, shared by identical queries that arrive meanwhile
+  private boolean coalesceQueries;
+  private final ConcurrentMap<List<Object>, Flight> inFlight = new ConcurrentHashMap<List<Object>, Flight>();
+  private final Counter coalescedQueries = Metrics.newCounter(Querier.class, "coalesced-queries");
+  // Decodes the answers of the non-blocking DNode clients, null if they are disabled
+  private ExecutorService asyncCallbackExecutor;
+
   @SuppressWarnings("serial")
   public static final class QuerierException extends Exception {
 
@@ -77,6 +141,58 @@ public class Querier extends QNodeHandlerModule {
     if (context.getConfig().getBoolean(QNodeProperties.DISABLE_BINARY_PROTOCOL)) {
       this.useBinaryProtocol = false;
     }
+    this.multiQueryTimeout = context.getConfig().getLong(QNodeProperties.MULTIQUERY_TIMEOUT);
+    this.multiQueryExecutor = Executors.newFixedThreadPool(context.getConfig().getInt(QNodeProperties.MULTIQUERY_THREADS),
+        new ThreadFactoryBuilder().setNameFormat("multiquery-%d").setDaemon(true).build());
+    long resultCacheBytes = context.getConfig().getLong(QNodeProperties.RESULT_CACHE_MB, 0) * 1024 * 1024;
+    if (resultCacheBytes > 0) {
+      this.resultCache = new QueryResultCache(resultCacheBytes);
+    }
+    String selectorClass = context.getConfig().getString(QNodeProperties.REPLICA_SELECTOR,
+        PowerOfTwoChoicesReplicaSelector.class.getName());
+    try {
+      this.replicaSelector = Class.forName(selectorClass).asSubclass(ReplicaSelector.class)
+          .getConstructor(QNodeHandlerContext.class).newInstance(context);
+    } catch (Exception e) {
+      throw new IllegalArgumentException("Invalid " + QNodeProperties.REPLICA_SELECTOR + ": " + selectorClass, e);
+    }
+    this.hedgeQueries = context.getConfig().getBoolean(QNodeProperties.HEDGED_REQUESTS, false);
+    if (hedgeQueries) {
+      this.hedgePercentile = context.getConfig().getDouble(QNodeProperties.HEDGED_REQUESTS_PERCENTILE, 95) / 100;
+      this.hedgeMinDelay = TimeUnit.MILLISECONDS.toMicros(context.getConfig().getLong(
+          QNodeProperties.HEDGED_REQUESTS_MIN_DELAY, 5));
+      this.hedgeExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("hedged-query-%d")
+          .setDaemon(true).build());
+    }
+    this.coalesceQueries = context.getConfig().getBoolean(QNodeProperties.QUERY_COALESCING, true);
+    if (context.getAsyncDNodeClients() != null) {
+      this.asyncCallbackExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+          new ThreadFactoryBuilder().setNameFormat("dnode-callback-%d").setDaemon(true).build());
+    }
+  }
+
+  public ReplicaSelector getReplicaSelector() {
+    return replicaSelector;
+  }
+
+  /**
+   * The cache of query results, or null if it is disabled.
+   */
+  public QueryResultCache getResultCache() {
+    return resultCache;
+  }
+
+  /**
+   * Stops the threads used for multi-querying.
+   */
+  public void close() {
+    multiQueryExecutor.shutdownNow();
+    if (hedgeExecutor != null) {
+      hedgeExecutor.shutdownNow();
+    }
+    if (asyncCallbackExecutor != null) {
+      asyncCallbackExecutor.shutdownNow();
+    }
   }
 
   /**
@@ -89,6 +205,16 @@ public class Querier extends QNodeHandlerModule {
    */
   public QueryStatus query(String tablespaceName, String key, String sql, String partition) throws JSONSerDeException, QuerierException,
       SerializationException {
+    return query(tablespaceName, key, sql, null, partition);
+  }
+
+  /**
+   * Like {@link #query(String, String, String, String)} for a parameterized query: the params (may be null) are bound,
+   * in order, to the placeholders ("?") of the SQL by the DNode, which reuses the statement prepared for previous
+   * executions of the same SQL.
+   */
+  public QueryStatus query(String tablespaceName, String key, String sql, List<Object> params, String partition)
+      throws JSONSerDeException, QuerierException, SerializationException {
     Long version = context.getCurrentVersionsMap().get(tablespaceName);
     if (version == null) {
       return new ErrorQueryStatus("Unknown tablespace or no version ready to be served! (" + tablespaceName + ")");
@@ -119,34 +245,305 @@ public class Querier extends QNodeHandlerModule {
         }
       }
     }
-    return query(tablespaceName, sql, partitionId);
+    return query(tablespaceName, sql, params, partitionId);
+  }
+
+  /**
+   * API method for querying a tablespace when you already know the partition
+   * Id. Can be used for multi-querying.
+   */
+  public QueryStatus query(String tablespaceName, String sql, int partitionId) throws JSONSerDeException, SerializationException {
+    return query(tablespaceName, sql, null, partitionId);
+  }
+
+  /**
+   * Parameterized version of {@link #query(String, String, int)}. Parameterized queries always use the binary
+   * protocol.
+   */
+  public QueryStatus query(String tablespaceName, String sql, List<Object> params, int partitionId)
+      throws JSONSerDeException, SerializationException {
+    if (context.getAsyncDNodeClients() != null) {
+      return await(queryAsync(tablespaceName, sql, params, partitionId));
+    }
+    Route route = route(tablespaceName, sql, params, partitionId);
+    if (route.answer != null) {
+      return route.answer;
+    }
+    if (!coalesceQueries) {
+      return failover(route);
+    }
+    List<Object> flightKey = route.query.flightKey();
+    for (;;) {
+      // The leader waits for its own query, so it counts as a waiter until it is done
+      SettableFuture<QueryStatus> result = SettableFuture.create();
+      Flight flight = new Flight(result, 1);
+      Flight leader = inFlight.putIfAbsent(flightKey, flight);
+      if (leader == null) {
+        return lead(route, flightKey, flight, result);
+      }
+      ListenableFuture<QueryStatus> waiter = leader.join();
+      if (waiter != null) {
+        coalescedQueries.inc();
+        QueryStatus status = await(waiter);
+        if (status != null) {
+          return status;
+        }
+      }
+      // The leader was interrupted: run it again
+      inFlight.remove(flightKey, leader);
+    }
+  }
+
+  /**
+   * Runs a query that others may be waiting for, giving them its outcome through the result of the flight.
+   */
+  private QueryStatus lead(Route route, List<Object> flightKey, Flight flight, SettableFuture<QueryStatus> result)
+      throws JSONSerDeException, SerializationException {
+    try {
+      QueryStatus status = failover(route);
+      result.set(status);
+      return status;
+    } catch (JSONSerDeException e) {
+      result.setException(e);
+      throw e;
+    } catch (SerializationException e) {
+      result.setException(e);
+      throw e;
+    } catch (RuntimeException e) {
+      result.setException(e);
+      throw e;
+    } catch (Error e) {
+      result.setException(e);
+      throw e;
+    } finally {
+      inFlight.remove(flightKey, flight);
+    }
   }
 
-  private ThreadLocal<Map<Integer, Integer>> partitionRoundRobin = new ThreadLocal<Map<Integer, Integer>>() {
+  /**
+   * Queries the replicas of the partition until one answers or there are no more to try.
+   */
+  private QueryStatus failover(Route route) throws JSONSerDeException, SerializationException {
+    int partitionId = route.query.partitionId;
+    List<String> replicas = route.replicas;
+    BitSet triedNodes = new BitSet(replicas.size());
+    for (;;) { // Fail-over loop
+      int index = replicaSelector.select(partitionId, replicas, triedNodes);
+      triedNodes.set(index);
+      String electedNode = replicas.get(index);
+      DNodeQuery dnodeQuery = route.query.to(electedNode);
 
-    protected Map<Integer, Integer> initialValue() {
-      return new HashMap<Integer, Integer>();
+      try {
+        if (hedgeQueries && triedNodes.cardinality() < replicas.size()) {
+          return hedgedQuery(dnodeQuery, replicas, triedNodes);
+        }
+        return dnodeQuery.call();
+      } catch (JSONSerDeException e) {
+        throw e;
+      } catch (SerializationException e) {
+        throw e;
+      } catch (RuntimeException e) {
+        throw e;
+      } catch (Exception e) {
+        QueryStatus error = dnodeError(e, electedNode, triedNodes.cardinality(), replicas.size(), route.msg);
+        if (error != null) {
+          return error;
+        }
+      }
     }
-  };
+  }
 
-  public Map<Integer, Integer> getPartitionRoundRobin() {
-    return partitionRoundRobin.get();
+  /**
+   * Non-blocking version of {@link #query(String, String, List, int)}, only available if
+   * {@link QNodeProperties#DNODE_ASYNC_CLIENTS} is enabled. The replicas are failed over as in the blocking version,
+   * but no thread waits for the DNodes meanwhile. Cancelling the future abandons the query.
+   */
+  public ListenableFuture<QueryStatus> queryAsync(String tablespaceName, String sql, List<Object> params,
+      int partitionId) throws JSONSerDeException {
+    Route route = route(tablespaceName, sql, params, partitionId);
+    if (route.answer != null) {
+      return Futures.immediateFuture(route.answer);
+    }
+    if (!coalesceQueries) {
+      AsyncFailover failover = new AsyncFailover(route);
+      failover.next();
+      return failover.result;
+    }
+    final List<Object> flightKey = route.query.flightKey();
+    for (;;) {
+      final AsyncFailover failover = new AsyncFailover(route);
+      final Flight flight = new Flight(failover.result, 0);
+      Flight leader = inFlight.putIfAbsent(flightKey, flight);
+      if (leader != null) {
+        ListenableFuture<QueryStatus> waiter = leader.join();
+        if (waiter == null) {
+          // Abandoned by all its waiters just now
+          inFlight.remove(flightKey, leader);
+          continue;
+        }
+        coalescedQueries.inc();
+        return orRunAgain(waiter, tablespaceName, sql, params, partitionId);
+      }
+      failover.result.addListener(new Runnable() {
+        @Override
+        public void run() {
+          inFlight.remove(flightKey, flight);
+        }
+      }, MoreExecutors.sameThreadExecutor());
+      ListenableFuture<QueryStatus> waiter = flight.join();
+      failover.next();
+      return orRunAgain(waiter, tablespaceName, sql, params, partitionId);
+    }
   }
 
   /**
-   * API method for querying a tablespace when you already know the partition
-   * Id. Can be used for multi-querying.
+   * A query in flight and the identical queries waiting for its outcome. Each waiter gets its own copy of the
+   * outcome, and the query is cancelled once all of them stop waiting.
    */
-  public QueryStatus query(String tablespaceName, String sql, int partitionId) throws JSONSerDeException, SerializationException {
-    String msg = "tablespace[" + tablespaceName + "] partition[" + partitionId + "] sql[" + sql + "]";
+  private class Flight {
+
+    final ListenableFuture<QueryStatus> result;
+    private int waiters;
+    private boolean abandoned = false;
+
+    Flight(ListenableFuture<QueryStatus> result, int waiters) {
+      this.result = result;
+      this.waiters = waiters;
+    }
+
+    /**
+     * A future for a new waiter, or null if the query has been abandoned already. The future is completed with null if
+     * the query is interrupted (e.g. by the deadline of another waiter), meaning that it has to be run again.
+     * Cancelling it stops waiting.
+     */
+    ListenableFuture<QueryStatus> join() {
+      synchronized (this) {
+        if (abandoned) {
+          return null;
+        }
+        waiters++;
+      }
+      final SettableFuture<QueryStatus> waiter = SettableFuture.create();
+      result.addListener(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            QueryStatus status = result.get();
+            waiter.set(status instanceof InterruptedQueryStatus ? null : copy(status));
+          } catch (CancellationException e) {
+            waiter.set(null);
+          } catch (ExecutionException e) {
+            waiter.setException(e.getCause());
+          } catch (Throwable t) {
+            waiter.setException(t);
+          }
+        }
+      }, MoreExecutors.sameThreadExecutor());
+      waiter.addListener(new Runnable() {
+        @Override
+        public void run() {
+          if (waiter.isCancelled()) {
+            leave();
+          }
+        }
+      }, MoreExecutors.sameThreadExecutor());
+      return waiter;
+    }
+
+    private void leave() {
+      synchronized (this) {
+        if (--waiters > 0) {
+          return;
+        }
+        abandoned = true;
+      }
+      result.cancel(false);
+    }
+  }
+
+  /**
+   * A copy of the outcome of a query for one of its waiters, rows included. The columnar result is never modified, so
+   * it is shared.
+   */
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  private static QueryStatus copy(QueryStatus status) {
+    QueryStatus copy = (status instanceof ErrorQueryStatus) ? new ErrorQueryStatus(status.getError())
+        : new QueryStatus();
+    if (status.getColumnarResult() != null) {
+      copy.setColumnarResult(status.getColumnarResult());
+    } else if (status.getResult() != null) {
+      copy.setResult(QueryResultCache.copyRows(status.getResult()));
+    }
+    copy.setError(status.getError());
+    copy.setShard(status.getShard());
+    copy.setMillis(status.getMillis());
+    return copy;
+  }
+
+  /**
+   * Runs the query again if the flight that was waited for completes with null (see {@link Flight#join()}).
+   */
+  private ListenableFuture<QueryStatus> orRunAgain(ListenableFuture<QueryStatus> waiter, final String tablespaceName,
+      final String sql, final List<Object> params, final int partitionId) {
+    return Futures.transform(waiter, new AsyncFunction<QueryStatus, QueryStatus>() {
+      @Override
+      public ListenableFuture<QueryStatus> apply(QueryStatus status) throws Exception {
+        return status != null ? Futures.immediateFuture(status) : queryAsync(tablespaceName, sql, params,
+            partitionId);
+      }
+    });
+  }
+
+  /**
+   * The error of a query whose thread was interrupted. Those waiting for the same query don't get it.
+   */
+  private static class InterruptedQueryStatus extends ErrorQueryStatus {
+
+    InterruptedQueryStatus(String error) {
+      super(error);
+    }
+  }
+
+  /**
+   * Where a query to a partition has to be sent: the replicas of the partition, unless the answer is already known
+   * (an error, or a cached result).
+   */
+  private class Route {
+
+    QueryStatus answer;
+    List<String> replicas;
+    // The query, with no DNode yet
+    DNodeQuery query;
+    // To describe the query in errors
+    String msg;
+  }
+
+  private Route route(String tablespaceName, String sql, List<Object> params, int partitionId)
+      throws JSONSerDeException {
+    // Sent to the DNode as a JSON array, which is also part of the key of the result cache
+    String jsonParams = (params != null) ? JSONSerDe.ser(params) : null;
+    String cacheKey = (params != null) ? sql + "\u0000" + jsonParams : sql;
+    Route route = new Route();
+    String msg = "tablespace[" + tablespaceName + "] partition[" + partitionId + "] sql[" + sql + "]"
+        + (params != null ? " params[" + jsonParams + "]" : "");
+    route.msg = msg;
 
     Long version = context.getCurrentVersionsMap().get(tablespaceName);
     if (version == null) {
-      return new ErrorQueryStatus("Unknown tablespace! [" + tablespaceName + "] for " + msg);
+      route.answer = new ErrorQueryStatus("Unknown tablespace! [" + tablespaceName + "] for " + msg);
+      return route;
     }
     Tablespace tablespace = context.getTablespaceVersionsMap().get(new TablespaceVersion(tablespaceName, version));
     if (tablespace == null) {
-      return new ErrorQueryStatus("Unknown tablespace! [" + tablespaceName + "] for " + msg);
+      route.answer = new ErrorQueryStatus("Unknown tablespace! [" + tablespaceName + "] for " + msg);
+      return route;
+    }
+    if (resultCache != null) {
+      QueryStatus cached = resultCache.get(tablespaceName, version, partitionId, cacheKey);
+      if (cached != null) {
+        route.answer = cached;
+        return route;
+      }
     }
     ReplicationMap replicationMap = tablespace.getReplicationMap();
     ReplicationEntry repEntry = null;
@@ -158,105 +555,759 @@ public class Querier extends QNodeHandlerModule {
     }
 
     if (repEntry == null) {
-      return new ErrorQueryStatus("Incomplete Tablespace information for tablespace [" + tablespaceName
+      route.answer = new ErrorQueryStatus("Incomplete Tablespace information for tablespace [" + tablespaceName
           + "] Maybe let the Splout warmup a little bit and try later?. For resolving " + msg);
+      return route;
     }
     if (repEntry.getNodes().size() == 0) { // No one alive for serving the
                                            // query!
-      return new ErrorQueryStatus("No alive DNodes for " + tablespace + " for " + msg);
+      route.answer = new ErrorQueryStatus("No alive DNodes for " + tablespace + " for " + msg);
+      return route;
     }
+    route.replicas = repEntry.getNodes();
+    route.query = new DNodeQuery(null, tablespaceName, version, partitionId, sql, params, jsonParams, cacheKey);
+    return route;
+  }
 
-    String electedNode;
-    int tried = 0;
-    for (;;) { // Fail-over loop
-      electedNode = null;
-      Integer lastNode = partitionRoundRobin.get().get(partitionId);
-      if (lastNode == null) {
-        lastNode = -1;
-      }
-      lastNode++;
-      tried++;
-      int index = lastNode % repEntry.getNodes().size();
-      electedNode = repEntry.getNodes().get(index);
-      partitionRoundRobin.get().put(partitionId, index);
-
-      // Perform query
-      QueryStatus qStatus = new QueryStatus();
+  /**
+   * What to do when querying a DNode failed: returns the error to answer with or null if another replica has to be
+   * tried.
+   */
+  private QueryStatus dnodeError(Exception e, String electedNode, int tried, int replicas, String msg) {
+    if (e instanceof TTransportException) {
+      if (tried == replicas) {
+        return new ErrorQueryStatus("Error connecting dnode[" + electedNode + "] for " + msg);
+      } else {
+        log.warn("TTransportException problem when connecting dnode[" + electedNode + "] at trial[" + tried + "] of["
+            + replicas + "] DNodes. Will retry. Info: " + msg, e);
+      }
+    } else if (e instanceof InterruptedException) {
+      log.info("Interrupt received when retrieving connection from pool for dnode[" + electedNode + "] " + msg, e);
+      // In this case we don't retry. This happens, for instance, when a multi-query deadline is reached.
+      return new InterruptedQueryStatus("Interrupted while waiting for a connection to dnode[" + electedNode + "] for " + msg);
+    } else if (e instanceof DNodeException) {
+      DNodeException dnodeException = (DNodeException) e;
+      if (dnodeException.getCode() == DNodeHandler.EXCEPTION_ORDINARY) {
+        // In this case we shoulndn't rety. Just return exception. Typically
+        // this error are syntax errors or this kind of things
+        return new ErrorQueryStatus(dnodeException.getMsg() + " from dnode[" + electedNode + "] for " + msg);
+      } else {
+        if (tried == replicas) {
+          return new ErrorQueryStatus("DNode exception [" + dnodeException.getMsg() + "] from dnode[" + electedNode
+              + "] for " + msg);
+        } else {
+          log.warn("Error resolving query with dnode[" + electedNode + "] at trial[" + tried + "] of[" + replicas
+              + "] DNodes. Will retry. Info: " + msg, e);
+        }
+      }
+    } else if (e instanceof PoolCreationException) {
+      if (tried == replicas) {
+        return new ErrorQueryStatus("Error creating pool for dnode[" + electedNode + "] for " + msg);
+      } else {
+        log.warn("Error creating pool for dnode[" + electedNode + "] at trial[" + tried + "] of[" + replicas
+            + "] DNodes. Will retry. Info: " + msg, e);
+      }
+    } else if (e instanceof DNodePoolFullException) {
+      if (tried == replicas) {
+        return new ErrorQueryStatus("Pool for dnode[" + electedNode + "] full after waiting for timeout. Consider increase  "
+            + QNodeProperties.DNODE_POOL_SIZE + " or increase " + QNodeProperties.QNODE_DNODE_POOL_TAKE_TIMEOUT
+            + " timeout for waiting for connections. " + msg);
+      } else {
+        log.warn("Pool for dnode[" + electedNode + "] FULL! at trial[" + tried + "] of[" + replicas
+            + "] DNodes. Will retry. Info: " + msg, e);
+      }
+    } else {
+      // Any other TException, or timeouts of async calls
+      if (tried == replicas) {
+        return new ErrorQueryStatus("Error connecting dnode[" + electedNode + "] for " + msg);
+      } else {
+        log.warn(e.getClass().getSimpleName() + " problem when connecting dnode[" + electedNode + "] at trial["
+            + tried + "] of[" + replicas + "] DNodes. Will retry. Info: " + msg, e);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Fails over the replicas of a partition with async calls, trying the next one when a call completes with an error.
+   */
+  private class AsyncFailover implements Runnable {
+
+    final Route route;
+    final BitSet triedNodes;
+    final SettableFuture<QueryStatus> result = SettableFuture.create();
+    volatile String electedNode;
+    volatile ListenableFuture<QueryStatus> attempt;
+
+    AsyncFailover(Route route) {
+      this.route = route;
+      this.triedNodes = new BitSet(route.replicas.size());
+      // Abandon the call in progress if nobody wants the result anymore
+      result.addListener(new Runnable() {
+        @Override
+        public void run() {
+          ListenableFuture<QueryStatus> current = attempt;
+          if (result.isCancelled() && current != null) {
+            current.cancel(false);
+          }
+        }
+      }, MoreExecutors.sameThreadExecutor());
+    }
+
+    void next() {
+      int index = replicaSelector.select(route.query.partitionId, route.replicas, triedNodes);
+      triedNodes.set(index);
+      electedNode = route.replicas.get(index);
+      attempt = route.query.to(electedNode).callAsync();
+      attempt.addListener(this, MoreExecutors.sameThreadExecutor());
+    }
+
+    /**
+     * Called when the attempt completes.
+     */
+    @Override
+    public void run() {
+      try {
+        result.set(attempt.get());
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof Exception && !(cause instanceof RuntimeException)
+            && !(cause instanceof JSONSerDeException) && !(cause instanceof SerializationException)) {
+          QueryStatus error = dnodeError((Exception) cause, electedNode, triedNodes.cardinality(),
+              route.replicas.size(), route.msg);
+          if (error != null) {
+            result.set(error);
+          } else if (!result.isCancelled()) {
+            next();
+          }
+        } else {
+          result.setException(cause);
+        }
+      } catch (Exception e) {
+        // Cancelled
+        result.setException(e);
+      }
+    }
+  }
+
+  /**
+   * Waits for the result of {@link #queryAsync(String, String, List, int)}.
+   */
+  private QueryStatus await(ListenableFuture<QueryStatus> future) throws JSONSerDeException, SerializationException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      future.cancel(false);
+      Thread.currentThread().interrupt();
+      return new ErrorQueryStatus("Interrupted while waiting for the DNode to answer");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof JSONSerDeException) {
+        throw (JSONSerDeException) cause;
+      } else if (cause instanceof SerializationException) {
+        throw (SerializationException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new RuntimeException(cause);
+    }
+  }
+
+  /**
+   * A query to one DNode, taking one of its pooled clients.
+   */
+  private class DNodeQuery implements Callable<QueryStatus> {
+
+    final String dnode;
+    final String tablespaceName;
+    final long version;
+    final int partitionId;
+    final String sql;
+    final List<Object> params;
+    final String jsonParams;
+    final String cacheKey;
+
+    DNodeQuery(String dnode, String tablespaceName, long version, int partitionId, String sql, List<Object> params,
+        String jsonParams, String cacheKey) {
+      this.dnode = dnode;
+      this.tablespaceName = tablespaceName;
+      this.version = version;
+      this.partitionId = partitionId;
+      this.sql = sql;
+      this.params = params;
+      this.jsonParams = jsonParams;
+      this.cacheKey = cacheKey;
+    }
+
+    /**
+     * Identical queries in flight share this key, whatever the DNode they are sent to.
+     */
+    List<Object> flightKey() {
+      return Arrays.<Object> asList(tablespaceName, version, partitionId, cacheKey);
+    }
+
+    /**
+     * The same query to another DNode.
+     */
+    DNodeQuery to(String otherDNode) {
+      return new DNodeQuery(otherDNode, tablespaceName, version, partitionId, sql, params, jsonParams, cacheKey);
+    }
+
+    @Override
+    public QueryStatus call() throws TException, InterruptedException, PoolCreationException, DNodePoolFullException,
+        JSONSerDeException, SerializationException {
       long start = System.currentTimeMillis();
+      long startNanos = System.nanoTime();
 
       DNodeService.Client client = null;
       boolean renew = false;
+      // Whether the DNode answered, for the replica selector
+      boolean answered = false;
 
       try {
-        client = context.getDNodeClientFromPool(electedNode);
+        client = context.getDNodeClientFromPool(dnode);
 
-        if (useBinaryProtocol) {
-          QueryResult r = ResultSerializer.deserialize(client.binarySqlQuery(tablespaceName, version, partitionId, sql));
-          qStatus.setResult((ArrayList) r.mapify());
+        QueryStatus qStatus;
+        if (useBinaryProtocol || params != null) {
+          ByteBuffer r = (params != null) ? client.binarySqlQueryWithParams(tablespaceName, version, partitionId, sql,
+              jsonParams) : client.binarySqlQuery(tablespaceName, version, partitionId, sql);
+          answered = true;
+          qStatus = binaryStatus(r, start);
         } else {
-          qStatus.setResult(JSONSerDe.deSer(client.sqlQuery(tablespaceName, version, partitionId, sql), ArrayList.class));
+          String r = client.sqlQuery(tablespaceName, version, partitionId, sql);
+          answered = true;
+          qStatus = jsonStatus(r, start);
         }
-
-        long end = System.currentTimeMillis();
-        // Report the time of the query
-        qStatus.setMillis((end - start));
-        // ... and the shard hit.
-        qStatus.setShard(partitionId);
         return qStatus;
-
       } catch (TTransportException e) {
         renew = true;
-        if (tried == repEntry.getNodes().size()) {
-          return new ErrorQueryStatus("Error connecting dnode[" + electedNode + "] for " + msg);
-        } else {
-          log.warn("TTransportException problem when connecting dnode[" + electedNode + "] at trial[" + tried + "] of["
-              + repEntry.getNodes().size() + "] DNodes. Will retry. Info: " + msg, e);
+        throw e;
+      } catch (DNodeException e) {
+        answered = (e.getCode() == DNodeHandler.EXCEPTION_ORDINARY);
+        throw e;
+      } finally {
+        if (client != null) {
+          context.returnDNodeClientToPool(dnode, client, renew);
+        }
+        report(startNanos, answered);
+      }
+    }
+
+    /**
+     * Like {@link #call()} but through the non-blocking clients. The result is decoded in the
+     * {@link #asyncCallbackExecutor}, not in the selector thread.
+     */
+    ListenableFuture<QueryStatus> callAsync() {
+      final long start = System.currentTimeMillis();
+      final long startNanos = System.nanoTime();
+      final ListenableFuture<Object> response = context.getAsyncDNodeClients().call(dnode,
+          new AsyncDNodeClientPool.Call<Object>() {
+
+            @SuppressWarnings("rawtypes")
+            @Override
+            public void start(DNodeService.AsyncClient client, AsyncMethodCallback callback) throws TException {
+              if (params != null) {
+                client.binarySqlQueryWithParams(tablespaceName, version, partitionId, sql, jsonParams, callback);
+              } else if (useBinaryProtocol) {
+                client.binarySqlQuery(tablespaceName, version, partitionId, sql, callback);
+              } else {
+                client.sqlQuery(tablespaceName, version, partitionId, sql, callback);
+              }
+            }
+
+            @Override
+            public Object result(Object completedCall) throws Exception {
+              if (completedCall instanceof DNodeService.AsyncClient.binarySqlQueryWithParams_call) {
+                return ((DNodeService.AsyncClient.binarySqlQueryWithParams_call) completedCall).getResult();
+              } else if (completedCall instanceof DNodeService.AsyncClient.binarySqlQuery_call) {
+                return ((DNodeService.AsyncClient.binarySqlQuery_call) completedCall).getResult();
+              }
+              return ((DNodeService.AsyncClient.sqlQuery_call) completedCall).getResult();
+            }
+          });
+      final SettableFuture<QueryStatus> status = SettableFuture.create();
+      response.addListener(new Runnable() {
+        @Override
+        public void run() {
+          boolean answered = false;
+          try {
+            Object r = response.get();
+            answered = true;
+            status.set(r instanceof ByteBuffer ? binaryStatus((ByteBuffer) r, start) : jsonStatus((String) r, start));
+          } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            answered = (cause instanceof DNodeException)
+                && ((DNodeException) cause).getCode() == DNodeHandler.EXCEPTION_ORDINARY;
+            status.setException(cause);
+          } catch (Throwable t) {
+            status.setException(t);
+          } finally {
+            report(startNanos, answered);
+          }
+        }
+      }, asyncCallbackExecutor);
+      status.addListener(new Runnable() {
+        @Override
+        public void run() {
+          if (status.isCancelled()) {
+            response.cancel(false);
+          }
+        }
+      }, MoreExecutors.sameThreadExecutor());
+      return status;
+    }
+
+    private QueryStatus binaryStatus(ByteBuffer r, long start) throws SerializationException {
+      QueryStatus qStatus = new QueryStatus();
+      int resultSize = r.remaining();
+      if (BinaryResultDecoder.isColumnarResult(r)) {
+        // Rows are only built if someone asks for them, JSON is written from the column vectors
+        qStatus.setColumnarResult(BinaryResultDecoder.decodeColumnar(r));
+      } else {
+        qStatus.setResult((ArrayList) ResultSerializer.deserialize(r).mapify());
+      }
+      return done(qStatus, resultSize, start);
+    }
+
+    private QueryStatus jsonStatus(String r, long start) throws JSONSerDeException {
+      QueryStatus qStatus = new QueryStatus();
+      qStatus.setResult(JSONSerDe.deSer(r, ArrayList.class));
+      return done(qStatus, r.length() * 2, start);
+    }
+
+    private QueryStatus done(QueryStatus qStatus, int resultSize, long start) {
+      if (resultCache != null) {
+        resultCache.put(tablespaceName, version, partitionId, cacheKey, qStatus, resultSize);
+      }
+      long end = System.currentTimeMillis();
+      // Report the time of the query
+      qStatus.setMillis((end - start));
+      // ... and the shard hit.
+      qStatus.setShard(partitionId);
+      return qStatus;
+    }
+
+    private void report(long startNanos, boolean answered) {
+      long nanos = System.nanoTime() - startNanos;
+      replicaSelector.report(dnode, nanos, answered);
+      if (answered && hedgeQueries) {
+        latencies.update(TimeUnit.NANOSECONDS.toMicros(nanos));
+      }
+    }
+  }
+
+  /**
+   * Sends the query to the elected DNode and, if it doesn't answer within the hedge delay ({@link #getHedgeDelay()}),
+   * to another replica that has not been tried yet too. The first answer wins, the other query is cancelled and, if
+   * it can't be interrupted, its result ignored. If both fail, the failure of the elected DNode is thrown.
+   */
+  private QueryStatus hedgedQuery(DNodeQuery dnodeQuery, List<String> replicas, BitSet triedNodes)
+      throws TException, InterruptedException, PoolCreationException, DNodePoolFullException, JSONSerDeException,
+      SerializationException {
+    CompletionService<QueryStatus> completion = new ExecutorCompletionService<QueryStatus>(hedgeExecutor);
+    List<Future<QueryStatus>> futures = new ArrayList<Future<QueryStatus>>(2);
+    futures.add(completion.submit(dnodeQuery));
+    try {
+      Future<QueryStatus> done = completion.poll(getHedgeDelay(), TimeUnit.MICROSECONDS);
+      if (done == null) {
+        int index = replicaSelector.select(dnodeQuery.partitionId, replicas, triedNodes);
+        triedNodes.set(index);
+        futures.add(completion.submit(dnodeQuery.to(replicas.get(index))));
+        hedgedRequests.mark();
+        done = completion.take();
+        if (failed(done)) {
+          done = completion.take();
+          if (failed(done)) {
+            // Report the failure of the elected DNode
+            done = futures.get(0);
+          }
         }
+        if (done == futures.get(1) && !failed(done)) {
+          hedgeWins.inc();
+        }
+      }
+      return result(done);
+    } finally {
+      for (Future<QueryStatus> future : futures) {
+        future.cancel(true);
+      }
+    }
+  }
+
+  private static boolean failed(Future<QueryStatus> done) throws InterruptedException {
+    try {
+      done.get();
+      return false;
+    } catch (ExecutionException e) {
+      return true;
+    }
+  }
+
+  private static QueryStatus result(Future<QueryStatus> done) throws TException, InterruptedException,
+      PoolCreationException, DNodePoolFullException, JSONSerDeException, SerializationException {
+    try {
+      return done.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof TException) {
+        throw (TException) cause;
+      } else if (cause instanceof InterruptedException) {
+        throw (InterruptedException) cause;
+      } else if (cause instanceof PoolCreationException) {
+        throw (PoolCreationException) cause;
+      } else if (cause instanceof DNodePoolFullException) {
+        throw (DNodePoolFullException) cause;
+      } else if (cause instanceof JSONSerDeException) {
+        throw (JSONSerDeException) cause;
+      } else if (cause instanceof SerializationException) {
+        throw (SerializationException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new RuntimeException(cause);
+    }
+  }
+
+  /**
+   * How long, in microseconds, a hedged query waits for the elected DNode before querying another replica: the
+   * {@link QNodeProperties#HEDGED_REQUESTS_PERCENTILE} of the recent latencies of the DNodes, recomputed at most once
+   * per second. Until there are enough latencies to tell, queries are not hedged.
+   */
+  long getHedgeDelay() {
+    long now = System.currentTimeMillis();
+    if (now - hedgeDelayUpdated > 1000) {
+      hedgeDelayUpdated = now;
+      if (latencies.size() < MIN_HEDGE_SAMPLES) {
+        hedgeDelay = Long.MAX_VALUE;
+      } else {
+        hedgeDelay = Math.max(hedgeMinDelay, (long) latencies.getSnapshot().getValue(hedgePercentile));
+      }
+    }
+    return hedgeDelay;
+  }
+
+  /**
+   * API method for querying several partitions of a tablespace at once (scatter-gather). All partitions are queried in
+   * parallel, each one through {@link #query(String, String, int)} so that per-partition failover is kept. Partitions
+   * that don't answer before {@link QNodeProperties#MULTIQUERY_TIMEOUT} are returned as an {@link ErrorQueryStatus}.
+   * The returned list follows the iteration order of the provided partitions.
+   */
+  public ArrayList<QueryStatus> multiQuery(String tablespaceName, String sql, Collection<Integer> partitionIds) {
+    List<PartitionQuery> queries = new ArrayList<PartitionQuery>(partitionIds.size());
+    for (Integer partitionId : partitionIds) {
+      queries.add(new PartitionQuery(partitionId, sql, null));
+    }
+    return scatter(tablespaceName, queries);
+  }
+
+  /**
+   * A query to one of the partitions of a scatter-gather.
+   */
+  private static class PartitionQuery {
+
+    final int partitionId;
+    final String sql;
+    final List<Object> params;
+
+    PartitionQuery(int partitionId, String sql, List<Object> params) {
+      this.partitionId = partitionId;
+      this.sql = sql;
+      this.params = params;
+    }
+  }
+
+  /**
+   * Sends each query to its partition, all in parallel, and returns their results in the same order. Those that don't
+   * answer before {@link QNodeProperties#MULTIQUERY_TIMEOUT} are returned as an {@link ErrorQueryStatus}.
+   */
+  private ArrayList<QueryStatus> scatter(final String tablespaceName, List<PartitionQuery> queries) {
+    if (context.getAsyncDNodeClients() != null) {
+      return asyncScatter(tablespaceName, queries);
+    }
+
+    // Even a single partition goes through the executor, so that the deadline applies to it too
+    ArrayList<QueryStatus> toReturn = new ArrayList<QueryStatus>(queries.size());
+    List<Callable<QueryStatus>> tasks = new ArrayList<Callable<QueryStatus>>(queries.size());
+    for (final PartitionQuery query : queries) {
+      tasks.add(new Callable<QueryStatus>() {
+        @Override
+        public QueryStatus call() throws Exception {
+          return query(tablespaceName, query.sql, query.params, query.partitionId);
+        }
+      });
+    }
+
+    List<Future<QueryStatus>> futures;
+    try {
+      // Tasks not finished when the deadline is reached are cancelled
+      futures = multiQueryExecutor.invokeAll(tasks, multiQueryTimeout, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      for (PartitionQuery query : queries) {
+        toReturn.add(multiQueryError(tablespaceName, query.partitionId, "Interrupted while waiting for the multi-query to finish"));
+      }
+      return toReturn;
+    }
+
+    int i = 0;
+    for (PartitionQuery query : queries) {
+      Future<QueryStatus> future = futures.get(i++);
+      try {
+        toReturn.add(future.get());
+      } catch (CancellationException e) {
+        toReturn.add(multiQueryError(tablespaceName, query.partitionId, "Deadline of [" + multiQueryTimeout
+            + "] ms reached. Consider increasing " + QNodeProperties.MULTIQUERY_TIMEOUT));
+      } catch (ExecutionException e) {
+        toReturn.add(multiQueryError(tablespaceName, query.partitionId, e.getCause().getMessage()));
       } catch (InterruptedException e) {
-        log.info("Interrupt received when retrieving connection from pool for dnode[" + electedNode + "] " + msg, e);
-        // In this case we don't retry.
-      } catch (DNodeException e) {
-        if (e.getCode() == DNodeHandler.EXCEPTION_ORDINARY) {
-          // In this case we shoulndn't rety. Just return exception. Typically
-          // this error are syntax errors or this kind of things
-          return new ErrorQueryStatus(e.getMsg() + " from dnode[" + electedNode + "] for " + msg);
-        } else {
-          if (tried == repEntry.getNodes().size()) {
-            return new ErrorQueryStatus("DNode exception [" + e.getMsg() + "] from dnode[" + electedNode + "] for " + msg);
-          } else {
-            log.warn("Error resolving query with dnode[" + electedNode + "] at trial[" + tried + "] of[" + repEntry.getNodes().size()
-                + "] DNodes. Will retry. Info: " + msg, e);
+        // Can't happen: invokeAll() only returns completed or cancelled futures
+        Thread.currentThread().interrupt();
+        toReturn.add(multiQueryError(tablespaceName, query.partitionId, "Interrupted while waiting for the multi-query to finish"));
+      }
+    }
+    return toReturn;
+  }
+
+  /**
+   * {@link #scatter(String, List)} with non-blocking clients: all the queries are sent at once by the calling thread,
+   * without going through the {@link #multiQueryExecutor}.
+   */
+  private ArrayList<QueryStatus> asyncScatter(String tablespaceName, List<PartitionQuery> queries) {
+    ArrayList<QueryStatus> toReturn = new ArrayList<QueryStatus>(queries.size());
+    List<ListenableFuture<QueryStatus>> futures = new ArrayList<ListenableFuture<QueryStatus>>(queries.size());
+    for (PartitionQuery query : queries) {
+      try {
+        futures.add(queryAsync(tablespaceName, query.sql, query.params, query.partitionId));
+      } catch (JSONSerDeException e) {
+        futures.add(Futures.<QueryStatus> immediateFailedFuture(e));
+      }
+    }
+    long deadline = System.currentTimeMillis() + multiQueryTimeout;
+    int i = 0;
+    for (PartitionQuery query : queries) {
+      ListenableFuture<QueryStatus> future = futures.get(i++);
+      try {
+        toReturn.add(future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS));
+      } catch (TimeoutException e) {
+        future.cancel(false);
+        toReturn.add(multiQueryError(tablespaceName, query.partitionId, "Deadline of [" + multiQueryTimeout
+            + "] ms reached. Consider increasing " + QNodeProperties.MULTIQUERY_TIMEOUT));
+      } catch (ExecutionException e) {
+        toReturn.add(multiQueryError(tablespaceName, query.partitionId, e.getCause().getMessage()));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        future.cancel(false);
+        toReturn.add(multiQueryError(tablespaceName, query.partitionId, "Interrupted while waiting for the multi-query to finish"));
+      }
+    }
+    return toReturn;
+  }
+
+  /**
+   * Batch of key lookups: each lookup is sent to the partition of its key. The lookups that go to the same partition
+   * with the same SQL are combined into a single query to the DNode, as a UNION ALL of the SQL of each lookup with its
+   * own params, tagged with the position of the lookup so that rows can be given back to it. All the combined queries
+   * are sent in parallel as in {@link #multiQuery(String, String, Collection)}. A combined query that hits the limit of
+   * results of the DNode is split in halves and sent again, so that only the lookups that hit it on their own fail.
+   * Returns one {@link QueryStatus} per lookup, in the same order.
+   */
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  public ArrayList<QueryStatus> batchQuery(String tablespaceName, List<KeyLookup> lookups) {
+    QueryStatus[] statuses = new QueryStatus[lookups.size()];
+    Long version = context.getCurrentVersionsMap().get(tablespaceName);
+    Tablespace tablespace = (version == null) ? null : context.getTablespaceVersionsMap().get(
+        new TablespaceVersion(tablespaceName, version));
+    if (tablespace == null) {
+      Arrays.fill(statuses, new ErrorQueryStatus("Unknown tablespace or no version ready to be served! ("
+          + tablespaceName + ")"));
+      return new ArrayList<QueryStatus>(Arrays.asList(statuses));
+    }
+    PartitionMap partitionMap = tablespace.getPartitionMap();
+
+    // Lookups by partition and SQL, in order of arrival
+    Map<List<Object>, List<Integer>> groups = new LinkedHashMap<List<Object>, List<Integer>>();
+    for (int i = 0; i < lookups.size(); i++) {
+      KeyLookup lookup = lookups.get(i);
+      if (lookup.getKey() == null || lookup.getSql() == null || lookup.getSql().length() < 1) {
+        statuses[i] = new ErrorQueryStatus("Null key or sql provided, can't query.");
+        continue;
+      }
+      int partitionId = partitionMap.findPartition(lookup.getKey());
+      if (partitionId == PartitionMap.NO_PARTITION) {
+        statuses[i] = new ErrorQueryStatus("Key out of partition ranges: " + lookup.getKey() + " for tablespace "
+            + tablespaceName);
+        continue;
+      }
+      List<Object> groupKey = Arrays.<Object> asList(partitionId, lookup.getSql());
+      List<Integer> group = groups.get(groupKey);
+      if (group == null) {
+        group = new ArrayList<Integer>();
+        groups.put(groupKey, group);
+      }
+      group.add(i);
+    }
+
+    // One query per group, unless it is too big for SQLite
+    List<LookupBatch> batches = new ArrayList<LookupBatch>();
+    for (Map.Entry<List<Object>, List<Integer>> group : groups.entrySet()) {
+      int partitionId = (Integer) group.getKey().get(0);
+      String inner = ((String) group.getKey().get(1)).trim();
+      while (inner.endsWith(";")) {
+        inner = inner.substring(0, inner.length() - 1).trim();
+      }
+      String term = "SELECT ? AS " + BATCH_LOOKUP_COLUMN + ", * FROM (" + inner + ")";
+      List<Integer> batch = new ArrayList<Integer>();
+      int batchParams = 0;
+      for (Integer lookupIndex : group.getValue()) {
+        List<Object> lookupParams = lookups.get(lookupIndex).getParams();
+        int nParams = 1 + (lookupParams != null ? lookupParams.size() : 0);
+        if (!batch.isEmpty() && (batch.size() >= BATCH_MAX_TERMS || batchParams + nParams > BATCH_MAX_PARAMS)) {
+          batches.add(new LookupBatch(partitionId, term, batch));
+          batch = new ArrayList<Integer>();
+          batchParams = 0;
+        }
+        batch.add(lookupIndex);
+        batchParams += nParams;
+      }
+      batches.add(new LookupBatch(partitionId, term, batch));
+    }
+
+    while (!batches.isEmpty()) {
+      List<PartitionQuery> queries = new ArrayList<PartitionQuery>(batches.size());
+      for (LookupBatch batch : batches) {
+        queries.add(batch.toQuery(lookups));
+      }
+      ArrayList<QueryStatus> results = scatter(tablespaceName, queries);
+      List<LookupBatch> retries = new ArrayList<LookupBatch>();
+      for (int q = 0; q < results.size(); q++) {
+        QueryStatus result = results.get(q);
+        LookupBatch batch = batches.get(q);
+        if (result.getError() != null) {
+          if (batch.lookupIndexes.size() > 1
+              && result.getError().contains(EngineManager.TooManyResultsException.MESSAGE)) {
+            // The limit of results of the DNode is for the combined query, not for each lookup: split and try again
+            int half = batch.lookupIndexes.size() / 2;
+            retries.add(new LookupBatch(batch.partitionId, batch.term, batch.lookupIndexes.subList(0, half)));
+            retries.add(new LookupBatch(batch.partitionId, batch.term, batch.lookupIndexes.subList(half,
+                batch.lookupIndexes.size())));
+            continue;
+          }
+          for (Integer lookupIndex : batch.lookupIndexes) {
+            statuses[lookupIndex] = result;
           }
+          continue;
         }
-      } catch (TException e) {
-        if (tried == repEntry.getNodes().size()) {
-          return new ErrorQueryStatus("Error connecting dnode[" + electedNode + "] for " + msg);
-        } else {
-          log.warn("TException problem when connecting dnode[" + electedNode + "] at trial[" + tried + "] of[" + repEntry.getNodes().size()
-              + "] DNodes. Will retry. Info: " + msg, e);
+        for (Integer lookupIndex : batch.lookupIndexes) {
+          QueryStatus status = new QueryStatus();
+          status.setResult(new ArrayList());
+          status.setShard(result.getShard());
+          status.setMillis(result.getMillis());
+          statuses[lookupIndex] = status;
         }
-      } catch (PoolCreationException e) {
-        if (tried == repEntry.getNodes().size()) {
-          return new ErrorQueryStatus("Error creating pool for dnode[" + electedNode + "] for " + msg);
-        } else {
-          log.warn("Error creating pool for dnode[" + electedNode + "] at trial[" + tried + "] of[" + repEntry.getNodes().size()
-              + "] DNodes. Will retry. Info: " + msg, e);
+        // Rows are never shared with the result cache nor with other waiters, so they can be changed
+        for (Object row : result.getResult()) {
+          Map<String, Object> lookupRow = (Map<String, Object>) row;
+          int lookupIndex = ((Number) lookupRow.remove(BATCH_LOOKUP_COLUMN)).intValue();
+          statuses[lookupIndex].getResult().add(lookupRow);
         }
-      } catch (DNodePoolFullException e) {
-        if (tried == repEntry.getNodes().size()) {
-          return new ErrorQueryStatus("Pool for dnode[" + electedNode + "] full after waiting for timeout. Consider increase  "
-              + QNodeProperties.DNODE_POOL_SIZE + " or increase " + QNodeProperties.QNODE_DNODE_POOL_TAKE_TIMEOUT
-              + " timeout for waiting for connections. " + msg);
-        } else {
-          log.warn("Pool for dnode[" + electedNode + "] FULL! at trial[" + tried + "] of[" + repEntry.getNodes().size()
-              + "] DNodes. Will retry. Info: " + msg, e);
+      }
+      batches = retries;
+    }
+    return new ArrayList<QueryStatus>(Arrays.asList(statuses));
+  }
+
+  /**
+   * Lookups of {@link #batchQuery(String, List)} to the same partition with the same SQL, combined into one query.
+   */
+  private static class LookupBatch {
+
+    final int partitionId;
+    // The SQL of each lookup, tagged with its position
+    final String term;
+    final List<Integer> lookupIndexes;
+
+    LookupBatch(int partitionId, String term, List<Integer> lookupIndexes) {
+      this.partitionId = partitionId;
+      this.term = term;
+      this.lookupIndexes = lookupIndexes;
+    }
+
+    PartitionQuery toQuery(List<KeyLookup> lookups) {
+      StringBuilder sql = new StringBuilder();
+      List<Object> params = new ArrayList<Object>();
+      for (Integer lookupIndex : lookupIndexes) {
+        if (sql.length() > 0) {
+          sql.append(" UNION ALL ");
         }
-      } finally {
-        if (client != null) {
-          context.returnDNodeClientToPool(electedNode, client, renew);
+        sql.append(term);
+        params.add(lookupIndex);
+        List<Object> lookupParams = lookups.get(lookupIndex).getParams();
+        if (lookupParams != null) {
+          params.addAll(lookupParams);
         }
       }
+      return new PartitionQuery(partitionId, sql.append(";").toString(), params);
+    }
+  }
+
+  /**
+   * Multi-query whose result is the result of the query as if all the partitions were a single one sorted by orderBy
+   * (see {@link SortedMerge#parse(String)}, may be null) and limited to limit rows. The sort and the limit are pushed
+   * down to each partition and their results merged with {@link SortedMerge}. If any partition fails the whole query
+   * fails, as the result would be wrong.
+   */
+  @SuppressWarnings("unchecked")
+  public QueryStatus sortedMultiQuery(String tablespaceName, String sql, Collection<Integer> partitionIds,
+      String orderBy, int limit) throws QuerierException {
+    if (limit <= 0) {
+      throw new QuerierException("limit must be greater than 0");
     }
+    List<SortedMerge.OrderBy> columns = SortedMerge.parse(orderBy);
+    long start = System.currentTimeMillis();
+    ArrayList<QueryStatus> partitionStatus = multiQuery(tablespaceName, SortedMerge.pushDown(sql, columns, limit),
+        partitionIds);
+    List<List> partitionResults = new ArrayList<List>(partitionStatus.size());
+    for (QueryStatus status : partitionStatus) {
+      if (status.getError() != null) {
+        return new ErrorQueryStatus(status.getError());
+      }
+      partitionResults.add(status.getResult());
+    }
+    QueryStatus merged = new QueryStatus();
+    merged.setResult(SortedMerge.merge(partitionResults, columns, limit));
+    merged.setMillis(System.currentTimeMillis() - start);
+    return merged;
+  }
+
+  /**
+   * Executes a GROUP BY query in all the partitions given and merges the partial aggregates of each group into a single
+   * result, as told by the aggregates spec. See {@link PartialAggregation}. If any partition fails, the error is
+   * returned instead.
+   */
+  public QueryStatus aggregatedMultiQuery(String tablespaceName, String sql, Collection<Integer> partitionIds,
+      String aggregates) throws QuerierException {
+    PartialAggregation aggregation = new PartialAggregation(PartialAggregation.parse(aggregates));
+    long start = System.currentTimeMillis();
+    for (QueryStatus status : multiQuery(tablespaceName, sql, partitionIds)) {
+      if (status.getError() != null) {
+        return new ErrorQueryStatus(status.getError());
+      }
+      aggregation.add(status);
+    }
+    QueryStatus merged = new QueryStatus();
+    merged.setResult(aggregation.result());
+    merged.setMillis(System.currentTimeMillis() - start);
+    return merged;
+  }
+
+  private static QueryStatus multiQueryError(String tablespaceName, int partitionId, String why) {
+    QueryStatus status = new ErrorQueryStatus(why + " for tablespace[" + tablespaceName + "] partition[" + partitionId + "]");
+    status.setShard(partitionId);
+    return status;
   }
 
   /**
@@ -0,0 +1,217 @@
+package com.splout.db.qnode;
+
+/*
+ * #%L
+ * Splout SQL Server
+ * %%
+ * Copyright (C) 2012 Datasalt Systems S.L.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.splout.db.common.ColumnarQueryResult;
+import com.splout.db.qnode.beans.QueryStatus;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+
+/**
+ * Cache of query results used by the {@link Querier}, keyed by (tablespace, version, partition, sql). As tablespace
+ * versions are immutable, a cached result is valid as long as its version is being served: stale versions are simply
+ * never asked for again, and are removed with {@link #retainVersions(Map)} when the served versions change.
+ * <p/>
+ * The cache is bounded by an approximate number of bytes (the size of the results as received from the DNodes) and
+ * evicts least recently used entries. Results bigger than 1/16th of the budget are not cached so that a single big
+ * query can't flush all the hot ones.
+ * <p/>
+ * Rows are copied in and out of the cache, so that callers that change a result (e.g. in-process users of the
+ * {@link IQNodeHandler}) can't change what later queries get.
+ */
+@SuppressWarnings("rawtypes")
+public class QueryResultCache {
+
+  // Rough per-entry overhead in bytes: key, entry and QueryStatus objects
+  final static int ENTRY_OVERHEAD = 128;
+
+  static class Key {
+
+    final String tablespace;
+    final long version;
+    final int partition;
+    final String sql;
+
+    Key(String tablespace, long version, int partition, String sql) {
+      this.tablespace = tablespace;
+      this.version = version;
+      this.partition = partition;
+      this.sql = sql;
+    }
+
+    @Override
+    public int hashCode() {
+      int result = tablespace.hashCode();
+      result = 31 * result + (int) (version ^ (version >>> 32));
+      result = 31 * result + partition;
+      result = 31 * result + sql.hashCode();
+      return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) obj;
+      return version == key.version && partition == key.partition && tablespace.equals(key.tablespace)
+          && sql.equals(key.sql);
+    }
+  }
+
+  static class CachedResult {
+
+    final ColumnarQueryResult columnarResult;
+    final ArrayList result;
+    final int weight;
+
+    CachedResult(ColumnarQueryResult columnarResult, ArrayList result, int weight) {
+      this.columnarResult = columnarResult;
+      this.result = result;
+      this.weight = weight;
+    }
+  }
+
+  private final Cache<Key, CachedResult> cache;
+  private final long maxEntryBytes;
+
+  public QueryResultCache(long maxBytes) {
+    this.maxEntryBytes = maxBytes / 16;
+    this.cache = CacheBuilder.newBuilder().maximumWeight(maxBytes).weigher(new Weigher<Key, CachedResult>() {
+      @Override
+      public int weigh(Key key, CachedResult value) {
+        return value.weight;
+      }
+    }).recordStats().build();
+
+    Metrics.newGauge(QueryResultCache.class, "result-cache-hit-ratio", new Gauge<Double>() {
+      @Override
+      public Double value() {
+        return cache.stats().hitRate();
+      }
+    });
+    Metrics.newGauge(QueryResultCache.class, "result-cache-hits", new Gauge<Long>() {
+      @Override
+      public Long value() {
+        return cache.stats().hitCount();
+      }
+    });
+    Metrics.newGauge(QueryResultCache.class, "result-cache-misses", new Gauge<Long>() {
+      @Override
+      public Long value() {
+        return cache.stats().missCount();
+      }
+    });
+    Metrics.newGauge(QueryResultCache.class, "result-cache-evictions", new Gauge<Long>() {
+      @Override
+      public Long value() {
+        return cache.stats().evictionCount();
+      }
+    });
+    Metrics.newGauge(QueryResultCache.class, "result-cache-entries", new Gauge<Long>() {
+      @Override
+      public Long value() {
+        return cache.size();
+      }
+    });
+  }
+
+  /**
+   * Returns a new {@link QueryStatus} with the cached result for this query, or null if it is not cached.
+   */
+  public QueryStatus get(String tablespace, long version, int partition, String sql) {
+    CachedResult cached = cache.getIfPresent(new Key(tablespace, version, partition, sql));
+    if (cached == null) {
+      return null;
+    }
+    QueryStatus status = new QueryStatus();
+    if (cached.columnarResult != null) {
+      status.setColumnarResult(cached.columnarResult);
+    } else {
+      status.setResult(copyRows(cached.result));
+    }
+    status.setShard(partition);
+    status.setMillis(0l);
+    return status;
+  }
+
+  /**
+   * Caches the result of a successful query. The size is the approximate size in bytes of the result (e.g. the
+   * size of the DNode response).
+   */
+  public void put(String tablespace, long version, int partition, String sql, QueryStatus status, int size) {
+    long weight = (long) size + sql.length() * 2 + ENTRY_OVERHEAD;
+    if (weight > maxEntryBytes) {
+      return;
+    }
+    CachedResult cached;
+    if (status.getColumnarResult() != null) {
+      cached = new CachedResult(status.getColumnarResult(), null, (int) weight);
+    } else {
+      cached = new CachedResult(null, copyRows(status.getResult()), (int) weight);
+    }
+    cache.put(new Key(tablespace, version, partition, sql), cached);
+  }
+
+  /**
+   * A copy of a list of rows and of each of the rows in it.
+   */
+  @SuppressWarnings("unchecked")
+  static ArrayList copyRows(ArrayList result) {
+    ArrayList rows = new ArrayList(result.size());
+    for (Object row : result) {
+      rows.add(row instanceof Map ? new LinkedHashMap((Map) row) : row);
+    }
+    return rows;
+  }
+
+  /**
+   * Drops the results of the versions that are not in the given (tablespace, version) map anymore.
+   */
+  public void retainVersions(Map<String, Long> currentVersions) {
+    for (Key key : cache.asMap().keySet()) {
+      Long version = currentVersions.get(key.tablespace);
+      if (version == null || version != key.version) {
+        cache.invalidate(key);
+      }
+    }
+  }
+
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  public long size() {
+    return cache.size();
+  }
+
+  public double hitRate() {
+    return cache.stats().hitRate();
+  }
+}
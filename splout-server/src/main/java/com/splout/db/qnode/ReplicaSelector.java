@@ -0,0 +1,51 @@
+package com.splout.db.qnode;
+
+/*
+ * #%L
+ * Splout SQL Server
+ * %%
+ * Copyright (C) 2012 Datasalt Systems S.L.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Strategy used by the {@link Querier} for choosing which replica of a partition is queried. The {@link Querier} keeps
+ * asking for another replica after each failure until all of them have been tried, and reports the outcome of each
+ * call so that implementations can learn how each DNode is doing.
+ * <p/>
+ * Implementations are configured through {@link QNodeProperties#REPLICA_SELECTOR} and must have a public constructor
+ * that receives the {@link QNodeHandlerContext}. They are called concurrently by all query threads.
+ */
+public interface ReplicaSelector {
+
+  /**
+   * Returns the index in replicas of the DNode to query next.
+   * 
+   * @param partitionId The partition being queried.
+   * @param replicas    The DNodes serving it.
+   * @param tried       The indexes of the replicas that have already been tried, and failed, for this query.
+   */
+  public int select(int partitionId, List<String> replicas, BitSet tried);
+
+  /**
+   * Called after each call to a DNode with the time it took, in nanoseconds, and whether it answered (even if the
+   * answer was an error in the query itself) or not.
+   */
+  public void report(String dnode, long nanos, boolean answered);
+}
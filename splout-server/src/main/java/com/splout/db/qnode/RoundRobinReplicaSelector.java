@@ -0,0 +1,66 @@
+package com.splout.db.qnode;
+
+/*
+ * #%L
+ * Splout SQL Server
+ * %%
+ * Copyright (C) 2012 Datasalt Systems S.L.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link ReplicaSelector} that cycles through the replicas of each partition, per thread, regardless of how they are
+ * doing. After a failure the next replica in the cycle is tried.
+ */
+public class RoundRobinReplicaSelector implements ReplicaSelector {
+
+  private ThreadLocal<Map<Integer, Integer>> partitionRoundRobin = new ThreadLocal<Map<Integer, Integer>>() {
+
+    protected Map<Integer, Integer> initialValue() {
+      return new HashMap<Integer, Integer>();
+    }
+  };
+
+  public RoundRobinReplicaSelector(QNodeHandlerContext context) {
+  }
+
+  /**
+   * The index of the last replica chosen by the current thread for each partition.
+   */
+  public Map<Integer, Integer> getPartitionRoundRobin() {
+    return partitionRoundRobin.get();
+  }
+
+  @Override
+  public int select(int partitionId, List<String> replicas, BitSet tried) {
+    Integer lastNode = partitionRoundRobin.get().get(partitionId);
+    if (lastNode == null) {
+      lastNode = -1;
+    }
+    int index = (lastNode + 1) % replicas.size();
+    partitionRoundRobin.get().put(partitionId, index);
+    return index;
+  }
+
+  @Override
+  public void report(String dnode, long nanos, boolean answered) {
+  }
+}
@@ -0,0 +1,218 @@
+package com.splout.db.qnode;
+
+/*
+ * #%L
+ * Splout SQL Server
+ * %%
+ * Copyright (C) 2012 Datasalt Systems S.L.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import com.splout.db.qnode.Querier.QuerierException;
+
+/**
+ * Merges the results of a query executed in several partitions as if it had been executed in a single one with an
+ * ORDER BY and a LIMIT. The ORDER BY and the LIMIT are pushed down to each partition ({@link #pushDown(String, List,
+ * int)}), so each one returns at most LIMIT sorted rows, and these are merged with a k-way merge that stops as soon as
+ * the global top LIMIT rows are found.
+ * <p/>
+ * Values are compared like SQLite does: NULL first, then numbers, then text, then blobs.
+ */
+public class SortedMerge {
+
+  /**
+   * A column of the ORDER BY clause.
+   */
+  public static class OrderBy {
+
+    private final String column;
+    private final boolean descending;
+
+    public OrderBy(String column, boolean descending) {
+      this.column = column;
+      this.descending = descending;
+    }
+
+    public String getColumn() {
+      return column;
+    }
+
+    public boolean isDescending() {
+      return descending;
+    }
+
+    @Override
+    public String toString() {
+      return "\"" + column.replace("\"", "\"\"") + "\"" + (descending ? " DESC" : " ASC");
+    }
+  }
+
+  /**
+   * Parses an ORDER BY clause like "score DESC, name": column names of the result, each one optionally followed by ASC
+   * or DESC. Null or empty means no order.
+   */
+  public static List<OrderBy> parse(String orderBy) throws QuerierException {
+    List<OrderBy> columns = new ArrayList<OrderBy>();
+    if (orderBy == null || orderBy.trim().isEmpty()) {
+      return columns;
+    }
+    for (String column : orderBy.split(",")) {
+      String[] parts = column.trim().split("\\s+");
+      if (parts.length == 1 && !parts[0].isEmpty()) {
+        columns.add(new OrderBy(parts[0], false));
+      } else if (parts.length == 2 && parts[1].equalsIgnoreCase("ASC")) {
+        columns.add(new OrderBy(parts[0], false));
+      } else if (parts.length == 2 && parts[1].equalsIgnoreCase("DESC")) {
+        columns.add(new OrderBy(parts[0], true));
+      } else {
+        throw new QuerierException("Invalid ORDER BY column [" + column + "], must be a column name optionally "
+            + "followed by ASC or DESC");
+      }
+    }
+    return columns;
+  }
+
+  /**
+   * The query that each partition executes: the original one sorted and limited.
+   */
+  public static String pushDown(String sql, List<OrderBy> orderBy, int limit) {
+    String inner = sql.trim();
+    while (inner.endsWith(";")) {
+      inner = inner.substring(0, inner.length() - 1).trim();
+    }
+    StringBuilder pushed = new StringBuilder("SELECT * FROM (").append(inner).append(")");
+    for (int i = 0; i < orderBy.size(); i++) {
+      pushed.append(i == 0 ? " ORDER BY " : ", ").append(orderBy.get(i));
+    }
+    return pushed.append(" LIMIT ").append(limit).append(";").toString();
+  }
+
+  /**
+   * Merges the sorted rows of each partition, returning the first limit rows. Ties are resolved in order of partition.
+   */
+  @SuppressWarnings("rawtypes")
+  public static ArrayList merge(List<List> partitionResults, final List<OrderBy> orderBy, int limit) {
+    final Comparator<Object> rowComparator = new Comparator<Object>() {
+      @Override
+      public int compare(Object row1, Object row2) {
+        for (OrderBy column : orderBy) {
+          int cmp = compareValues(((Map) row1).get(column.getColumn()), ((Map) row2).get(column.getColumn()));
+          if (cmp != 0) {
+            return column.isDescending() ? -cmp : cmp;
+          }
+        }
+        return 0;
+      }
+    };
+    PriorityQueue<Cursor> heads = new PriorityQueue<Cursor>(Math.max(1, partitionResults.size()),
+        new Comparator<Cursor>() {
+          @Override
+          public int compare(Cursor c1, Cursor c2) {
+            int cmp = rowComparator.compare(c1.current(), c2.current());
+            return cmp != 0 ? cmp : c1.partition - c2.partition;
+          }
+        });
+    for (int i = 0; i < partitionResults.size(); i++) {
+      List rows = partitionResults.get(i);
+      if (rows != null && rows.size() > 0) {
+        heads.add(new Cursor(i, rows));
+      }
+    }
+
+    ArrayList<Object> merged = new ArrayList<Object>();
+    while (merged.size() < limit && !heads.isEmpty()) {
+      Cursor head = heads.poll();
+      merged.add(head.current());
+      head.position++;
+      if (head.position < head.rows.size()) {
+        heads.add(head);
+      }
+    }
+    return merged;
+  }
+
+  @SuppressWarnings("rawtypes")
+  private static class Cursor {
+
+    final int partition;
+    final List rows;
+    int position = 0;
+
+    Cursor(int partition, List rows) {
+      this.partition = partition;
+      this.rows = rows;
+    }
+
+    Object current() {
+      return rows.get(position);
+    }
+  }
+
+  private static int typeOrder(Object value) {
+    if (value == null) {
+      return 0;
+    } else if (value instanceof Number) {
+      return 1;
+    } else if (value instanceof byte[]) {
+      return 3;
+    }
+    return 2;
+  }
+
+  /**
+   * Compares two values of a result like SQLite does when sorting.
+   */
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  static int compareValues(Object value1, Object value2) {
+    int type1 = typeOrder(value1);
+    int type2 = typeOrder(value2);
+    if (type1 != type2) {
+      return type1 - type2;
+    }
+    switch (type1) {
+    case 0:
+      return 0;
+    case 1:
+      if ((value1 instanceof Long || value1 instanceof Integer) && (value2 instanceof Long || value2 instanceof Integer)) {
+        long l1 = ((Number) value1).longValue();
+        long l2 = ((Number) value2).longValue();
+        return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+      }
+      return Double.compare(((Number) value1).doubleValue(), ((Number) value2).doubleValue());
+    case 3:
+      byte[] b1 = (byte[]) value1;
+      byte[] b2 = (byte[]) value2;
+      for (int i = 0; i < Math.min(b1.length, b2.length); i++) {
+        int cmp = (b1[i] & 0xff) - (b2[i] & 0xff);
+        if (cmp != 0) {
+          return cmp;
+        }
+      }
+      return b1.length - b2.length;
+    default:
+      if (value1 instanceof Comparable && value1.getClass() == value2.getClass()) {
+        return ((Comparable) value1).compareTo(value2);
+      }
+      return value1.toString().compareTo(value2.toString());
+    }
+  }
+}
@@ -0,0 +1,573 @@
+package com.splout.db.qnode;
+
+/*
+ * #%L
+ * Splout SQL Server
+ * %%
+ * Copyright (C) 2012 Datasalt Systems S.L.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.splout.db.common.PartitionMap;
+import com.splout.db.common.ReplicationEntry;
+import com.splout.db.common.Tablespace;
+import com.splout.db.dnode.TCPStreamer;
+import com.splout.db.hazelcast.DNodeInfo;
+import com.splout.db.hazelcast.TablespaceVersion;
+
+/**
+ * The Streamer is a specialized module ({@link QNodeHandlerModule}) of the {@link QNode} that executes a query in all
+ * the impacted partitions through the streaming API of the DNodes ({@link TCPStreamer}), merging their rows into a
+ * single stream. Unlike {@link Querier}, results are never held in memory as a whole, so their size is not limited.
+ * <p/>
+ * Each partition is read by a thread into a bounded buffer that is drained by the caller. When the caller is slower
+ * than the DNodes the buffer fills up, the threads stop reading their sockets and TCP slows the DNodes down. Rows of
+ * different partitions are interleaved in no particular order.
+ * <p/>
+ * The number of partitions read from the same DNode at the same time is bounded across all streams (see
+ * {@link QNodeProperties#STREAM_DNODE_PARALLELISM}), so that an unkeyed stream over many partitions doesn't overflow
+ * the queue of the DNode. A partition only gets a thread once it has one of those slots: the others wait in the queue
+ * of a DNode, so threads are bounded by the slots of the DNodes and not by the partitions being streamed. A partition
+ * whose DNodes reply that they are busy anyway (e.g. because of other QNodes) is retried with a backoff instead of
+ * failing over.
+ */
+public class Streamer extends QNodeHandlerModule {
+
+  private final static Log log = LogFactory.getLog(Streamer.class);
+
+  // Put in the buffer by each partition when it is done
+  private final static Object END_OF_PARTITION = new Object();
+  private final static long POLL_MILLIS = 100;
+  private final static long MAX_BUSY_BACKOFF_MILLIS = 1000;
+
+  private final ExecutorService readers;
+  // Runs the partitions again after backing off from busy DNodes
+  private final ScheduledExecutorService backoffs;
+  private final int bufferRows;
+  private final int connectTimeout;
+  private final int dnodeParallelism;
+  private final long busyTimeout;
+  // Streaming slots of each DNode, by streaming address
+  private final ConcurrentMap<String, DNodeSlots> dnodeSlots = new ConcurrentHashMap<String, DNodeSlots>();
+
+  @SuppressWarnings("serial")
+  public static final class StreamerException extends Exception {
+
+    public StreamerException(String msg) {
+      super(msg);
+    }
+
+    public StreamerException(String msg, Throwable t) {
+      super(msg, t);
+    }
+  }
+
+  /**
+   * Receives the rows of a stream, serialized with {@link com.splout.db.engine.ResultSerializer} as sent by the DNodes.
+   */
+  public interface RowSink {
+
+    public void row(byte[] serializedRow) throws IOException;
+
+    /**
+     * Called when no rows are ready at the moment, so that the ones received so far can be sent.
+     */
+    public void flush() throws IOException;
+  }
+
+  public Streamer(QNodeHandlerContext context) {
+    super(context);
+    this.bufferRows = context.getConfig().getInt(QNodeProperties.STREAM_BUFFER_ROWS, 1024);
+    this.connectTimeout = context.getConfig().getInt(QNodeProperties.STREAM_CONNECT_TIMEOUT, 5000);
+    this.dnodeParallelism = context.getConfig().getInt(QNodeProperties.STREAM_DNODE_PARALLELISM, 8);
+    this.busyTimeout = context.getConfig().getLong(QNodeProperties.STREAM_BUSY_TIMEOUT, 60000);
+    // Threads are bounded by the streaming slots of the DNodes
+    this.readers = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("stream-reader-%d")
+        .setDaemon(true).build());
+    this.backoffs = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+        .setNameFormat("stream-backoff-%d").setDaemon(true).build());
+  }
+
+  /**
+   * Stops the threads reading from the DNodes.
+   */
+  public void close() {
+    readers.shutdownNow();
+    backoffs.shutdownNow();
+  }
+
+  /**
+   * Forgets the streaming slots of a DNode that left the cluster. The partitions waiting for them go on with the rest
+   * of their replicas.
+   */
+  public void discard(final String streamingAddress) {
+    DNodeSlots slots = dnodeSlots.remove(streamingAddress);
+    if (slots != null) {
+      for (final PartitionReader reader : slots.discard()) {
+        reader.candidates.remove(streamingAddress);
+        if (!reader.candidates.isEmpty()) {
+          schedule(reader);
+          continue;
+        }
+        // Not failed from here, as it waits for room in the buffer
+        try {
+          readers.execute(new Runnable() {
+            @Override
+            public void run() {
+              reader.fail(new StreamerException("DNode[" + streamingAddress + "] left the cluster, no more DNodes for "
+                  + reader.msg));
+            }
+          });
+        } catch (RejectedExecutionException e) {
+          // Closed
+        }
+      }
+    }
+  }
+
+  /**
+   * Streams the result of the query in the partition of the key, in the given partition or, if both are null, in all
+   * the partitions of the tablespace. Returns when all the rows have been given to the sink.
+   * <p/>
+   * A {@link StreamerException} is thrown if the stream can't start or if it is broken by a DNode. In the second case
+   * some rows will have been given to the sink already.
+   */
+  public void stream(String tablespaceName, String key, String partition, String sql, RowSink sink)
+      throws StreamerException, IOException, InterruptedException {
+    Long version = context.getCurrentVersionsMap().get(tablespaceName);
+    if (version == null) {
+      throw new StreamerException("Unknown tablespace or no version ready to be served! (" + tablespaceName + ")");
+    }
+    Tablespace tablespace = context.getTablespaceVersionsMap().get(new TablespaceVersion(tablespaceName, version));
+    if (tablespace == null) {
+      throw new StreamerException("Unknown tablespace version:(" + version + ") tablespace:(" + tablespaceName + ")");
+    }
+    PartitionMap partitionMap = tablespace.getPartitionMap();
+
+    List<Integer> partitionIds = new ArrayList<Integer>();
+    if (key != null) {
+      int partitionId = partitionMap.findPartition(key);
+      if (partitionId == PartitionMap.NO_PARTITION) {
+        throw new StreamerException("Key out of partition ranges: " + key + " for tablespace " + tablespaceName);
+      }
+      partitionIds.add(partitionId);
+    } else if (partition != null) {
+      try {
+        partitionIds.add(Integer.parseInt(partition));
+      } catch (NumberFormatException e) {
+        throw new StreamerException("partition must be a valid partition number");
+      }
+    } else {
+      partitionIds.addAll(partitionMap.findPartitions(null, null));
+    }
+
+    // Resolve everything before starting, so that nothing has been streamed if it fails
+    List<PartitionReader> partitionReaders = new ArrayList<PartitionReader>();
+    BlockingQueue<Object> buffer = new ArrayBlockingQueue<Object>(bufferRows);
+    for (int partitionId : partitionIds) {
+      partitionReaders.add(new PartitionReader(tablespaceName, version, partitionId, sql,
+          getStreamingAddresses(tablespace, partitionId), buffer));
+    }
+
+    try {
+      for (PartitionReader reader : partitionReaders) {
+        schedule(reader);
+      }
+      int pending = partitionReaders.size();
+      while (pending > 0) {
+        Object next = buffer.poll();
+        if (next == null) {
+          sink.flush();
+          next = buffer.take();
+        }
+        if (next == END_OF_PARTITION) {
+          pending--;
+        } else if (next instanceof StreamerException) {
+          throw (StreamerException) next;
+        } else {
+          sink.row((byte[]) next);
+        }
+      }
+      sink.flush();
+    } finally {
+      // Stops the rest of partitions if something went wrong, either here or in a partition
+      for (PartitionReader reader : partitionReaders) {
+        reader.cancel();
+      }
+    }
+  }
+
+  /**
+   * The addresses of the streaming API of the DNodes serving the partition.
+   */
+  private List<String> getStreamingAddresses(Tablespace tablespace, int partitionId) throws StreamerException {
+    ReplicationEntry repEntry = null;
+    for (ReplicationEntry rEntry : tablespace.getReplicationMap().getReplicationEntries()) {
+      if (rEntry.getShard() == partitionId) {
+        repEntry = rEntry;
+      }
+    }
+    if (repEntry == null) {
+      throw new StreamerException("Incomplete Tablespace information for partition [" + partitionId
+          + "] Maybe let the Splout warmup a little bit and try later?");
+    }
+    List<String> addresses = new ArrayList<String>();
+    for (String dnode : repEntry.getNodes()) {
+      String address = getStreamingAddress(dnode);
+      if (address != null) {
+        addresses.add(address);
+      }
+    }
+    if (addresses.size() == 0) {
+      throw new StreamerException("No alive DNodes for partition [" + partitionId + "]");
+    }
+    return addresses;
+  }
+
+  /**
+   * The address of the streaming API of a DNode, given its address, or null if the DNode is not alive.
+   */
+  protected String getStreamingAddress(String dnode) {
+    for (DNodeInfo info : context.getCoordinationStructures().getDNodes().values()) {
+      if (info.getAddress().equals(dnode)) {
+        return info.getTcpAddress();
+      }
+    }
+    return null;
+  }
+
+  private DNodeSlots getSlots(String address) {
+    DNodeSlots slots = dnodeSlots.get(address);
+    if (slots == null) {
+      dnodeSlots.putIfAbsent(address, new DNodeSlots(address));
+      slots = dnodeSlots.get(address);
+    }
+    return slots;
+  }
+
+  /**
+   * Runs a partition reader with a free slot of the first of its candidates that has one, or queues it in its first
+   * candidate until one is released.
+   */
+  private void schedule(PartitionReader reader) {
+    if (reader.cancelled) {
+      return;
+    }
+    for (String address : reader.candidates) {
+      if (getSlots(address).tryAcquire()) {
+        start(reader, address);
+        return;
+      }
+    }
+    getSlots(reader.candidates.get(0)).acquireLater(reader);
+  }
+
+  private void start(PartitionReader reader, String address) {
+    reader.address = address;
+    try {
+      readers.execute(reader);
+    } catch (RejectedExecutionException e) {
+      // Closed, nothing will run the readers waiting for the slot either
+      getSlots(address).release();
+    }
+  }
+
+  /**
+   * The streaming slots of a DNode, and the partition readers waiting for one in arrival order.
+   */
+  class DNodeSlots {
+
+    final String address;
+    private int free = dnodeParallelism;
+    private final Queue<PartitionReader> waiting = new LinkedList<PartitionReader>();
+
+    DNodeSlots(String address) {
+      this.address = address;
+    }
+
+    synchronized boolean tryAcquire() {
+      if (free > 0) {
+        free--;
+        return true;
+      }
+      return false;
+    }
+
+    /**
+     * Runs the reader as soon as there is a free slot, which can be right away.
+     */
+    void acquireLater(PartitionReader reader) {
+      synchronized (this) {
+        if (free == 0) {
+          waiting.add(reader);
+          return;
+        }
+        free--;
+      }
+      start(reader, address);
+    }
+
+    /**
+     * Hands the slot over to the next waiting reader, if any, which is returned for the caller to run it.
+     */
+    synchronized PartitionReader release() {
+      PartitionReader next;
+      do {
+        next = waiting.poll();
+      } while (next != null && next.cancelled);
+      if (next == null) {
+        free++;
+        return null;
+      }
+      next.address = address;
+      return next;
+    }
+
+    synchronized List<PartitionReader> discard() {
+      List<PartitionReader> discarded = new ArrayList<PartitionReader>(waiting);
+      waiting.clear();
+      return discarded;
+    }
+  }
+
+  /**
+   * Reads the rows of a partition from the first replica that can be connected to and is not busy. Each run is an
+   * attempt with a slot of the DNode at {@link #address}, taken by {@link Streamer#schedule(PartitionReader)}.
+   */
+  class PartitionReader implements Runnable {
+
+    final String tablespace;
+    final long version;
+    final int partition;
+    final String sql;
+    final BlockingQueue<Object> buffer;
+    final String msg;
+
+    // Replicas not failed yet, the next one to try first
+    final List<String> candidates;
+    final long busyUntil;
+    int busyInARow = 0;
+    volatile String address;
+
+    volatile boolean cancelled = false;
+    // Whether some row has been put in the buffer already
+    boolean started = false;
+    final List<Socket> sockets = new CopyOnWriteArrayList<Socket>();
+
+    PartitionReader(String tablespace, long version, int partition, String sql, List<String> addresses,
+        BlockingQueue<Object> buffer) {
+      this.tablespace = tablespace;
+      this.version = version;
+      this.partition = partition;
+      this.sql = sql;
+      this.buffer = buffer;
+      this.msg = "tablespace[" + tablespace + "] partition[" + partition + "] sql[" + sql + "]";
+      this.candidates = new ArrayList<String>(addresses);
+      this.busyUntil = System.currentTimeMillis() + busyTimeout;
+    }
+
+    /**
+     * Runs this reader and then, in the same thread, the ones its slots are handed over to.
+     */
+    public void run() {
+      PartitionReader reader = this;
+      while (reader != null) {
+        reader = reader.attempt();
+      }
+    }
+
+    /**
+     * Reads the partition with the slot of the DNode at {@link #address}, then releases the slot. Returns the reader the
+     * slot is handed over to, if any.
+     */
+    private PartitionReader attempt() {
+      String address = this.address;
+      boolean busy;
+      PartitionReader next;
+      try {
+        busy = !tryFrom(address);
+      } finally {
+        next = getSlots(address).release();
+      }
+      if (busy) {
+        retryBusy(address);
+      }
+      return next;
+    }
+
+    /**
+     * Reads the partition from a DNode, failing over to the next candidate on errors. Returns false if the DNode was
+     * too busy to serve it.
+     */
+    private boolean tryFrom(String address) {
+      try {
+        if (readFrom(address)) {
+          put(END_OF_PARTITION);
+          return true;
+        }
+        return false;
+      } catch (IOException e) {
+        if (cancelled) {
+          return true;
+        }
+        candidates.remove(address);
+        // Rows already streamed can't be asked again to another replica
+        if (started || candidates.isEmpty()) {
+          fail(new StreamerException("Error streaming from dnode[" + address + "] for " + msg, e));
+          return true;
+        }
+        log.warn("Error streaming from dnode[" + address + "]. Will retry with [" + candidates.size()
+            + "] more DNodes. Info: " + msg, e);
+        schedule(this);
+      } catch (InterruptedException e) {
+        // Nothing to do, the stream is over
+      } catch (RuntimeException e) {
+        fail(new StreamerException("Error streaming " + msg, e));
+      }
+      return true;
+    }
+
+    /**
+     * Tries the next replica after a busy one, and waits a bit once all of them are busy.
+     */
+    private void retryBusy(String address) {
+      candidates.remove(address);
+      candidates.add(address);
+      busyInARow++;
+      if (busyInARow % candidates.size() != 0) {
+        schedule(this);
+        return;
+      }
+      if (System.currentTimeMillis() >= busyUntil) {
+        fail(new StreamerException("All DNodes are busy, gave up after [" + busyTimeout + "] ms for " + msg));
+        return;
+      }
+      try {
+        backoffs.schedule(new Runnable() {
+          @Override
+          public void run() {
+            schedule(PartitionReader.this);
+          }
+        }, Math.min(MAX_BUSY_BACKOFF_MILLIS, POLL_MILLIS * (busyInARow / candidates.size())), TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException e) {
+        // Closed
+      }
+    }
+
+    /**
+     * Ends the partition, and so the stream, with an error.
+     */
+    void fail(StreamerException e) {
+      try {
+        put(e);
+      } catch (InterruptedException ie) {
+        // Nothing to do, the stream is over
+      }
+    }
+
+    /**
+     * Reads the whole partition from a DNode into the buffer. Returns false if the DNode was too busy to serve it.
+     */
+    private boolean readFrom(String address) throws IOException, InterruptedException {
+      Socket socket = new Socket();
+      sockets.add(socket);
+      try {
+        if (cancelled) {
+          // Nothing will read the buffer anyway
+          return true;
+        }
+        String[] hostPort = address.split(":");
+        socket.connect(new InetSocketAddress(hostPort[0], Integer.parseInt(hostPort[1])), connectTimeout);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        out.writeUTF(tablespace);
+        out.writeLong(version);
+        out.writeInt(partition);
+        out.writeUTF(sql);
+        out.flush();
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        int length = in.readInt();
+        if (length == TCPStreamer.BUSY) {
+          log.info("DNode[" + address + "] is busy, partition[" + partition + "] will be retried");
+          return false;
+        }
+        while (length != TCPStreamer.END_OF_STREAM) {
+          started = true;
+          byte[] row = new byte[length];
+          in.readFully(row);
+          put(row);
+          length = in.readInt();
+        }
+        return true;
+      } finally {
+        sockets.remove(socket);
+        try {
+          socket.close();
+        } catch (IOException e) {
+          // nothing to do
+        }
+      }
+    }
+
+    /**
+     * Waits for room in the buffer unless the stream is cancelled in the meantime.
+     */
+    private void put(Object o) throws InterruptedException {
+      while (!cancelled) {
+        if (buffer.offer(o, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+          return;
+        }
+      }
+    }
+
+    void cancel() {
+      cancelled = true;
+      for (Socket socket : sockets) {
+        try {
+          socket.close();
+        } catch (IOException e) {
+          // nothing to do
+        }
+      }
+    }
+  }
+}
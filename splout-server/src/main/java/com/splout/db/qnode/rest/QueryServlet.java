@@ -23,7 +23,9 @@ package com.splout.db.qnode.rest;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import javax.servlet.ServletException;
@@ -34,6 +36,7 @@ import com.splout.db.common.JSONSerDe;
 import com.splout.db.common.JSONSerDe.JSONSerDeException;
 import com.splout.db.qnode.IQNodeHandler;
 import com.splout.db.qnode.beans.ErrorQueryStatus;
+import com.splout.db.qnode.beans.KeyLookup;
 import com.splout.db.qnode.beans.QueryStatus;
 
 @SuppressWarnings("serial")
@@ -61,17 +64,34 @@ public class QueryServlet extends BaseServlet {
     Map<String, Object> params;
     try {
 	    params = JSONSerDe.deSer(postBody.toString(), Map.class);
-			String[] keys = (String[]) ((ArrayList) params.get("key")).toArray(new String[0]);
+	    if (params.get("lookups") != null) {
+	      // Batch of key lookups
+	      List<KeyLookup> lookups = new ArrayList<KeyLookup>();
+	      for (Map lookup : (List<Map>) params.get("lookups")) {
+	        lookups.add(new KeyLookup((String) lookup.get("key"), (String) lookup.get("sql"),
+	            (List<Object>) lookup.get("params")));
+	      }
+	      handleBatch(resp, tablespace, lookups, (String) params.get("callback"));
+	      return;
+	    }
+			String[] keys = params.get("key") != null ? (String[]) ((ArrayList) params.get("key")).toArray(new String[0])
+			    : null;
 			String sql = (String) params.get("sql");
 			String callback = (String) params.get("callback");
 			String partition = (String) params.get("partition");
+			List<Object> sqlParams = (List<Object>) params.get("params");
+			String orderBy = (String) params.get("orderBy");
+			Object limit = params.get("limit");
+			String aggregates = (String) params.get("aggregates");
 			
-			handle(req, resp, keys, tablespace, sql, callback, partition);
+			handle(req, resp, keys, tablespace, sql, sqlParams, callback, partition, orderBy,
+			    limit != null ? limit.toString() : null, aggregates);
     } catch(JSONSerDeException e) {
 	    throw new IOException(e);
     }
   }
 
+  @SuppressWarnings("unchecked")
   @Override
   protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException,
       IOException {
@@ -81,12 +101,60 @@ public class QueryServlet extends BaseServlet {
     String sql = req.getParameter("sql");
     String callback = req.getParameter("callback");
     String partition = req.getParameter("partition");
+    // Values for the placeholders of the sql, as a JSON array
+    String jsonParams = req.getParameter("params");
+    // For sorted queries to all partitions
+    String orderBy = req.getParameter("orderBy");
+    String limit = req.getParameter("limit");
+    // For GROUP BY queries to all partitions
+    String aggregates = req.getParameter("aggregates");
+
+    List<Object> sqlParams = null;
+    if (jsonParams != null) {
+      try {
+        sqlParams = JSONSerDe.deSer(jsonParams, List.class);
+      } catch (JSONSerDeException e) {
+        throw new ServletException("params must be a JSON array", e);
+      }
+    }
+    handle(req, resp, keys, tablespace, sql, sqlParams, callback, partition, orderBy, limit, aggregates);
+  }
 
-    handle(req, resp, keys, tablespace, sql, callback, partition);
+  private void handleBatch(HttpServletResponse resp, String tablespace, List<KeyLookup> lookups, String callback)
+      throws ServletException, IOException {
+
+    resp.setHeader("content-type", "application/json;charset=UTF-8");
+    resp.setCharacterEncoding("UTF-8");
+
+    try {
+      long startTime = System.currentTimeMillis();
+      ArrayList<QueryStatus> st = qNodeHandler.batchQuery(tablespace, lookups);
+      int errors = 0;
+      for (QueryStatus status : st) {
+        if (status instanceof ErrorQueryStatus) {
+          errors++;
+        }
+      }
+      log.info("Batch query request received, tablespace[" + tablespace + "], lookups[" + lookups.size() + "] time["
+          + (System.currentTimeMillis() - startTime) + "] errors[" + errors + "]");
+      OutputStream out = resp.getOutputStream();
+      if (callback != null) {
+        out.write((callback + "(").getBytes("UTF-8"));
+      }
+      JSONSerDe.ser(st, out);
+      if (callback != null) {
+        out.write(')');
+      }
+      out.flush();
+    } catch (Exception e) {
+      log.error(e);
+      throw new ServletException(e);
+    }
   }
 
-  private void handle(HttpServletRequest req, HttpServletResponse resp, String[] keys, String tablespace, String sql, String callback, String partition) throws ServletException,
-      IOException {
+  private void handle(HttpServletRequest req, HttpServletResponse resp, String[] keys, String tablespace, String sql,
+      List<Object> sqlParams, String callback, String partition, String orderBy, String limit,
+      String aggregates) throws ServletException, IOException {
 
     resp.setHeader("content-type", "application/json;charset=UTF-8");
     resp.setCharacterEncoding("UTF-8");
@@ -101,7 +169,28 @@ public class QueryServlet extends BaseServlet {
 
     try {
       long startTime = System.currentTimeMillis();
-      QueryStatus st = qNodeHandler.query(tablespace, key, sql, partition);
+      QueryStatus st;
+      if (aggregates != null) {
+        // The query is executed in all partitions and their partial aggregates merged
+        if (key != null || partition != null || sqlParams != null || limit != null) {
+          st = new ErrorQueryStatus("aggregates can't be used together with key, partition, params or limit");
+        } else {
+          st = qNodeHandler.aggregatedMultiQuery(tablespace, new ArrayList<String>(), new ArrayList<String>(), sql,
+              aggregates);
+        }
+      } else if (limit != null) {
+        // The query is executed in all partitions and their results merged
+        if (key != null || partition != null || sqlParams != null) {
+          st = new ErrorQueryStatus("limit can't be used together with key, partition or params");
+        } else {
+          st = qNodeHandler.sortedMultiQuery(tablespace, new ArrayList<String>(), new ArrayList<String>(), sql,
+              orderBy, Integer.parseInt(limit));
+        }
+      } else if (sqlParams != null) {
+        st = qNodeHandler.query(tablespace, key, sql, sqlParams, partition);
+      } else {
+        st = qNodeHandler.query(tablespace, key, sql, partition);
+      }
       String status = "status[OK]";
       if (st instanceof ErrorQueryStatus) {
         String errMsg = st.getError();
@@ -109,13 +198,20 @@ public class QueryServlet extends BaseServlet {
         status = "status[ERROR] errMessage[" + errMsg + "]";
       }
       log.info("Query request received, tablespace[" + tablespace
-          + "], key[" + key + "], sql[" + sql + "] time[" + (System.currentTimeMillis() - startTime) + "] " + status);
-      String response;
-      response = JSONSerDe.ser(st);
+          + "], key[" + key + "], sql[" + sql + "]" + (limit != null ? " orderBy[" + orderBy + "] limit[" + limit + "]" : "")
+          + (aggregates != null ? " aggregates[" + aggregates + "]" : "")
+          + (sqlParams != null ? " params" + sqlParams : "") + " time[" + (System.currentTimeMillis() - startTime) + "] " + status);
+      // Stream the JSON to the client: columnar results are written row by row from their vectors,
+      // without building per-row Maps nor the whole response as a String
+      OutputStream out = resp.getOutputStream();
+      if (callback != null) {
+        out.write((callback + "(").getBytes("UTF-8"));
+      }
+      JSONSerDe.ser(st, out);
       if (callback != null) {
-        response = callback + "(" + response + ")";
+        out.write(')');
       }
-      resp.getWriter().append(response);
+      out.flush();
     } catch (Exception e) {
       log.error(e);
       throw new ServletException(e);
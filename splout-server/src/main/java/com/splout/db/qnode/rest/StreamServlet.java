@@ -0,0 +1,185 @@
+package com.splout.db.qnode.rest;
+
+/*
+ * #%L
+ * Splout SQL Server
+ * %%
+ * Copyright (C) 2012 Datasalt Systems S.L.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.util.MinimalPrettyPrinter;
+
+import com.splout.db.dnode.TCPStreamer;
+import com.splout.db.engine.ResultSerializer;
+import com.splout.db.qnode.IQNodeHandler;
+import com.splout.db.qnode.Streamer;
+import com.splout.db.qnode.Streamer.StreamerException;
+
+/**
+ * Streaming queries: the rows of all the impacted partitions are written as they come, in a chunked response, so
+ * results are not limited in size. The response is either newline-delimited JSON (format=ndjson, the default), with
+ * one JSON array per row, or the binary format of the DNodes (format=binary, see {@link TCPStreamer}).
+ * <p/>
+ * Errors after the response has started are reported with a last {"error": "..."} line in NDJSON, or by closing the
+ * response without the end mark in the binary format.
+ */
+@SuppressWarnings("serial")
+public class StreamServlet extends BaseServlet {
+
+  public final static String FORMAT_NDJSON = "ndjson";
+  public final static String FORMAT_BINARY = "binary";
+
+  private final static JsonFactory jsonFactory = new JsonFactory();
+
+  public StreamServlet(IQNodeHandler qNodeHandler) {
+    super(qNodeHandler);
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException,
+      IOException {
+
+    String[] keys = req.getParameterValues("key");
+    String tablespace = req.getParameter("tablespace");
+    String sql = req.getParameter("sql");
+    String partition = req.getParameter("partition");
+    String format = req.getParameter("format");
+    if (format == null) {
+      format = FORMAT_NDJSON;
+    }
+    if (!format.equals(FORMAT_NDJSON) && !format.equals(FORMAT_BINARY)) {
+      resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "format must be either " + FORMAT_NDJSON + " or "
+          + FORMAT_BINARY);
+      return;
+    }
+
+    String key = null;
+    if (keys != null) {
+      key = "";
+      for (String strKey : keys) {
+        key += strKey;
+      }
+    }
+
+    final boolean binary = format.equals(FORMAT_BINARY);
+    if (binary) {
+      resp.setContentType("application/octet-stream");
+    } else {
+      resp.setContentType("application/x-ndjson;charset=UTF-8");
+    }
+    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(resp.getOutputStream()));
+    final JsonGenerator jgen = jsonFactory.createJsonGenerator(out, JsonEncoding.UTF8);
+    jgen.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    jgen.setPrettyPrinter(new MinimalPrettyPrinter() {
+      @Override
+      public void writeRootValueSeparator(JsonGenerator jg) throws IOException {
+        jg.writeRaw('\n');
+      }
+    });
+
+    final long[] rows = new long[1];
+    Streamer.RowSink sink = new Streamer.RowSink() {
+
+      @Override
+      public void row(byte[] serializedRow) throws IOException {
+        rows[0]++;
+        if (binary) {
+          out.writeInt(serializedRow.length);
+          out.write(serializedRow);
+          return;
+        }
+        Object[] row = ResultSerializer.deserialize(ByteBuffer.wrap(serializedRow), Object[].class);
+        jgen.writeStartArray();
+        for (Object value : row) {
+          writeObject(value, jgen);
+        }
+        jgen.writeEndArray();
+      }
+
+      @Override
+      public void flush() throws IOException {
+        jgen.flush();
+        out.flush();
+      }
+    };
+
+    long startTime = System.currentTimeMillis();
+    String status = "status[OK]";
+    try {
+      qNodeHandler.stream(tablespace, key, sql, partition, sink);
+      if (binary) {
+        out.writeInt(-1);
+      } else if (rows[0] > 0) {
+        jgen.writeRaw('\n');
+      }
+    } catch (StreamerException e) {
+      status = "status[ERROR] errMessage[" + e.getMessage() + "]";
+      if (binary) {
+        if (!resp.isCommitted()) {
+          resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+          return;
+        }
+      } else {
+        jgen.writeStartObject();
+        jgen.writeStringField("error", e.getMessage());
+        jgen.writeEndObject();
+        jgen.writeRaw('\n');
+      }
+    } catch (IOException e) {
+      // Most likely the client went away
+      log.warn("Streaming query interrupted, tablespace[" + tablespace + "], sql[" + sql + "] rows[" + rows[0] + "]", e);
+      return;
+    } catch (Exception e) {
+      log.error(e);
+      throw new ServletException(e);
+    } finally {
+      log.info("Streaming query request received, tablespace[" + tablespace + "], key[" + key + "], partition["
+          + partition + "], sql[" + sql + "] rows[" + rows[0] + "] time[" + (System.currentTimeMillis() - startTime)
+          + "] " + status);
+    }
+    jgen.flush();
+    out.flush();
+  }
+
+  private static void writeObject(Object value, JsonGenerator jgen) throws IOException {
+    if (value == null) {
+      jgen.writeNull();
+    } else if (value instanceof Integer) {
+      jgen.writeNumber((Integer) value);
+    } else if (value instanceof Long) {
+      jgen.writeNumber((Long) value);
+    } else if (value instanceof Double) {
+      jgen.writeNumber((Double) value);
+    } else if (value instanceof byte[]) {
+      jgen.writeBinary((byte[]) value);
+    } else {
+      jgen.writeString(value.toString());
+    }
+  }
+}
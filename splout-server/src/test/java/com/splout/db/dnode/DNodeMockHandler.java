@@ -88,4 +88,10 @@ public class DNodeMockHandler implements IDNodeHandler {
   public ByteBuffer binarySqlQuery(String tablespace, long version, int partition, String query) throws DNodeException {
     return null;
   }
+
+  @Override
+  public ByteBuffer binarySqlQueryWithParams(String tablespace, long version, int partition, String query, String params)
+      throws DNodeException {
+    return null;
+  }
 }
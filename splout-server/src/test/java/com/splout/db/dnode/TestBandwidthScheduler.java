@@ -0,0 +1,94 @@
+package com.splout.db.dnode;
+
+/*
+ * #%L
+ * Splout SQL Server
+ * %%
+ * Copyright (C) 2012 Datasalt Systems S.L.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class TestBandwidthScheduler {
+
+  @Test
+  public void testRateIsShared() throws InterruptedException {
+    final BandwidthScheduler bandwidth = new BandwidthScheduler(4000, 4000, -1);
+    final AtomicLong transferred = new AtomicLong(0);
+    List<Thread> threads = new ArrayList<Thread>();
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < 4; i++) {
+      Thread thread = new Thread() {
+        public void run() {
+          try {
+            for (int j = 0; j < 10; j++) {
+              bandwidth.acquire(100);
+              transferred.addAndGet(100);
+            }
+          } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    double secs = (System.currentTimeMillis() - start) / 1000d;
+    assertEquals(4000, transferred.get());
+    // 4 transfers of 1000 bytes at 4000 bytes per sec altogether
+    assertEquals(1d, secs, 0.25);
+    bandwidth.close();
+  }
+
+  @Test
+  public void testNoThrottling() throws InterruptedException {
+    BandwidthScheduler bandwidth = new BandwidthScheduler(-1, 1, -1);
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < 1000; i++) {
+      bandwidth.acquire(1024 * 1024);
+    }
+    assertTrue(System.currentTimeMillis() - start < 1000);
+  }
+
+  @Test
+  public void testAdaptsToQueryLatency() {
+    BandwidthScheduler bandwidth = new BandwidthScheduler(1000, 100, 50);
+    bandwidth.close();
+    // Slow queries: halved down to the min
+    for (double expected : new double[] { 500, 250, 125, 100, 100 }) {
+      bandwidth.queryServed(200);
+      bandwidth.adjust();
+      assertEquals(expected, bandwidth.getBytesPerSec(), 0.01);
+    }
+    // Fast queries again: back up to the max
+    for (double expected : new double[] { 200, 300, 400, 500, 600, 700, 800, 900, 1000, 1000 }) {
+      bandwidth.queryServed(10);
+      bandwidth.adjust();
+      assertEquals(expected, bandwidth.getBytesPerSec(), 0.01);
+    }
+  }
+}
@@ -25,6 +25,9 @@ import com.splout.db.common.JSONSerDe;
 import com.splout.db.common.SploutConfiguration;
 import com.splout.db.common.TestUtils;
 import com.splout.db.dnode.beans.DNodeSystemStatus;
+import com.splout.db.engine.EngineManager;
+import com.splout.db.engine.ResultSerializer;
+import com.splout.db.thrift.DNodeException;
 import com.splout.db.thrift.DNodeService;
 import com.splout.db.thrift.DeployAction;
 import com.splout.db.thrift.PartitionMetadata;
@@ -38,9 +41,15 @@ import org.junit.Test;
 import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Basic DNode tests
@@ -54,8 +63,9 @@ public class TestDNode {
     FileUtils.deleteDirectory(new File(DB_2 + ".2"));
     FileUtils.deleteDirectory(new File(DB_1 + ".1"));
     FileUtils.deleteDirectory(new File(DB_2 + ".1"));
+    FileUtils.deleteDirectory(new File(DB_1 + ".3"));
     FileUtils.deleteDirectory(new File(FOO_DEPLOY_FOLDER));
-    TestUtils.cleanUpTmpFolders(this.getClass().getName(), 4);
+    TestUtils.cleanUpTmpFolders(this.getClass().getName(), 5);
   }
 
   public static String FOO_DEPLOY_FOLDER = TestDNode.class.getName() + "-foo-deploy";
@@ -258,4 +268,158 @@ public class TestDNode {
       dnode.stop();
     }
   }
+
+  protected void waitForDeployed(final DNodeHandler dHandler, final String tablespace, final int partition,
+      final long version) throws Exception {
+    new TestUtils.NotWaitingForeverCondition() {
+      @Override
+      public boolean endCondition() {
+        return dHandler.getLocalMetadataFile(tablespace, partition, version).exists();
+      }
+    }.waitAtMost(10000);
+  }
+
+  @Test
+  public void testSwarmDeploy() throws Throwable {
+    SploutConfiguration testConfig1 = SploutConfiguration.getTestConfig();
+    testConfig1.setProperty(DNodeProperties.DEPLOY_SWARM, true);
+    SploutConfiguration testConfig2 = SploutConfiguration.getTestConfig();
+    testConfig2.setProperty(DNodeProperties.DEPLOY_SWARM, true);
+    SploutConfiguration testConfig3 = SploutConfiguration.getTestConfig();
+    testConfig3.setProperty(DNodeProperties.DEPLOY_SWARM, true);
+
+    DNodeHandler dHandler1 = new DNodeHandler();
+    DNode dnode1 = TestUtils.getTestDNode(testConfig1, dHandler1, "dnode-" + this.getClass().getName() + "-5");
+    DNodeHandler dHandler2 = new DNodeHandler();
+    DNode dnode2 = TestUtils.getTestDNode(testConfig2, dHandler2, "dnode-" + this.getClass().getName() + "-6");
+    DNodeHandler dHandler3 = new DNodeHandler();
+    DNode dnode3 = TestUtils.getTestDNode(testConfig3, dHandler3, "dnode-" + this.getClass().getName() + "-7");
+    DNodeService.Client client1 = DNodeClient.get("localhost", testConfig1.getInt(DNodeProperties.PORT));
+    DNodeService.Client client2 = DNodeClient.get("localhost", testConfig2.getInt(DNodeProperties.PORT));
+    DNodeService.Client client3 = DNodeClient.get("localhost", testConfig3.getInt(DNodeProperties.PORT));
+    try {
+      DeployAction deploy = new DeployAction();
+      deploy.setTablespace("tablespace3");
+      TestUtils.createFooDatabase(FOO_DEPLOY_FOLDER, 1, "foo");
+      deploy.setDataURI(new File(FOO_DEPLOY_FOLDER, "foo.db").toURI().toString());
+      deploy.setPartition(0);
+      deploy.setVersion(1l);
+      deploy.setMetadata(new PartitionMetadata());
+
+      client1.deploy(Arrays.asList(new DeployAction[]{deploy}), 1l);
+      waitForDeployed(dHandler1, "tablespace3", 0, 1l);
+      Assert.assertEquals(dHandler1.httpExchangerAddress(), dHandler1.getCoord().getDeploySwarmPanel(1l).get("tablespace3_0"));
+      // The replica can't get it from the source anymore
+      FileUtils.deleteDirectory(new File(FOO_DEPLOY_FOLDER));
+
+      client2.deploy(Arrays.asList(new DeployAction[]{deploy}), 1l);
+      waitForDeployed(dHandler2, "tablespace3", 0, 1l);
+      File expectedDataFolder = dHandler2.getLocalStorageFolder("tablespace3", 0, 1);
+      Assert.assertTrue(new File(expectedDataFolder, "foo.db").exists());
+      Assert.assertEquals(new File(dHandler1.getLocalStorageFolder("tablespace3", 0, 1), "foo.db").length(),
+          new File(expectedDataFolder, "foo.db").length());
+      Assert.assertTrue(dHandler2.getLocalMetadataFile("tablespace3", 0, 1).exists());
+      Assert.assertTrue(dHandler2.getCoord().getDeploySwarmHolders(1l).get("tablespace3_0")
+          .contains(dHandler2.httpExchangerAddress()));
+
+      // The replica that finished can serve it too, even when the first DNode is gone
+      DNodeClient.close(client1);
+      dnode1.stop();
+      dnode1 = null;
+      client3.deploy(Arrays.asList(new DeployAction[]{deploy}), 1l);
+      waitForDeployToFinish(client3);
+      Thread.sleep(200);
+      Assert.assertTrue(new File(dHandler3.getLocalStorageFolder("tablespace3", 0, 1), "foo.db").exists());
+      Assert.assertTrue(dHandler3.getLocalMetadataFile("tablespace3", 0, 1).exists());
+    } finally {
+      DNodeClient.close(client1);
+      DNodeClient.close(client2);
+      DNodeClient.close(client3);
+      if (dnode1 != null) {
+        dnode1.stop();
+      }
+      dnode2.stop();
+      dnode3.stop();
+    }
+  }
+
+  @Test
+  public void testResultCache() throws Throwable {
+    TestUtils.createFooDatabase(DB_1 + ".3", 1, "foo1");
+
+    SploutConfiguration testConfig = SploutConfiguration.getTestConfig();
+    testConfig.setProperty(DNodeProperties.RESULT_CACHE_MB, 1);
+    DNodeHandler dHandler = new DNodeHandler();
+    DNode dnode = TestUtils.getTestDNode(testConfig, dHandler, "dnode-" + this.getClass().getName() + "-5");
+    //
+    DNodeService.Client client = DNodeClient.get("localhost", testConfig.getInt(DNodeProperties.PORT));
+
+    try {
+      DeployAction deploy = new DeployAction();
+      deploy.setTablespace("tablespace1");
+      deploy.setDataURI(new File(DB_1 + ".3", "foo.db").toURI().toString());
+      deploy.setVersion(1l);
+      deploy.setPartition(0);
+      deploy.setMetadata(new PartitionMetadata());
+      client.deploy(Arrays.asList(new DeployAction[]{deploy}), 1l);
+      waitForDeployToFinish(client);
+
+      ByteBuffer first = client.binarySqlQuery("tablespace1", 1l, 0, "SELECT * FROM t;");
+      Assert.assertEquals(1, dHandler.resultCache.size());
+      ByteBuffer second = client.binarySqlQuery("tablespace1", 1l, 0, "SELECT * FROM t;");
+      Assert.assertEquals(1, dHandler.resultCache.size());
+      Assert.assertEquals(first, second);
+      Assert.assertEquals("foo1", ResultSerializer.deserialize(second).mapify().get(0).get("b"));
+
+      // Cache hits keep the manager of the partition from idle-expiring
+      long lastAccess = dHandler.dbCache.getQuiet("tablespace1_1_0").getLastAccessTime();
+      Thread.sleep(50);
+      client.binarySqlQuery("tablespace1", 1l, 0, "SELECT * FROM t;");
+      Assert.assertTrue(dHandler.dbCache.getQuiet("tablespace1_1_0").getLastAccessTime() > lastAccess);
+
+      // Closing the manager drops its cached results
+      dHandler.dbCache.remove("tablespace1_1_0");
+      Assert.assertEquals(0, dHandler.resultCache.size());
+
+      // Concurrent requests for a partition that is not loaded share a single load
+      final DNodeHandler handler = dHandler;
+      ExecutorService service = Executors.newFixedThreadPool(8);
+      List<Future<EngineManager>> managers = new ArrayList<Future<EngineManager>>();
+      for (int i = 0; i < 8; i++) {
+        managers.add(service.submit(new Callable<EngineManager>() {
+          @Override
+          public EngineManager call() throws Exception {
+            return handler.getManager("tablespace1", 1l, 0);
+          }
+        }));
+      }
+      for (Future<EngineManager> manager : managers) {
+        Assert.assertSame(managers.get(0).get(), manager.get());
+      }
+      service.shutdown();
+      Assert.assertSame(managers.get(0).get(), dHandler.dbCache.get("tablespace1_1_0").getObjectValue());
+
+      // Parameterized queries are cached per params
+      ByteBuffer match = client.binarySqlQueryWithParams("tablespace1", 1l, 0, "SELECT * FROM t WHERE b = ?;", "[\"foo1\"]");
+      ByteBuffer noMatch = client.binarySqlQueryWithParams("tablespace1", 1l, 0, "SELECT * FROM t WHERE b = ?;", "[\"foo2\"]");
+      Assert.assertEquals("foo1", ResultSerializer.deserialize(match).mapify().get(0).get("b"));
+      Assert.assertEquals(0, ResultSerializer.deserialize(noMatch).getResults().size());
+      Assert.assertEquals(2, dHandler.resultCache.size());
+
+      // A result cached after its manager was removed (a query that finished meanwhile) is never served
+      dHandler.dbCache.remove("tablespace1_1_0");
+      dHandler.resultCache.put("tablespace1_1_0", "SELECT * FROM t;", ByteBuffer.wrap(new byte[]{1, 2, 3}));
+      Assert.assertEquals(first, client.binarySqlQuery("tablespace1", 1l, 0, "SELECT * FROM t;"));
+      try {
+        client.binarySqlQueryWithParams("tablespace1", 1l, 0, "SELECT * FROM t WHERE b = ?;", "foo1");
+        Assert.fail("Params that are not a JSON array should be rejected");
+      } catch (DNodeException e) {
+        Assert.assertEquals(DNodeHandler.EXCEPTION_ORDINARY, e.getCode());
+      }
+    } finally {
+      DNodeClient.close(client);
+      //
+      dnode.stop();
+    }
+  }
 }
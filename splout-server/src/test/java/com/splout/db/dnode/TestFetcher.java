@@ -26,6 +26,7 @@ import com.splout.db.common.SploutConfiguration;
 import com.splout.db.dnode.Fetcher.Throttler;
 import org.apache.commons.io.FileUtils;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.junit.Test;
@@ -35,6 +36,11 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.net.URISyntaxException;
 import java.nio.charset.Charset;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
 
 import static org.junit.Assert.*;
 
@@ -218,4 +224,138 @@ public class TestFetcher {
     file.delete();
     FileUtils.deleteDirectory(f);
   }
+
+  @Test
+  public void testParallelHdfsFetching() throws IOException, InterruptedException {
+    Configuration conf = new Configuration();
+    FileSystem fS = FileSystem.getLocal(conf);
+
+    SploutConfiguration testConfig = SploutConfiguration.getTestConfig();
+    testConfig.setProperty(FetcherProperties.TEMP_DIR, "tmp-dir-" + TestFetcher.class.getName());
+    testConfig.setProperty(FetcherProperties.DOWNLOAD_BUFFER, 4096);
+    testConfig.setProperty(FetcherProperties.HDFS_RANGE_SIZE, 100000);
+    testConfig.setProperty(FetcherProperties.HDFS_STREAMS, 4);
+    testConfig.setProperty(FetcherProperties.BYTES_TO_REPORT_PROGRESS, 10000);
+    Fetcher fetcher = new Fetcher(testConfig);
+
+    // Not a multiple of the range size nor of the buffer
+    byte[] bytes = new byte[1234567];
+    new Random(1).nextBytes(bytes);
+    Path dir = new Path(fS.getWorkingDirectory(), "tmp-" + TestFetcher.class.getName());
+    fS.delete(dir, true);
+    for (String name : new String[] { "a.db", "b.db" }) {
+      OutputStream oS = fS.create(new Path(dir, name));
+      oS.write(bytes);
+      oS.close();
+    }
+    final AtomicLong reported = new AtomicLong(0);
+    Fetcher.Reporter reporter = new Fetcher.Reporter() {
+      @Override
+      public void progress(long consumed) {
+        reported.addAndGet(consumed);
+      }
+    };
+
+    // A single file
+    File f = fetcher.hdfsFetch(new Path(dir, "a.db"), reporter);
+    assertArrayEquals(bytes, Files.toByteArray(new File(f, "a.db")));
+    assertEquals(bytes.length, reported.get());
+    FileUtils.deleteDirectory(f);
+
+    // All the files of a glob, each one with its name
+    f = fetcher.hdfsFetch(new Path(dir, "*.db"), reporter);
+    assertArrayEquals(bytes, Files.toByteArray(new File(f, "a.db")));
+    assertArrayEquals(bytes, Files.toByteArray(new File(f, "b.db")));
+    assertEquals(bytes.length * 3l, reported.get());
+    FileUtils.deleteDirectory(f);
+
+    // Interrupted: nothing is left behind
+    File tempDir = new File("tmp-dir-" + TestFetcher.class.getName());
+    int before = tempDir.list().length;
+    Thread.currentThread().interrupt();
+    try {
+      fetcher.hdfsFetch(new Path(dir, "*.db"), reporter);
+      fail("An InterruptedException was expected.");
+    } catch (InterruptedException e) {
+      // Everything good.
+    }
+    assertEquals(before, tempDir.list().length);
+
+    fS.delete(dir, true);
+  }
+
+  @Test
+  public void testResumableHdfsFetching() throws IOException, InterruptedException {
+    Configuration conf = new Configuration();
+    FileSystem fS = FileSystem.getLocal(conf);
+
+    SploutConfiguration testConfig = SploutConfiguration.getTestConfig();
+    File tempDir = new File("tmp-dir-" + TestFetcher.class.getName());
+    testConfig.setProperty(FetcherProperties.TEMP_DIR, tempDir.toString());
+    testConfig.setProperty(FetcherProperties.DOWNLOAD_BUFFER, 4096);
+    testConfig.setProperty(FetcherProperties.HDFS_RANGE_SIZE, 100000);
+    testConfig.setProperty(FetcherProperties.RESUMABLE, true);
+    Fetcher fetcher = new Fetcher(testConfig);
+
+    byte[] bytes = new byte[1234567];
+    new Random(1).nextBytes(bytes);
+    File sourceFile = new File("tmp-" + TestFetcher.class.getName() + ".db");
+    Files.write(bytes, sourceFile);
+    Path source = new Path(fS.getWorkingDirectory(), sourceFile.getName());
+    long modificationTime = sourceFile.lastModified();
+
+    // What a fetch that didn't finish leaves behind: the fetched file, with the first 5 ranges in the manifest
+    File f = fetcher.hdfsFetch(source, null);
+    File fetched = new File(f, sourceFile.getName());
+    assertArrayEquals(bytes, Files.toByteArray(fetched));
+    FileStatus status = fS.globStatus(source)[0];
+    FetchManifest manifest = new FetchManifest(new File(tempDir, f.getName() + ".manifest"));
+    manifest.open(Arrays.asList(status.getPath() + "\t" + status.getLen() + "\t" + status.getModificationTime()));
+    for (int i = 0; i < 5; i++) {
+      CRC32 crc = new CRC32();
+      crc.update(bytes, i * 100000, 100000);
+      manifest.chunkDone(0, i * 100000, (i + 1) * 100000, crc.getValue());
+    }
+    manifest.close();
+    // The second range got corrupted locally
+    RandomAccessFile raf = new RandomAccessFile(fetched, "rw");
+    raf.seek(100000);
+    raf.write(new byte[1000]);
+    raf.close();
+
+    /*
+     * The source changes in the first, second and eighth ranges, but not its length nor its modification time, so
+     * that we can tell which ranges are fetched again: only those not in the manifest or whose local bytes don't match.
+     */
+    byte[] newBytes = bytes.clone();
+    for (int range : new int[] { 0, 1, 7 }) {
+      for (int i = range * 100000; i < (range + 1) * 100000; i++) {
+        newBytes[i] = (byte) ~bytes[i];
+      }
+    }
+    Files.write(newBytes, sourceFile);
+    sourceFile.setLastModified(modificationTime);
+
+    final AtomicLong reported = new AtomicLong(0);
+    f = fetcher.hdfsFetch(source, new Fetcher.Reporter() {
+      @Override
+      public void progress(long consumed) {
+        reported.addAndGet(consumed);
+      }
+    });
+    byte[] resumed = Files.toByteArray(new File(f, sourceFile.getName()));
+    assertEquals(bytes.length, resumed.length);
+    assertEquals(bytes.length, reported.get());
+    for (int range = 0; range < 13; range++) {
+      byte[] expected = (range == 1 || range == 7) ? newBytes : bytes;
+      for (int i = range * 100000; i < Math.min(bytes.length, (range + 1) * 100000); i++) {
+        assertEquals("byte " + i, expected[i], resumed[i]);
+      }
+    }
+    // Finished: there is nothing to resume
+    assertFalse(new File(tempDir, f.getName() + ".manifest").exists());
+
+    sourceFile.delete();
+    FileUtils.deleteDirectory(f);
+  }
 }
@@ -29,11 +29,17 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.BufferedWriter;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
 import java.nio.charset.Charset;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertEquals;
 
@@ -189,4 +195,222 @@ public class TestHttpFileExchanger {
     downloadedFile.delete();
     downloadedFile.getParentFile().delete();
   }
+
+  @Test
+  public void testCodecs() throws Exception {
+    final File fileToSend = new File(TMP_FILE);
+    BufferedWriter writer = new BufferedWriter(new FileWriter(fileToSend));
+    for (int i = 0; i < 1000; i++) {
+      writer.write(FOO_CONTENT + "\n");
+    }
+    writer.close();
+
+    for (String codec : new String[]{"none", "gzip", "deflate", "snappy"}) {
+      SploutConfiguration conf = SploutConfiguration.getTestConfig();
+      conf.setProperty(FetcherProperties.DOWNLOAD_BUFFER, 1024);
+      conf.setProperty(FetcherProperties.TEMP_DIR, TMP_DOWNLOAD_DIR);
+      conf.setProperty(HttpFileExchangerProperties.HTTP_CODEC, codec);
+      conf.setProperty(HttpFileExchangerProperties.HTTP_CODEC_LEVEL, 1);
+      // Falls back to crc32 where not available
+      conf.setProperty(HttpFileExchangerProperties.HTTP_CHECKSUM, "crc32c");
+
+      final AtomicBoolean receivedOk = new AtomicBoolean(false);
+      HttpFileExchanger exchanger = new HttpFileExchanger(conf, new ReceiveFileCallback() {
+        @Override
+        public void onProgress(String tablespace, Integer partition, Long version, File file,
+                               long totalSize, long sizeDownloaded) {
+        }
+
+        @Override
+        public void onFileReceived(String tablespace, Integer partition, Long version, File file) {
+          receivedOk.set(true);
+        }
+
+        @Override
+        public void onBadCRC(String tablespace, Integer partition, Long version, File file) {
+        }
+
+        @Override
+        public void onError(Throwable t, String tablespace, Integer partition, Long version, File file) {
+        }
+      });
+      exchanger.init();
+      exchanger.run();
+
+      exchanger.send("t1", 2, 1l, fileToSend, exchanger.address(), true);
+
+      final File downloadedFile = new File(new File(TMP_DOWNLOAD_DIR,
+          DNodeHandler.getLocalStoragePartitionRelativePath("t1", 2, 1l)), fileToSend.getName());
+
+      new TestUtils.NotWaitingForeverCondition() {
+        @Override
+        public boolean endCondition() {
+          return receivedOk.get();
+        }
+      }.waitAtMost(WAIT_AT_MOST);
+
+      Assert.assertEquals(codec, Files.toString(fileToSend, Charset.defaultCharset()),
+          Files.toString(downloadedFile, Charset.defaultCharset()));
+
+      exchanger.close();
+      exchanger.join();
+      downloadedFile.delete();
+      downloadedFile.getParentFile().delete();
+    }
+    fileToSend.delete();
+  }
+
+  /**
+   * A codec only the sender knows, that counts how many times it was used.
+   */
+  public static class SenderOnlyCodec implements TransferCodec {
+
+    final static AtomicInteger USED = new AtomicInteger(0);
+
+    @Override
+    public String getName() {
+      return "sender-only";
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out, int level) {
+      USED.incrementAndGet();
+      return out;
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) {
+      USED.incrementAndGet();
+      return in;
+    }
+  }
+
+  @Test
+  public void testSendNegotiatesCodec() throws Exception {
+    final File fileToSend = new File(TMP_FILE);
+    BufferedWriter writer = new BufferedWriter(new FileWriter(fileToSend));
+    for (int i = 0; i < 1000; i++) {
+      writer.write(FOO_CONTENT + "\n");
+    }
+    writer.close();
+
+    SploutConfiguration receiverConf = SploutConfiguration.getTestConfig();
+    receiverConf.setProperty(FetcherProperties.DOWNLOAD_BUFFER, 1024);
+    receiverConf.setProperty(FetcherProperties.TEMP_DIR, TMP_DOWNLOAD_DIR);
+
+    final AtomicBoolean receivedOk = new AtomicBoolean(false);
+    HttpFileExchanger receiver = new HttpFileExchanger(receiverConf, new ReceiveFileCallback() {
+      @Override
+      public void onProgress(String tablespace, Integer partition, Long version, File file,
+                             long totalSize, long sizeDownloaded) {
+      }
+
+      @Override
+      public void onFileReceived(String tablespace, Integer partition, Long version, File file) {
+        receivedOk.set(true);
+      }
+
+      @Override
+      public void onBadCRC(String tablespace, Integer partition, Long version, File file) {
+      }
+
+      @Override
+      public void onError(Throwable t, String tablespace, Integer partition, Long version, File file) {
+      }
+    });
+    receiver.init();
+    receiver.run();
+
+    // The sender prefers a codec the receiver doesn't know: the next one it accepts is used instead
+    SploutConfiguration senderConf = SploutConfiguration.getTestConfig();
+    senderConf.setProperty(FetcherProperties.DOWNLOAD_BUFFER, 1024);
+    senderConf.setProperty(HttpFileExchangerProperties.HTTP_CODEC_CLASSES, SenderOnlyCodec.class.getName());
+    senderConf.setProperty(HttpFileExchangerProperties.HTTP_CODEC, "sender-only");
+    HttpFileExchanger sender = new HttpFileExchanger(senderConf, null);
+    sender.init();
+    sender.run();
+
+    SenderOnlyCodec.USED.set(0);
+    sender.send("t1", 4, 1l, fileToSend, receiver.address(), true);
+
+    new TestUtils.NotWaitingForeverCondition() {
+      @Override
+      public boolean endCondition() {
+        return receivedOk.get();
+      }
+    }.waitAtMost(WAIT_AT_MOST);
+
+    final File downloadedFile = new File(new File(TMP_DOWNLOAD_DIR,
+        DNodeHandler.getLocalStoragePartitionRelativePath("t1", 4, 1l)), fileToSend.getName());
+    Assert.assertEquals(Files.toString(fileToSend, Charset.defaultCharset()),
+        Files.toString(downloadedFile, Charset.defaultCharset()));
+    Assert.assertEquals(0, SenderOnlyCodec.USED.get());
+
+    sender.close();
+    receiver.close();
+    receiver.join();
+    downloadedFile.delete();
+    downloadedFile.getParentFile().delete();
+    fileToSend.delete();
+  }
+
+  @Test
+  public void testTruncatedUpload() throws Exception {
+    SploutConfiguration conf = SploutConfiguration.getTestConfig();
+    conf.setProperty(FetcherProperties.DOWNLOAD_BUFFER, 16);
+    conf.setProperty(FetcherProperties.TEMP_DIR, TMP_DOWNLOAD_DIR);
+
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    HttpFileExchanger exchanger = new HttpFileExchanger(conf, new ReceiveFileCallback() {
+      @Override
+      public void onProgress(String tablespace, Integer partition, Long version, File file,
+                             long totalSize, long sizeDownloaded) {
+      }
+
+      @Override
+      public void onFileReceived(String tablespace, Integer partition, Long version, File file) {
+      }
+
+      @Override
+      public void onBadCRC(String tablespace, Integer partition, Long version, File file) {
+      }
+
+      @Override
+      public void onError(Throwable t, String tablespace, Integer partition, Long version, File file) {
+        error.set(t);
+      }
+    });
+    exchanger.init();
+    exchanger.run();
+
+    // Announces 1000 bytes but sends only 10
+    HttpURLConnection connection = (HttpURLConnection) new URL(exchanger.address()).openConnection();
+    connection.setFixedLengthStreamingMode(8 + 10);
+    connection.setDoOutput(true);
+    connection.setRequestProperty("filename", "truncated");
+    connection.setRequestProperty("tablespace", "t1");
+    connection.setRequestProperty("partition", "3");
+    connection.setRequestProperty("version", "1");
+    connection.setRequestProperty("codec", "none");
+    DataOutputStream out = new DataOutputStream(connection.getOutputStream());
+    out.writeLong(1000);
+    out.write(new byte[10]);
+    out.close();
+
+    new TestUtils.NotWaitingForeverCondition() {
+      @Override
+      public boolean endCondition() {
+        return error.get() != null;
+      }
+    }.waitAtMost(WAIT_AT_MOST);
+    connection.disconnect();
+
+    Assert.assertTrue(error.get().getMessage(), error.get().getMessage().contains("Premature EOF"));
+    File partitionDir = new File(TMP_DOWNLOAD_DIR, DNodeHandler.getLocalStoragePartitionRelativePath("t1", 3, 1l));
+    Assert.assertFalse(new File(partitionDir, "truncated").exists());
+    partitionDir.delete();
+
+    exchanger.close();
+    exchanger.join();
+  }
 }
@@ -0,0 +1,176 @@
+package com.splout.db.dnode;
+
+/*
+ * #%L
+ * Splout SQL Server
+ * %%
+ * Copyright (C) 2012 Datasalt Systems S.L.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import com.splout.db.common.SploutConfiguration;
+import com.splout.db.engine.EngineManager;
+import com.splout.db.engine.ResultSerializer;
+import com.splout.db.engine.SQLite4JavaManager;
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class TestTCPStreamer {
+
+  public static String DB = TestTCPStreamer.class.getName() + ".db";
+  public static int ROWS = 5000;
+  public static int PORT = 18888;
+
+  private SQLite4JavaManager manager;
+  private TCPStreamer streamer;
+
+  @Before
+  public void setUp() throws Exception {
+    new File(DB).delete();
+    manager = new SQLite4JavaManager();
+    manager.init(new File(DB), SploutConfiguration.getTestConfig(), null);
+    manager.exec("CREATE TABLE t (a INT, b TEXT);");
+    manager.exec("BEGIN;");
+    for (int i = 0; i < ROWS; i++) {
+      manager.exec("INSERT INTO t VALUES (" + i + ", 'foo" + i + "');");
+    }
+    // A row bigger than the buffers
+    manager.exec("INSERT INTO t VALUES (" + ROWS + ", '" + new String(new char[5000]).replace('\0', 'x') + "');");
+    manager.exec("COMMIT;");
+
+    SploutConfiguration config = SploutConfiguration.getTestConfig();
+    config.setProperty(DNodeProperties.STREAMING_PORT, PORT);
+    config.setProperty(DNodeProperties.STREAMING_THREADS, 2);
+    config.setProperty(DNodeProperties.STREAMING_BUFFER_KB, 1);
+    streamer = new TCPStreamer();
+    streamer.start(config, new DNodeHandler() {
+      @Override
+      public EngineManager getManager(String tablespace, long version, int partition) {
+        return manager;
+      }
+    });
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    streamer.stop();
+    manager.close();
+    new File(DB).delete();
+  }
+
+  /**
+   * Reads the whole stream, sleeping before reading each row if asked to, and returns the rows.
+   */
+  static List<Object[]> stream(String query, long sleepMillis) throws Exception {
+    Socket socket = new Socket("localhost", PORT);
+    try {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      out.writeUTF("t");
+      out.writeLong(1l);
+      out.writeInt(0);
+      out.writeUTF(query);
+      out.flush();
+      DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      List<Object[]> rows = new ArrayList<Object[]>();
+      int length;
+      while ((length = in.readInt()) != -1) {
+        byte[] row = new byte[length];
+        in.readFully(row);
+        rows.add(ResultSerializer.deserialize(ByteBuffer.wrap(row), Object[].class));
+        if (sleepMillis > 0 && rows.size() % 1000 == 0) {
+          Thread.sleep(sleepMillis);
+        }
+      }
+      return rows;
+    } finally {
+      socket.close();
+    }
+  }
+
+  @Test
+  public void testStream() throws Exception {
+    List<Object[]> rows = stream("SELECT * FROM t;", 0);
+    Assert.assertEquals(ROWS + 1, rows.size());
+    for (int i = 0; i < ROWS; i++) {
+      Assert.assertEquals(i, rows.get(i)[0]);
+      Assert.assertEquals("foo" + i, rows.get(i)[1]);
+    }
+    Assert.assertEquals(5000, ((String) rows.get(ROWS)[1]).length());
+  }
+
+  @Test
+  public void testConcurrentStreams() throws Exception {
+    // More streams than threads, some of them slow readers
+    ExecutorService service = Executors.newFixedThreadPool(6);
+    List<Future<List<Object[]>>> results = new ArrayList<Future<List<Object[]>>>();
+    for (int i = 0; i < 6; i++) {
+      final long sleep = i % 2 == 0 ? 50 : 0;
+      results.add(service.submit(new Callable<List<Object[]>>() {
+        @Override
+        public List<Object[]> call() throws Exception {
+          return stream("SELECT * FROM t;", sleep);
+        }
+      }));
+    }
+    for (Future<List<Object[]>> result : results) {
+      Assert.assertEquals(ROWS + 1, result.get().size());
+    }
+    service.shutdown();
+  }
+
+  @Test
+  public void testClientGoesAway() throws Exception {
+    Socket socket = new Socket("localhost", PORT);
+    DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+    out.writeUTF("t");
+    out.writeLong(1l);
+    out.writeInt(0);
+    out.writeUTF("SELECT * FROM t;");
+    out.flush();
+    socket.getInputStream().read();
+    socket.close();
+    // The server is still alive
+    Assert.assertEquals(ROWS + 1, stream("SELECT * FROM t;", 0).size());
+  }
+
+  @Test
+  public void testQueryError() throws Exception {
+    // The connection is closed without the end of stream mark
+    try {
+      stream("SELECT * FROM not_a_table;", 0);
+      Assert.fail("Failed streams shouldn't look finished");
+    } catch (EOFException e) {
+    }
+    Assert.assertEquals(ROWS + 1, stream("SELECT * FROM t;", 0).size());
+  }
+}
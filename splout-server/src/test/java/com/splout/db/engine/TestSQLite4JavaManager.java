@@ -25,12 +25,29 @@ package com.splout.db.engine;
 import com.almworks.sqlite4java.SQLiteConnection;
 import com.almworks.sqlite4java.SQLiteException;
 import com.splout.db.common.JSONSerDe.JSONSerDeException;
+import com.splout.db.common.ColumnarQueryResult;
+import com.splout.db.common.JSONSerDe;
+import com.splout.db.common.QueryResult;
 import com.splout.db.common.TimeoutThread;
 import com.splout.db.engine.EngineManager.EngineException;
 import com.splout.db.engine.ResultSerializer.SerializationException;
+import com.splout.db.qnode.beans.QueryStatus;
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.sql.SQLException;
 
 public class TestSQLite4JavaManager extends SQLManagerTester {
@@ -38,6 +55,11 @@ public class TestSQLite4JavaManager extends SQLManagerTester {
 	public static String TEST_DB_1 = TestSQLite4JavaManager.class.getName() + ".1.db";
 	public static String TEST_DB_2 = TestSQLite4JavaManager.class.getName() + ".2.db";
 	public static String TEST_DB_3 = TestSQLite4JavaManager.class.getName() + ".3.db";
+	public static String TEST_DB_4 = TestSQLite4JavaManager.class.getName() + ".4.db";
+	public static String TEST_DB_5 = TestSQLite4JavaManager.class.getName() + ".5.db";
+	public static String TEST_DB_6 = TestSQLite4JavaManager.class.getName() + ".6.db";
+	public static String TEST_DB_7 = TestSQLite4JavaManager.class.getName() + ".7.db";
+	public static String TEST_DB_8 = TestSQLite4JavaManager.class.getName() + ".8.db";
 	
 	@Test
 	public void test() throws Exception {
@@ -115,4 +137,308 @@ public class TestSQLite4JavaManager extends SQLManagerTester {
     dbFile.delete();
   }
 
+  @Test
+  public void testBinaryQuery() throws Exception {
+    File dbFile = new File(TEST_DB_4);
+    if(dbFile.exists()) {
+      dbFile.delete();
+    }
+
+    final SQLite4JavaManager sqlite4Java = new SQLite4JavaManager(TEST_DB_4, null);
+    sqlite4Java.exec("CREATE TABLE t (a INT, b TEXT, c REAL, d BLOB, e);");
+    sqlite4Java.exec("INSERT INTO t VALUES (1, 'foo', 1.5, x'0102', 1);");
+    sqlite4Java.exec("INSERT INTO t VALUES (10000000000, NULL, -2.25, NULL, 'one');");
+    sqlite4Java.exec("INSERT INTO t VALUES (-3, 'bar', NULL, x'', 1.5);");
+    sqlite4Java.exec("INSERT INTO t VALUES (NULL, 'foo', 3, x'03', NULL);");
+    sqlite4Java.exec("INSERT INTO t VALUES (5, 'foo', 4.5, x'04', x'05');");
+
+    String[] queries = new String[] { "SELECT * FROM t;", "SELECT a, 'x' AS b, a * 2.5 FROM t ORDER BY a;",
+        "SELECT * FROM t WHERE a > 100000000000;", "SELECT NULL AS n, b FROM t;" };
+    for (String query : queries) {
+      QueryResult expected = sqlite4Java.query(query, 100);
+      for (byte version : new byte[] { BinaryResultEncoder.VERSION_ROWS, BinaryResultEncoder.VERSION_COLUMNAR }) {
+        QueryResult binary = ResultSerializer.deserialize(sqlite4Java.getClient().queryBinary(query, 100, version));
+        assertTrue(Arrays.equals(expected.getColumnNames(), binary.getColumnNames()));
+        List<Object[]> expectedRows = expected.getResults();
+        List<Object[]> binaryRows = binary.getResults();
+        assertEquals(expectedRows.size(), binaryRows.size());
+        for (int i = 0; i < expectedRows.size(); i++) {
+          assertTrue(Arrays.deepEquals(expectedRows.get(i), binaryRows.get(i)));
+        }
+      }
+      // JSON written from the column vectors is the same as the one from the row Maps
+      ColumnarQueryResult columnar = BinaryResultDecoder.decodeColumnar(sqlite4Java.queryBinary(query, 100));
+      assertEquals(JSONSerDe.deSer(expected.jsonize(), ArrayList.class),
+          JSONSerDe.deSer(JSONSerDe.ser(columnar), ArrayList.class));
+      QueryStatus status = new QueryStatus();
+      status.setColumnarResult(columnar);
+      QueryStatus read = JSONSerDe.deSer(JSONSerDe.ser(status), QueryStatus.class);
+      assertEquals(JSONSerDe.deSer(expected.jsonize(), ArrayList.class), read.getResult());
+      assertEquals(expected.jsonize(), JSONSerDe.ser(status.getResult()));
+    }
+
+    for (byte version : new byte[] { BinaryResultEncoder.VERSION_ROWS, BinaryResultEncoder.VERSION_COLUMNAR }) {
+      try {
+        sqlite4Java.getClient().queryBinary("SELECT * FROM t;", 4, version);
+        throw new AssertionError("Hard limit expected but not reached.");
+      } catch (SQLiteException e) {
+        assertEquals(SQLite4JavaClient.ERROR_CODE_MAXIMUM_RESULTS_REACHED, e.getErrorCode());
+      }
+    }
+    try {
+      sqlite4Java.queryBinary("SELECT * FROM t;", 4);
+      throw new AssertionError("TooManyResultsException expected but not thrown.");
+    } catch (EngineManager.TooManyResultsException e) {
+    }
+    assertEquals(5, ResultSerializer.deserialize(sqlite4Java.queryBinary("SELECT * FROM t;", 5)).getResults().size());
+
+    sqlite4Java.close();
+    dbFile.delete();
+  }
+
+  @Test
+  public void testParameterizedQuery() throws Exception {
+    File dbFile = new File(TEST_DB_5);
+    if(dbFile.exists()) {
+      dbFile.delete();
+    }
+
+    final SQLite4JavaManager sqlite4Java = new SQLite4JavaManager(TEST_DB_5, null);
+    sqlite4Java.setStatementCacheSize(2);
+    sqlite4Java.exec("CREATE TABLE t (a INT, b TEXT, c REAL);");
+    for (int i = 0; i < 10; i++) {
+      sqlite4Java.exec("INSERT INTO t VALUES (" + i + ", 'foo" + i + "', " + i + ".5);");
+    }
+
+    // The same statement is reused with different params
+    String query = "SELECT a, b FROM t WHERE a >= ? AND b <> ? ORDER BY a;";
+    for (int i = 0; i < 10; i++) {
+      QueryResult result = sqlite4Java.query(query, new Object[] { i, "foo9" }, 100);
+      assertEquals(Math.max(0, 9 - i), result.getResults().size());
+      if (i < 9) {
+        assertEquals(i, result.getResults().get(0)[0]);
+      }
+    }
+    StatementCache cache = sqlite4Java.getClient().getConnections().get(0).getStatements();
+    assertEquals(1, cache.size());
+
+    // Binary results and all supported types of params
+    QueryResult expected = sqlite4Java.query("SELECT * FROM t WHERE c = 3.5 AND b = 'foo3' AND a = 3;", 100);
+    QueryResult binary = ResultSerializer.deserialize(sqlite4Java.queryBinary(
+        "SELECT * FROM t WHERE c = ? AND b = ? AND a = ?;", new Object[] { 3.5d, "foo3", 3l }, 100));
+    assertEquals(expected.jsonize(), binary.jsonize());
+    assertEquals(1, binary.getResults().size());
+    assertEquals(0, sqlite4Java.query("SELECT * FROM t WHERE b = ?;", new Object[] { null }, 100).getResults().size());
+
+    // Bounded: least recently used statements are disposed
+    assertEquals(2, cache.size());
+
+    try {
+      sqlite4Java.query(query, new Object[] { 1 }, 100);
+      throw new AssertionError("Exception expected for missing params but not thrown.");
+    } catch (EngineManager.ShouldNotRetryInReplicaException e) {
+    }
+    // The statement is still usable after the error
+    assertEquals(8, sqlite4Java.query(query, new Object[] { 1, "foo9" }, 100).getResults().size());
+
+    sqlite4Java.close();
+    dbFile.delete();
+  }
+
+  @Test
+  public void testConnectionPool() throws Exception {
+    File dbFile = new File(TEST_DB_6);
+    if(dbFile.exists()) {
+      dbFile.delete();
+    }
+
+    SQLiteConnectionBudget budget = new SQLiteConnectionBudget(2);
+    final SQLite4JavaManager sqlite4Java = new SQLite4JavaManager(TEST_DB_6, null);
+    sqlite4Java.setMaxConnections(2);
+    sqlite4Java.setConnectionBudget(budget);
+    sqlite4Java.exec("CREATE TABLE t (a INT);");
+    sqlite4Java.exec("INSERT INTO t VALUES (1);");
+
+    // Many threads share at most 2 connections
+    ExecutorService service = Executors.newFixedThreadPool(8);
+    List<Future<QueryResult>> results = new ArrayList<Future<QueryResult>>();
+    for (int i = 0; i < 100; i++) {
+      results.add(service.submit(new Callable<QueryResult>() {
+        @Override
+        public QueryResult call() throws Exception {
+          return sqlite4Java.query("SELECT * FROM t;", 10);
+        }
+      }));
+    }
+    for (Future<QueryResult> result : results) {
+      assertEquals(1, result.get().getResults().get(0)[0]);
+    }
+    service.shutdown();
+    assertTrue(sqlite4Java.getClient().getConnections().size() <= 2);
+    assertEquals(sqlite4Java.getClient().getConnections().size(), budget.getOpenConnections());
+
+    // Other partitions take idle connections when the budget is exhausted
+    final SQLite4JavaManager other = new SQLite4JavaManager(TEST_DB_6, null);
+    other.setMaxConnections(3);
+    other.setConnectionBudget(budget);
+    assertEquals(1, other.query("SELECT * FROM t;", 10).getResults().size());
+    // Keep two queries running in "other" at the same time
+    final CountDownLatch running = new CountDownLatch(2);
+    final CountDownLatch finish = new CountDownLatch(1);
+    StreamingIterator blocking = new StreamingIterator() {
+      @Override
+      public String getQuery() {
+        return "SELECT * FROM t;";
+      }
+
+      @Override
+      public void columns(String[] columns) {
+      }
+
+      @Override
+      public void collect(Object[] result) {
+        running.countDown();
+        try {
+          finish.await();
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+
+      @Override
+      public void endStreaming() {
+      }
+    };
+    Thread[] streams = new Thread[2];
+    for (int i = 0; i < 2; i++) {
+      final StreamingIterator iterator = blocking;
+      streams[i] = new Thread() {
+        public void run() {
+          try {
+            other.streamQuery(iterator);
+          } catch (EngineException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+      streams[i].start();
+    }
+    running.await();
+    finish.countDown();
+    for (Thread stream : streams) {
+      stream.join();
+    }
+    assertEquals(2, budget.getOpenConnections());
+    assertEquals(0, sqlite4Java.getClient().getConnections().size());
+    assertEquals(2, other.getClient().getConnections().size());
+
+    // And the other way round
+    assertEquals(1, sqlite4Java.query("SELECT * FROM t;", 10).getResults().size());
+    assertEquals(1, other.getClient().getConnections().size());
+
+    // Connections are closed right away
+    sqlite4Java.close();
+    other.close();
+    assertEquals(0, budget.getOpenConnections());
+    assertEquals(0, sqlite4Java.getClient().getConnections().size());
+    try {
+      sqlite4Java.query("SELECT * FROM t;", 10);
+      throw new AssertionError("Closed client shouldn't accept queries");
+    } catch (EngineManager.ShouldRetryInReplicaException e) {
+    }
+    dbFile.delete();
+  }
+
+  @Test
+  public void testStreamsLeaveConnectionsForQueries() throws Exception {
+    File dbFile = new File(TEST_DB_8);
+    if(dbFile.exists()) {
+      dbFile.delete();
+    }
+    final SQLite4JavaManager sqlite4Java = new SQLite4JavaManager(TEST_DB_8, null);
+    sqlite4Java.setMaxConnections(2);
+    sqlite4Java.exec("CREATE TABLE t (a INT);");
+    sqlite4Java.exec("INSERT INTO t VALUES (1);");
+
+    // Slow readers: streams that don't finish until told so
+    final AtomicInteger streaming = new AtomicInteger(0);
+    final CountDownLatch finish = new CountDownLatch(1);
+    final StreamingIterator slow = new StreamingIterator() {
+      @Override
+      public String getQuery() {
+        return "SELECT * FROM t;";
+      }
+
+      @Override
+      public void columns(String[] columns) {
+      }
+
+      @Override
+      public void collect(Object[] result) {
+        streaming.incrementAndGet();
+        try {
+          finish.await();
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+
+      @Override
+      public void endStreaming() {
+      }
+    };
+    ExecutorService service = Executors.newFixedThreadPool(4);
+    List<Future<Void>> streams = new ArrayList<Future<Void>>();
+    for (int i = 0; i < 3; i++) {
+      streams.add(service.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          sqlite4Java.streamQuery(slow);
+          return null;
+        }
+      }));
+    }
+    // Only one of them takes a connection, and queries keep being served by the other one
+    for (int i = 0; i < 10; i++) {
+      assertEquals(1, sqlite4Java.query("SELECT * FROM t;", 10).getResults().size());
+    }
+    assertEquals(1, streaming.get());
+    finish.countDown();
+    for (Future<Void> stream : streams) {
+      stream.get(10, TimeUnit.SECONDS);
+    }
+    assertEquals(3, streaming.get());
+    service.shutdown();
+    sqlite4Java.close();
+    dbFile.delete();
+  }
+
+  @Test
+  public void testReadProfile() throws Exception {
+    File dbFile = new File(TEST_DB_7);
+    if(dbFile.exists()) {
+      dbFile.delete();
+    }
+
+    SQLite4JavaManager writer = new SQLite4JavaManager(TEST_DB_7, null);
+    writer.exec("CREATE TABLE t (a INT);");
+    writer.exec("INSERT INTO t VALUES (1);");
+    writer.close();
+
+    // 8 MB shared by 4 connections
+    assertEquals(-2048, SQLiteReadProfile.cacheSizeFromBudget(8, 4));
+    SQLite4JavaManager sqlite4Java = new SQLite4JavaManager(TEST_DB_7, null);
+    sqlite4Java.setReadProfile(new SQLiteReadProfile(true, SQLiteReadProfile.cacheSizeFromBudget(8, 4),
+        64 * 1024 * 1024));
+    assertEquals(1, sqlite4Java.query("SELECT * FROM t;", 10).getResults().get(0)[0]);
+    assertEquals(-2048, sqlite4Java.query("PRAGMA cache_size;", 10).getResults().get(0)[0]);
+    try {
+      sqlite4Java.exec("INSERT INTO t VALUES (2);");
+      throw new AssertionError("Read-only connections shouldn't accept writes");
+    } catch (EngineException e) {
+    }
+    assertEquals(1, sqlite4Java.query("SELECT * FROM t;", 10).getResults().size());
+    sqlite4Java.close();
+    dbFile.delete();
+  }
 }
@@ -50,12 +50,40 @@ public class QNodeMockHandler implements IQNodeHandler {
 	  return null;
   }
 
+  @Override
+  public QueryStatus query(String tablespace, String key, String sql, List<Object> params, String partition)
+      throws Exception {
+    return null;
+  }
+
+  @Override
+  public void stream(String tablespace, String key, String sql, String partition, Streamer.RowSink sink)
+      throws Exception {
+  }
+
   @Override
   public ArrayList<QueryStatus> multiQuery(String tablespace, List<String> keyMins,
                                            List<String> keyMaxs, String sql) throws Exception {
     return null;
   }
 
+  @Override
+  public QueryStatus sortedMultiQuery(String tablespace, List<String> keyMins, List<String> keyMaxs, String sql,
+      String orderBy, int limit) throws Exception {
+    return null;
+  }
+
+  @Override
+  public QueryStatus aggregatedMultiQuery(String tablespace, List<String> keyMins, List<String> keyMaxs, String sql,
+      String aggregates) throws Exception {
+    return null;
+  }
+
+  @Override
+  public ArrayList<QueryStatus> batchQuery(String tablespace, List<KeyLookup> lookups) throws Exception {
+    return null;
+  }
+
   @Override
   public DeployInfo deploy(List<DeployRequest> deployReq) throws Exception {
     return null;
@@ -0,0 +1,224 @@
+package com.splout.db.qnode;
+
+/*
+ * #%L
+ * Splout SQL Server
+ * %%
+ * Copyright (C) 2012 Datasalt Systems S.L.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.splout.db.common.JSONSerDe;
+import com.splout.db.common.PartitionEntry;
+import com.splout.db.common.PartitionMap;
+import com.splout.db.common.ReplicationEntry;
+import com.splout.db.common.ReplicationMap;
+import com.splout.db.common.SploutConfiguration;
+import com.splout.db.common.Tablespace;
+import com.splout.db.common.TestUtils;
+import com.splout.db.dnode.DNode;
+import com.splout.db.dnode.DNodeHandler;
+import com.splout.db.dnode.DNodeMockHandler;
+import com.splout.db.engine.ResultSerializer;
+import com.splout.db.engine.SQLite4JavaManager;
+import com.splout.db.hazelcast.TablespaceVersion;
+import com.splout.db.qnode.beans.ErrorQueryStatus;
+import com.splout.db.qnode.beans.KeyLookup;
+import com.splout.db.qnode.beans.QueryStatus;
+import com.splout.db.thrift.DNodeException;
+
+@SuppressWarnings("rawtypes")
+public class TestBatchQuery {
+
+  private static String[][] KEYS = { { "a", "b", "c" }, { "m", "n", "z" } };
+
+  private List<SQLite4JavaManager> managers = new ArrayList<SQLite4JavaManager>();
+  private List<AtomicInteger> dnodeQueries = new ArrayList<AtomicInteger>();
+  // As dnode.max.results.per.query
+  private volatile int maxResults = 10000;
+  private Querier querier;
+
+  private static String db(int partition) {
+    return TestBatchQuery.class.getName() + "." + partition + ".db";
+  }
+
+  /**
+   * Two partitions, [-, "m") and ["m", -), each one served by a DNode that runs the queries in its own SQLite.
+   */
+  @Before
+  public void setUp() throws Throwable {
+    List<PartitionEntry> partitions = new ArrayList<PartitionEntry>();
+    List<ReplicationEntry> rEntries = new ArrayList<ReplicationEntry>();
+    for (int p = 0; p < KEYS.length; p++) {
+      new File(db(p)).delete();
+      final SQLite4JavaManager manager = new SQLite4JavaManager();
+      manager.init(new File(db(p)), SploutConfiguration.getTestConfig(), null);
+      manager.exec("CREATE TABLE t (k TEXT, v INT);");
+      for (int i = 0; i < KEYS[p].length; i++) {
+        manager.exec("INSERT INTO t VALUES ('" + KEYS[p][i] + "', " + (p * 10 + i) + ");");
+      }
+      managers.add(manager);
+      final AtomicInteger queries = new AtomicInteger(0);
+      dnodeQueries.add(queries);
+
+      DNode dnode = TestUtils.getTestDNode(SploutConfiguration.getTestConfig(), new DNodeMockHandler() {
+        @Override
+        public ByteBuffer binarySqlQueryWithParams(String tablespace, long version, int partition, String query,
+            String params) throws DNodeException {
+          queries.incrementAndGet();
+          try {
+            return ResultSerializer.serialize(manager.query(query,
+                JSONSerDe.deSer(params, ArrayList.class).toArray(), maxResults));
+          } catch (Exception e) {
+            throw new DNodeException(DNodeHandler.EXCEPTION_ORDINARY, e.getMessage());
+          }
+        }
+      }, "dnode-" + this.getClass().getName() + "-" + p);
+
+      PartitionEntry entry = new PartitionEntry();
+      entry.setMin(p == 0 ? null : "m");
+      entry.setMax(p == 0 ? "m" : null);
+      entry.setShard(p);
+      partitions.add(entry);
+      rEntries.add(new ReplicationEntry(p, dnode.getAddress()));
+    }
+    QNodeHandlerContext context = new QNodeHandlerContext(SploutConfiguration.getTestConfig(), null);
+    Tablespace tablespace = new Tablespace(new PartitionMap(partitions), new ReplicationMap(rEntries), 0, 0);
+    context.getTablespaceVersionsMap().put(new TablespaceVersion("t1", 0l), tablespace);
+    context.getCurrentVersionsMap().put("t1", 0l);
+    querier = new Querier(context);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    querier.close();
+    for (int p = 0; p < managers.size(); p++) {
+      managers.get(p).close();
+      new File(db(p)).delete();
+    }
+    TestUtils.cleanUpTmpFolders(this.getClass().getName(), KEYS.length);
+  }
+
+  private static KeyLookup lookup(String key, String sql) {
+    return new KeyLookup(key, sql, Arrays.asList(new Object[] { key }));
+  }
+
+  @Test
+  public void testBatch() {
+    String byKey = "SELECT * FROM t WHERE k = ?;";
+    List<KeyLookup> lookups = new ArrayList<KeyLookup>();
+    lookups.add(lookup("n", byKey));
+    lookups.add(lookup("a", byKey));
+    lookups.add(lookup("x", byKey));
+    lookups.add(lookup("z", "SELECT v FROM t WHERE k = ?"));
+    lookups.add(lookup("c", byKey));
+    lookups.add(new KeyLookup(null, byKey, null));
+
+    List<QueryStatus> statuses = querier.batchQuery("t1", lookups);
+    assertEquals(6, statuses.size());
+    assertRow(statuses.get(0), 1, "n", 11);
+    assertRow(statuses.get(1), 0, "a", 0);
+    // Nothing for x, but not an error
+    assertEquals(null, statuses.get(2).getError());
+    assertEquals(0, statuses.get(2).getResult().size());
+    assertEquals((Integer) 1, statuses.get(2).getShard());
+    // Only the columns of its own SQL
+    assertEquals(1, ((Map) statuses.get(3).getResult().get(0)).size());
+    assertEquals(12, ((Number) ((Map) statuses.get(3).getResult().get(0)).get("v")).intValue());
+    assertRow(statuses.get(4), 0, "c", 2);
+    assertTrue(statuses.get(5) instanceof ErrorQueryStatus);
+
+    // One query for the lookups to the first partition, one per SQL to the second
+    assertEquals(1, dnodeQueries.get(0).get());
+    assertEquals(2, dnodeQueries.get(1).get());
+  }
+
+  @Test
+  public void testBigBatch() {
+    // More lookups than what fits in a single SQLite statement
+    List<KeyLookup> lookups = new ArrayList<KeyLookup>();
+    for (int i = 0; i < 600; i++) {
+      lookups.add(lookup(KEYS[0][i % 3], "SELECT * FROM t WHERE k = ?"));
+    }
+    List<QueryStatus> statuses = querier.batchQuery("t1", lookups);
+    assertEquals(600, statuses.size());
+    for (int i = 0; i < 600; i++) {
+      assertRow(statuses.get(i), 0, KEYS[0][i % 3], i % 3);
+    }
+    assertEquals(3, dnodeQueries.get(0).get());
+    assertEquals(0, dnodeQueries.get(1).get());
+  }
+
+  @Test
+  public void testErrors() {
+    List<KeyLookup> lookups = new ArrayList<KeyLookup>();
+    lookups.add(lookup("a", "SELECT * FROM t WHERE k = ?"));
+    lookups.add(lookup("b", "SELECT * FROM nonexistent WHERE k = ?"));
+    List<QueryStatus> statuses = querier.batchQuery("t1", lookups);
+    // Each SQL is a different query, so one failing doesn't make the other fail
+    assertRow(statuses.get(0), 0, "a", 0);
+    assertTrue(statuses.get(1) instanceof ErrorQueryStatus);
+
+    statuses = querier.batchQuery("unknown", lookups);
+    assertTrue(statuses.get(0) instanceof ErrorQueryStatus);
+    assertTrue(statuses.get(1) instanceof ErrorQueryStatus);
+  }
+
+  @Test
+  public void testMaxResults() {
+    maxResults = 2;
+    List<KeyLookup> lookups = new ArrayList<KeyLookup>();
+    for (String key : KEYS[0]) {
+      lookups.add(lookup(key, "SELECT * FROM t WHERE k = ?"));
+    }
+    // Too many rows for the DNode even on its own
+    lookups.add(lookup("a", "SELECT * FROM t WHERE k >= ?"));
+    List<QueryStatus> statuses = querier.batchQuery("t1", lookups);
+    // The three rows of the first SQL are too many together, but not for each lookup
+    for (int i = 0; i < 3; i++) {
+      assertRow(statuses.get(i), 0, KEYS[0][i], i);
+    }
+    assertTrue(statuses.get(3) instanceof ErrorQueryStatus);
+    assertTrue(statuses.get(3).getError(), statuses.get(3).getError().contains("Hard limit"));
+    // The combined query and its two halves, and the one of the second SQL
+    assertEquals(4, dnodeQueries.get(0).get());
+  }
+
+  private static void assertRow(QueryStatus status, int shard, String k, int v) {
+    assertEquals(null, status.getError());
+    assertEquals((Integer) shard, status.getShard());
+    assertEquals(1, status.getResult().size());
+    Map row = (Map) status.getResult().get(0);
+    assertEquals(2, row.size());
+    assertEquals(k, row.get("k"));
+    assertEquals(v, ((Number) row.get("v")).intValue());
+  }
+}
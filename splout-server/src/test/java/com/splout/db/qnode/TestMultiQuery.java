@@ -36,7 +36,9 @@ import org.junit.Test;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -160,4 +162,82 @@ public class TestMultiQuery {
       Hazelcast.shutdownAll();
     }
   }
+
+  /*
+   * Each partition i has the rows i, i + 5, i + 10, ...
+   */
+  static class SortedRowsHandler extends DNodeMockHandler {
+
+    private int partition;
+
+    public SortedRowsHandler(int partition) {
+      this.partition = partition;
+    }
+
+    @Override
+    public String sqlQuery(String tablespace, long version, int partition, String query) throws DNodeException {
+      // The ORDER BY and the LIMIT are pushed down
+      assertTrue(query.endsWith("ORDER BY \"a\" DESC LIMIT 3;"));
+      List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+      for (int i = 0; i < 3; i++) {
+        Map<String, Object> row = new HashMap<String, Object>();
+        row.put("a", this.partition + (20 - i) * 5);
+        rows.add(row);
+      }
+      try {
+        return JSONSerDe.ser(rows);
+      } catch (JSONSerDeException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  @SuppressWarnings("rawtypes")
+  @Test
+  public void testSortedMultiQuery() throws Throwable {
+    QNodeHandler handler = new QNodeHandler();
+    handler.init(SploutConfiguration.getTestConfig());
+
+    List<DNode> dNodes = new ArrayList<DNode>();
+
+    try {
+      List<PartitionEntry> partitions = new ArrayList<PartitionEntry>();
+      List<ReplicationEntry> replicationEntries = new ArrayList<ReplicationEntry>();
+      for (int i = 0; i < 5; i++) {
+        SploutConfiguration dNodeConfig = SploutConfiguration.getTestConfig();
+        DNode dnode = TestUtils.getTestDNode(dNodeConfig, new SortedRowsHandler(i), "dnode-"
+            + this.getClass().getName() + "-" + i);
+        dNodes.add(dnode);
+        PartitionEntry partitionEntry = new PartitionEntry();
+        partitionEntry.setMin((i * 10 + 10) + "");
+        partitionEntry.setMax((i * 10 + 20) + "");
+        partitionEntry.setShard(i);
+        partitions.add(partitionEntry);
+        ReplicationEntry repEntry = new ReplicationEntry();
+        repEntry.setShard(i);
+        repEntry.setNodes(Arrays.asList(new String[]{"localhost:" + dNodeConfig.getInt(DNodeProperties.PORT)}));
+        replicationEntries.add(repEntry);
+      }
+
+      Tablespace tablespace1 = new Tablespace(new PartitionMap(partitions), new ReplicationMap(replicationEntries), 1l,
+          0l);
+      handler.getContext().getTablespaceVersionsMap().put(new TablespaceVersion("tablespace1", 1l), tablespace1);
+      handler.getContext().getCurrentVersionsMap().put("tablespace1", 1l);
+
+      QueryStatus result = handler.sortedMultiQuery("tablespace1", new ArrayList<String>(), new ArrayList<String>(),
+          "SELECT a FROM t;", "a DESC", 3);
+      assertEquals(null, result.getError());
+      assertEquals(3, result.getResult().size());
+      // The top 3 of all partitions
+      for (int i = 0; i < 3; i++) {
+        assertEquals(104 - i, ((Map) result.getResult().get(i)).get("a"));
+      }
+    } finally {
+      handler.close();
+      for (DNode dnode : dNodes) {
+        dnode.stop();
+      }
+      Hazelcast.shutdownAll();
+    }
+  }
 }
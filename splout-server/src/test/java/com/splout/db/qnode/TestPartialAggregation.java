@@ -0,0 +1,142 @@
+package com.splout.db.qnode;
+
+/*
+ * #%L
+ * Splout SQL Server
+ * %%
+ * Copyright (C) 2012 Datasalt Systems S.L.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.splout.db.common.ColumnarQueryResult;
+import com.splout.db.common.ColumnarQueryResult.Column;
+import com.splout.db.qnode.Querier.QuerierException;
+import com.splout.db.qnode.beans.QueryStatus;
+
+@SuppressWarnings({ "rawtypes", "unchecked" })
+public class TestPartialAggregation {
+
+  private static final String SPEC = "total:SUM, n:COUNT, lo:MIN, hi:MAX, mean:AVG(n)";
+
+  private static Map row(String country, Object total, int n, Object lo, Object hi, double mean) {
+    Map row = new HashMap();
+    row.put("country", country);
+    row.put("total", total);
+    row.put("n", n);
+    row.put("lo", lo);
+    row.put("hi", hi);
+    row.put("mean", mean);
+    return row;
+  }
+
+  private static QueryStatus status(Map... rows) {
+    QueryStatus status = new QueryStatus();
+    ArrayList result = new ArrayList();
+    for (Map row : rows) {
+      result.add(row);
+    }
+    status.setResult(result);
+    return status;
+  }
+
+  private static Map group(List<Map<String, Object>> result, String country) {
+    for (Map<String, Object> row : result) {
+      if (country.equals(row.get("country"))) {
+        return row;
+      }
+    }
+    throw new AssertionError("No group " + country);
+  }
+
+  @Test
+  public void testParse() throws QuerierException {
+    List<PartialAggregation.Aggregate> aggregates = PartialAggregation.parse(SPEC);
+    assertEquals(5, aggregates.size());
+    assertEquals(PartialAggregation.Function.SUM, aggregates.get(0).getFunction());
+    assertEquals("n", aggregates.get(4).getCountColumn());
+    for (String invalid : new String[] { null, "total", "total:MEDIAN", "mean:AVG", "mean:AVG()" }) {
+      try {
+        PartialAggregation.parse(invalid);
+        throw new AssertionError("Invalid spec must fail: " + invalid);
+      } catch (QuerierException e) {
+      }
+    }
+  }
+
+  @Test
+  public void testMerge() throws QuerierException {
+    PartialAggregation aggregation = new PartialAggregation(PartialAggregation.parse(SPEC));
+    aggregation.add(status(row("ES", 10, 2, 1, 9, 5.0), row("FR", 4, 1, 4, 4, 4.0)));
+    aggregation.add(status());
+    aggregation.add(status(row("ES", 2.5, 3, 0.5, 2, 1.0)));
+    List<Map<String, Object>> result = aggregation.result();
+    assertEquals(2, result.size());
+
+    Map es = group(result, "ES");
+    assertEquals(12.5, es.get("total"));
+    assertEquals(5, es.get("n"));
+    assertEquals(0.5, es.get("lo"));
+    assertEquals(9, es.get("hi"));
+    // (5.0 * 2 + 1.0 * 3) / 5
+    assertEquals(2.6, (Double) es.get("mean"), 0.0001);
+
+    Map fr = group(result, "FR");
+    assertEquals(4, fr.get("total"));
+    assertEquals(4.0, fr.get("mean"));
+  }
+
+  @Test
+  public void testColumnar() throws QuerierException {
+    PartialAggregation aggregation = new PartialAggregation(PartialAggregation.parse("total:SUM, n:COUNT"));
+    BitSet noNulls = new BitSet();
+    BitSet nullTotal = new BitSet();
+    nullTotal.set(1);
+    ColumnarQueryResult partial = new ColumnarQueryResult(new String[] { "country", "total", "n" }, 2, new Column[] {
+        new Column(Column.TEXT, noNulls, null, null, new Object[] { "ES", "FR" }),
+        new Column(Column.INTEGER, nullTotal, new long[] { Long.MAX_VALUE, 0 }, null, null),
+        new Column(Column.INTEGER, noNulls, new long[] { 1, 1 }, null, null) });
+    QueryStatus status = new QueryStatus();
+    status.setColumnarResult(partial);
+    aggregation.add(status);
+    // Same groups but from another partition that returned maps
+    aggregation.add(status(row("ES", 1, 2, null, null, 0), row("FR", null, 0, null, null, 0)));
+
+    List<Map<String, Object>> result = aggregation.result();
+    assertEquals(2, result.size());
+    // Overflowed the long sum
+    assertEquals((double) Long.MAX_VALUE + 1, group(result, "ES").get("total"));
+    assertEquals(3, group(result, "ES").get("n"));
+    // SUM of only NULLs is NULL
+    assertEquals(null, group(result, "FR").get("total"));
+    assertEquals(1, group(result, "FR").get("n"));
+  }
+
+  @Test(expected = QuerierException.class)
+  public void testMissingColumn() throws QuerierException {
+    PartialAggregation aggregation = new PartialAggregation(PartialAggregation.parse("other:SUM"));
+    aggregation.add(status(row("ES", 10, 2, 1, 9, 5.0)));
+  }
+}
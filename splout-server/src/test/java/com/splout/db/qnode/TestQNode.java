@@ -24,12 +24,18 @@ package com.splout.db.qnode;
 import com.hazelcast.core.Hazelcast;
 import com.splout.db.common.SploutConfiguration;
 import com.splout.db.common.TestUtils;
+import com.splout.db.engine.ResultSerializer;
 import com.splout.db.qnode.beans.*;
+import org.apache.commons.io.IOUtils;
 import org.junit.Test;
 
+import java.io.InputStream;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
 
+import static org.junit.Assert.assertEquals;
+
 public class TestQNode {
 
   @Test
@@ -60,4 +66,38 @@ public class TestQNode {
     qnode.close();
     Hazelcast.shutdownAll();
   }
+
+  @Test
+  public void testStream() throws Throwable {
+    final SploutConfiguration config = SploutConfiguration.getTestConfig();
+    QNode qnode = TestUtils.getTestQNode(config, new QNodeMockHandler() {
+      @Override
+      public void stream(String tablespace, String key, String sql, String partition, Streamer.RowSink sink)
+          throws Exception {
+        sink.row(ResultSerializer.serializeToByteArray(new Object[] { 1, "foo" }));
+        if (tablespace.equals("broken")) {
+          throw new Streamer.StreamerException("Broken stream");
+        }
+        sink.row(ResultSerializer.serializeToByteArray(new Object[] { 2, null }));
+      }
+    });
+
+    try {
+      assertEquals("[1,\"foo\"]\n[2,null]\n", get(qnode.getAddress() + "/api/stream?tablespace=t&sql=foo"));
+      assertEquals("[1,\"foo\"]\n{\"error\":\"Broken stream\"}\n",
+          get(qnode.getAddress() + "/api/stream?tablespace=broken&sql=foo"));
+    } finally {
+      qnode.close();
+      Hazelcast.shutdownAll();
+    }
+  }
+
+  private static String get(String url) throws Exception {
+    InputStream in = new URL(url).openStream();
+    try {
+      return IOUtils.toString(in, "UTF-8");
+    } finally {
+      in.close();
+    }
+  }
 }
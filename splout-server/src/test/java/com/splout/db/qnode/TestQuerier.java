@@ -25,36 +25,54 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import com.google.common.util.concurrent.ListenableFuture;
 import com.splout.db.common.JSONSerDe.JSONSerDeException;
+import com.splout.db.common.PartitionEntry;
 import com.splout.db.common.PartitionMap;
+import com.splout.db.common.QueryResult;
 import com.splout.db.common.ReplicationEntry;
 import com.splout.db.common.ReplicationMap;
 import com.splout.db.common.SploutConfiguration;
 import com.splout.db.common.Tablespace;
 import com.splout.db.common.TestUtils;
 import com.splout.db.dnode.DNode;
+import com.splout.db.dnode.DNodeHandler;
 import com.splout.db.dnode.DNodeMockHandler;
 import com.splout.db.dnode.IDNodeHandler;
+import com.splout.db.engine.ResultSerializer;
 import com.splout.db.engine.ResultSerializer.SerializationException;
 import com.splout.db.hazelcast.TablespaceVersion;
 import com.splout.db.qnode.beans.ErrorQueryStatus;
 import com.splout.db.qnode.beans.QueryStatus;
 import com.splout.db.thrift.DNodeException;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
 
+@SuppressWarnings("rawtypes")
 public class TestQuerier {
 	
 	@AfterClass
 	@BeforeClass
 	public static void cleanUp() throws IOException {
-		TestUtils.cleanUpTmpFolders(TestQuerier.class.getName(), 2);
+		TestUtils.cleanUpTmpFolders(TestQuerier.class.getName(), 4);
 	}
 	
 	@Test
@@ -82,6 +100,7 @@ public class TestQuerier {
 	@Test
 	public void testRoundRobin() throws Throwable {
 		SploutConfiguration testConfig = SploutConfiguration.getTestConfig();
+		testConfig.setProperty(QNodeProperties.REPLICA_SELECTOR, RoundRobinReplicaSelector.class.getName());
 		// A handler that returns OK to any query
 		IDNodeHandler okQueryHandler = new DNodeMockHandler() {
       @Override
@@ -109,7 +128,7 @@ public class TestQuerier {
 		 */
 		for(int i = 0; i < 5; i++) {
 			QueryStatus status = querier.query("t1", "", 0);
-			assertEquals((Integer)(i % 2), querier.getPartitionRoundRobin().get(0));
+			assertEquals((Integer)(i % 2), ((RoundRobinReplicaSelector) querier.getReplicaSelector()).getPartitionRoundRobin().get(0));
 			assertEquals((Integer)0, status.getShard());
 			assertEquals(null, status.getError());
 		}
@@ -118,6 +137,7 @@ public class TestQuerier {
 	@Test
 	public void testRoundRobinWithSomeDeadNodes() throws Throwable {
 		SploutConfiguration testConfig = SploutConfiguration.getTestConfig();
+		testConfig.setProperty(QNodeProperties.REPLICA_SELECTOR, RoundRobinReplicaSelector.class.getName());
 		// A handler that returns OK to any query
 		IDNodeHandler okQueryHandler = new DNodeMockHandler() {
 
@@ -147,7 +167,7 @@ public class TestQuerier {
 		 */
 		for(int i = 0; i < 7; i++) {
 			QueryStatus status = querier.query("t1", "", 0);
-			assertEquals((Integer)((i % 2) * 2), querier.getPartitionRoundRobin().get(0));
+			assertEquals((Integer)((i % 2) * 2), ((RoundRobinReplicaSelector) querier.getReplicaSelector()).getPartitionRoundRobin().get(0));
 			assertEquals((Integer)0, status.getShard());
 			assertEquals(null, status.getError());
 		}
@@ -156,6 +176,7 @@ public class TestQuerier {
 	@Test
 	public void testRoundRobinWithSomeFailingNodes() throws Throwable {
 		SploutConfiguration testConfig = SploutConfiguration.getTestConfig();
+		testConfig.setProperty(QNodeProperties.REPLICA_SELECTOR, RoundRobinReplicaSelector.class.getName());
 		// A handler that returns OK to any query
 		IDNodeHandler okQueryHandler = new DNodeMockHandler() {
 
@@ -185,9 +206,647 @@ public class TestQuerier {
 		 */
 		for(int i = 0; i < 7; i++) {
 			QueryStatus status = querier.query("t1", "", 0);
-			assertEquals((Integer)((i % 2) * 2), querier.getPartitionRoundRobin().get(0));
+			assertEquals((Integer)((i % 2) * 2), ((RoundRobinReplicaSelector) querier.getReplicaSelector()).getPartitionRoundRobin().get(0));
 			assertEquals((Integer)0, status.getShard());
 			assertEquals(null, status.getError());
 		}
 	}
+
+	@Test
+	public void testLatencyAwareSelection() throws Throwable {
+		SploutConfiguration testConfig = SploutConfiguration.getTestConfig();
+		testConfig.setProperty(QNodeProperties.REPLICA_SELECTOR, PowerOfTwoChoicesReplicaSelector.class.getName());
+		final AtomicInteger slowQueries = new AtomicInteger(0);
+		IDNodeHandler slowHandler = new SlowQueryHandler(100) {
+			@Override
+			public String sqlQuery(String tablespace, long version, int partition, String query) throws DNodeException {
+				slowQueries.incrementAndGet();
+				return super.sqlQuery(tablespace, version, partition, query);
+			}
+		};
+		IDNodeHandler fastHandler = new SlowQueryHandler(0);
+		DNode slow = TestUtils.getTestDNode(SploutConfiguration.getTestConfig(), slowHandler, "dnode-"
+		    + this.getClass().getName() + "-1");
+		DNode fast = TestUtils.getTestDNode(SploutConfiguration.getTestConfig(), fastHandler, "dnode-"
+		    + this.getClass().getName() + "-2");
+
+		List<ReplicationEntry> rEntries = new ArrayList<ReplicationEntry>();
+		rEntries.add(new ReplicationEntry(0, slow.getAddress(), fast.getAddress()));
+
+		QNodeHandlerContext context = new QNodeHandlerContext(testConfig, null);
+		Tablespace tablespace = new Tablespace(PartitionMap.oneShardOpenedMap(), new ReplicationMap(rEntries), 0, 0);
+		context.getTablespaceVersionsMap().put(new TablespaceVersion("t1", 0l), tablespace);
+		context.getCurrentVersionsMap().put("t1", 0l);
+		Querier querier = new Querier(context);
+		try {
+			/*
+			 * Once the latency of each DNode is known, the slow one is avoided
+			 */
+			for(int i = 0; i < 40; i++) {
+				if(i == 20) {
+					// Learnt by now
+					slowQueries.set(0);
+				}
+				QueryStatus status = querier.query("t1", "SELECT 1;", 0);
+				assertEquals(null, status.getError());
+				assertEquals((Integer) 0, status.getShard());
+			}
+			assertTrue("The slow DNode got " + slowQueries.get() + " queries", slowQueries.get() <= 2);
+		} finally {
+			querier.close();
+		}
+	}
+
+	@Test
+	public void testPowerOfTwoChoicesFailover() throws Throwable {
+		SploutConfiguration testConfig = SploutConfiguration.getTestConfig();
+		testConfig.setProperty(QNodeProperties.REPLICA_SELECTOR, PowerOfTwoChoicesReplicaSelector.class.getName());
+		DNode dnode = TestUtils.getTestDNode(testConfig, new SlowQueryHandler(0), "dnode-" + this.getClass().getName()
+		    + "-1");
+
+		List<ReplicationEntry> rEntries = new ArrayList<ReplicationEntry>();
+		rEntries.add(new ReplicationEntry(0, "fakeaddress:1111", dnode.getAddress(), "fakeaddress:2222"));
+
+		QNodeHandlerContext context = new QNodeHandlerContext(testConfig, null);
+		Tablespace tablespace = new Tablespace(PartitionMap.oneShardOpenedMap(), new ReplicationMap(rEntries), 0, 0);
+		context.getTablespaceVersionsMap().put(new TablespaceVersion("t1", 0l), tablespace);
+		context.getCurrentVersionsMap().put("t1", 0l);
+		Querier querier = new Querier(context);
+		try {
+			/*
+			 * Dead DNodes are failed over, and then avoided
+			 */
+			for(int i = 0; i < 10; i++) {
+				QueryStatus status = querier.query("t1", "SELECT 1;", 0);
+				assertEquals(null, status.getError());
+				assertEquals((Integer) 0, status.getShard());
+			}
+			PowerOfTwoChoicesReplicaSelector selector = (PowerOfTwoChoicesReplicaSelector) querier.getReplicaSelector();
+			assertTrue(selector.cost("fakeaddress:1111") > selector.cost(dnode.getAddress()));
+			assertTrue(selector.cost("fakeaddress:2222") > selector.cost(dnode.getAddress()));
+		} finally {
+			querier.close();
+		}
+	}
+
+	@Test
+	public void testPowerOfTwoChoices() {
+		QNodeHandlerContext context = new QNodeHandlerContext(SploutConfiguration.getTestConfig(), null);
+		PowerOfTwoChoicesReplicaSelector selector = new PowerOfTwoChoicesReplicaSelector(context);
+		List<String> replicas = Arrays.asList("a:1", "b:1", "c:1");
+		selector.report("a:1", 5000000, true);
+		selector.report("b:1", 1000000, true);
+		selector.report("c:1", 3000000, true);
+		for(int i = 0; i < 50; i++) {
+			BitSet tried = new BitSet();
+			// Never the slowest of two random ones
+			assertTrue(selector.select(0, replicas, tried) != 0);
+			// Never one that has been tried
+			tried.set(1);
+			assertTrue(selector.select(0, replicas, tried) != 1);
+			tried.set(2);
+			assertEquals(0, selector.select(0, replicas, tried));
+		}
+		// Failures make a DNode look slow
+		selector.report("b:1", 1000000, false);
+		assertTrue(selector.cost("b:1") > selector.cost("a:1"));
+	}
+
+	@Test
+	public void testPowerOfTwoChoicesAsync() throws Throwable {
+		SploutConfiguration testConfig = SploutConfiguration.getTestConfig();
+		testConfig.setProperty(QNodeProperties.DNODE_ASYNC_CLIENTS, true);
+		testConfig.setProperty(QNodeProperties.DNODE_ASYNC_MAX_CONNECTIONS, 1);
+		DNode busy = TestUtils.getTestDNode(testConfig, new SlowQueryHandler(500), "dnode-" + this.getClass().getName()
+		    + "-1");
+
+		List<ReplicationEntry> rEntries = new ArrayList<ReplicationEntry>();
+		rEntries.add(new ReplicationEntry(0, busy.getAddress()));
+
+		QNodeHandlerContext context = new QNodeHandlerContext(testConfig, null);
+		Tablespace tablespace = new Tablespace(PartitionMap.oneShardOpenedMap(), new ReplicationMap(rEntries), 0, 0);
+		context.getTablespaceVersionsMap().put(new TablespaceVersion("t1", 0l), tablespace);
+		context.getCurrentVersionsMap().put("t1", 0l);
+		Querier querier = new Querier(context);
+
+		PowerOfTwoChoicesReplicaSelector selector = new PowerOfTwoChoicesReplicaSelector(context);
+		List<String> replicas = Arrays.asList(busy.getAddress(), "idle:1");
+		selector.report(busy.getAddress(), 1000000, true);
+		selector.report("idle:1", 1000000, true);
+		try {
+			// One call running and two waiting for the only connection: all of them count
+			List<ListenableFuture<QueryStatus>> futures = new ArrayList<ListenableFuture<QueryStatus>>();
+			for(int i = 0; i < 3; i++) {
+				futures.add(querier.queryAsync("t1", "SELECT " + i + ";", null, 0));
+			}
+			assertEquals(3, context.getOutstandingRequests(busy.getAddress()));
+			// With the same latency, the DNode without requests in flight is preferred
+			for(int i = 0; i < 20; i++) {
+				assertEquals(1, selector.select(0, replicas, new BitSet()));
+			}
+			for(ListenableFuture<QueryStatus> future : futures) {
+				assertEquals(null, future.get().getError());
+			}
+			// Connections are given back right after answering
+			long waitUntil = System.currentTimeMillis() + 1000;
+			while(context.getOutstandingRequests(busy.getAddress()) > 0 && System.currentTimeMillis() < waitUntil) {
+				Thread.sleep(10);
+			}
+			assertEquals(0, context.getOutstandingRequests(busy.getAddress()));
+		} finally {
+			querier.close();
+		}
+	}
+
+	@Test
+	public void testHedgedQueries() throws Throwable {
+		SploutConfiguration testConfig = SploutConfiguration.getTestConfig();
+		testConfig.setProperty(QNodeProperties.REPLICA_SELECTOR, RoundRobinReplicaSelector.class.getName());
+		testConfig.setProperty(QNodeProperties.HEDGED_REQUESTS, true);
+		final AtomicLong sleepMillis = new AtomicLong(0);
+		IDNodeHandler sometimesSlowHandler = new DNodeMockHandler() {
+			@Override
+			public String sqlQuery(String tablespace, long version, int partition, String query) throws DNodeException {
+				try {
+					Thread.sleep(sleepMillis.get());
+				} catch (InterruptedException e) {
+					throw new DNodeException(0, "Interrupted");
+				}
+				return "[{ \"msg\": \"OK\" }]";
+			}
+		};
+		// Each DNode needs its own config, as its port is taken from it
+		DNode fast = TestUtils.getTestDNode(SploutConfiguration.getTestConfig(), new SlowQueryHandler(0), "dnode-"
+		    + this.getClass().getName() + "-1");
+		DNode slow = TestUtils.getTestDNode(SploutConfiguration.getTestConfig(), sometimesSlowHandler, "dnode-"
+		    + this.getClass().getName() + "-2");
+
+		List<ReplicationEntry> rEntries = new ArrayList<ReplicationEntry>();
+		rEntries.add(new ReplicationEntry(0, fast.getAddress(), slow.getAddress()));
+
+		QNodeHandlerContext context = new QNodeHandlerContext(testConfig, null);
+		Tablespace tablespace = new Tablespace(PartitionMap.oneShardOpenedMap(), new ReplicationMap(rEntries), 0, 0);
+		context.getTablespaceVersionsMap().put(new TablespaceVersion("t1", 0l), tablespace);
+		context.getCurrentVersionsMap().put("t1", 0l);
+		Querier querier = new Querier(context);
+		Counter hedgeWins = Metrics.newCounter(Querier.class, "hedge-wins");
+		try {
+			// Learn the usual latency, nothing is hedged until then
+			for(int i = 0; i < 40; i++) {
+				assertEquals(null, querier.query("t1", "SELECT 1;", 0).getError());
+			}
+			Thread.sleep(1100);
+			long winsBefore = hedgeWins.count();
+
+			/*
+			 * Now one of the replicas stalls: queries sent to it are answered by the other one
+			 */
+			sleepMillis.set(2000);
+			for(int i = 0; i < 4; i++) {
+				long start = System.currentTimeMillis();
+				QueryStatus status = querier.query("t1", "SELECT 1;", 0);
+				long elapsed = System.currentTimeMillis() - start;
+				assertEquals(null, status.getError());
+				assertEquals((Integer) 0, status.getShard());
+				assertTrue("Query took " + elapsed + " ms", elapsed < 1000);
+			}
+			// At least the queries that the round robin sent to the stalled replica
+			assertTrue(hedgeWins.count() - winsBefore >= 2);
+		} finally {
+			querier.close();
+		}
+	}
+
+	/*
+	 * A handler that takes some time for answering any query
+	 */
+	static class SlowQueryHandler extends DNodeMockHandler {
+
+		private long sleepMillis;
+
+		public SlowQueryHandler(long sleepMillis) {
+			this.sleepMillis = sleepMillis;
+		}
+
+		@Override
+		public String sqlQuery(String tablespace, long version, int partition, String query) throws DNodeException {
+			try {
+				Thread.sleep(sleepMillis);
+			} catch (InterruptedException e) {
+				throw new DNodeException(0, "Interrupted");
+			}
+			return "[{ \"partition\": " + partition + " }]";
+		}
+	}
+
+	private Querier fourPartitionsQuerier(SploutConfiguration testConfig, IDNodeHandler handler) throws Throwable {
+		List<PartitionEntry> partitions = new ArrayList<PartitionEntry>();
+		List<ReplicationEntry> rEntries = new ArrayList<ReplicationEntry>();
+		for(int i = 0; i < 4; i++) {
+			DNode dnode = TestUtils.getTestDNode(testConfig, handler, "dnode-" + this.getClass().getName() + "-" + (i + 1));
+			PartitionEntry entry = new PartitionEntry();
+			entry.setMin(i == 0 ? null : i + "");
+			entry.setMax(i == 3 ? null : (i + 1) + "");
+			entry.setShard(i);
+			partitions.add(entry);
+			rEntries.add(new ReplicationEntry(i, dnode.getAddress()));
+		}
+
+		QNodeHandlerContext context = new QNodeHandlerContext(testConfig, null);
+
+		Tablespace tablespace = new Tablespace(new PartitionMap(partitions), new ReplicationMap(rEntries), 0, 0);
+		context.getTablespaceVersionsMap().put(new TablespaceVersion("t1", 0l), tablespace);
+		context.getCurrentVersionsMap().put("t1", 0l);
+		return new Querier(context);
+	}
+
+	@Test
+	public void testMultiQueryIsParallel() throws Throwable {
+		SploutConfiguration testConfig = SploutConfiguration.getTestConfig();
+		Querier querier = fourPartitionsQuerier(testConfig, new SlowQueryHandler(1000));
+		try {
+			/*
+			 * Each partition takes one second to answer. Querying them one by one would take at least four.
+			 */
+			long start = System.currentTimeMillis();
+			List<QueryStatus> statuses = querier.multiQuery("t1", "SELECT 1;", Arrays.asList(0, 1, 2, 3));
+			long elapsed = System.currentTimeMillis() - start;
+
+			assertEquals(4, statuses.size());
+			for(int i = 0; i < 4; i++) {
+				assertEquals(null, statuses.get(i).getError());
+				assertEquals((Integer) i, statuses.get(i).getShard());
+			}
+			assertTrue("multiQuery took " + elapsed + " ms", elapsed < 3000);
+		} finally {
+			querier.close();
+		}
+	}
+
+	@Test
+	public void testMultiQueryDeadline() throws Throwable {
+		SploutConfiguration testConfig = SploutConfiguration.getTestConfig();
+		testConfig.setProperty(QNodeProperties.MULTIQUERY_TIMEOUT, 500);
+		Querier querier = fourPartitionsQuerier(testConfig, new SlowQueryHandler(3000));
+		try {
+			long start = System.currentTimeMillis();
+			List<QueryStatus> statuses = querier.multiQuery("t1", "SELECT 1;", Arrays.asList(0, 1, 2, 3));
+			long elapsed = System.currentTimeMillis() - start;
+
+			assertEquals(4, statuses.size());
+			for(int i = 0; i < 4; i++) {
+				assertTrue(statuses.get(i) instanceof ErrorQueryStatus);
+				assertTrue(statuses.get(i).getError().contains("Deadline"));
+				assertEquals((Integer) i, statuses.get(i).getShard());
+			}
+			assertTrue("multiQuery took " + elapsed + " ms", elapsed < 3000);
+
+			/*
+			 * A multi-query that touches a single partition has the same deadline
+			 */
+			start = System.currentTimeMillis();
+			statuses = querier.multiQuery("t1", "SELECT 1;", Arrays.asList(2));
+			elapsed = System.currentTimeMillis() - start;
+
+			assertEquals(1, statuses.size());
+			assertTrue(statuses.get(0) instanceof ErrorQueryStatus);
+			assertTrue(statuses.get(0).getError().contains("Deadline"));
+			assertEquals((Integer) 2, statuses.get(0).getShard());
+			assertTrue("multiQuery took " + elapsed + " ms", elapsed < 3000);
+		} finally {
+			querier.close();
+		}
+	}
+
+	@Test
+	public void testAsyncClients() throws Throwable {
+		SploutConfiguration testConfig = SploutConfiguration.getTestConfig();
+		testConfig.setProperty(QNodeProperties.DNODE_ASYNC_CLIENTS, true);
+		testConfig.setProperty(QNodeProperties.DNODE_ASYNC_MAX_CONNECTIONS, 2);
+		Querier querier = fourPartitionsQuerier(testConfig, new SlowQueryHandler(200));
+		try {
+			List<QueryStatus> statuses = querier.multiQuery("t1", "SELECT 1;", Arrays.asList(0, 1, 2, 3));
+			assertEquals(4, statuses.size());
+			for(int i = 0; i < 4; i++) {
+				assertEquals(null, statuses.get(i).getError());
+				assertEquals((Integer) i, statuses.get(i).getShard());
+			}
+
+			/*
+			 * Many more queries in flight than connections: they wait for a connection instead of failing
+			 */
+			List<ListenableFuture<QueryStatus>> futures = new ArrayList<ListenableFuture<QueryStatus>>();
+			for(int i = 0; i < 20; i++) {
+				futures.add(querier.queryAsync("t1", "SELECT 1;", null, i % 4));
+			}
+			for(int i = 0; i < 20; i++) {
+				QueryStatus status = futures.get(i).get();
+				assertEquals(null, status.getError());
+				assertEquals((Integer) (i % 4), status.getShard());
+			}
+			for(ReplicationEntry entry : querier.context.getTablespaceVersionsMap().get(new TablespaceVersion("t1", 0l))
+			    .getReplicationMap().getReplicationEntries()) {
+				assertTrue(querier.context.getAsyncDNodeClients().getOpenConnections(entry.getNodes().get(0)) <= 2);
+			}
+		} finally {
+			querier.close();
+		}
+	}
+
+	@Test
+	public void testAsyncClientsFailover() throws Throwable {
+		SploutConfiguration testConfig = SploutConfiguration.getTestConfig();
+		testConfig.setProperty(QNodeProperties.DNODE_ASYNC_CLIENTS, true);
+		testConfig.setProperty(QNodeProperties.REPLICA_SELECTOR, RoundRobinReplicaSelector.class.getName());
+		DNode dnode = TestUtils.getTestDNode(testConfig, new SlowQueryHandler(0), "dnode-" + this.getClass().getName() + "-1");
+
+		List<ReplicationEntry> rEntries = new ArrayList<ReplicationEntry>();
+		rEntries.add(new ReplicationEntry(0, "fakeaddress:1111", dnode.getAddress(), "localhost:1"));
+
+		QNodeHandlerContext context = new QNodeHandlerContext(testConfig, null);
+		Tablespace tablespace = new Tablespace(PartitionMap.oneShardOpenedMap(), new ReplicationMap(rEntries), 0, 0);
+		context.getTablespaceVersionsMap().put(new TablespaceVersion("t1", 0l), tablespace);
+		context.getCurrentVersionsMap().put("t1", 0l);
+
+		Querier querier = new Querier(context);
+		try {
+			// Whatever replica is tried first, the dead ones are skipped
+			for(int i = 0; i < 6; i++) {
+				QueryStatus status = querier.query("t1", "SELECT 1;", 0);
+				assertEquals(null, status.getError());
+				assertEquals((Integer) 0, status.getShard());
+			}
+		} finally {
+			querier.close();
+		}
+	}
+
+	@Test
+	public void testQueryCoalescing() throws Throwable {
+		SploutConfiguration testConfig = SploutConfiguration.getTestConfig();
+		final AtomicInteger dnodeQueries = new AtomicInteger(0);
+		IDNodeHandler countingHandler = new SlowQueryHandler(1000) {
+			@Override
+			public String sqlQuery(String tablespace, long version, int partition, String query) throws DNodeException {
+				dnodeQueries.incrementAndGet();
+				return super.sqlQuery(tablespace, version, partition, query);
+			}
+		};
+		DNode dnode = TestUtils.getTestDNode(testConfig, countingHandler, "dnode-" + this.getClass().getName() + "-1");
+
+		List<ReplicationEntry> rEntries = new ArrayList<ReplicationEntry>();
+		rEntries.add(new ReplicationEntry(0, dnode.getAddress()));
+
+		QNodeHandlerContext context = new QNodeHandlerContext(testConfig, null);
+		Tablespace tablespace = new Tablespace(PartitionMap.oneShardOpenedMap(), new ReplicationMap(rEntries), 0, 0);
+		context.getTablespaceVersionsMap().put(new TablespaceVersion("t1", 0l), tablespace);
+		context.getCurrentVersionsMap().put("t1", 0l);
+
+		final Querier querier = new Querier(context);
+		try {
+			/*
+			 * Ten identical queries at once are answered with a single DNode query
+			 */
+			final List<QueryStatus> statuses = new CopyOnWriteArrayList<QueryStatus>();
+			List<Thread> threads = new ArrayList<Thread>();
+			for(int i = 0; i < 10; i++) {
+				threads.add(new Thread() {
+					@Override
+					public void run() {
+						try {
+							statuses.add(querier.query("t1", "SELECT 1;", 0));
+						} catch (Exception e) {
+							statuses.add(new ErrorQueryStatus(e.getMessage()));
+						}
+					}
+				});
+			}
+			for(Thread thread : threads) {
+				thread.start();
+			}
+			for(Thread thread : threads) {
+				thread.join();
+			}
+			assertEquals(10, statuses.size());
+			Set<QueryStatus> instances = Collections.newSetFromMap(new IdentityHashMap<QueryStatus, Boolean>());
+			for(QueryStatus status : statuses) {
+				assertEquals(null, status.getError());
+				assertEquals((Integer) 0, status.getShard());
+				instances.add(status);
+			}
+			assertEquals(1, dnodeQueries.get());
+			// Each one gets its own copy
+			assertEquals(10, instances.size());
+
+			// Once answered, the next one goes to the DNode again
+			querier.query("t1", "SELECT 1;", 0);
+			assertEquals(2, dnodeQueries.get());
+		} finally {
+			querier.close();
+		}
+	}
+
+	@Test
+	public void testQueryCoalescingInterruptedLeader() throws Throwable {
+		SploutConfiguration testConfig = SploutConfiguration.getTestConfig();
+		testConfig.setProperty(QNodeProperties.DNODE_POOL_SIZE, 1);
+		final AtomicInteger dnodeQueries = new AtomicInteger(0);
+		IDNodeHandler countingHandler = new SlowQueryHandler(500) {
+			@Override
+			public String sqlQuery(String tablespace, long version, int partition, String query) throws DNodeException {
+				dnodeQueries.incrementAndGet();
+				return super.sqlQuery(tablespace, version, partition, query);
+			}
+		};
+		DNode dnode = TestUtils.getTestDNode(testConfig, countingHandler, "dnode-" + this.getClass().getName() + "-1");
+
+		List<ReplicationEntry> rEntries = new ArrayList<ReplicationEntry>();
+		rEntries.add(new ReplicationEntry(0, dnode.getAddress()));
+
+		QNodeHandlerContext context = new QNodeHandlerContext(testConfig, null);
+		Tablespace tablespace = new Tablespace(PartitionMap.oneShardOpenedMap(), new ReplicationMap(rEntries), 0, 0);
+		context.getTablespaceVersionsMap().put(new TablespaceVersion("t1", 0l), tablespace);
+		context.getCurrentVersionsMap().put("t1", 0l);
+
+		final Querier querier = new Querier(context);
+		try {
+			final QueryStatus[] statuses = new QueryStatus[3];
+			List<Thread> threads = new ArrayList<Thread>();
+			for(int i = 0; i < 3; i++) {
+				final int query = i;
+				threads.add(new Thread() {
+					@Override
+					public void run() {
+						try {
+							// The first one takes the only connection, the other two are the same query
+							statuses[query] = querier.query("t1", query == 0 ? "SELECT 0;" : "SELECT 1;", 0);
+						} catch (Exception e) {
+							statuses[query] = new ErrorQueryStatus(e.getMessage());
+						}
+					}
+				});
+			}
+			for(Thread thread : threads) {
+				thread.start();
+				Thread.sleep(100);
+			}
+			// The leader of the second query gives up waiting for a connection
+			threads.get(1).interrupt();
+			for(Thread thread : threads) {
+				thread.join();
+			}
+			assertEquals(null, statuses[0].getError());
+			assertTrue(statuses[1].getError(), statuses[1].getError().contains("Interrupted"));
+			// But the one that followed it runs the query again
+			assertEquals(null, statuses[2].getError());
+			assertEquals(2, dnodeQueries.get());
+		} finally {
+			querier.close();
+		}
+	}
+
+	@Test
+	public void testQueryCoalescingAsyncCancel() throws Throwable {
+		SploutConfiguration testConfig = SploutConfiguration.getTestConfig();
+		testConfig.setProperty(QNodeProperties.DNODE_ASYNC_CLIENTS, true);
+		testConfig.setProperty(QNodeProperties.DNODE_ASYNC_MAX_CONNECTIONS, 1);
+		final AtomicInteger dnodeQueries = new AtomicInteger(0);
+		IDNodeHandler countingHandler = new SlowQueryHandler(500) {
+			@Override
+			public String sqlQuery(String tablespace, long version, int partition, String query) throws DNodeException {
+				dnodeQueries.incrementAndGet();
+				return super.sqlQuery(tablespace, version, partition, query);
+			}
+		};
+		DNode dnode = TestUtils.getTestDNode(testConfig, countingHandler, "dnode-" + this.getClass().getName() + "-1");
+
+		List<ReplicationEntry> rEntries = new ArrayList<ReplicationEntry>();
+		rEntries.add(new ReplicationEntry(0, dnode.getAddress()));
+
+		QNodeHandlerContext context = new QNodeHandlerContext(testConfig, null);
+		Tablespace tablespace = new Tablespace(PartitionMap.oneShardOpenedMap(), new ReplicationMap(rEntries), 0, 0);
+		context.getTablespaceVersionsMap().put(new TablespaceVersion("t1", 0l), tablespace);
+		context.getCurrentVersionsMap().put("t1", 0l);
+
+		Querier querier = new Querier(context);
+		try {
+			// One waiter giving up doesn't cancel the query for the other
+			ListenableFuture<QueryStatus> first = querier.queryAsync("t1", "SELECT 0;", null, 0);
+			ListenableFuture<QueryStatus> second = querier.queryAsync("t1", "SELECT 0;", null, 0);
+			first.cancel(false);
+			assertEquals(null, second.get().getError());
+			assertEquals(1, dnodeQueries.get());
+
+			// When all of them give up, the query is abandoned before it reaches the DNode
+			ListenableFuture<QueryStatus> running = querier.queryAsync("t1", "SELECT 1;", null, 0);
+			first = querier.queryAsync("t1", "SELECT 2;", null, 0);
+			second = querier.queryAsync("t1", "SELECT 2;", null, 0);
+			first.cancel(false);
+			second.cancel(false);
+			assertEquals(null, running.get().getError());
+			Thread.sleep(1000);
+			assertEquals(2, dnodeQueries.get());
+		} finally {
+			querier.close();
+		}
+	}
+
+	@Test
+	public void testResultCache() throws Throwable {
+		SploutConfiguration testConfig = SploutConfiguration.getTestConfig();
+		testConfig.setProperty(QNodeProperties.RESULT_CACHE_MB, 1);
+		final AtomicInteger dnodeQueries = new AtomicInteger(0);
+		IDNodeHandler countingHandler = new DNodeMockHandler() {
+			@Override
+			public String sqlQuery(String tablespace, long version, int partition, String query) throws DNodeException {
+				dnodeQueries.incrementAndGet();
+				return "[{ \"version\": " + version + " }]";
+			}
+		};
+		DNode dnode = TestUtils.getTestDNode(testConfig, countingHandler, "dnode-" + this.getClass().getName() + "-1");
+
+		List<ReplicationEntry> rEntries = new ArrayList<ReplicationEntry>();
+		rEntries.add(new ReplicationEntry(0, dnode.getAddress()));
+		Tablespace tablespace = new Tablespace(PartitionMap.oneShardOpenedMap(), new ReplicationMap(rEntries), 0, 0);
+
+		QNodeHandlerContext context = new QNodeHandlerContext(testConfig, null);
+		context.getTablespaceVersionsMap().put(new TablespaceVersion("t1", 0l), tablespace);
+		context.getTablespaceVersionsMap().put(new TablespaceVersion("t1", 1l), tablespace);
+		context.getCurrentVersionsMap().put("t1", 0l);
+		Querier querier = new Querier(context);
+		try {
+			for(int i = 0; i < 3; i++) {
+				QueryStatus status = querier.query("t1", "SELECT 1;", 0);
+				assertEquals(null, status.getError());
+				assertEquals((Integer) 0, status.getShard());
+				assertEquals(0, ((Map) status.getResult().get(0)).get("version"));
+				// Changing a result doesn't change the cached one
+				((Map) status.getResult().get(0)).put("version", -1);
+				status.getResult().clear();
+			}
+			assertEquals(1, dnodeQueries.get());
+			querier.query("t1", "SELECT 2;", 0);
+			assertEquals(2, dnodeQueries.get());
+			assertEquals(2, querier.getResultCache().size());
+
+			// A new version is served: results of the old one can't be returned anymore
+			context.getCurrentVersionsMap().put("t1", 1l);
+			querier.getResultCache().retainVersions(context.getCurrentVersionsMap());
+			assertEquals(0, querier.getResultCache().size());
+			QueryStatus status = querier.query("t1", "SELECT 1;", 0);
+			assertEquals(1, ((Map) status.getResult().get(0)).get("version"));
+			assertEquals(3, dnodeQueries.get());
+			querier.query("t1", "SELECT 1;", 0);
+			assertEquals(3, dnodeQueries.get());
+		} finally {
+			querier.close();
+		}
+	}
+
+	@Test
+	public void testParameterizedQuery() throws Throwable {
+		SploutConfiguration testConfig = SploutConfiguration.getTestConfig();
+		testConfig.setProperty(QNodeProperties.RESULT_CACHE_MB, 1);
+		final AtomicInteger dnodeQueries = new AtomicInteger(0);
+		IDNodeHandler paramsHandler = new DNodeMockHandler() {
+			@Override
+			public ByteBuffer binarySqlQueryWithParams(String tablespace, long version, int partition, String query,
+			    String params) throws DNodeException {
+				dnodeQueries.incrementAndGet();
+				List<Object[]> rows = new ArrayList<Object[]>();
+				rows.add(new Object[] { query, params });
+				try {
+					return ResultSerializer.serialize(new QueryResult(new String[] { "query", "params" }, rows));
+				} catch(SerializationException e) {
+					throw new DNodeException(DNodeHandler.EXCEPTION_UNEXPECTED, e.getMessage());
+				}
+			}
+		};
+		DNode dnode = TestUtils.getTestDNode(testConfig, paramsHandler, "dnode-" + this.getClass().getName() + "-1");
+
+		List<ReplicationEntry> rEntries = new ArrayList<ReplicationEntry>();
+		rEntries.add(new ReplicationEntry(0, dnode.getAddress()));
+		Tablespace tablespace = new Tablespace(PartitionMap.oneShardOpenedMap(), new ReplicationMap(rEntries), 0, 0);
+
+		QNodeHandlerContext context = new QNodeHandlerContext(testConfig, null);
+		context.getTablespaceVersionsMap().put(new TablespaceVersion("t1", 0l), tablespace);
+		context.getCurrentVersionsMap().put("t1", 0l);
+		Querier querier = new Querier(context);
+		try {
+			// Params are sent as a JSON array even if the binary protocol is disabled
+			QueryStatus status = querier.query("t1", "SELECT * FROM t WHERE a = ? AND b = ?;",
+			    Arrays.asList(new Object[] { 1, "foo" }), 0);
+			assertEquals(null, status.getError());
+			assertEquals("SELECT * FROM t WHERE a = ? AND b = ?;", ((Map) status.getResult().get(0)).get("query"));
+			assertEquals("[1,\"foo\"]", ((Map) status.getResult().get(0)).get("params"));
+
+			// Results are cached per params
+			querier.query("t1", "SELECT * FROM t WHERE a = ? AND b = ?;", Arrays.asList(new Object[] { 1, "foo" }), 0);
+			assertEquals(1, dnodeQueries.get());
+			querier.query("t1", "SELECT * FROM t WHERE a = ? AND b = ?;", Arrays.asList(new Object[] { 2, "foo" }), 0);
+			assertEquals(2, dnodeQueries.get());
+		} finally {
+			querier.close();
+		}
+	}
 }
@@ -0,0 +1,94 @@
+package com.splout.db.qnode;
+
+/*
+ * #%L
+ * Splout SQL Server
+ * %%
+ * Copyright (C) 2012 Datasalt Systems S.L.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.splout.db.qnode.Querier.QuerierException;
+
+@SuppressWarnings({ "rawtypes", "unchecked" })
+public class TestSortedMerge {
+
+  private static Map row(Object a, Object b) {
+    Map row = new HashMap();
+    row.put("a", a);
+    row.put("b", b);
+    return row;
+  }
+
+  @Test
+  public void testParseAndPushDown() throws QuerierException {
+    List<SortedMerge.OrderBy> orderBy = SortedMerge.parse("a DESC, b");
+    assertEquals(2, orderBy.size());
+    assertTrue(orderBy.get(0).isDescending());
+    assertEquals("b", orderBy.get(1).getColumn());
+    assertEquals("SELECT * FROM (SELECT a, b FROM t WHERE c = 1) ORDER BY \"a\" DESC, \"b\" ASC LIMIT 10;",
+        SortedMerge.pushDown("SELECT a, b FROM t WHERE c = 1; ", orderBy, 10));
+    assertEquals("SELECT * FROM (SELECT * FROM t) LIMIT 5;",
+        SortedMerge.pushDown("SELECT * FROM t", SortedMerge.parse(null), 5));
+    try {
+      SortedMerge.parse("a DESC b");
+      throw new AssertionError("Invalid ORDER BY must fail");
+    } catch (QuerierException e) {
+    }
+  }
+
+  @Test
+  public void testMerge() throws QuerierException {
+    List<List> partitions = new ArrayList<List>();
+    partitions.add(Arrays.asList(row(9, "x"), row(5, "z"), row(1, "y")));
+    partitions.add(new ArrayList());
+    partitions.add(Arrays.asList(row(8.5, "y"), row(5, "a"), row(null, "b")));
+
+    List merged = SortedMerge.merge(partitions, SortedMerge.parse("a DESC, b"), 4);
+    assertEquals(4, merged.size());
+    assertEquals(9, ((Map) merged.get(0)).get("a"));
+    assertEquals(8.5, ((Map) merged.get(1)).get("a"));
+    // Ties resolved by the second column
+    assertEquals("a", ((Map) merged.get(2)).get("b"));
+    assertEquals("z", ((Map) merged.get(3)).get("b"));
+
+    // Less rows than the limit
+    assertEquals(6, SortedMerge.merge(partitions, SortedMerge.parse("a DESC, b"), 100).size());
+  }
+
+  @Test
+  public void testCompareValues() {
+    // Like SQLite: NULL < numbers < text < blobs
+    assertTrue(SortedMerge.compareValues(null, -1) < 0);
+    assertTrue(SortedMerge.compareValues(1000l, "1") < 0);
+    assertTrue(SortedMerge.compareValues("z", new byte[] { 0 }) < 0);
+    assertTrue(SortedMerge.compareValues(2, 1.5) > 0);
+    assertTrue(SortedMerge.compareValues(Long.MAX_VALUE, Long.MAX_VALUE - 1) > 0);
+    assertEquals(0, SortedMerge.compareValues(3, 3l));
+    assertTrue(SortedMerge.compareValues(new byte[] { 1 }, new byte[] { (byte) 200 }) < 0);
+  }
+}
@@ -0,0 +1,397 @@
+package com.splout.db.qnode;
+
+/*
+ * #%L
+ * Splout SQL Server
+ * %%
+ * Copyright (C) 2012 Datasalt Systems S.L.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.splout.db.common.PartitionEntry;
+import com.splout.db.common.PartitionMap;
+import com.splout.db.common.ReplicationEntry;
+import com.splout.db.common.ReplicationMap;
+import com.splout.db.common.SploutConfiguration;
+import com.splout.db.common.Tablespace;
+import com.splout.db.dnode.DNodeHandler;
+import com.splout.db.dnode.DNodeProperties;
+import com.splout.db.dnode.TCPStreamer;
+import com.splout.db.engine.EngineManager;
+import com.splout.db.engine.ResultSerializer;
+import com.splout.db.engine.SQLite4JavaManager;
+import com.splout.db.hazelcast.TablespaceVersion;
+
+public class TestStreamer {
+
+  public static int PARTITIONS = 3;
+  public static int ROWS_PER_PARTITION = 1000;
+  public static int FIRST_PORT = 18890;
+  // A DNode that serves all partitions and admits only one running and one queued stream
+  public static int BUSY_PORT = FIRST_PORT + PARTITIONS + 1;
+
+  private List<SQLite4JavaManager> managers = new ArrayList<SQLite4JavaManager>();
+  private List<TCPStreamer> streamers = new ArrayList<TCPStreamer>();
+
+  private static String db(int partition) {
+    return TestStreamer.class.getName() + "." + partition + ".db";
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    for (int p = 0; p < PARTITIONS; p++) {
+      new File(db(p)).delete();
+      final SQLite4JavaManager manager = new SQLite4JavaManager();
+      manager.init(new File(db(p)), SploutConfiguration.getTestConfig(), null);
+      manager.exec("CREATE TABLE t (a INT);");
+      manager.exec("BEGIN;");
+      for (int i = 0; i < ROWS_PER_PARTITION; i++) {
+        manager.exec("INSERT INTO t VALUES (" + (p * ROWS_PER_PARTITION + i) + ");");
+      }
+      manager.exec("COMMIT;");
+      managers.add(manager);
+
+      // One DNode per partition
+      SploutConfiguration config = SploutConfiguration.getTestConfig();
+      config.setProperty(DNodeProperties.STREAMING_PORT, FIRST_PORT + p);
+      TCPStreamer streamer = new TCPStreamer();
+      streamer.start(config, new DNodeHandler() {
+        @Override
+        public EngineManager getManager(String tablespace, long version, int partition) {
+          return manager;
+        }
+      });
+      streamers.add(streamer);
+    }
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    for (TCPStreamer streamer : streamers) {
+      streamer.stop();
+    }
+    for (int p = 0; p < PARTITIONS; p++) {
+      managers.get(p).close();
+      new File(db(p)).delete();
+    }
+  }
+
+  /**
+   * A Streamer for a tablespace whose partition "i" is served by "dnode" + i. The first partition has a dead replica
+   * too.
+   */
+  private Streamer streamer(SploutConfiguration config) {
+    List<PartitionEntry> partitions = new ArrayList<PartitionEntry>();
+    List<ReplicationEntry> rEntries = new ArrayList<ReplicationEntry>();
+    for (int p = 0; p < PARTITIONS; p++) {
+      PartitionEntry entry = new PartitionEntry();
+      entry.setMin(p == 0 ? null : p + "");
+      entry.setMax(p == PARTITIONS - 1 ? null : (p + 1) + "");
+      entry.setShard(p);
+      partitions.add(entry);
+      if (p == 0) {
+        rEntries.add(new ReplicationEntry(p, "dead", "dnode" + p));
+      } else {
+        rEntries.add(new ReplicationEntry(p, "dnode" + p));
+      }
+    }
+    QNodeHandlerContext context = new QNodeHandlerContext(config, null);
+    Tablespace tablespace = new Tablespace(new PartitionMap(partitions), new ReplicationMap(rEntries), 0, 0);
+    context.getTablespaceVersionsMap().put(new TablespaceVersion("t1", 0l), tablespace);
+    context.getCurrentVersionsMap().put("t1", 0l);
+    return new Streamer(context) {
+      @Override
+      protected String getStreamingAddress(String dnode) {
+        if (dnode.equals("dead")) {
+          // Nobody listening there
+          return "localhost:" + (FIRST_PORT + PARTITIONS);
+        }
+        return "localhost:" + (FIRST_PORT + Integer.parseInt(dnode.substring("dnode".length())));
+      }
+    };
+  }
+
+  static class CollectingSink implements Streamer.RowSink {
+
+    List<Object[]> rows = new ArrayList<Object[]>();
+    long sleepMillis = 0;
+
+    @Override
+    public void row(byte[] serializedRow) throws IOException {
+      rows.add(ResultSerializer.deserialize(ByteBuffer.wrap(serializedRow), Object[].class));
+      if (sleepMillis > 0 && rows.size() % 100 == 0) {
+        try {
+          Thread.sleep(sleepMillis);
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+    }
+  }
+
+  @Test
+  public void testAllPartitions() throws Exception {
+    SploutConfiguration config = SploutConfiguration.getTestConfig();
+    // The sink is slower than the DNodes
+    config.setProperty(QNodeProperties.STREAM_BUFFER_ROWS, 10);
+    Streamer streamer = streamer(config);
+    CollectingSink sink = new CollectingSink();
+    sink.sleepMillis = 5;
+    streamer.stream("t1", null, null, "SELECT * FROM t;", sink);
+
+    assertEquals(PARTITIONS * ROWS_PER_PARTITION, sink.rows.size());
+    Set<Object> values = new HashSet<Object>();
+    for (Object[] row : sink.rows) {
+      values.add(row[0]);
+    }
+    for (int i = 0; i < PARTITIONS * ROWS_PER_PARTITION; i++) {
+      assertTrue(values.contains(i));
+    }
+    streamer.close();
+  }
+
+  @Test
+  public void testOnePartition() throws Exception {
+    Streamer streamer = streamer(SploutConfiguration.getTestConfig());
+    CollectingSink sink = new CollectingSink();
+    streamer.stream("t1", null, "2", "SELECT * FROM t;", sink);
+    assertEquals(ROWS_PER_PARTITION, sink.rows.size());
+    assertEquals(2 * ROWS_PER_PARTITION, sink.rows.get(0)[0]);
+
+    // Key "15" belongs to partition 1
+    sink = new CollectingSink();
+    streamer.stream("t1", "15", null, "SELECT * FROM t;", sink);
+    assertEquals(ROWS_PER_PARTITION, sink.rows.size());
+    assertEquals(ROWS_PER_PARTITION, sink.rows.get(0)[0]);
+    streamer.close();
+  }
+
+  @Test
+  public void testErrors() throws Exception {
+    Streamer streamer = streamer(SploutConfiguration.getTestConfig());
+    try {
+      streamer.stream("t2", null, null, "SELECT * FROM t;", new CollectingSink());
+      throw new AssertionError("Unknown tablespaces can't be streamed");
+    } catch (Streamer.StreamerException e) {
+    }
+    try {
+      streamer.stream("t1", null, null, "SELECT * FROM not_a_table;", new CollectingSink());
+      throw new AssertionError("Broken streams must fail");
+    } catch (Streamer.StreamerException e) {
+    }
+    // A failing sink stops the stream
+    try {
+      streamer.stream("t1", null, null, "SELECT * FROM t;", new CollectingSink() {
+        @Override
+        public void row(byte[] serializedRow) throws IOException {
+          throw new IOException("Client went away");
+        }
+      });
+      throw new AssertionError("Sink errors must stop the stream");
+    } catch (IOException e) {
+    }
+    // The DNodes are still fine
+    CollectingSink sink = new CollectingSink();
+    streamer.stream("t1", null, null, "SELECT * FROM t;", sink);
+    assertEquals(PARTITIONS * ROWS_PER_PARTITION, sink.rows.size());
+    streamer.close();
+  }
+
+  /**
+   * Starts the DNode at {@link #BUSY_PORT}. Each stream waits for the gate and then sleeps a bit before running.
+   */
+  private TCPStreamer busyDNode(final CountDownLatch gate, final long sleepMillis) throws Exception {
+    SploutConfiguration config = SploutConfiguration.getTestConfig();
+    config.setProperty(DNodeProperties.STREAMING_PORT, BUSY_PORT);
+    config.setProperty(DNodeProperties.STREAMING_THREADS, 1);
+    config.setProperty(DNodeProperties.STREAMING_QUEUE_SIZE, 1);
+    TCPStreamer streamer = new TCPStreamer();
+    streamer.start(config, new DNodeHandler() {
+      @Override
+      public EngineManager getManager(String tablespace, long version, int partition) {
+        try {
+          gate.await();
+          Thread.sleep(sleepMillis);
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+        return managers.get(partition % PARTITIONS);
+      }
+    });
+    streamers.add(streamer);
+    return streamer;
+  }
+
+  private Socket request(int partition) throws IOException {
+    Socket socket = new Socket("localhost", BUSY_PORT);
+    DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+    out.writeUTF("t1");
+    out.writeLong(0l);
+    out.writeInt(partition);
+    out.writeUTF("SELECT * FROM t;");
+    out.flush();
+    return socket;
+  }
+
+  private int countRows(Socket socket) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    int rows = 0;
+    int length;
+    while ((length = in.readInt()) != TCPStreamer.END_OF_STREAM) {
+      in.readFully(new byte[length]);
+      rows++;
+    }
+    socket.close();
+    return rows;
+  }
+
+  @Test
+  public void testBusyDNode() throws Exception {
+    CountDownLatch gate = new CountDownLatch(1);
+    busyDNode(gate, 0);
+    // One stream running and one queued
+    Socket running = request(0);
+    Socket queued = request(1);
+    Thread.sleep(500);
+    // The DNode says it is busy instead of just closing
+    Socket rejected = request(2);
+    DataInputStream in = new DataInputStream(rejected.getInputStream());
+    assertEquals(TCPStreamer.BUSY, in.readInt());
+    assertEquals(-1, in.read());
+    rejected.close();
+
+    gate.countDown();
+    assertEquals(ROWS_PER_PARTITION, countRows(running));
+    assertEquals(ROWS_PER_PARTITION, countRows(queued));
+  }
+
+  /**
+   * A Streamer for a tablespace of the given number of partitions, all of them served by the DNode at
+   * {@link #BUSY_PORT}.
+   */
+  private Streamer busyStreamer(SploutConfiguration config, int nPartitions) {
+    List<PartitionEntry> partitions = new ArrayList<PartitionEntry>();
+    List<ReplicationEntry> rEntries = new ArrayList<ReplicationEntry>();
+    for (int p = 0; p < nPartitions; p++) {
+      PartitionEntry entry = new PartitionEntry();
+      entry.setMin(p == 0 ? null : p + "");
+      entry.setMax(p == nPartitions - 1 ? null : (p + 1) + "");
+      entry.setShard(p);
+      partitions.add(entry);
+      rEntries.add(new ReplicationEntry(p, "busy"));
+    }
+    QNodeHandlerContext context = new QNodeHandlerContext(config, null);
+    Tablespace tablespace = new Tablespace(new PartitionMap(partitions), new ReplicationMap(rEntries), 0, 0);
+    context.getTablespaceVersionsMap().put(new TablespaceVersion("t1", 0l), tablespace);
+    context.getCurrentVersionsMap().put("t1", 0l);
+    return new Streamer(context) {
+      @Override
+      protected String getStreamingAddress(String dnode) {
+        return "localhost:" + BUSY_PORT;
+      }
+    };
+  }
+
+  @Test
+  public void testMorePartitionsThanTheDNodeAdmits() throws Exception {
+    CountDownLatch gate = new CountDownLatch(0);
+    busyDNode(gate, 20);
+    int nPartitions = 10;
+
+    // The QNode doesn't open more streams than the DNode admits
+    SploutConfiguration config = SploutConfiguration.getTestConfig();
+    config.setProperty(QNodeProperties.STREAM_DNODE_PARALLELISM, 2);
+    Streamer streamer = busyStreamer(config, nPartitions);
+    CollectingSink sink = new CollectingSink();
+    streamer.stream("t1", null, null, "SELECT * FROM t;", sink);
+    assertEquals(nPartitions * ROWS_PER_PARTITION, sink.rows.size());
+    streamer.close();
+
+    // The QNode opens too many, but retries the partitions that the DNode rejects as busy
+    config = SploutConfiguration.getTestConfig();
+    config.setProperty(QNodeProperties.STREAM_DNODE_PARALLELISM, nPartitions);
+    streamer = busyStreamer(config, nPartitions);
+    sink = new CollectingSink();
+    streamer.stream("t1", null, null, "SELECT * FROM t;", sink);
+    assertEquals(nPartitions * ROWS_PER_PARTITION, sink.rows.size());
+    streamer.close();
+
+    // Unless they are busy for too long
+    config.setProperty(QNodeProperties.STREAM_BUSY_TIMEOUT, 0);
+    streamer = busyStreamer(config, nPartitions);
+    try {
+      streamer.stream("t1", null, null, "SELECT * FROM t;", new CollectingSink());
+      throw new AssertionError("Partitions can't wait for busy DNodes forever");
+    } catch (Streamer.StreamerException e) {
+      assertTrue(e.getMessage().contains("busy"));
+    }
+    streamer.close();
+  }
+
+  @Test
+  public void testReaderThreadsBoundedBySlots() throws Exception {
+    CountDownLatch gate = new CountDownLatch(0);
+    busyDNode(gate, 20);
+    int nPartitions = 50;
+
+    Set<Thread> before = readerThreads();
+    SploutConfiguration config = SploutConfiguration.getTestConfig();
+    config.setProperty(QNodeProperties.STREAM_DNODE_PARALLELISM, 2);
+    Streamer streamer = busyStreamer(config, nPartitions);
+    CollectingSink sink = new CollectingSink();
+    streamer.stream("t1", null, null, "SELECT * FROM t;", sink);
+    assertEquals(nPartitions * ROWS_PER_PARTITION, sink.rows.size());
+    // Partitions waiting for a slot of the DNode don't take a thread
+    Set<Thread> threads = readerThreads();
+    threads.removeAll(before);
+    assertTrue("Started " + threads.size() + " reader threads", threads.size() <= 2);
+    streamer.close();
+  }
+
+  private static Set<Thread> readerThreads() {
+    Set<Thread> threads = new HashSet<Thread>();
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (thread.getName().startsWith("stream-reader-")) {
+        threads.add(thread);
+      }
+    }
+    return threads;
+  }
+}